@@ -0,0 +1,97 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator;
+import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator.DistributionType;
+
+/**
+ * Synthetic data for benchmarks generated by the same generator used by
+ * {@link RandomSpatialGenerator}. All data is generated with a fixed seed so
+ * that all runs of a benchmark use the same input.
+ * @author Ahmed Eldawy
+ *
+ */
+public class BenchmarkData {
+  /**The space in which all shapes are generated*/
+  public static final Rectangle SpaceMBR = new Rectangle(0, 0, 1000000, 1000000);
+
+  /**Seed used to generate all data*/
+  public static final long Seed = 0;
+
+  /**
+   * Generates the given number of random points
+   * @param count
+   * @param type
+   * @return
+   */
+  public static Point[] generatePoints(int count, DistributionType type) {
+    Point[] points = new Point[count];
+    generate(new Point(), points, type, 100);
+    return points;
+  }
+
+  /**
+   * Generates the given number of random rectangles with a maximum side
+   * length of rectSize.
+   * @param count
+   * @param type
+   * @param rectSize
+   * @return
+   */
+  public static Rectangle[] generateRectangles(int count, DistributionType type,
+      int rectSize) {
+    Rectangle[] rects = new Rectangle[count];
+    generate(new Rectangle(), rects, type, rectSize);
+    return rects;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <S extends Shape> void generate(S stockShape, S[] shapes,
+      DistributionType type, int rectSize) {
+    RandomShapeGenerator<S> generator = new RandomShapeGenerator<S>(
+        Long.MAX_VALUE, SpaceMBR, type, rectSize, Seed, 1);
+    generator.setShape(stockShape);
+    Rectangle key = generator.createKey();
+    try {
+      for (int i = 0; i < shapes.length; i++) {
+        generator.next(key, stockShape);
+        shapes[i] = (S) stockShape.clone();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error generating data", e);
+    }
+  }
+
+  /**
+   * Returns the text representation of the given shapes with one shape per
+   * line as stored in input files.
+   * @param shapes
+   * @return
+   */
+  public static byte[] toText(Shape[] shapes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Text line = new Text();
+    for (Shape shape : shapes) {
+      line.clear();
+      shape.toText(line);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write('\n');
+    }
+    return out.toByteArray();
+  }
+}
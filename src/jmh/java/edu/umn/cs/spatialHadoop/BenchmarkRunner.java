@@ -0,0 +1,38 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks that match the command line options and writes the
+ * results as JSON to be compared across builds. Accepts the same options as
+ * the standard JMH launcher. Unless -rf or -rff are given, results are
+ * written in JSON to {@link #DefaultResultFile}.
+ * @author Ahmed Eldawy
+ *
+ */
+public class BenchmarkRunner {
+  /**Default file to write the results to*/
+  public static final String DefaultResultFile = "jmh-result.json";
+
+  public static void main(String[] args) throws Exception {
+    CommandLineOptions cmdOptions = new CommandLineOptions(args);
+    ChainedOptionsBuilder options = new OptionsBuilder().parent(cmdOptions);
+    if (!cmdOptions.getResultFormat().hasValue())
+      options.resultFormat(ResultFormatType.JSON);
+    if (!cmdOptions.getResult().hasValue())
+      options.result(DefaultResultFile);
+    new Runner(options.build()).run();
+  }
+}
@@ -0,0 +1,91 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.core;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.mapred.OutputCollector;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umn.cs.spatialHadoop.BenchmarkData;
+import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator.DistributionType;
+
+/**
+ * Measures the in-memory spatial join algorithms in {@link SpatialAlgorithms}
+ * on two sets of random rectangles. The inputs are copied before each join
+ * because the algorithms sort them in place.
+ * @author Ahmed Eldawy
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SpatialJoinBenchmark {
+  @Param({"10000", "100000"})
+  public int numRecords;
+
+  @Param({"UNIFORM", "GAUSSIAN"})
+  public String distribution;
+
+  /**Maximum side length of the generated rectangles*/
+  @Param({"1000"})
+  public int rectSize;
+
+  private Rectangle[] r, s;
+
+  @Setup
+  public void setup() {
+    DistributionType type = DistributionType.valueOf(distribution);
+    Rectangle[] all = BenchmarkData.generateRectangles(numRecords * 2, type, rectSize);
+    r = new Rectangle[numRecords];
+    s = new Rectangle[numRecords];
+    System.arraycopy(all, 0, r, 0, numRecords);
+    System.arraycopy(all, numRecords, s, 0, numRecords);
+  }
+
+  @Benchmark
+  public int planeSweep() {
+    final int[] count = {0};
+    SpatialAlgorithms.SpatialJoin_planeSweep(r.clone(), s.clone(),
+        new ResultCollector2<Rectangle, Rectangle>() {
+      @Override
+      public void collect(Rectangle x, Rectangle y) {
+        count[0]++;
+      }
+    }, null);
+    return count[0];
+  }
+
+  @Benchmark
+  public int rectangles() throws IOException {
+    final int[] count = {0};
+    SpatialAlgorithms.SpatialJoin_rectangles(r.clone(), s.clone(),
+        new OutputCollector<Rectangle, Rectangle>() {
+      @Override
+      public void collect(Rectangle x, Rectangle y) {
+        count[0]++;
+      }
+    }, null);
+    return count[0];
+  }
+}
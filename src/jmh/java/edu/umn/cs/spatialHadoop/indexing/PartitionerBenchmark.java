@@ -0,0 +1,118 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umn.cs.spatialHadoop.BenchmarkData;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator.DistributionType;
+
+/**
+ * Measures assigning records to partitions for all partitioners used by
+ * {@link Indexer}. Partitioners are created from a 1% sample of the data
+ * with a capacity that produces about {@link #numPartitions} partitions.
+ * @author Ahmed Eldawy
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PartitionerBenchmark {
+  @Param({"grid", "str", "str+", "rtree", "r+tree", "quadtree", "zcurve",
+    "hilbert", "kdtree"})
+  public String sindex;
+
+  @Param({"100000"})
+  public int numRecords;
+
+  @Param({"100"})
+  public int numPartitions;
+
+  @Param({"UNIFORM", "GAUSSIAN"})
+  public String distribution;
+
+  private Partitioner partitioner;
+  private Point[] points;
+  private Rectangle[] rectangles;
+  /**Centers of the rectangles and the partitions assigned to them*/
+  private double[] centerX, centerY;
+  private int[] partitionIDs;
+
+  @Setup
+  public void setup() throws Exception {
+    DistributionType type = DistributionType.valueOf(distribution);
+    points = BenchmarkData.generatePoints(numRecords, type);
+    rectangles = BenchmarkData.generateRectangles(numRecords, type, 1000);
+    Point[] sample = new Point[numRecords / 100];
+    for (int i = 0; i < sample.length; i++)
+      sample[i] = points[i * 100];
+    Class<? extends Partitioner> partitionerClass = Indexer.getPartitionerClass(sindex);
+    if (partitionerClass == null)
+      throw new RuntimeException("Unknown index type '"+sindex+"'");
+    partitioner = partitionerClass.newInstance();
+    partitioner.createFromPoints(BenchmarkData.SpaceMBR, sample,
+        Math.max(1, sample.length / numPartitions));
+    centerX = new double[numRecords];
+    centerY = new double[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      centerX[i] = (rectangles[i].x1 + rectangles[i].x2) / 2;
+      centerY[i] = (rectangles[i].y1 + rectangles[i].y2) / 2;
+    }
+    partitionIDs = new int[Indexer.PartitionBatch.BatchSize];
+  }
+
+  @Benchmark
+  public long overlapPartitionPoints() {
+    long sum = 0;
+    for (Point p : points)
+      sum += partitioner.overlapPartition(p);
+    return sum;
+  }
+
+  @Benchmark
+  public long overlapPartitionRectangles() {
+    long sum = 0;
+    for (Rectangle r : rectangles)
+      sum += partitioner.overlapPartition(r);
+    return sum;
+  }
+
+  @Benchmark
+  public long overlapPartitionRectanglesBatch() {
+    long sum = 0;
+    int batchSize = partitionIDs.length;
+    double[] x = new double[batchSize], y = new double[batchSize];
+    for (int start = 0; start < numRecords; start += batchSize) {
+      int count = Math.min(batchSize, numRecords - start);
+      System.arraycopy(centerX, start, x, 0, count);
+      System.arraycopy(centerY, start, y, 0, count);
+      partitioner.overlapPartition(x, y, count, partitionIDs);
+      for (int i = 0; i < count; i++)
+        sum += partitionIDs[i];
+    }
+    return sum;
+  }
+}
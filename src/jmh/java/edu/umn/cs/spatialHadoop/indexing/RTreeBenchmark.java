@@ -0,0 +1,115 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umn.cs.spatialHadoop.BenchmarkData;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator.DistributionType;
+
+/**
+ * Measures building an {@link RTree} from text records and searching it
+ * with range queries.
+ * @author Ahmed Eldawy
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RTreeBenchmark {
+  /**Number of range queries in each invocation of the search benchmark*/
+  static final int NumQueries = 100;
+
+  @Param({"100000"})
+  public int numRecords;
+
+  @Param({"UNIFORM", "GAUSSIAN"})
+  public String distribution;
+
+  /**Whether leaf records are stored as text or binary*/
+  @Param({"false", "true"})
+  public boolean binary;
+
+  /**Text representation of all records*/
+  private byte[] records;
+  /**A tree built over all records*/
+  private RTree<Point> tree;
+  /**Query ranges each covering about 0.1% of the space*/
+  private Rectangle[] queries;
+
+  @Setup
+  public void setup() throws IOException {
+    records = BenchmarkData.toText(BenchmarkData.generatePoints(numRecords,
+        DistributionType.valueOf(distribution)));
+    tree = new RTree<Point>();
+    tree.setStockObject(new Point());
+    tree.setBinaryLeaves(binary);
+    tree.readFields(new DataInputStream(new ByteArrayInputStream(buildTree())));
+
+    Random random = new Random(BenchmarkData.Seed);
+    Rectangle space = BenchmarkData.SpaceMBR;
+    double querySize = space.getWidth() * Math.sqrt(0.001);
+    queries = new Rectangle[NumQueries];
+    for (int i = 0; i < NumQueries; i++) {
+      double x = space.x1 + random.nextDouble() * (space.getWidth() - querySize);
+      double y = space.y1 + random.nextDouble() * (space.getHeight() - querySize);
+      queries[i] = new Rectangle(x, y, x + querySize, y + querySize);
+    }
+  }
+
+  private byte[] buildTree() {
+    ByteArrayOutputStream treeBytes = new ByteArrayOutputStream();
+    RTree.bulkLoadWrite(records, 0, records.length, 4096 / RTree.NodeSize,
+        new DataOutputStream(treeBytes), new Point(), true, binary);
+    return treeBytes.toByteArray();
+  }
+
+  @Benchmark
+  public int bulkLoadWrite() {
+    return buildTree().length;
+  }
+
+  @Benchmark
+  public int search() {
+    final int[] count = {0};
+    ResultCollector<Point> output = new ResultCollector<Point>() {
+      @Override
+      public void collect(Point r) {
+        count[0]++;
+      }
+    };
+    for (Rectangle query : queries)
+      tree.search(query, output);
+    return count[0];
+  }
+}
@@ -0,0 +1,145 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares parsing and formatting of doubles in {@link TextSerializerHelper}
+ * with the previous implementations that go through {@link String}.
+ * Each invocation processes all coordinates of {@link #NumRecords} points.
+ * @author Ahmed Eldawy
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TextSerializerHelperBenchmark {
+  /**Number of points parsed or formatted in each invocation*/
+  static final int NumRecords = 1024;
+
+  /**
+   * How coordinates are generated. "degrees" rounds them to seven decimal
+   * places like most GPS data. "random" uses all digits of a double.
+   */
+  @Param({"degrees", "random"})
+  public String coordinates;
+
+  /**Text representation of all points as "x,y"*/
+  private byte[][] lines;
+  /**Coordinates of all points*/
+  private double[] values;
+  /**Reused for parsing and formatting*/
+  private Text text;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(0);
+    values = new double[NumRecords * 2];
+    lines = new byte[NumRecords][];
+    for (int i = 0; i < values.length; i++) {
+      double value = (random.nextDouble() - 0.5) * 360;
+      if (coordinates.equals("degrees"))
+        value = Math.round(value * 1E7) / 1E7;
+      values[i] = value;
+    }
+    for (int i = 0; i < NumRecords; i++)
+      lines[i] = (Double.toString(values[2 * i]) + "," +
+          Double.toString(values[2 * i + 1])).getBytes();
+    text = new Text();
+  }
+
+  /**The implementation of consumeDouble before the byte-level parser*/
+  static double consumeDoubleString(Text text, char separator) {
+    int i = 0;
+    byte[] bytes = text.getBytes();
+    while (i < text.getLength()
+        && ((bytes[i] >= '0' && bytes[i] <= '9') || bytes[i] == 'e'
+            || bytes[i] == 'E' || bytes[i] == '-' || bytes[i] == '+' || bytes[i] == '.'))
+      i++;
+    double d = Double.parseDouble(new String(bytes, 0, i));
+    if (i < text.getLength() && bytes[i] == separator)
+      i++;
+    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
+    text.set(bytes, 0, text.getLength() - i);
+    return d;
+  }
+
+  /**The implementation of serializeDouble before the fast formatter*/
+  static void serializeDoubleString(double d, Text t, char toAppend) {
+    byte[] bytes = Double.toString(d).getBytes();
+    t.append(bytes, 0, bytes.length);
+    if (toAppend != '\0') {
+      t.append(new byte[] {(byte)toAppend}, 0, 1);
+    }
+  }
+
+  @Benchmark
+  public double consumeDouble() {
+    double sum = 0;
+    for (byte[] line : lines) {
+      text.set(line);
+      sum += TextSerializerHelper.consumeDouble(text, ',');
+      sum += TextSerializerHelper.consumeDouble(text, '\0');
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double consumeDoubleBaseline() {
+    double sum = 0;
+    for (byte[] line : lines) {
+      text.set(line);
+      sum += consumeDoubleString(text, ',');
+      sum += consumeDoubleString(text, '\0');
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int serializeDouble() {
+    int length = 0;
+    for (int i = 0; i < values.length; i += 2) {
+      text.clear();
+      TextSerializerHelper.serializeDouble(values[i], text, ',');
+      TextSerializerHelper.serializeDouble(values[i + 1], text, '\0');
+      length += text.getLength();
+    }
+    return length;
+  }
+
+  @Benchmark
+  public int serializeDoubleBaseline() {
+    int length = 0;
+    for (int i = 0; i < values.length; i += 2) {
+      text.clear();
+      serializeDoubleString(values[i], text, ',');
+      serializeDoubleString(values[i + 1], text, '\0');
+      length += text.getLength();
+    }
+    return length;
+  }
+}
@@ -0,0 +1,108 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umn.cs.spatialHadoop.BenchmarkData;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator.DistributionType;
+import edu.umn.cs.spatialHadoop.visualization.GeometricPlot.GeometricRasterizer;
+import edu.umn.cs.spatialHadoop.visualization.HeatMapPlot.HeatMapRasterizer;
+
+/**
+ * Measures plotting random data on an {@link ImageCanvas} and a
+ * {@link FrequencyMap} through their plotters and converting the frequency
+ * map to an image.
+ * @author Ahmed Eldawy
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class PlotBenchmark {
+  @Param({"100000"})
+  public int numRecords;
+
+  @Param({"1024"})
+  public int imageSize;
+
+  @Param({"UNIFORM", "GAUSSIAN"})
+  public String distribution;
+
+  private Point[] points;
+  private Rectangle[] rectangles;
+  private Plotter geometricPlotter;
+  private Plotter heatMapPlotter;
+  /**A frequency map with all points used to measure image creation*/
+  private FrequencyMap frequencyMap;
+
+  @Setup
+  public void setup() {
+    DistributionType type = DistributionType.valueOf(distribution);
+    points = BenchmarkData.generatePoints(numRecords, type);
+    rectangles = BenchmarkData.generateRectangles(numRecords, type, 1000);
+    Configuration conf = new Configuration();
+    geometricPlotter = new GeometricRasterizer();
+    geometricPlotter.configure(conf);
+    heatMapPlotter = new HeatMapRasterizer();
+    heatMapPlotter.configure(conf);
+    frequencyMap = heatMapPoints();
+  }
+
+  @Benchmark
+  public Canvas imageCanvasPoints() {
+    Canvas canvas = geometricPlotter.createCanvas(imageSize, imageSize,
+        BenchmarkData.SpaceMBR);
+    for (Point p : points)
+      geometricPlotter.plot(canvas, p);
+    return canvas;
+  }
+
+  @Benchmark
+  public Canvas imageCanvasRectangles() {
+    Canvas canvas = geometricPlotter.createCanvas(imageSize, imageSize,
+        BenchmarkData.SpaceMBR);
+    for (Rectangle r : rectangles)
+      geometricPlotter.plot(canvas, r);
+    return canvas;
+  }
+
+  @Benchmark
+  public FrequencyMap heatMapPoints() {
+    FrequencyMap canvas = (FrequencyMap) heatMapPlotter.createCanvas(
+        imageSize, imageSize, BenchmarkData.SpaceMBR);
+    for (Point p : points)
+      heatMapPlotter.plot(canvas, p);
+    return canvas;
+  }
+
+  @Benchmark
+  public BufferedImage heatMapImage() {
+    return frequencyMap.asImage();
+  }
+}
@@ -157,6 +157,8 @@ public class GridRecordWriter<S extends Shape> implements ShapeRecordWriter<S> {
     ReplicatedIndexes.add("grid");
     ReplicatedIndexes.add("r+tree");
     ReplicatedIndexes.add("str+");
+    ReplicatedIndexes.add("zcurve+");
+    ReplicatedIndexes.add("hilbert+");
   }
   
   /**
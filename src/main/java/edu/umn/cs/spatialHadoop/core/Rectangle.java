@@ -225,15 +225,35 @@ public class Rectangle implements Shape, WritableComparable<Rectangle> {
   }
   
   public void expand(final Shape s) {
-    Rectangle r = s.getMBR();
-    if (r.x1 < this.x1)
-      this.x1 = r.x1;
-    if (r.x2 > this.x2)
-      this.x2 = r.x2;
-    if (r.y1 < this.y1)
-      this.y1 = r.y1;
-    if (r.y2 > this.y2)
-      this.y2 = r.y2;
+    // Points and rectangles are expanded without creating their MBRs
+    if (s.getClass() == Point.class) {
+      Point p = (Point) s;
+      expand(p.x, p.y, p.x + Math.ulp(p.x), p.y + Math.ulp(p.y));
+    } else if (s.getClass() == Rectangle.class) {
+      Rectangle r = (Rectangle) s;
+      expand(r.x1, r.y1, r.x2, r.y2);
+    } else {
+      Rectangle r = s.getMBR();
+      expand(r.x1, r.y1, r.x2, r.y2);
+    }
+  }
+  
+  /**
+   * Expands this rectangle to enclose the given rectangle
+   * @param rx1
+   * @param ry1
+   * @param rx2
+   * @param ry2
+   */
+  public void expand(double rx1, double ry1, double rx2, double ry2) {
+    if (rx1 < this.x1)
+      this.x1 = rx1;
+    if (rx2 > this.x2)
+      this.x2 = rx2;
+    if (ry1 < this.y1)
+      this.y1 = ry1;
+    if (ry2 > this.y2)
+      this.y2 = ry2;
   }
   
   public boolean contains(double rx1, double ry1, double rx2, double ry2) {
@@ -12,7 +12,6 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
@@ -25,7 +24,6 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
@@ -33,6 +31,8 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Geometry;
@@ -45,6 +45,8 @@ import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.util.BitArray;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 import edu.umn.cs.spatialHadoop.util.Progressable;
 
 /**
@@ -96,330 +98,435 @@ class TOPK {
 public class SpatialAlgorithms {
   public static final Log LOG = LogFactory.getLog(SpatialAlgorithms.class);
 
-  
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
-	      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
-	      Reporter reporter)
-	      throws IOException {
-	  
-	  	LOG.info("Start spatial join plan sweep algorithm !!!");
-	  
-	    final RectangleID[] Rmbrs = new RectangleID[R.size()];
-	    for (int i = 0; i < R.size(); i++) {
-	      Rmbrs[i] = new RectangleID(i, R.get(i).getMBR());
-	    }
-	    final RectangleID[] Smbrs = new RectangleID[S.size()];
-	    for (int i = 0; i < S.size(); i++) {
-	      Smbrs[i] = new RectangleID(i, S.get(i).getMBR());
-	    }	    
-	    
-	    final IntWritable count = new IntWritable();
-	    int filterCount = SpatialJoin_rectangles(Rmbrs, Smbrs, new OutputCollector<RectangleID, RectangleID>() {
-	        @Override
-	        public void collect(RectangleID r1, RectangleID r2)
-	            throws IOException {
-	          //if (R.get(r1.id).isIntersected(S.get(r2.id))) {
-	            if (output != null)
-	              output.collect(R.get(r1.id), S.get(r2.id));
-	            count.set(count.get() + 1);
-	          //}
-	        }
-	    }, reporter);
-	      
-	      LOG.info("Filtered result size "+filterCount+", refined result size "+count.get());
-	      
-	      return count.get();
-	}
 
-  
   /**
+   * MBRs of a set of shapes stored as parallel arrays of coordinates and
+   * sorted by x1. The position of each MBR in the original input is kept in
+   * {@link #ids} so that the plane sweep runs only on primitive arrays and the
+   * shapes are touched only to report or refine candidate pairs.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class SortedMBRs implements IndexedSortable {
+    double[] x1, y1, x2, y2;
+    /**Index of the shape of each MBR in the input*/
+    int[] ids;
+    /**Number of MBRs. Shapes without an MBR are skipped*/
+    int size;
+
+    SortedMBRs(Shape[] shapes) {
+      this(shapes.length);
+      for (int i = 0; i < shapes.length; i++)
+        add(i, shapes[i]);
+      sort();
+    }
+
+    SortedMBRs(List<? extends Shape> shapes) {
+      this(shapes.size());
+      for (int i = 0; i < shapes.size(); i++)
+        add(i, shapes.get(i));
+      sort();
+    }
+
+    /**
+     * Creates a subset of the given MBRs with all MBRs that overlap the
+     * vertical strip [lo, hi) keeping them sorted by x1.
+     * @param all
+     * @param lo
+     * @param hi
+     */
+    SortedMBRs(SortedMBRs all, double lo, double hi) {
+      this(0);
+      int count = 0;
+      for (int i = 0; i < all.size && all.x1[i] < hi; i++)
+        if (all.x2[i] >= lo)
+          count++;
+      x1 = new double[count];
+      y1 = new double[count];
+      x2 = new double[count];
+      y2 = new double[count];
+      ids = new int[count];
+      for (int i = 0; size < count; i++) {
+        if (all.x2[i] >= lo) {
+          x1[size] = all.x1[i];
+          y1[size] = all.y1[i];
+          x2[size] = all.x2[i];
+          y2[size] = all.y2[i];
+          ids[size] = all.ids[i];
+          size++;
+        }
+      }
+    }
+
+    /**
+     * Returns x1 of all MBRs indexed by the position of their shapes in the
+     * input rather than their sorted position.
+     * @param numShapes - number of shapes in the input
+     * @return
+     */
+    double[] x1ById(int numShapes) {
+      double[] x1ById = new double[numShapes];
+      for (int i = 0; i < size; i++)
+        x1ById[ids[i]] = x1[i];
+      return x1ById;
+    }
+
+    private SortedMBRs(int capacity) {
+      x1 = new double[capacity];
+      y1 = new double[capacity];
+      x2 = new double[capacity];
+      y2 = new double[capacity];
+      ids = new int[capacity];
+    }
+
+    private void add(int id, Shape shape) {
+      // Avoid the copy made by Rectangle#getMBR()
+      Rectangle mbr = shape instanceof Rectangle ? (Rectangle) shape : shape.getMBR();
+      if (mbr == null)
+        return;
+      x1[size] = mbr.x1;
+      y1[size] = mbr.y1;
+      x2[size] = mbr.x2;
+      y2[size] = mbr.y2;
+      ids[size] = id;
+      size++;
+    }
+
+    private void sort() {
+      new QuickSort().sort(this, 0, size);
+    }
+
+    @Override
+    public int compare(int i, int j) {
+      return Double.compare(x1[i], x1[j]);
+    }
+
+    @Override
+    public void swap(int i, int j) {
+      double t = x1[i]; x1[i] = x1[j]; x1[j] = t;
+      t = y1[i]; y1[i] = y1[j]; y1[j] = t;
+      t = x2[i]; x2[i] = x2[j]; x2[j] = t;
+      t = y2[i]; y2[i] = y2[j]; y2[j] = t;
+      int id = ids[i]; ids[i] = ids[j]; ids[j] = id;
+    }
+
+    /**
+     * Tests if the MBR at position i overlaps the MBR at position j of another
+     * set.
+     * @param i
+     * @param that
+     * @param j
+     * @param closed - whether MBRs that only touch at their boundaries overlap
+     * @return
+     */
+    boolean overlaps(int i, SortedMBRs that, int j, boolean closed) {
+      if (closed)
+        return this.x1[i] <= that.x2[j] && that.x1[j] <= this.x2[i]
+            && this.y1[i] <= that.y2[j] && that.y1[j] <= this.y2[i];
+      return this.x1[i] < that.x2[j] && that.x1[j] < this.x2[i]
+          && this.y1[i] < that.y2[j] && that.y1[j] < this.y2[i];
+    }
+  }
+
+  /**
+   * Receives the positions of two shapes with overlapping MBRs.
+   * @author Ahmed Eldawy
+   *
+   */
+  interface MBRPairCollector {
+    void collect(int r, int s) throws IOException;
+  }
+
+  /**
+   * Finds all pairs of overlapping MBRs in two sets using the plane sweep
+   * algorithm.
    * @param R
    * @param S
-   * @param output
-   * @return
+   * @param closed - whether MBRs that only touch at their boundaries overlap
+   * @param output - receives the input positions of each overlapping pair
+   * @param reporter
+   * @return - number of overlapping pairs
    * @throws IOException
    */
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
-      List<S1> R, List<S2> S, ResultCollector2<S1, S2> output, Reporter reporter)
+  static int planeSweepMBRs(SortedMBRs R, SortedMBRs S, boolean closed,
+      MBRPairCollector output, org.apache.hadoop.util.Progressable reporter)
       throws IOException {
     int count = 0;
+    int i = 0, j = 0;
+    while (i < R.size && j < S.size) {
+      if (R.x1[i] < S.x1[j]) {
+        double rx2 = R.x2[i];
+        for (int jj = j; jj < S.size && S.x1[jj] <= rx2; jj++) {
+          if (R.overlaps(i, S, jj, closed)) {
+            output.collect(R.ids[i], S.ids[jj]);
+            count++;
+          }
+        }
+        i++;
+      } else {
+        double sx2 = S.x2[j];
+        for (int ii = i; ii < R.size && R.x1[ii] <= sx2; ii++) {
+          if (R.overlaps(ii, S, j, closed)) {
+            output.collect(R.ids[ii], S.ids[j]);
+            count++;
+          }
+        }
+        j++;
+      }
+      if (reporter != null)
+        reporter.progress();
+    }
+    return count;
+  }
 
-    Comparator<Shape> comparator = new Comparator<Shape>() {
+  /**
+   * Finds all pairs of overlapping MBRs in one set using the plane sweep
+   * algorithm. Each pair is reported once and an MBR is never paired with
+   * itself.
+   * @param R
+   * @param closed - whether MBRs that only touch at their boundaries overlap
+   * @param output - receives the input positions of each overlapping pair
+   * @param reporter
+   * @return - number of overlapping pairs
+   * @throws IOException
+   */
+  static int selfPlaneSweepMBRs(SortedMBRs R, boolean closed,
+      MBRPairCollector output, org.apache.hadoop.util.Progressable reporter)
+      throws IOException {
+    int count = 0;
+    for (int i = 0; i < R.size; i++) {
+      double rx2 = R.x2[i];
+      for (int j = i + 1; j < R.size && R.x1[j] <= rx2; j++) {
+        if (R.overlaps(i, R, j, closed)) {
+          output.collect(R.ids[i], R.ids[j]);
+          count++;
+        }
+      }
+      if (reporter != null)
+        reporter.progress();
+    }
+    return count;
+  }
+
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
+      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) throws IOException {
+    long t1 = System.currentTimeMillis();
+    LOG.info("Start spatial join plan sweep algorithm !!!");
+    int count = planeSweepMBRs(new SortedMBRs(R), new SortedMBRs(S), false,
+        new MBRPairCollector() {
       @Override
-      public int compare(Shape o1, Shape o2) {
-    	if (o1.getMBR().x1 == o2.getMBR().x1)
-    		return 0;
-        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
+      public void collect(int r, int s) {
+        if (output != null)
+          output.collect(R.get(r), S.get(s));
       }
-    };
+    }, reporter);
+    long t2 = System.currentTimeMillis();
+    LOG.info("Finished plane sweep filter only in "+(t2-t1)+" millis and found "+count+" pairs");
+    return count;
+  }
 
+  /**
+   * Joins two lists of shapes using the plane sweep algorithm. The MBRs are
+   * first joined using {@link #planeSweepMBRs} and the exact test runs only
+   * for pairs of overlapping MBRs. The input lists are not reordered.
+   * @param R
+   * @param S
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) throws IOException {
     long t1 = System.currentTimeMillis();
     LOG.info("Joining lists "+ R.size()+" with "+S.size());
-    Collections.sort(R, comparator);
-    Collections.sort(S, comparator);
+    final int[] count = {0};
+    int filterCount = planeSweepMBRs(new SortedMBRs(R), new SortedMBRs(S), true,
+        new MBRPairCollector() {
+      @Override
+      public void collect(int i, int j) {
+        S1 r = R.get(i);
+        S2 s = S.get(j);
+        // Check if r and s are overlapping but not the same object
+        // for self join
+        if (r.isIntersected(s) && !r.equals(s)) {
+          if (output != null)
+            output.collect(r, s);
+          count[0]++;
+        }
+      }
+    }, reporter);
+    long t2 = System.currentTimeMillis();
+    LOG.info("Finished plane sweep in "+(t2-t1)+" millis and found "+count[0]
+        +" pairs out of "+filterCount+" candidates");
+    return count[0];
+  }
 
-		int i = 0, j = 0;
+  /**
+   * A parallel version of {@link #SpatialJoin_planeSweep(List, List, ResultCollector2, Reporter)}.
+   * The x-axis is split into vertical strips with roughly the same number of
+   * shapes and each strip is joined in a separate thread. A shape that crosses
+   * a strip boundary is replicated to all strips it overlaps and a pair is
+   * reported only by the strip that contains the x-coordinate of its
+   * reference point, i.e., the maximum x1 of the two MBRs. Calls to the
+   * output collector are synchronized on it.
+   * @param R
+   * @param S
+   * @param output
+   * @param reporter
+   * @param parallelism - maximum number of threads to use
+   * @return - number of result pairs
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
+      final Reporter reporter, int parallelism) throws IOException, InterruptedException {
+    if (parallelism <= 1)
+      return SpatialJoin_planeSweep(R, S, output, reporter);
+    long t1 = System.currentTimeMillis();
+    LOG.info("Joining lists "+ R.size()+" with "+S.size()+" using "+parallelism+" threads");
+    final SortedMBRs allR = new SortedMBRs(R);
+    final SortedMBRs allS = new SortedMBRs(S);
+    final double[] x1R = allR.x1ById(R.size());
+    final double[] x1S = allS.x1ById(S.size());
+    // Choose the boundaries of strips as quantiles of x1 of both inputs
+    final double[] bounds = new double[parallelism + 1];
+    bounds[0] = Double.NEGATIVE_INFINITY;
+    bounds[parallelism] = Double.POSITIVE_INFINITY;
+    long total = allR.size + allS.size;
+    int i = 0, j = 0, strip = 1;
+    for (long rank = 0; strip < parallelism && rank < total; rank++) {
+      double x;
+      if (j >= allS.size || (i < allR.size && allR.x1[i] < allS.x1[j]))
+        x = allR.x1[i++];
+      else
+        x = allS.x1[j++];
+      while (strip < parallelism && rank == strip * total / parallelism)
+        bounds[strip++] = x;
+    }
+    while (strip < parallelism)
+      bounds[strip++] = Double.POSITIVE_INFINITY;
 
-    try {
-      while (i < R.size() && j < S.size()) {
-        S1 r;
-        S2 s;
-        if (comparator.compare(R.get(i), S.get(j)) < 0) {
-          r = R.get(i);
-          int jj = j;
-
-          while ((jj < S.size())
-              && ((s = S.get(jj)).getMBR().x1 <= r.getMBR().x2)) {
-            // Check if r and s are overlapping but not the same object
-            // for self join
-            if (r.isIntersected(s) && !r.equals(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            jj++;
-            if (reporter !=  null)
-              reporter.progress();
-          }
-          i++;
-        } else {
-          s = S.get(j);
-          int ii = i;
-
-          while ((ii < R.size())
-              && ((r = R.get(ii)).getMBR().x1 <= s.getMBR().x2)) {
-            if (r.isIntersected(s) && !r.equals(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            ii++;
-            if (reporter !=  null)
-              reporter.progress();
+    List<Integer> counts = Parallel.forEach(parallelism, new RunnableRange<Integer>() {
+      @Override
+      public Integer run(int i1, int i2) {
+        int count = 0;
+        for (int iStrip = i1; iStrip < i2; iStrip++) {
+          final double lo = bounds[iStrip], hi = bounds[iStrip + 1];
+          if (lo >= hi)
+            continue;
+          final int[] stripCount = {0};
+          try {
+            planeSweepMBRs(new SortedMBRs(allR, lo, hi), new SortedMBRs(allS, lo, hi),
+                true, new MBRPairCollector() {
+              @Override
+              public void collect(int ir, int is) {
+                // Reference point duplicate avoidance technique
+                double refX = Math.max(x1R[ir], x1S[is]);
+                if (refX < lo || refX >= hi)
+                  return;
+                S1 r = R.get(ir);
+                S2 s = S.get(is);
+                if (r.isIntersected(s) && !r.equals(s)) {
+                  if (output != null) {
+                    synchronized (output) {
+                      output.collect(r, s);
+                    }
+                  }
+                  stripCount[0]++;
+                }
+              }
+            }, reporter);
+          } catch (IOException e) {
+            throw new RuntimeException("Error joining strip ["+lo+","+hi+")", e);
           }
-          j++;
+          count += stripCount[0];
         }
-        if (reporter !=  null)
-          reporter.progress();
+        return count;
       }
-    } catch (RuntimeException e) {
-      e.printStackTrace();
-    }
+    }, parallelism);
+    int count = 0;
+    for (int stripCount : counts)
+      count += stripCount;
     long t2 = System.currentTimeMillis();
-    LOG.info("Finished plane sweep in "+(t2-t1)+" millis and found "+count+" pairs");
+    LOG.info("Finished parallel plane sweep in "+(t2-t1)+" millis and found "+count+" pairs");
     return count;
-	}
+  }
 
-  
   public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
-	      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
-	    int count = 0;
-
-	    final Comparator<Shape> comparator = new Comparator<Shape>() {
-	      @Override
-	      public int compare(Shape o1, Shape o2) {
-	    	if (o1.getMBR().x1 == o2.getMBR().x1)
-	    		return 0;
-	        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
-	      }
-	    };
-	    
-	    long t1 = System.currentTimeMillis();
-	    LOG.info("Joining arrays "+ R.length+" with "+S.length);
-	    Arrays.sort(R, comparator);
-	    Arrays.sort(S, comparator);
-
-	    int i = 0, j = 0;
-
-	    try {
-	      while (i < R.length && j < S.length) {
-	        S1 r;
-	        S2 s;
-	        if (comparator.compare(R[i], S[j]) < 0) {
-	          r = R[i];
-	          int jj = j;
-
-	          while ((jj < S.length)
-	              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            jj++;
-	            
-	            if (reporter != null)
-	              reporter.progress();
-	          }
-	          i++;
-	        } else {
-	          s = S[j];
-	          int ii = i;
-
-	          while ((ii < R.length)
-	              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            ii++;
-	          }
-	          j++;
-	          if (reporter != null)
-	            reporter.progress();
-	        }
-	        if (reporter != null)
-	          reporter.progress();
-	      }
-	    } catch (RuntimeException e) {
-	      e.printStackTrace();
-	    }
-	    long t2 = System.currentTimeMillis();
-	    LOG.info("Finished plane sweep filter only in "+(t2-t1)+" millis and found "+count+" pairs");
-	    return count;
-	  }
-
-  
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
-      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
+      final S1[] R, final S2[] S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) {
+    long t1 = System.currentTimeMillis();
+    LOG.info("Joining arrays "+ R.length+" with "+S.length);
     int count = 0;
+    try {
+      count = planeSweepMBRs(new SortedMBRs(R), new SortedMBRs(S), false,
+          new MBRPairCollector() {
+        @Override
+        public void collect(int r, int s) {
+          if (output != null)
+            output.collect(R[r], S[s]);
+        }
+      }, reporter);
+    } catch (IOException e) {
+      // The collector does not throw IOException
+      throw new RuntimeException(e);
+    }
+    long t2 = System.currentTimeMillis();
+    LOG.info("Finished plane sweep filter only in "+(t2-t1)+" millis and found "+count+" pairs");
+    return count;
+  }
 
-    final Comparator<Shape> comparator = new Comparator<Shape>() {
-      @Override
-      public int compare(Shape o1, Shape o2) {
-    	if (o1.getMBR().x1 == o2.getMBR().x1)
-    		return 0;
-        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
-      }
-    };
-    
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      final S1[] R, final S2[] S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) {
     long t1 = System.currentTimeMillis();
     LOG.info("Joining arrays "+ R.length+" with "+S.length);
-    Arrays.sort(R, comparator);
-    Arrays.sort(S, comparator);
-
-    int i = 0, j = 0;
-
+    final int[] count = {0};
+    int filterCount;
     try {
-      while (i < R.length && j < S.length) {
-        S1 r;
-        S2 s;
-        if (comparator.compare(R[i], S[j]) < 0) {
-          r = R[i];
-          int jj = j;
-
-          while ((jj < S.length)
-              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-            if (r.isIntersected(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            jj++;
-            if (reporter != null)
-              reporter.progress();
-          }
-          i++;
-        } else {
-          s = S[j];
-          int ii = i;
-
-          while ((ii < R.length)
-              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-            if (r.isIntersected(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            ii++;
-            if (reporter != null)
-              reporter.progress();
+      filterCount = planeSweepMBRs(new SortedMBRs(R), new SortedMBRs(S), true,
+          new MBRPairCollector() {
+        @Override
+        public void collect(int i, int j) {
+          if (R[i].isIntersected(S[j])) {
+            if (output != null)
+              output.collect(R[i], S[j]);
+            count[0]++;
           }
-          j++;
         }
-        if (reporter != null)
-          reporter.progress();
-      }
-    } catch (RuntimeException e) {
-      e.printStackTrace();
+      }, reporter);
+    } catch (IOException e) {
+      // The collector does not throw IOException
+      throw new RuntimeException(e);
     }
     long t2 = System.currentTimeMillis();
-    LOG.info("Finished plane sweep in "+(t2-t1)+" millis and found "+count+" pairs");
-    return count;
+    LOG.info("Finished plane sweep in "+(t2-t1)+" millis and found "+count[0]
+        +" pairs out of "+filterCount+" candidates");
+    return count[0];
   }
 
   /**
-   * Self join of rectangles. This method runs faster than the general version
-   * because it just performs the filter step based on the rectangles.
+   * Spatial join of rectangles. This method runs faster than the general
+   * version because it just performs the filter step based on the rectangles.
    * @param output
    * @return
    * @throws IOException
    */
   public static <S1 extends Rectangle, S2 extends Rectangle> int SpatialJoin_rectangles(final S1[] R, final S2[] S,
-      OutputCollector<S1, S2> output, Reporter reporter) throws IOException {
-    int count = 0;
-
-    final Comparator<Rectangle> comparator = new Comparator<Rectangle>() {
-      @Override
-      public int compare(Rectangle o1, Rectangle o2) {
-    	if (o1.x1 == o2.x1)
-    		  return 0;
-        return o1.x1 < o2.x1 ? -1 : 1;
-      }
-    };
-    
+      final OutputCollector<S1, S2> output, Reporter reporter) throws IOException {
     long t1 = System.currentTimeMillis();
     LOG.info("Spatial Join of "+ R.length+" X " + S.length + "shapes");
-    Arrays.sort(R, comparator);
-    Arrays.sort(S, comparator);
-    
-    int i = 0, j = 0;
-
-    try {
-    	 while (i < R.length && j < S.length) {
-    	        S1 r;
-    	        S2 s;
-    	        if (comparator.compare(R[i], S[j]) < 0) {
-    	          r = R[i];
-    	          int jj = j;
-
-    	          while ((jj < S.length)
-    	              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-    	            if (r.isIntersected(s)) {
-    	              if (output != null)
-    	                output.collect(r, s);
-    	              count++;
-    	            }
-    	            jj++;
-    	          }
-    	          i++;
-    	          if (reporter != null)
-    	            reporter.progress();
-    	        } else {
-    	          s = S[j];
-    	          int ii = i;
-
-    	          while ((ii < R.length)
-    	              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-    	            if (r.isIntersected(s)) {
-    	              if (output != null)
-    	                output.collect(r, s);
-    	              count++;
-    	            }
-    	            ii++;
-    	            if (reporter != null)
-    	              reporter.progress();
-    	          }
-    	          j++;
-    	        }
-    	        if (reporter != null)
-    	          reporter.progress();
-    	      }
-
-    } catch (RuntimeException e) {
-      e.printStackTrace();
-    }
+    int count = planeSweepMBRs(new SortedMBRs(R), new SortedMBRs(S), false,
+        new MBRPairCollector() {
+      @Override
+      public void collect(int r, int s) throws IOException {
+        if (output != null)
+          output.collect(R[r], S[s]);
+      }
+    }, reporter);
     long t2 = System.currentTimeMillis();
     LOG.info("Finished spatial join plane sweep in "+(t2-t1)+" millis and found "+count+" pairs");
     
@@ -436,69 +543,17 @@ public class SpatialAlgorithms {
    * @throws IOException
    */
   public static <S extends Rectangle> int SelfJoin_rectangles(final S[] rs,
-      OutputCollector<S, S> output, Progressable reporter) throws IOException {
-    int count = 0;
-
-    final Comparator<Rectangle> comparator = new Comparator<Rectangle>() {
-      @Override
-      public int compare(Rectangle o1, Rectangle o2) {
-    	if (o1.x1 == o2.x1)
-    		  return 0;
-        return o1.x1 < o2.x1 ? -1 : 1;
-      }
-    };
-    
+      final OutputCollector<S, S> output, Progressable reporter) throws IOException {
     long t1 = System.currentTimeMillis();
     LOG.info("Self Join of "+ rs.length+" shapes");
-    Arrays.sort(rs, comparator);
-
-    int i = 0, j = 0;
-
-    try {
-      while (i < rs.length && j < rs.length) {
-        S r;
-        S s;
-        if (rs[i].x1 < rs[j].x1) {
-          r = rs[i];
-          int jj = j;
-
-          while ((jj < rs.length)
-              && ((s = rs[jj]).x1 <= r.x2)) {
-            if (r != s && r.isIntersected(s)) {
-              if (output != null) {
-                output.collect(r, s);
-              }
-              count++;
-            }
-            jj++;
-            if (reporter != null)
-              reporter.progress();
-          }
-          i++;
-        } else {
-          s = rs[j];
-          int ii = i;
-
-          while ((ii < rs.length)
-              && ((r = rs[ii]).x1 <= s.x2)) {
-            if (r != s && r.isIntersected(s)) {
-              if (output != null) {
-                output.collect(r, s);
-              }
-              count++;
-            }
-            ii++;
-            if (reporter != null)
-              reporter.progress();
-          }
-          j++;
-        }
-        if (reporter != null)
-          reporter.progress();
+    int count = selfPlaneSweepMBRs(new SortedMBRs(rs), false,
+        new MBRPairCollector() {
+      @Override
+      public void collect(int r, int s) throws IOException {
+        if (output != null)
+          output.collect(rs[r], rs[s]);
       }
-    } catch (RuntimeException e) {
-      e.printStackTrace();
-    }
+    }, reporter);
     long t2 = System.currentTimeMillis();
     LOG.info("Finished self plane sweep in "+(t2-t1)+" millis and found "+count+" pairs");
     
@@ -540,37 +595,30 @@ public class SpatialAlgorithms {
       boolean refine, final OutputCollector<S, S> output, Progressable reporter) throws IOException {
     // Use a two-phase filter and refine approach
     // 1- Use MBRs as a first filter
-    // 2- Use ConvexHull as a second filter
-    // 3- Use the exact shape for refinement
-    final RectangleID[] mbrs = new RectangleID[R.length];
-    for (int i = 0; i < R.length; i++) {
-      mbrs[i] = new RectangleID(i, R[i].getMBR());
-    }
-    
+    // 2- Use the exact shape for refinement
+    SortedMBRs mbrs = new SortedMBRs(R);
     if (refine) {
-      final IntWritable count = new IntWritable();
-      int filterCount = SelfJoin_rectangles(mbrs, new OutputCollector<RectangleID, RectangleID>() {
+      final int[] count = {0};
+      int filterCount = selfPlaneSweepMBRs(mbrs, true, new MBRPairCollector() {
         @Override
-        public void collect(RectangleID r1, RectangleID r2)
-            throws IOException {
-          if (R[r1.id].isIntersected(R[r2.id])) {
+        public void collect(int r1, int r2) throws IOException {
+          if (R[r1].isIntersected(R[r2])) {
             if (output != null)
-              output.collect(R[r1.id], R[r2.id]);
-            count.set(count.get() + 1);
+              output.collect(R[r1], R[r2]);
+            count[0]++;
           }
         }
       }, reporter);
       
-      LOG.info("Filtered result size "+filterCount+", refined result size "+count.get());
+      LOG.info("Filtered result size "+filterCount+", refined result size "+count[0]);
       
-      return count.get();
+      return count[0];
     } else {
-      return SelfJoin_rectangles(mbrs, new OutputCollector<RectangleID, RectangleID>() {
+      return selfPlaneSweepMBRs(mbrs, false, new MBRPairCollector() {
         @Override
-        public void collect(RectangleID r1, RectangleID r2)
-            throws IOException {
+        public void collect(int r1, int r2) throws IOException {
           if (output != null)
-            output.collect(R[r1.id], R[r2.id]);
+            output.collect(R[r1], R[r2]);
         }
       }, reporter);
     }
@@ -1002,7 +1050,8 @@ public class SpatialAlgorithms {
               }
           };
       }
-      long resultCount = SpatialJoin_planeSweep(datasets[0], datasets[1], output, null);
+      int parallelism = params.getInt("parallel", Runtime.getRuntime().availableProcessors());
+      long resultCount = SpatialJoin_planeSweep(datasets[0], datasets[1], output, null, parallelism);
       
       if (out != null)
           out.close();
@@ -18,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -42,14 +43,21 @@ import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.Partitioner;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
 import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator.DistributionType;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+import edu.umn.cs.spatialHadoop.mapreduce.ColumnarRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
 
 /**
@@ -76,6 +84,53 @@ public class SpatialSite {
   /**Configuration line to store column boundaries on which intermediate data is split*/
   public static final String ColumnBoundaries = "SpatialSite.ReduceSpaceBoundaries";
 
+  /**
+   * Name of a binary copy of the global index stored next to the master file.
+   * It is used only if it matches the modification time and length of the
+   * master file it was created from.
+   */
+  public static final String GlobalIndexBinaryFile = "_gindex.bin";
+
+  /**Version of the format of {@link #GlobalIndexBinaryFile}*/
+  private static final int GlobalIndexBinaryVersion = 1;
+
+  /**Maximum number of global indexes cached in memory*/
+  private static final int GlobalIndexCacheSize = 64;
+
+  /**A global index cached along with the version of the master file*/
+  private static class CachedGlobalIndex {
+    long modificationTime;
+    long length;
+    /**Modification time of the stored partitioner or zero if not stored*/
+    long partitionerModificationTime;
+    GlobalIndex<Partition> globalIndex;
+    /**Partitions keyed by their file names, built on the first lookup*/
+    Map<String, Partition> partitionsByName;
+
+    synchronized Partition getPartitionByName(String filename) {
+      if (partitionsByName == null) {
+        partitionsByName = new HashMap<String, Partition>();
+        for (Partition p : globalIndex)
+          partitionsByName.put(p.filename, p);
+      }
+      return partitionsByName.get(filename);
+    }
+  }
+
+  /**
+   * Global indexes already read in this JVM keyed by the path of the master
+   * file. Entries are dropped when the master file changes.
+   */
+  private static final Map<String, CachedGlobalIndex> GlobalIndexCache =
+      new LinkedHashMap<String, CachedGlobalIndex>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedGlobalIndex> eldest) {
+      return size() > GlobalIndexCacheSize;
+    }
+  };
+
   /**Enforce static only calls*/
   private SpatialSite() {}
   
@@ -86,6 +141,30 @@ public class SpatialSite {
   public static final String RTREE_BUILD_MODE =
       "spatialHadoop.storage.RTreeBuildMode";
   
+  /**
+   * The layout of leaf records in local R-trees. Either "text" (default) to
+   * store records as text lines, or "binary" to prefix each record with its
+   * MBR which allows search to skip non-matching records without parsing.
+   */
+  public static final String RTREE_LEAF_FORMAT =
+      "spatialHadoop.storage.RTreeLeafFormat";
+  
+  /**
+   * The format of partitions in an index that has no local index. Either
+   * "text" (default) to store one record per line, or "columnar" to store
+   * blocks of records in binary columns.
+   */
+  public static final String PARTITION_FORMAT =
+      "spatialHadoop.storage.PartitionFormat";
+  
+  /**Number of records in each block of a columnar file*/
+  public static final String COLUMNAR_BLOCK_SIZE =
+      "spatialHadoop.storage.ColumnarBlockSize";
+  
+  /**Whether to compress the blocks of columnar files or not*/
+  public static final String COLUMNAR_COMPRESS =
+      "spatialHadoop.storage.ColumnarCompress";
+  
   /**Configuration line name for replication overhead*/
   public static final String INDEXING_OVERHEAD =
       "spatialHadoop.storage.IndexingOverhead";
@@ -103,6 +182,18 @@ public class SpatialSite {
    */
   public static final long RTreeFileMarker = -0x00012345678910L;
   
+  /**
+   * A marker put in the beginning of each block stored as an RTree with
+   * binary leaf records. See {@link #RTREE_LEAF_FORMAT}
+   */
+  public static final long RTreeBinaryFileMarker = -0x00012345678911L;
+  
+  /**
+   * A marker put in the beginning of each file stored in the columnar format.
+   * See {@link #PARTITION_FORMAT}
+   */
+  public static final long ColumnarFileMarker = -0x00012345678920L;
+  
   public static final String OUTPUT_CELLS = "edu.umn.cs.spatial.mapReduce.GridOutputFormat.CellsInfo";
   public static final String OVERWRITE = "edu.umn.cs.spatial.mapReduce.GridOutputFormat.Overwrite";
 
@@ -125,6 +216,8 @@ public class SpatialSite {
 
   public static byte[] RTreeFileMarkerB;
   
+  public static byte[] RTreeBinaryFileMarkerB;
+  
   static {
     // Load configuration from files
     Configuration.addDefaultResource("spatial-default.xml");
@@ -137,6 +230,13 @@ public class SpatialSite {
       dout.close();
       bout.close();
       RTreeFileMarkerB = bout.toByteArray();
+      
+      bout = new ByteArrayOutputStream();
+      dout = new DataOutputStream(bout);
+      dout.writeLong(RTreeBinaryFileMarker);
+      dout.close();
+      bout.close();
+      RTreeBinaryFileMarkerB = bout.toByteArray();
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -270,11 +370,27 @@ public class SpatialSite {
    * the index command. If the file is not indexed, it returns null.
    * The return value is of type {@link GlobalIndex} where the generic
    * parameter is specified as {@link Partition}.
+   * Global indexes are cached in memory as long as the master file does not
+   * change. Each caller gets its own copy of the cached index and its
+   * partitions so that modifying them does not affect other callers.
    * @param fs
    * @param dir
    * @return
    */
   public static GlobalIndex<Partition> getGlobalIndex(FileSystem fs, Path dir) {
+    CachedGlobalIndex cached = getCachedGlobalIndex(fs, dir);
+    return cached == null ? null : cached.globalIndex.copy();
+  }
+
+  /**
+   * Returns the cached global index of a directory after reading it again
+   * if its master file or partitioner have changed. Global indexes that are
+   * created on the fly are returned without being cached.
+   * @param fs
+   * @param dir
+   * @return
+   */
+  private static CachedGlobalIndex getCachedGlobalIndex(FileSystem fs, Path dir) {
     try {
       FileStatus[] allFiles;
       if (OperationsParams.isWildcard(dir)) {
@@ -284,36 +400,58 @@ public class SpatialSite {
       }
       
       FileStatus masterFile = null;
+      FileStatus binaryFile = null;
+      FileStatus partitionerFile = null;
       int nasaFiles = 0;
       for (FileStatus fileStatus : allFiles) {
         if (fileStatus.getPath().getName().startsWith("_master")) {
           if (masterFile != null)
             throw new RuntimeException("Found more than one master file in "+dir);
           masterFile = fileStatus;
+        } else if (fileStatus.getPath().getName().equals(GlobalIndexBinaryFile)) {
+          binaryFile = fileStatus;
+        } else if (fileStatus.getPath().getName().equals(Partitioner.PartitionerFile)) {
+          partitionerFile = fileStatus;
         } else if (fileStatus.getPath().getName().toLowerCase().matches(".*h\\d\\dv\\d\\d.*\\.(hdf|jpg|xml)")) {
           // Handle on-the-fly global indexes imposed from file naming of NASA data
           nasaFiles++;
         }
       }
       if (masterFile != null) {
-        ShapeIterRecordReader reader = new ShapeIterRecordReader(
-            fs.open(masterFile.getPath()), 0, masterFile.getLen());
-        Rectangle dummy = reader.createKey();
-        reader.setShape(new Partition());
-        ShapeIterator values = reader.createValue();
-        ArrayList<Partition> partitions = new ArrayList<Partition>();
-        while (reader.next(dummy, values)) {
-          for (Shape value : values) {
-            partitions.add((Partition) value.clone());
+        String key = masterFile.getPath().toString();
+        long partitionerModificationTime = partitionerFile == null ? 0 :
+          partitionerFile.getModificationTime();
+        synchronized (GlobalIndexCache) {
+          CachedGlobalIndex cached = GlobalIndexCache.get(key);
+          if (cached != null &&
+              cached.modificationTime == masterFile.getModificationTime() &&
+              cached.length == masterFile.getLen() &&
+              cached.partitionerModificationTime == partitionerModificationTime)
+            return cached;
+        }
+        GlobalIndex<Partition> globalIndex = null;
+        if (binaryFile != null)
+          globalIndex = readGlobalIndexBinary(fs, binaryFile.getPath(), masterFile);
+        if (globalIndex == null)
+          globalIndex = readMasterFile(fs, masterFile);
+        if (partitionerFile != null) {
+          try {
+            globalIndex.setPartitioner(Partitioner.readFromIndex(fs,
+                partitionerFile.getPath().getParent()));
+          } catch (IOException e) {
+            // The index is still usable without its partitioner
+            LOG.warn("Error reading the partitioner of '"+dir+"'", e);
           }
         }
-        GlobalIndex<Partition> globalIndex = new GlobalIndex<Partition>();
-        globalIndex.bulkLoad(partitions.toArray(new Partition[partitions.size()]));
-        String extension = masterFile.getPath().getName();
-        extension = extension.substring(extension.lastIndexOf('.') + 1);
-        globalIndex.setCompact(GridRecordWriter.PackedIndexes.contains(extension));
-        globalIndex.setReplicated(GridRecordWriter.ReplicatedIndexes.contains(extension));
-        return globalIndex;
+        CachedGlobalIndex cached = new CachedGlobalIndex();
+        cached.modificationTime = masterFile.getModificationTime();
+        cached.length = masterFile.getLen();
+        cached.partitionerModificationTime = partitionerModificationTime;
+        cached.globalIndex = globalIndex;
+        synchronized (GlobalIndexCache) {
+          GlobalIndexCache.put(key, cached);
+        }
+        return cached;
       } else if (nasaFiles > allFiles.length / 2) {
         // A folder that contains HDF files
         // Create a global index on the fly for these files based on their names
@@ -349,7 +487,9 @@ public class SpatialSite {
         }
         GlobalIndex<Partition> gindex = new GlobalIndex<Partition>();
         gindex.bulkLoad(partitions);
-        return gindex;
+        CachedGlobalIndex onTheFly = new CachedGlobalIndex();
+        onTheFly.globalIndex = gindex;
+        return onTheFly;
       } else {
         return null;
       }
@@ -360,6 +500,138 @@ public class SpatialSite {
     }
   }
 
+  /**
+   * Returns a copy of the partition of the global index of a directory that
+   * is stored in the given file, or null if the directory is not indexed or
+   * the file is not listed in its global index. Partitions are looked up by
+   * name in a map that is kept with the cached global index so that all
+   * splits of a directory share one scan of the global index, and it is
+   * rebuilt when the master file changes.
+   * @param fs
+   * @param dir
+   * @param filename - the name of the partition file in the directory
+   * @return
+   */
+  public static Partition getPartitionByName(FileSystem fs, Path dir,
+      String filename) {
+    CachedGlobalIndex cached = getCachedGlobalIndex(fs, dir);
+    if (cached == null)
+      return null;
+    Partition partition = cached.getPartitionByName(filename);
+    return partition == null ? null : partition.clone();
+  }
+
+  /**
+   * Returns the partitioner of a replicated index which readers use to avoid
+   * duplicate results, or null if the directory is not indexed, the index is
+   * not replicated, or its partitioner is not known. The partitioner is
+   * shared by all callers and should not be modified.
+   * @param fs
+   * @param dir
+   * @return
+   */
+  public static Partitioner getReplicatedPartitioner(FileSystem fs, Path dir) {
+    CachedGlobalIndex cached = getCachedGlobalIndex(fs, dir);
+    return cached != null && cached.globalIndex.isReplicated() ?
+        cached.globalIndex.getPartitioner() : null;
+  }
+
+  /**
+   * Parses the global index from the text master file
+   * @param fs
+   * @param masterFile
+   * @return
+   * @throws IOException
+   */
+  private static GlobalIndex<Partition> readMasterFile(FileSystem fs,
+      FileStatus masterFile) throws IOException {
+    ShapeIterRecordReader reader = new ShapeIterRecordReader(
+        fs.open(masterFile.getPath()), 0, masterFile.getLen());
+    Rectangle dummy = reader.createKey();
+    reader.setShape(new Partition());
+    ShapeIterator values = reader.createValue();
+    ArrayList<Partition> partitions = new ArrayList<Partition>();
+    while (reader.next(dummy, values)) {
+      for (Shape value : values) {
+        partitions.add((Partition) value.clone());
+      }
+    }
+    reader.close();
+    GlobalIndex<Partition> globalIndex = new GlobalIndex<Partition>();
+    globalIndex.bulkLoad(partitions.toArray(new Partition[partitions.size()]));
+    String extension = masterFile.getPath().getName();
+    extension = extension.substring(extension.lastIndexOf('.') + 1);
+    globalIndex.setCompact(GridRecordWriter.PackedIndexes.contains(extension));
+    globalIndex.setReplicated(GridRecordWriter.ReplicatedIndexes.contains(extension));
+    return globalIndex;
+  }
+
+  /**
+   * Reads the binary copy of a global index. Returns <code>null</code> if the
+   * binary file was not created from the current version of the master file.
+   * @param fs
+   * @param binaryFile
+   * @param masterFile
+   * @return
+   * @throws IOException
+   */
+  private static GlobalIndex<Partition> readGlobalIndexBinary(FileSystem fs,
+      Path binaryFile, FileStatus masterFile) throws IOException {
+    FSDataInputStream in = fs.open(binaryFile);
+    try {
+      int version = in.readInt();
+      long masterModificationTime = in.readLong();
+      long masterLength = in.readLong();
+      if (version != GlobalIndexBinaryVersion ||
+          masterModificationTime != masterFile.getModificationTime() ||
+          masterLength != masterFile.getLen()) {
+        LOG.info("Ignoring outdated global index '"+binaryFile+"'");
+        return null;
+      }
+      boolean compact = in.readBoolean();
+      boolean replicated = in.readBoolean();
+      GlobalIndex<Partition> globalIndex = new GlobalIndex<Partition>();
+      globalIndex.setStockShape(new Partition());
+      globalIndex.readFields(in);
+      globalIndex.setCompact(compact);
+      globalIndex.setReplicated(replicated);
+      return globalIndex;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Writes a binary copy of the global index of the given directory next to
+   * its master file. Should be called after the master file is written.
+   * Later calls to {@link #getGlobalIndex(FileSystem, Path)} read the binary
+   * copy instead of parsing the master file.
+   * @param fs
+   * @param dir
+   * @throws IOException
+   */
+  public static void writeGlobalIndexBinary(FileSystem fs, Path dir) throws IOException {
+    FileStatus masterFile = null;
+    for (FileStatus fileStatus : fs.listStatus(dir)) {
+      if (fileStatus.getPath().getName().startsWith("_master"))
+        masterFile = fileStatus;
+    }
+    if (masterFile == null)
+      return;
+    GlobalIndex<Partition> globalIndex = readMasterFile(fs, masterFile);
+    FSDataOutputStream out = fs.create(new Path(dir, GlobalIndexBinaryFile), true);
+    try {
+      out.writeInt(GlobalIndexBinaryVersion);
+      out.writeLong(masterFile.getModificationTime());
+      out.writeLong(masterFile.getLen());
+      out.writeBoolean(globalIndex.isCompact());
+      out.writeBoolean(globalIndex.isReplicated());
+      globalIndex.write(out);
+    } finally {
+      out.close();
+    }
+  }
+
   /**
    * Checks whether a file is indexed using an R-tree or not. This allows
    * an operation to use the R-tree to speedup the processing if it exists.
@@ -406,7 +678,41 @@ public class SpatialSite {
     if (decompressor != null) {
       CodecPool.returnDecompressor(decompressor);
     }
-    return Arrays.equals(signature, SpatialSite.RTreeFileMarkerB);
+    return Arrays.equals(signature, SpatialSite.RTreeFileMarkerB) ||
+        Arrays.equals(signature, SpatialSite.RTreeBinaryFileMarkerB);
+  }
+  
+  /**
+   * Reads all records in one file that can be read by
+   * {@link SpatialInputFormat3}, e.g., a text file or a partition of an index
+   * with or without a local index.
+   * @param file
+   * @param conf - configuration that contains the shape of the records
+   * @param output - receives all records. Record objects might be reused.
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void readAllShapes(Path file, Configuration conf,
+      ResultCollector<Shape> output) throws IOException, InterruptedException {
+    FileSystem fs = file.getFileSystem(conf);
+    FileSplit split = new FileSplit(file, 0, fs.getFileStatus(file).getLen(),
+        new String[0]);
+    RecordReader<Rectangle, Iterable<Shape>> reader =
+        new SpatialInputFormat3<Rectangle, Shape>().createRecordReader(split, null);
+    if (reader instanceof SpatialRecordReader3) {
+      ((SpatialRecordReader3)reader).initialize(split, conf);
+    } else if (reader instanceof RTreeRecordReader3) {
+      ((RTreeRecordReader3)reader).initialize(split, conf);
+    } else if (reader instanceof ColumnarRecordReader3) {
+      ((ColumnarRecordReader3)reader).initialize(split, conf);
+    } else {
+      throw new RuntimeException("Unknown record reader");
+    }
+    while (reader.nextKeyValue()) {
+      for (Shape s : reader.getCurrentValue())
+        output.collect(s);
+    }
+    reader.close();
   }
   
   /**
@@ -577,7 +883,10 @@ public class SpatialSite {
     RTree<S> rtree = new RTree<S>();
     rtree.setStockObject(shape);
     FSDataInputStream input = fs.open(file);
-    input.skip(8); // Skip the 8 bytes that contains the signature
+    // Read the 8 bytes that contains the signature to detect the layout
+    byte[] signature = new byte[RTreeFileMarkerB.length];
+    input.readFully(signature);
+    rtree.setBinaryLeaves(Arrays.equals(signature, RTreeBinaryFileMarkerB));
     rtree.readFields(input);
     return rtree;
   }
@@ -0,0 +1,101 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.io.ColumnarBlock;
+
+/**
+ * Stores each partition in the columnar binary format. The file starts with
+ * {@link SpatialSite#ColumnarFileMarker} followed by a sequence of
+ * {@link ColumnarBlock}s, each holding up to
+ * {@link SpatialSite#COLUMNAR_BLOCK_SIZE} records, and ends with the offsets
+ * of all blocks.
+ * @author Ahmed Eldawy
+ *
+ */
+public class ColumnarLocalIndexer implements LocalIndexer {
+
+  /**Extension of files stored in the columnar format*/
+  public static final String Extension = "col";
+
+  /**Default number of records per block*/
+  public static final int DefaultBlockSize = 16 * 1024;
+
+  /**Configuration of the running job*/
+  protected Configuration conf;
+
+  @Override
+  public void setup(Configuration conf) throws IOException,
+      InterruptedException {
+    this.conf = conf;
+  }
+
+  @Override
+  public String getExtension() {
+    return Extension;
+  }
+
+  @Override
+  public void buildLocalIndex(File nonIndexedFile, Path outputIndexedFile,
+      Shape shape) throws IOException, InterruptedException {
+    int blockSize = conf.getInt(SpatialSite.COLUMNAR_BLOCK_SIZE, DefaultBlockSize);
+    boolean compress = conf.getBoolean(SpatialSite.COLUMNAR_COMPRESS, false);
+
+    FileSystem outFS = outputIndexedFile.getFileSystem(conf);
+    FSDataOutputStream out = outFS.create(outputIndexedFile);
+    out.writeLong(SpatialSite.ColumnarFileMarker);
+    long[] blockOffsets = new long[16];
+    int numBlocks = 0;
+
+    LineReader in = new LineReader(new BufferedInputStream(
+        new FileInputStream(nonIndexedFile)));
+    Shape record = shape.clone();
+    ColumnarBlock block = new ColumnarBlock();
+    block.clear(ColumnarBlock.getEncoding(record));
+    Text line = new Text();
+    while (in.readLine(line) > 0) {
+      if (line.getLength() == 0)
+        continue;
+      record.fromText(line);
+      block.add(record);
+      if (block.getCount() == blockSize) {
+        if (numBlocks == blockOffsets.length)
+          blockOffsets = Arrays.copyOf(blockOffsets, numBlocks * 2);
+        blockOffsets[numBlocks++] = out.getPos();
+        block.write(out, compress);
+        block.clear(block.getEncoding());
+      }
+    }
+    if (block.getCount() > 0) {
+      if (numBlocks == blockOffsets.length)
+        blockOffsets = Arrays.copyOf(blockOffsets, numBlocks + 1);
+      blockOffsets[numBlocks++] = out.getPos();
+      block.write(out, compress);
+    }
+    ColumnarBlock.writeBlockOffsets(out, blockOffsets, numBlocks);
+    in.close();
+    out.close();
+  }
+
+}
@@ -11,19 +11,23 @@ package edu.umn.cs.spatialHadoop.indexing;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.Vector;
 
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.IndexedSortable;
-import org.apache.hadoop.util.IndexedSorter;
 import org.apache.hadoop.util.QuickSort;
 
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * A very simple spatial index that provides some spatial operations based
@@ -46,9 +50,85 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   /**Whether objects are allowed to replicated in different partitions or not*/
   private boolean replicated;
   
+  /**Maximum number of children of a node in the in-memory tree*/
+  private static final int TreeFanout = 16;
+  
+  /**
+   * One level of the in-memory tree. The children of node i are the entries
+   * in the range [childStart[i], childEnd[i]) of the next level or of
+   * {@link GlobalIndex#leafOrder} for the last level.
+   */
+  static class TreeLevel {
+    double[] x1, y1, x2, y2;
+    int[] childStart, childEnd;
+    
+    TreeLevel(int size) {
+      x1 = new double[size];
+      y1 = new double[size];
+      x2 = new double[size];
+      y2 = new double[size];
+      childStart = new int[size];
+      childEnd = new int[size];
+    }
+    
+    int size() {
+      return x1.length;
+    }
+    
+    /**Returns a copy of this level with nodes reordered as given*/
+    TreeLevel permute(int[] order) {
+      TreeLevel permuted = new TreeLevel(order.length);
+      for (int i = 0; i < order.length; i++) {
+        permuted.x1[i] = x1[order[i]];
+        permuted.y1[i] = y1[order[i]];
+        permuted.x2[i] = x2[order[i]];
+        permuted.y2[i] = y2[order[i]];
+        permuted.childStart[i] = childStart[order[i]];
+        permuted.childEnd[i] = childEnd[order[i]];
+      }
+      return permuted;
+    }
+  }
+  
+  /**
+   * Levels of an STR-packed tree built over the shapes in memory. The first
+   * level contains only the root. This is <code>null</code> for small indexes
+   * where a linear scan is as fast.
+   */
+  private TreeLevel[] levels;
+  
+  /**Indexes of the shapes in the order of the leaves of the tree*/
+  private int[] leafOrder;
+  
+  /**
+   * The partitioner that created this index or <code>null</code> if it is
+   * not known. It maps a point to its partitions without testing their MBRs.
+   */
+  private Partitioner partitioner;
+  
+  /**
+   * Largest cell ID of {@link #partitioner}. Partitions with larger IDs were
+   * created after the index was built, e.g., by rebalancing, and do not
+   * correspond to any cell of the partitioner.
+   */
+  private int maxCellId;
+  
+  /**Cell IDs of the partitions created by the partitioner in sorted order*/
+  private int[] sortedCellIds;
+  
+  /**Index of the shape of each entry in {@link #sortedCellIds}*/
+  private int[] cellOrder;
+  
+  /**Indexes of shapes that do not correspond to cells of the partitioner*/
+  private int[] otherShapes;
+  
   public GlobalIndex() {
   }
   
+  public void setStockShape(S stockShape) {
+    this.stockShape = stockShape;
+  }
+  
   @SuppressWarnings("unchecked")
   public void bulkLoad(S[] shapes) {
     // Create a shallow copy
@@ -57,6 +137,143 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     for (int i = 0; i < this.shapes.length; i++) {
       this.shapes[i] = (S) this.shapes[i].clone();
     }
+    buildTree();
+  }
+  
+  /**
+   * Builds an STR-packed tree over all shapes to speed up range queries
+   * when the index has many shapes.
+   */
+  private void buildTree() {
+    levels = null;
+    leafOrder = null;
+    buildCellLookup();
+    int n = shapes.length;
+    if (n <= TreeFanout)
+      return;
+    double[] x1 = new double[n], y1 = new double[n];
+    double[] x2 = new double[n], y2 = new double[n];
+    for (int i = 0; i < n; i++) {
+      Rectangle mbr = shapes[i].getMBR();
+      x1[i] = mbr.x1;
+      y1[i] = mbr.y1;
+      x2[i] = mbr.x2;
+      y2[i] = mbr.y2;
+    }
+    leafOrder = packSTR(x1, y1, x2, y2);
+    Vector<TreeLevel> treeLevels = new Vector<TreeLevel>();
+    TreeLevel level = groupEntries(x1, y1, x2, y2, leafOrder);
+    treeLevels.add(level);
+    while (level.size() > 1) {
+      // Pack the nodes of this level and group them into their parents
+      level = level.permute(packSTR(level.x1, level.y1, level.x2, level.y2));
+      treeLevels.set(treeLevels.size() - 1, level);
+      int[] identity = new int[level.size()];
+      for (int i = 0; i < identity.length; i++)
+        identity[i] = i;
+      level = groupEntries(level.x1, level.y1, level.x2, level.y2, identity);
+      treeLevels.add(level);
+    }
+    levels = new TreeLevel[treeLevels.size()];
+    for (int i = 0; i < levels.length; i++)
+      levels[i] = treeLevels.get(levels.length - 1 - i);
+  }
+  
+  /**
+   * Sort-Tile-Recursive packing. Returns the order in which the given
+   * rectangles should be grouped into nodes of {@link #TreeFanout} entries.
+   */
+  private static int[] packSTR(double[] x1, double[] y1, double[] x2, double[] y2) {
+    int n = x1.length;
+    final double[] keys = new double[n];
+    final int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      keys[i] = (x1[i] + x2[i]) / 2;
+      order[i] = i;
+    }
+    IndexedSortable sortable = new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return Double.compare(keys[i], keys[j]);
+      }
+      
+      @Override
+      public void swap(int i, int j) {
+        double tempKey = keys[i];
+        keys[i] = keys[j];
+        keys[j] = tempKey;
+        int temp = order[i];
+        order[i] = order[j];
+        order[j] = temp;
+      }
+    };
+    QuickSort sorter = new QuickSort();
+    sorter.sort(sortable, 0, n);
+    // Split into vertical slabs and sort each slab on the y-axis
+    int numNodes = (n + TreeFanout - 1) / TreeFanout;
+    int numSlabs = (int) Math.ceil(Math.sqrt(numNodes));
+    int slabSize = (numNodes + numSlabs - 1) / numSlabs * TreeFanout;
+    for (int slabStart = 0; slabStart < n; slabStart += slabSize) {
+      int slabEnd = Math.min(n, slabStart + slabSize);
+      for (int i = slabStart; i < slabEnd; i++)
+        keys[i] = (y1[order[i]] + y2[order[i]]) / 2;
+      sorter.sort(sortable, slabStart, slabEnd);
+    }
+    return order;
+  }
+  
+  /**
+   * Groups consecutive entries in the given order into nodes of
+   * {@link #TreeFanout} entries and computes the MBR of each node.
+   */
+  private static TreeLevel groupEntries(double[] x1, double[] y1,
+      double[] x2, double[] y2, int[] order) {
+    int n = order.length;
+    TreeLevel level = new TreeLevel((n + TreeFanout - 1) / TreeFanout);
+    for (int node = 0; node < level.size(); node++) {
+      int start = node * TreeFanout;
+      int end = Math.min(n, start + TreeFanout);
+      level.childStart[node] = start;
+      level.childEnd[node] = end;
+      level.x1[node] = level.y1[node] = Double.POSITIVE_INFINITY;
+      level.x2[node] = level.y2[node] = Double.NEGATIVE_INFINITY;
+      for (int i = start; i < end; i++) {
+        int entry = order[i];
+        level.x1[node] = Math.min(level.x1[node], x1[entry]);
+        level.y1[node] = Math.min(level.y1[node], y1[entry]);
+        level.x2[node] = Math.max(level.x2[node], x2[entry]);
+        level.y2[node] = Math.max(level.y2[node], y2[entry]);
+      }
+    }
+    return level;
+  }
+
+  /**
+   * Returns a copy of this index with its own copy of all shapes so that
+   * modifying either index or its shapes does not affect the other one. The
+   * in-memory tree and the partitioner are shared as they are never modified
+   * in place.
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public GlobalIndex<S> copy() {
+    GlobalIndex<S> copy = new GlobalIndex<S>();
+    copy.stockShape = stockShape;
+    if (shapes != null) {
+      copy.shapes = shapes.clone();
+      for (int i = 0; i < copy.shapes.length; i++)
+        copy.shapes[i] = (S) copy.shapes[i].clone();
+    }
+    copy.compact = compact;
+    copy.replicated = replicated;
+    copy.levels = levels;
+    copy.leafOrder = leafOrder;
+    copy.partitioner = partitioner;
+    copy.maxCellId = maxCellId;
+    copy.sortedCellIds = sortedCellIds;
+    copy.cellOrder = cellOrder;
+    copy.otherShapes = otherShapes;
+    return copy;
   }
 
   @Override
@@ -76,9 +293,28 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
       this.shapes[i] = (S) stockShape.clone();
       this.shapes[i].readFields(in);
     }
+    buildTree();
   }
   
+  /**
+   * Returns all shapes that overlap the given query range in the same order
+   * they are stored in this index.
+   * @param queryRange
+   * @param output
+   * @return - number of matching shapes
+   */
   public int rangeQuery(Shape queryRange, ResultCollector<S> output) {
+    Rectangle queryMBR = levels == null ? null : queryRange.getMBR();
+    if (queryMBR != null) {
+      // Use the in-memory tree
+      BitSet matches = new BitSet(shapes.length);
+      searchTree(0, 0, queryMBR, queryRange, matches);
+      if (output != null) {
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1))
+          output.collect(shapes[i]);
+      }
+      return matches.cardinality();
+    }
     int result_count = 0;
     for (S shape : shapes) {
       if (shape.isIntersected(queryRange)) {
@@ -91,6 +327,69 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     return result_count;
   }
   
+  /**
+   * Returns all partitions that overlap the given query range and that are
+   * assigned to it by the partitioner that created this index. This prunes
+   * partitions whose MBRs overlap the query while their cells do not, which
+   * is common for partitions along a space-filling curve. The partitioner is
+   * only used if this index is replicated because, otherwise, a record might
+   * be stored in a partition that its MBR does not overlap.
+   * @param queryRange
+   * @param partitioner - the partitioner used to build this index or null
+   * @param output
+   * @return - number of matching partitions
+   */
+  public int rangeQuery(Shape queryRange, Partitioner partitioner,
+      final ResultCollector<S> output) {
+    if (partitioner == null || !replicated)
+      return rangeQuery(queryRange, output);
+    final int maxCellId = partitioner == this.partitioner ?
+        this.maxCellId : getMaxCellId(partitioner);
+    final BitSet cells = new BitSet();
+    partitioner.overlapPartitions(queryRange, new ResultCollector<Integer>() {
+      @Override
+      public void collect(Integer cellId) {
+        cells.set(cellId);
+      }
+    });
+    final int[] resultCount = {0};
+    rangeQuery(queryRange, new ResultCollector<S>() {
+      @Override
+      public void collect(S shape) {
+        // Partitions created after the index was built are not cells of the
+        // partitioner and are only tested by their MBRs
+        if (shape instanceof CellInfo && ((CellInfo)shape).cellId <= maxCellId &&
+            !cells.get(((CellInfo)shape).cellId))
+          return;
+        resultCount[0]++;
+        if (output != null)
+          output.collect(shape);
+      }
+    });
+    return resultCount[0];
+  }
+  
+  /**
+   * Searches the subtree rooted at the given node and marks the indexes of
+   * all shapes that overlap the query range.
+   */
+  private void searchTree(int level, int node, Rectangle queryMBR,
+      Shape queryRange, BitSet matches) {
+    TreeLevel l = levels[level];
+    if (l.x2[node] < queryMBR.x1 || queryMBR.x2 < l.x1[node] ||
+        l.y2[node] < queryMBR.y1 || queryMBR.y2 < l.y1[node])
+      return;
+    for (int child = l.childStart[node]; child < l.childEnd[node]; child++) {
+      if (level + 1 < levels.length) {
+        searchTree(level + 1, child, queryMBR, queryRange, matches);
+      } else {
+        int i = leafOrder[child];
+        if (shapes[i].isIntersected(queryRange))
+          matches.set(i);
+      }
+    }
+  }
+  
   public static<S1 extends Shape, S2 extends Shape>
       int spatialJoin(GlobalIndex<S1> s1, GlobalIndex<S2> s2,
           final ResultCollector2<S1, S2> output) {
@@ -154,82 +453,115 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     return globalMBR;
   }
 
+  /**
+   * k nearest neighbor query. Returns the k shapes closest to the given
+   * query point ordered by their distance to it.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output
+   * @return - number of results found
+   */
   public int knn(final double qx, final double qy, int k, ResultCollector2<S, Double> output) {
-    double query_area = (getMBR().getWidth() * getMBR().getHeight()) * k / size();
-    double query_radius = Math.sqrt(query_area / Math.PI);
-
-    boolean result_correct;
-    final Vector<Double> distances = new Vector<Double>();
-    final Vector<S> shapes = new Vector<S>();
-    // Find results in the range and increase this range if needed to ensure
-    // correctness of the answer
-    do {
-      // Initialize result and query range
-      distances.clear(); shapes.clear();
-      Rectangle queryRange = new Rectangle();
-      queryRange.x1 = qx - query_radius / 2;
-      queryRange.y1 = qy - query_radius / 2;
-      queryRange.x2 = qx + query_radius / 2;
-      queryRange.y2 = qy + query_radius / 2;
-      // Retrieve all results in range
-      rangeQuery(queryRange, new ResultCollector<S>() {
-        @Override
-        public void collect(S shape) {
-          distances.add(shape.distanceTo(qx, qy));
-          shapes.add((S) shape.clone());
-        }
-      });
-      if (shapes.size() <= k) {
-        // Didn't find k elements in range, double the range to get more items
-        if (shapes.size() == size() || shapes.size() == k) {
-          // Already returned all possible elements
-          result_correct = true;
-        } else {
-          query_radius *= 2;
-          result_correct = false;
-        }
-      } else {
-        // Sort items by distance to get the kth neighbor
-        IndexedSortable s = new IndexedSortable() {
-          @Override
-          public void swap(int i, int j) {
-            double temp_distance = distances.elementAt(i);
-            distances.set(i, distances.elementAt(j));
-            distances.set(j, temp_distance);
-            
-            S temp_shape = shapes.elementAt(i);
-            shapes.set(i, shapes.elementAt(j));
-            shapes.set(j, temp_shape);
-          }
-          @Override
-          public int compare(int i, int j) {
-            // Note. Equality is not important to check because items with the
-            // same distance can be ordered anyway. 
-        	if (distances.elementAt(i) == distances.elementAt(j))
-        		return 0;
-            if (distances.elementAt(i) < distances.elementAt(j))
-              return -1;
-            return 1;
-          }
-        };
-        IndexedSorter sorter = new QuickSort();
-        sorter.sort(s, 0, shapes.size());
-        if (distances.elementAt(k - 1) > query_radius) {
-          result_correct = false;
-          query_radius = distances.elementAt(k);
-        } else {
-          result_correct = true;
-        }
+    KNNIterator iter = knn(qx, qy);
+    int result_size = 0;
+    while (result_size < k && iter.hasNext()) {
+      S shape = iter.next();
+      result_size++;
+      if (output != null)
+        output.collect(shape, iter.getDistance());
+    }
+    return result_size;
+  }
+
+  /**
+   * Returns an iterator over all shapes in this index ordered by their
+   * distance to the given query point.
+   * @param qx
+   * @param qy
+   * @return
+   */
+  public KNNIterator knn(double qx, double qy) {
+    return new KNNIterator(qx, qy);
+  }
+
+  /**
+   * An iterator that returns shapes ordered by their distance to a query
+   * point. A binary heap is built over all shapes in linear time and shapes
+   * are popped from it as requested. This means that only returned shapes
+   * are sorted and the caller can stop as soon as it has enough results.
+   * @author Ahmed Eldawy
+   */
+  public class KNNIterator implements Iterable<S>, Iterator<S> {
+    /**Distance of each shape to the query point*/
+    private final double[] distances;
+    /**A min-heap of shape indexes ordered by their distances*/
+    private final int[] heap;
+    /**Number of shapes remaining in the heap*/
+    private int heapSize;
+    /**Distance of the last shape returned by next*/
+    private double distance;
+
+    KNNIterator(double qx, double qy) {
+      distances = new double[shapes.length];
+      heap = new int[shapes.length];
+      for (int i = 0; i < shapes.length; i++) {
+        distances[i] = shapes[i].distanceTo(qx, qy);
+        heap[i] = i;
       }
-    } while (!result_correct);
-    
-    int result_size = Math.min(k,  shapes.size());
-    if (output != null) {
-      for (int i = 0; i < result_size; i++) {
-        output.collect(shapes.elementAt(i), distances.elementAt(i));
+      heapSize = shapes.length;
+      for (int i = heapSize / 2 - 1; i >= 0; i--)
+        siftDown(i);
+    }
+
+    private void siftDown(int i) {
+      int shape_i = heap[i];
+      while (2 * i + 1 < heapSize) {
+        int child = 2 * i + 1;
+        if (child + 1 < heapSize && distances[heap[child + 1]] < distances[heap[child]])
+          child++;
+        if (distances[heap[child]] >= distances[shape_i])
+          break;
+        heap[i] = heap[child];
+        i = child;
       }
+      heap[i] = shape_i;
+    }
+
+    @Override
+    public Iterator<S> iterator() {
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return heapSize > 0;
+    }
+
+    @Override
+    public S next() {
+      if (heapSize == 0)
+        return null;
+      int shape_i = heap[0];
+      heap[0] = heap[--heapSize];
+      siftDown(0);
+      distance = distances[shape_i];
+      return shapes[shape_i];
+    }
+
+    /**
+     * Returns the distance between the query point and the last shape
+     * returned by {@link #next()}
+     * @return
+     */
+    public double getDistance() {
+      return distance;
+    }
+
+    @Override
+    public void remove() {
+      throw new RuntimeException("Not implemented");
     }
-    return result_size;
   }
   
   /**
@@ -251,4 +583,100 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   public boolean isReplicated() {
     return replicated;
   }
+  
+  /**
+   * Sets the partitioner that created this index. This allows finding the
+   * partitions of a point with one lookup in the partitioner.
+   * @param partitioner
+   */
+  public void setPartitioner(Partitioner partitioner) {
+    this.partitioner = partitioner;
+    this.maxCellId = getMaxCellId(partitioner);
+    buildCellLookup();
+  }
+  
+  /**
+   * Returns the partitioner that created this index or <code>null</code> if
+   * it is not known.
+   * @return
+   */
+  public Partitioner getPartitioner() {
+    return partitioner;
+  }
+  
+  /**Returns the largest cell ID of the given partitioner*/
+  private static int getMaxCellId(Partitioner partitioner) {
+    int maxCellId = -1;
+    if (partitioner != null) {
+      for (int i = 0; i < partitioner.getPartitionCount(); i++)
+        maxCellId = Math.max(maxCellId, partitioner.getPartitionAt(i).cellId);
+    }
+    return maxCellId;
+  }
+  
+  /**
+   * Sorts the shapes that correspond to cells of the partitioner by their
+   * cell IDs so that the partitions of one cell are found by binary search.
+   */
+  private void buildCellLookup() {
+    sortedCellIds = cellOrder = otherShapes = null;
+    if (partitioner == null || shapes == null)
+      return;
+    long[] keys = new long[shapes.length];
+    int numCells = 0;
+    IntArray others = new IntArray();
+    for (int i = 0; i < shapes.length; i++) {
+      if (shapes[i] instanceof CellInfo && ((CellInfo)shapes[i]).cellId <= maxCellId)
+        keys[numCells++] = ((long)((CellInfo)shapes[i]).cellId << 32) | i;
+      else
+        others.add(i);
+    }
+    Arrays.sort(keys, 0, numCells);
+    sortedCellIds = new int[numCells];
+    cellOrder = new int[numCells];
+    for (int i = 0; i < numCells; i++) {
+      sortedCellIds[i] = (int) (keys[i] >> 32);
+      cellOrder[i] = (int) keys[i];
+    }
+    otherShapes = others.toArray();
+  }
+  
+  /**
+   * Returns all partitions that might contain records that contain the given
+   * point. If this index is replicated and its partitioner is known, the
+   * partitioner finds the cell of the point and its partitions are found by
+   * binary search, which takes O(log P) for P partitions. Partitions that
+   * were created after the index was built are tested by their MBRs.
+   * Otherwise, this is the same as a range query with the point.
+   * @param x
+   * @param y
+   * @param output
+   * @return - number of matching partitions
+   */
+  public int pointQuery(double x, double y, ResultCollector<S> output) {
+    Point point = new Point(x, y);
+    if (partitioner == null || !replicated || sortedCellIds == null)
+      return rangeQuery(point, output);
+    int resultCount = 0;
+    int cellId = partitioner.overlapPartition(new Rectangle(x, y, x, y));
+    int i = Arrays.binarySearch(sortedCellIds, cellId);
+    if (cellId >= 0 && i >= 0) {
+      // Go back to the first partition of this cell
+      while (i > 0 && sortedCellIds[i - 1] == cellId)
+        i--;
+      for (; i < sortedCellIds.length && sortedCellIds[i] == cellId; i++) {
+        resultCount++;
+        if (output != null)
+          output.collect(shapes[cellOrder[i]]);
+      }
+    }
+    for (int j : otherShapes) {
+      if (shapes[j].isIntersected(point)) {
+        resultCount++;
+        if (output != null)
+          output.collect(shapes[j]);
+      }
+    }
+    return resultCount;
+  }
 }
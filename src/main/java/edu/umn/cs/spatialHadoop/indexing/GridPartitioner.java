@@ -22,6 +22,7 @@ import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * A partitioner that partitioner data using a uniform grid.
@@ -162,6 +163,33 @@ public class GridPartitioner extends Partitioner {
     int row = (int)Math.floor((centerPoint.y - y) / tileHeight);
     return getCellNumber(col, row);
   }
+  
+  @Override
+  public void overlapPartition(double[] xs, double[] ys, int count,
+      int[] partitionIDs) {
+    for (int i = 0; i < count; i++) {
+      int col = (int)Math.floor((xs[i] - x) / tileWidth);
+      int row = (int)Math.floor((ys[i] - y) / tileHeight);
+      partitionIDs[i] = getCellNumber(col, row);
+    }
+  }
+  
+  @Override
+  public void overlapPartitions(double[] x1, double[] y1, double[] x2,
+      double[] y2, int count, int[] offsets, IntArray partitionIDs) {
+    partitionIDs.clear();
+    for (int i = 0; i < count; i++) {
+      offsets[i] = partitionIDs.size();
+      int col1 = Math.max(0, (int)Math.floor((x1[i] - x) / tileWidth));
+      int col2 = (int)Math.ceil((x2[i] - x) / tileWidth);
+      int row1 = Math.max(0, (int)Math.floor((y1[i] - y) / tileHeight));
+      int row2 = (int)Math.ceil((y2[i] - y) / tileHeight);
+      for (int col = col1; col < col2; col++)
+        for (int row = row1; row < row2; row++)
+          partitionIDs.add(getCellNumber(col, row));
+    }
+    offsets[count] = partitionIDs.size();
+  }
 
   @Override
   public CellInfo getPartition(int partitionID) {
@@ -13,6 +13,7 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Vector;
 
 import org.apache.hadoop.fs.Path;
@@ -27,6 +28,7 @@ import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * @author Ahmed Eldawy
@@ -53,6 +55,16 @@ public class HilbertCurvePartitioner extends Partitioner {
     createFromHValues(hValues, capacity);
   }
 
+  @Override
+  public void createFromPoints(Rectangle mbr, double[] xs, double[] ys,
+      int capacity) {
+    this.mbr.set(mbr);
+    int[] hValues = new int[xs.length];
+    for (int i = 0; i < xs.length; i++)
+      hValues[i] = computeHValue(mbr, xs[i], ys[i]);
+    createFromHValues(hValues, capacity);
+  }
+
   /**
    * Create a HilbertCurvePartitioner from a list of points
    * @param hValues
@@ -92,7 +104,122 @@ public class HilbertCurvePartitioner extends Partitioner {
 
   @Override
   public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
-    throw new RuntimeException("Non-implemented method");
+    if (shape == null)
+      return;
+    Rectangle shapeMBR = shape.getMBR();
+    if (shapeMBR == null)
+      return;
+    BitSet matched = new BitSet(splits.length);
+    overlapPartitions(shapeMBR.x1, shapeMBR.y1, shapeMBR.x2, shapeMBR.y2, matched);
+    for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1))
+      matcher.collect(i);
+  }
+  
+  @Override
+  public void overlapPartitions(double[] x1, double[] y1, double[] x2,
+      double[] y2, int count, int[] offsets, IntArray partitionIDs) {
+    partitionIDs.clear();
+    BitSet matched = new BitSet(splits.length);
+    for (int i = 0; i < count; i++) {
+      offsets[i] = partitionIDs.size();
+      matched.clear();
+      overlapPartitions(x1[i], y1[i], x2[i], y2[i], matched);
+      for (int p = matched.nextSetBit(0); p >= 0; p = matched.nextSetBit(p + 1))
+        partitionIDs.add(p);
+    }
+    offsets[count] = partitionIDs.size();
+  }
+  
+  /**
+   * Finds all partitions that overlap the given rectangle. The rectangle is
+   * decomposed into aligned quadrants, each of which is a contiguous range on
+   * the Hilbert curve, until each quadrant is either contained in the
+   * rectangle or falls in a single partition.
+   * @param x1
+   * @param y1
+   * @param x2
+   * @param y2
+   * @param matched - (output) the IDs of all overlapping partitions are set
+   */
+  protected void overlapPartitions(double x1, double y1, double x2, double y2,
+      BitSet matched) {
+    int ix1 = toGrid(x1, mbr.x1, mbr.getWidth());
+    int iy1 = toGrid(y1, mbr.y1, mbr.getHeight());
+    int ix2 = toGrid(x2, mbr.x1, mbr.getWidth());
+    int iy2 = toGrid(y2, mbr.y1, mbr.getHeight());
+    overlapPartitions(0, 0, GridLevels, ix1, iy1, ix2, iy2, matched);
+  }
+  
+  /**Number of levels of quadrants in the grid of (Resolution+1)^2 cells*/
+  private static final int GridLevels = 15;
+  
+  /**
+   * Converts a coordinate to its integer position on the curve grid in the
+   * same way {@link #computeHValue(Rectangle, double, double)} does. Values
+   * out of the input MBR are clamped to the grid boundaries.
+   */
+  private static int toGrid(double v, double min, double extent) {
+    int i = (int) ((v - min) * Resolution / extent);
+    return Math.max(0, Math.min(Resolution, i));
+  }
+  
+  /**
+   * Returns the first value on the Hilbert curve in an aligned quadrant.
+   * All cells of an aligned quadrant share the same prefix on the curve.
+   * @param ox - the column of the lower left corner of the quadrant
+   * @param oy - the row of the lower left corner of the quadrant
+   * @param level - the quadrant spans (2^level)x(2^level) cells
+   * @return
+   */
+  private static int getQuadrantStart(int ox, int oy, int level) {
+    int h = computeHValue(Resolution + 1, ox, oy);
+    return (h >>> (2 * level)) << (2 * level);
+  }
+  
+  /**
+   * Recursively finds partitions that overlap the query within an aligned
+   * quadrant of the grid.
+   * @param ox - the column of the lower left corner of the quadrant
+   * @param oy - the row of the lower left corner of the quadrant
+   * @param level - the quadrant spans (2^level)x(2^level) cells
+   * @param qx1 - the first column of the query
+   * @param qy1 - the first row of the query
+   * @param qx2 - the last column of the query
+   * @param qy2 - the last row of the query
+   * @param matched - (output) the IDs of overlapping partitions
+   */
+  private void overlapPartitions(int ox, int oy, int level, int qx1,
+      int qy1, int qx2, int qy2, BitSet matched) {
+    int size = 1 << level;
+    if (ox > qx2 || ox + size - 1 < qx1 || oy > qy2 || oy + size - 1 < qy1)
+      return;
+    int hMin = getQuadrantStart(ox, oy, level);
+    int hMax = hMin + (1 << (2 * level)) - 1;
+    int p1 = getPartitionOfH(hMin);
+    int p2 = getPartitionOfH(hMax);
+    if (p1 == p2 || (ox >= qx1 && ox + size - 1 <= qx2 &&
+        oy >= qy1 && oy + size - 1 <= qy2)) {
+      // The whole range of the quadrant on the curve overlaps the query
+      matched.set(p1, p2 + 1);
+      return;
+    }
+    int half = size >> 1;
+    overlapPartitions(ox, oy, level - 1, qx1, qy1, qx2, qy2, matched);
+    overlapPartitions(ox, oy + half, level - 1, qx1, qy1, qx2, qy2, matched);
+    overlapPartitions(ox + half, oy, level - 1, qx1, qy1, qx2, qy2, matched);
+    overlapPartitions(ox + half, oy + half, level - 1, qx1, qy1, qx2, qy2, matched);
+  }
+  
+  /**
+   * Returns the partition that contains the given value on the Hilbert curve
+   * @param h
+   * @return
+   */
+  private int getPartitionOfH(int h) {
+    int partition = Arrays.binarySearch(splits, h);
+    if (partition < 0)
+      partition = -partition - 1;
+    return Math.min(partition, splits.length - 1);
   }
 
   @Override
@@ -104,11 +231,43 @@ public class HilbertCurvePartitioner extends Partitioner {
       return -1;
     // Assign to only one partition that contains the center point
     Point center = shapeMBR.getCenterPoint();
-    int hValue = computeHValue(mbr, center.x, center.y);
-    int partition = Arrays.binarySearch(splits, hValue);
-    if (partition < 0)
-      partition = -partition - 1;
-    return partition;
+    return overlapPartition(center.x, center.y);
+  }
+  
+  /**
+   * Returns the partition that contains the given point. Points out of the
+   * input MBR are clamped to the grid as done by
+   * {@link #overlapPartitions(double, double, double, double, BitSet)} so
+   * a point is always assigned to one of the partitions of any rectangle
+   * that contains it.
+   * @param x
+   * @param y
+   * @return
+   */
+  private int overlapPartition(double x, double y) {
+    int ix = toGrid(x, mbr.x1, mbr.getWidth());
+    int iy = toGrid(y, mbr.y1, mbr.getHeight());
+    return getPartitionOfH(computeHValue(Resolution + 1, ix, iy));
+  }
+
+  /**
+   * Partitions of the Hilbert curve might have overlapping MBRs so the
+   * reference point is assigned to the partition of its value on the curve.
+   * Other partitions are tested by their MBRs. Indexes of the curve cannot
+   * be rebalanced, so all their partitions are cells of this partitioner.
+   */
+  @Override
+  public boolean isReferencePointIn(CellInfo partition, double x, double y) {
+    if (partition.cellId < 0 || partition.cellId >= splits.length)
+      return super.isReferencePointIn(partition, x, y);
+    return overlapPartition(x, y) == partition.cellId;
+  }
+  
+  @Override
+  public void overlapPartition(double[] x, double[] y, int count,
+      int[] partitionIDs) {
+    for (int i = 0; i < count; i++)
+      partitionIDs[i] = overlapPartition(x[i], y[i]);
   }
 
   /**
@@ -145,14 +304,71 @@ public class HilbertCurvePartitioner extends Partitioner {
     return computeHValue(Resolution+1, ix, iy);
   }
 
+  /**
+   * Returns the MBR of all cells that belong to the given partition. Since a
+   * range on the Hilbert curve is not a rectangle, partitions might overlap.
+   */
   @Override
   public CellInfo getPartition(int partitionID) {
-    throw new RuntimeException("Non-implemented method");
+    // Partition #i covers the range (splits[i-1], splits[i]] on the curve
+    long hFirst = partitionID == 0 ? 0 : splits[partitionID - 1] + 1L;
+    long hLast = partitionID == splits.length - 1 ?
+        Integer.MAX_VALUE : splits[partitionID];
+    CellInfo cell = new CellInfo(partitionID, Double.MAX_VALUE,
+        Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+    int[] gridMBR = {Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1};
+    if (hFirst <= hLast)
+      expandToRange(0, 0, GridLevels, hFirst, hLast, gridMBR);
+    if (gridMBR[2] >= 0) {
+      // Convert from grid cells to the input space
+      cell.x1 = (double) gridMBR[0] * mbr.getWidth() / Resolution + mbr.x1;
+      cell.y1 = (double) gridMBR[1] * mbr.getHeight() / Resolution + mbr.y1;
+      cell.x2 = Math.min(mbr.x2,
+          (double) (gridMBR[2] + 1) * mbr.getWidth() / Resolution + mbr.x1);
+      cell.y2 = Math.min(mbr.y2,
+          (double) (gridMBR[3] + 1) * mbr.getHeight() / Resolution + mbr.y1);
+    }
+    return cell;
+  }
+  
+  /**
+   * Expands the given MBR in grid cells to enclose all cells of an aligned
+   * quadrant that lie in the range [hFirst, hLast] on the curve.
+   * @param ox
+   * @param oy
+   * @param level
+   * @param hFirst
+   * @param hLast
+   * @param gridMBR - (input/output) the MBR as [x1, y1, x2, y2] inclusive
+   */
+  private static void expandToRange(int ox, int oy, int level, long hFirst,
+      long hLast, int[] gridMBR) {
+    long hMin = getQuadrantStart(ox, oy, level);
+    long hMax = hMin + (1L << (2 * level)) - 1;
+    if (hMax < hFirst || hMin > hLast)
+      return;
+    int size = 1 << level;
+    if (hMin >= hFirst && hMax <= hLast) {
+      gridMBR[0] = Math.min(gridMBR[0], ox);
+      gridMBR[1] = Math.min(gridMBR[1], oy);
+      gridMBR[2] = Math.max(gridMBR[2], ox + size - 1);
+      gridMBR[3] = Math.max(gridMBR[3], oy + size - 1);
+      return;
+    }
+    // Skip quadrants that cannot expand the MBR any further
+    if (ox >= gridMBR[0] && oy >= gridMBR[1] &&
+        ox + size - 1 <= gridMBR[2] && oy + size - 1 <= gridMBR[3])
+      return;
+    int half = size >> 1;
+    expandToRange(ox, oy, level - 1, hFirst, hLast, gridMBR);
+    expandToRange(ox, oy + half, level - 1, hFirst, hLast, gridMBR);
+    expandToRange(ox + half, oy, level - 1, hFirst, hLast, gridMBR);
+    expandToRange(ox + half, oy + half, level - 1, hFirst, hLast, gridMBR);
   }
 
   @Override
   public CellInfo getPartitionAt(int index) {
-    throw new RuntimeException("Non-implemented method");
+    return getPartition(index);
   }
 
   @Override
@@ -0,0 +1,346 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.IndexOutputFormat.IndexRecordWriter;
+
+/**
+ * Appends new records to an existing index without rebuilding it. The new
+ * records are assigned to partitions by the partitioner stored with the index
+ * and are written to new delta files. Each delta file is added to the master
+ * file as a partition with the same ID as the partition it belongs to, so
+ * queries see the new records right away. Once a partition has too many
+ * delta files, the partition and its delta files are compacted into one file
+ * which rebuilds its local index, if any.
+ * @author Ahmed Eldawy
+ *
+ */
+public class IndexAppender {
+  private static final Log LOG = LogFactory.getLog(IndexAppender.class);
+
+  /**
+   * Maximum number of delta files of one partition. A partition is compacted
+   * when the number of its delta files reaches this limit.
+   */
+  public static final String MaxDeltaFiles = "spatialHadoop.storage.MaxDeltaFiles";
+
+  /**Whether to compact all partitions that have delta files*/
+  public static final String Compact = "compact";
+
+  /**Name of the temporary directory that holds the new files*/
+  private static final String TempDir = "_append";
+
+  /**
+   * Part of the names of delta files that tells them apart from the files
+   * written by the indexer or by compaction
+   */
+  private static final String DeltaFileTag = "-delta-";
+
+  /**
+   * Appends the records in the given files to an existing index.
+   * @param inPaths - files or directories that contain the new records
+   * @param indexPath - path to the index directory
+   * @param params - parameters that include the shape of the records
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void append(Path[] inPaths, Path indexPath,
+      OperationsParams params) throws IOException, InterruptedException {
+    FileSystem fs = indexPath.getFileSystem(params);
+    Path masterPath = null;
+    for (FileStatus status : fs.listStatus(indexPath)) {
+      if (status.getPath().getName().startsWith("_master"))
+        masterPath = status.getPath();
+    }
+    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, indexPath);
+    if (masterPath == null || gindex == null)
+      throw new IOException("Cannot append to '"+indexPath+"' because it is not indexed");
+    final Partitioner partitioner = Partitioner.readFromIndex(fs, indexPath);
+    if (partitioner == null)
+      throw new IOException("Index '"+indexPath+"' does not store its partitioner."
+          + " It has to be rebuilt before appending to it");
+    String sindex = masterPath.getName().substring(masterPath.getName().lastIndexOf('.') + 1);
+    final boolean replicated = gindex.isReplicated();
+    List<Partition> partitions = new ArrayList<Partition>();
+    for (Partition p : gindex)
+      partitions.add(p.clone());
+
+    Configuration conf = new Configuration(params);
+    if (partitions.get(0).filename.endsWith("."+ColumnarLocalIndexer.Extension))
+      conf.set(SpatialSite.PARTITION_FORMAT, "columnar");
+    Indexer.setLocalIndexer(conf, sindex);
+    Path tempPath = new Path(indexPath, TempDir);
+    fs.delete(tempPath, true);
+
+    // Assign the new records to partitions and write them to delta files
+    final Rectangle space = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (int i = 0; i < partitioner.getPartitionCount(); i++)
+      space.expand(partitioner.getPartitionAt(i));
+    final IndexRecordWriter<Shape> writer =
+        new IndexRecordWriter<Shape>(null, false, sindex, tempPath, conf);
+    final IntWritable partitionID = new IntWritable();
+    final Rectangle routingMBR = new Rectangle();
+    final Shape[] currentShape = new Shape[1];
+    final long[] unassigned = {0};
+    final ResultCollector<Integer> replicator = new ResultCollector<Integer>() {
+      @Override
+      public void collect(Integer id) {
+        partitionID.set(id);
+        IndexRebalancer.writeRecord(writer, partitionID, currentShape[0]);
+      }
+    };
+    ResultCollector<Shape> router = new ResultCollector<Shape>() {
+      @Override
+      public void collect(Shape s) {
+        Rectangle mbr = s.getMBR();
+        if (mbr == null)
+          return;
+        clampToSpace(mbr, space, routingMBR);
+        if (replicated) {
+          currentShape[0] = s;
+          partitioner.overlapPartitions(routingMBR, replicator);
+        } else {
+          int id = partitioner.overlapPartition(routingMBR);
+          if (id < 0) {
+            unassigned[0]++;
+          } else {
+            partitionID.set(id);
+            IndexRebalancer.writeRecord(writer, partitionID, s);
+          }
+        }
+      }
+    };
+    for (Path inPath : inPaths) {
+      FileSystem inFs = inPath.getFileSystem(params);
+      FileStatus[] inFiles = inFs.getFileStatus(inPath).isDir() ?
+          inFs.listStatus(inPath, SpatialSite.NonHiddenFileFilter) :
+          new FileStatus[] {inFs.getFileStatus(inPath)};
+      for (FileStatus inFile : inFiles)
+        SpatialSite.readAllShapes(inFile.getPath(), params, router);
+    }
+    writer.close(null);
+    if (unassigned[0] > 0)
+      LOG.warn(unassigned[0]+" records were not assigned to any partition");
+
+    List<Partition> deltas = IndexRebalancer.readMasterFile(fs,
+        new Path(tempPath, "_master."+sindex));
+    for (Partition p : deltas) {
+      if (replicated) {
+        // Keep partitions disjoint as done by the indexer. Records outside
+        // the indexed space are kept in the partitions at its boundary.
+        Rectangle cell = partitioner.getPartition(p.cellId);
+        p.set(p.getIntersection(extendOutsideSpace(cell, space)));
+      }
+      moveToIndex(fs, tempPath, indexPath, p, true);
+      partitions.add(p);
+    }
+    LOG.info("Appended "+deltas.size()+" delta files to '"+indexPath+"'");
+    // Record the delta files before compacting so that the index stays
+    // consistent and the readers find the partitions of all its files
+    IndexRebalancer.replaceMasterFile(fs, masterPath, tempPath, partitions, conf);
+
+    // Compact partitions with too many delta files. A partition might have
+    // only delta files if it was empty when the index was built.
+    int maxDeltaFiles = params.getInt(MaxDeltaFiles, 4);
+    boolean compactAll = params.getBoolean(Compact, false);
+    Map<Integer, List<Partition>> partitionFiles = new HashMap<Integer, List<Partition>>();
+    for (Partition p : partitions) {
+      List<Partition> files = partitionFiles.get(p.cellId);
+      if (files == null) {
+        files = new ArrayList<Partition>();
+        partitionFiles.put(p.cellId, files);
+      }
+      files.add(p);
+    }
+    List<List<Partition>> toCompact = new ArrayList<List<Partition>>();
+    for (List<Partition> files : partitionFiles.values()) {
+      int numDeltaFiles = 0;
+      for (Partition p : files) {
+        if (isDeltaFile(p.filename))
+          numDeltaFiles++;
+      }
+      if (numDeltaFiles > 0 && (compactAll || numDeltaFiles >= maxDeltaFiles))
+        toCompact.add(files);
+    }
+    List<Partition> removedPartitions = new ArrayList<Partition>();
+    if (!toCompact.isEmpty()) {
+      LOG.info("Compacting "+toCompact.size()+" partitions of '"+indexPath+"'");
+      List<Partition> compacted = compact(fs, indexPath, tempPath, sindex,
+          toCompact, replicated, conf, params);
+      for (List<Partition> files : toCompact)
+        removedPartitions.addAll(files);
+      partitions.removeAll(removedPartitions);
+      partitions.addAll(compacted);
+      IndexRebalancer.replaceMasterFile(fs, masterPath, tempPath, partitions, conf);
+      for (Partition p : removedPartitions)
+        fs.delete(new Path(indexPath, p.filename), false);
+    }
+    fs.delete(tempPath, true);
+  }
+
+  /**
+   * Compacts each group of files of the same partition into one file
+   * @param fs
+   * @param indexPath
+   * @param tempPath
+   * @param sindex
+   * @param toCompact - groups of files where each group is one partition
+   * @param replicated
+   * @param conf - configuration of the record writer
+   * @param params
+   * @return the new partitions that replace the given groups
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static List<Partition> compact(FileSystem fs, Path indexPath,
+      Path tempPath, String sindex, List<List<Partition>> toCompact,
+      boolean replicated, Configuration conf, OperationsParams params)
+      throws IOException, InterruptedException {
+    final IndexRecordWriter<Shape> writer =
+        new IndexRecordWriter<Shape>(null, false, sindex, tempPath, conf);
+    // The area covered by all files of each partition
+    Map<Integer, Rectangle> cells = new HashMap<Integer, Rectangle>();
+    for (List<Partition> files : toCompact) {
+      final IntWritable id = new IntWritable(files.get(0).cellId);
+      Rectangle cell = new Rectangle(files.get(0));
+      for (Partition p : files) {
+        cell.expand(p);
+        SpatialSite.readAllShapes(new Path(indexPath, p.filename), params,
+            new ResultCollector<Shape>() {
+          @Override
+          public void collect(Shape s) {
+            IndexRebalancer.writeRecord(writer, id, s);
+          }
+        });
+      }
+      cells.put(id.get(), cell);
+      writer.write(new IntWritable(-id.get() - 1), null);
+    }
+    writer.close(null);
+
+    List<Partition> compacted = IndexRebalancer.readMasterFile(fs,
+        new Path(tempPath, "_master."+sindex));
+    for (Partition p : compacted) {
+      if (replicated)
+        p.set(p.getIntersection(cells.get(p.cellId)));
+      moveToIndex(fs, tempPath, indexPath, p, false);
+    }
+    return compacted;
+  }
+
+  /**
+   * Moves a new partition file to the index directory under a name that
+   * does not exist yet and updates the file name of the partition.
+   * @param fs
+   * @param tempPath
+   * @param indexPath
+   * @param p
+   * @param delta - whether the file is a delta file which is given a name
+   *   that is recognized by {@link #isDeltaFile(String)}
+   * @throws IOException
+   */
+  private static void moveToIndex(FileSystem fs, Path tempPath,
+      Path indexPath, Partition p, boolean delta) throws IOException {
+    int dot = p.filename.indexOf('.');
+    String extension = dot == -1 ? "" : p.filename.substring(dot);
+    String format = delta ? "part-%05d"+DeltaFileTag+"%03d%s" : "part-%05d-%03d%s";
+    Path destination = delta ? new Path(indexPath, String.format(format,
+        p.cellId, 1, extension)) : new Path(indexPath, p.filename);
+    for (int i = delta ? 2 : 1; fs.exists(destination); i++)
+      destination = new Path(indexPath, String.format(format,
+          p.cellId, i, extension));
+    if (!fs.rename(new Path(tempPath, p.filename), destination))
+      throw new IOException("Cannot move the new partition to '"+destination+"'");
+    p.filename = destination.getName();
+  }
+
+  /**
+   * Tests whether a partition file is a delta file written by an append.
+   * @param filename
+   * @return
+   */
+  static boolean isDeltaFile(String filename) {
+    return filename.contains(DeltaFileTag);
+  }
+
+  /**
+   * Moves a rectangle inside the space covered by the partitioner so that
+   * records outside that space are assigned to the partitions at its
+   * boundary. The result always has a positive width and height.
+   * @param mbr
+   * @param space
+   * @param result
+   */
+  private static void clampToSpace(Rectangle mbr, Rectangle space,
+      Rectangle result) {
+    double x1 = Math.max(space.x1, Math.min(mbr.x1, Math.nextAfter(space.x2, space.x1)));
+    double y1 = Math.max(space.y1, Math.min(mbr.y1, Math.nextAfter(space.y2, space.y1)));
+    double x2 = Math.max(Math.nextUp(x1), Math.min(mbr.x2, space.x2));
+    double y2 = Math.max(Math.nextUp(y1), Math.min(mbr.y2, space.y2));
+    result.set(x1, y1, x2, y2);
+  }
+
+  /**
+   * Extends the sides of a cell that lie on the boundary of the space to
+   * infinity. The extended cells of all partitions are still disjoint.
+   * @param cell
+   * @param space
+   * @return
+   */
+  private static Rectangle extendOutsideSpace(Rectangle cell, Rectangle space) {
+    return new Rectangle(cell.x1 <= space.x1 ? -Double.MAX_VALUE : cell.x1,
+        cell.y1 <= space.y1 ? -Double.MAX_VALUE : cell.y1,
+        cell.x2 >= space.x2 ? Double.MAX_VALUE : cell.x2,
+        cell.y2 >= space.y2 ? Double.MAX_VALUE : cell.y2);
+  }
+
+  private static void printUsage() {
+    System.out.println("Appends new records to an existing index");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input files>: (*) Paths to the new records");
+    System.out.println("<index path>: (*) Path to the index directory");
+    System.out.println("shape:<input shape>: (*) Type of shapes stored in the index");
+    System.out.println(MaxDeltaFiles+":<n> - Compact a partition when it has this many delta files");
+    System.out.println("-compact - Compact all partitions that have delta files");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    if (!params.checkInput() || params.getPaths().length < 2) {
+      printUsage();
+      System.exit(1);
+    }
+    long t1 = System.currentTimeMillis();
+    append(params.getInputPaths(), params.getOutputPath(), params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Appended to the index in "+(t2-t1)+" millis");
+  }
+}
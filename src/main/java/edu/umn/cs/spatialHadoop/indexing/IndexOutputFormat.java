@@ -8,18 +8,21 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.indexing;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.lang.Thread.State;
-import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -39,8 +42,12 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.util.LineReader;
 import org.apache.hadoop.util.Progressable;
 
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.io.Text2;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
  * @author Ahmed Eldawy
@@ -51,8 +58,71 @@ public class IndexOutputFormat<S extends Shape>
   
   private static final Log LOG = LogFactory.getLog(IndexOutputFormat.class);
   
-  /**Maximum number of active closing threads*/
-  private static final int MaxClosingThreads = Runtime.getRuntime().availableProcessors() * 2;
+  /**
+   * Configuration line for the number of threads that close partitions and
+   * build their local indexes in the background. Defaults to the number of
+   * available processors.
+   */
+  public static final String ClosingThreads = "spatialHadoop.storage.ClosingThreads";
+  
+  /**
+   * Configuration line for the maximum number of closed partitions waiting
+   * for a background thread. Once reached, closing a new partition blocks
+   * until a background thread becomes available. Defaults to twice the
+   * number of closing threads.
+   */
+  public static final String MaxPendingPartitions = "spatialHadoop.storage.MaxPendingPartitions";
+  
+  /**
+   * Configuration line for the size of the buffer that accumulates records of
+   * each open partition. Records are written to the partition file in chunks
+   * that are multiples of this size. Defaults to 64KB.
+   */
+  public static final String PartitionBufferSize = "spatialHadoop.storage.PartitionBufferSize";
+  
+  /**
+   * Configuration line to write the MBR of each record before its text in
+   * partitions that are not locally indexed. Readers of range queries test
+   * this MBR before parsing the shape. Defaults to false.
+   */
+  public static final String MBRPrefix = "spatialHadoop.storage.MBRPrefix";
+  
+  /**
+   * Extension of partition files written with an MBR prefix. Readers look
+   * for the prefix only in files with this extension.
+   */
+  public static final String MBRPrefixExtension = "mbr";
+  
+  /**
+   * Tests if partitions are written with an MBR prefix before each record
+   * @param conf
+   * @return
+   */
+  public static boolean isMBRPrefixEnabled(Configuration conf) {
+    // Local indexers parse the records of a partition as they are
+    return conf.getBoolean(MBRPrefix, false) &&
+        conf.getClass(LocalIndexer.LocalIndexerClass, null) == null;
+  }
+  
+  /**
+   * Tests if the records of a file start with an MBR prefix
+   * @param path
+   * @return
+   */
+  public static boolean hasMBRPrefix(Path path) {
+    return path != null && path.getName().endsWith("."+MBRPrefixExtension);
+  }
+  
+  /**Counters that show where the time of writing partitions is spent*/
+  public static enum IndexCounters {
+    PARTITIONS_CLOSED,
+    /**Time spent flushing and closing the files of partitions*/
+    PARTITION_WRITE_MILLIS,
+    /**Time spent building local indexes and writing them to the output*/
+    LOCAL_INDEX_MILLIS,
+    /**Time the writer was blocked waiting for a background thread*/
+    CLOSE_WAIT_MILLIS
+  };
   
   
   /**New line marker to separate records*/
@@ -71,6 +141,8 @@ public class IndexOutputFormat<S extends Shape>
 
     /**The partitioner used by the current job*/
     private Partitioner partitioner;
+    /**Configuration of the job*/
+    private Configuration conf;
     /**The output file system*/
     private FileSystem outFS;
     /**The path where output files are written*/
@@ -85,10 +157,25 @@ public class IndexOutputFormat<S extends Shape>
      * instance of stream so that it can be closed later.
      */
     private Map<Integer, OutputStream> partitionsOutput = new ConcurrentHashMap<Integer, OutputStream>();
+    /**Records of each open partition that are not written to its file yet*/
+    private Map<Integer, Text> partitionsBuffer = new ConcurrentHashMap<Integer, Text>();
+    /**Size of the chunks written from {@link #partitionsBuffer} to files*/
+    private int bufferSize;
     /**A temporary text to serialize objects to before writing to output file*/
     private Text tempText = new Text2();
-    /**A list of all threads that are closing partitions in the background*/
-    private Vector<Thread> closingThreads = new Vector<Thread>();
+    /**Closes partitions and builds their local indexes in the background*/
+    private ExecutorService closingExecutor;
+    /**
+     * Limits the number of partitions being closed in the background. Each
+     * partition holds a permit until it is completely closed.
+     */
+    private Semaphore closingSlots;
+    /**Total number of permits in {@link #closingSlots}*/
+    private int maxPendingPartitions;
+    /**Totals of {@link IndexCounters} to be reported when the writer closes*/
+    private AtomicLong partitionsClosed = new AtomicLong(),
+        writeMillis = new AtomicLong(), localIndexMillis = new AtomicLong(),
+        closeWaitMillis = new AtomicLong();
     /**The master file contains information about all written partitions*/
     private OutputStream masterFile;
     /**List of errors that happened by a background thread*/
@@ -96,9 +183,11 @@ public class IndexOutputFormat<S extends Shape>
     /**Whether records are replicated in the index or distributed*/
     private boolean replicated;
     /**Type of shapes written to the output. Needed to build local indexes*/
-    private S shape;
+    private Shape shape;
     /**Local indexer used to index each partition (optional)*/
     private LocalIndexer localIndexer;
+    /**Whether to write the MBR of each record before its text*/
+    private boolean mbrPrefix;
 
     public IndexRecordWriter(TaskAttemptContext task, Path outPath) throws IOException, InterruptedException {
       this(task, Integer.toString(task.getTaskAttemptID().getTaskID().getId()), outPath, null);
@@ -108,6 +197,7 @@ public class IndexOutputFormat<S extends Shape>
         Progressable progress)
         throws IOException, InterruptedException {
       Configuration conf = task.getConfiguration();
+      this.conf = conf;
       String sindex = conf.get("sindex");
       this.replicated = conf.getBoolean("replicate", false);
       this.outFS = outPath.getFileSystem(conf);
@@ -128,11 +218,14 @@ public class IndexOutputFormat<S extends Shape>
           new Path(outPath, String.format("_master.%s", sindex)) :
             new Path(outPath, String.format("_master_%s.%s", name, sindex));
       this.masterFile = outFS.create(masterFilePath);
+      mbrPrefix = localIndexer == null && isMBRPrefixEnabled(conf);
+      createClosingExecutor(conf);
     }
 
     public IndexRecordWriter(Partitioner partitioner, boolean replicate,
         String sindex, Path outPath, Configuration conf)
             throws IOException, InterruptedException {
+      this.conf = conf;
       this.replicated = replicate;
       this.outFS = outPath.getFileSystem(conf);
       this.outPath = outPath;
@@ -151,6 +244,31 @@ public class IndexOutputFormat<S extends Shape>
       }
       Path masterFilePath =  new Path(outPath, "_master."+ sindex);
       this.masterFile = outFS.create(masterFilePath);
+      mbrPrefix = localIndexer == null && isMBRPrefixEnabled(conf);
+      createClosingExecutor(conf);
+    }
+    
+    /**
+     * Creates the pool of background threads that close partitions
+     * @param conf
+     */
+    private void createClosingExecutor(Configuration conf) {
+      int numThreads = Math.max(1, conf.getInt(ClosingThreads,
+          Runtime.getRuntime().availableProcessors()));
+      maxPendingPartitions = Math.max(numThreads,
+          conf.getInt(MaxPendingPartitions, numThreads * 2));
+      closingSlots = new Semaphore(maxPendingPartitions);
+      bufferSize = Math.max(1024, conf.getInt(PartitionBufferSize, 64 * 1024));
+      closingExecutor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        private int threadNumber = 0;
+        
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "IndexRecordWriter-close-"+(threadNumber++));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
     }
     
     @Override
@@ -163,49 +281,118 @@ public class IndexOutputFormat<S extends Shape>
       } else {
         // An actual object that we need to write
         OutputStream output = getOrCreateDataOutput(id);
+        Text buffer = partitionsBuffer.get(id);
         tempText.clear();
+        if (mbrPrefix) {
+          Rectangle mbr = value.getMBR();
+          if (mbr != null)
+            TextSerializerHelper.serializeMBRPrefix(mbr.x1, mbr.y1, mbr.x2,
+                mbr.y2, tempText);
+        }
         value.toText(tempText);
-        byte[] bytes = tempText.getBytes();
-        output.write(bytes, 0, tempText.getLength());
-        output.write(NEW_LINE);
+        buffer.append(tempText.getBytes(), 0, tempText.getLength());
+        buffer.append(NEW_LINE, 0, NEW_LINE.length);
+        if (buffer.getLength() >= bufferSize)
+          flushBuffer(output, buffer);
         Partition partition = partitionsInfo.get(id);
         partition.recordCount++;
         partition.size += tempText.getLength() + NEW_LINE.length;
         partition.expand(value);
         if (shape == null)
-          shape = (S) value.clone();
+          shape = value.clone();
+      }
+    }
+    
+    /**
+     * Appends a block of records to a partition. The records in the block are
+     * written to the partition file as they are without parsing them.
+     * @param id - the ID of the partition
+     * @param block
+     * @throws IOException
+     */
+    public void writeBlock(int id, RecordBlock block) throws IOException {
+      if (block.getRecordCount() == 0)
+        return;
+      OutputStream output = getOrCreateDataOutput(id);
+      Text buffer = partitionsBuffer.get(id);
+      if (buffer.getLength() > 0) {
+        // Keep the order of records written earlier to this partition
+        output.write(buffer.getBytes(), 0, buffer.getLength());
+        buffer.clear();
       }
+      output.write(block.getData(), 0, block.getLength());
+      Partition partition = partitionsInfo.get(id);
+      partition.recordCount += block.getRecordCount();
+      partition.size += block.getLength();
+      partition.expand(block.getMBR());
+      if (shape == null)
+        shape = OperationsParams.getShape(conf, "shape");
+    }
+
+    /**
+     * Writes the buffered records of a partition to its file. Only a multiple
+     * of {@link #bufferSize} is written so that the file system always
+     * receives large aligned chunks. The remaining bytes are moved to the
+     * beginning of the buffer.
+     * @param output
+     * @param buffer
+     * @throws IOException
+     */
+    private void flushBuffer(OutputStream output, Text buffer) throws IOException {
+      int flushLength = buffer.getLength() / bufferSize * bufferSize;
+      byte[] bytes = buffer.getBytes();
+      output.write(bytes, 0, flushLength);
+      buffer.set(bytes, flushLength, buffer.getLength() - flushLength);
     }
 
     /**
-     * Close a file that is currently open for a specific partition. Returns a
-     * background thread that will continue all close-related logic.
-     * @param progress 
+     * Closes the file that is currently open for a specific partition. The
+     * file is closed, locally indexed and added to the master file by a
+     * background thread so that the writer can continue with other
+     * partitions. If too many partitions are already waiting to be closed,
+     * this method blocks until one of them is done.
      * 
-     * @param partitionToClose
+     * @param id - the ID of the partition to close
+     * @throws IOException 
      */
-    private void closePartition(final int id) {
+    private void closePartition(final int id) throws IOException {
       final Partition partitionInfo = partitionsInfo.get(id);
       final OutputStream outStream = partitionsOutput.get(id);
+      final Text buffer = partitionsBuffer.get(id);
       final File tempFile = tempFiles.get(id);
-      Thread closeThread = new Thread() {
+      
+      // Clear partition information to indicate we can no longer write to it
+      partitionsInfo.remove(id);
+      partitionsOutput.remove(id);
+      partitionsBuffer.remove(id);
+      tempFiles.remove(id);
+
+      long t1 = System.currentTimeMillis();
+      try {
+        closingSlots.acquire();
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while closing partition #"+id, e);
+      }
+      closeWaitMillis.addAndGet(System.currentTimeMillis() - t1);
+      
+      closingExecutor.execute(new Runnable() {
         @Override
         public void run() {
           try {
+            long t1 = System.currentTimeMillis();
+            outStream.write(buffer.getBytes(), 0, buffer.getLength());
             outStream.close();
+            long t2 = System.currentTimeMillis();
             
             if (localIndexer != null) {
               // Build a local index for that file
-              try {
-                Path indexedFilePath = getPartitionFile(id);
-                partitionInfo.filename = indexedFilePath.getName();
-                localIndexer.buildLocalIndex(tempFile, indexedFilePath, shape);
-                // Temporary file no longer needed
-                tempFile.delete();
-              } catch (InterruptedException e) {
-                throw new RuntimeException("Error building local index", e);
-              }
+              Path indexedFilePath = getPartitionFile(id);
+              partitionInfo.filename = indexedFilePath.getName();
+              localIndexer.buildLocalIndex(tempFile, indexedFilePath, shape);
+              // Temporary file no longer needed
+              tempFile.delete();
             }
+            long t3 = System.currentTimeMillis();
             
             if (replicated) {
               // If data is replicated, we need to shrink down the size of the
@@ -218,68 +405,19 @@ public class IndexOutputFormat<S extends Shape>
               masterFile.write(partitionText.getBytes(), 0, partitionText.getLength());
               masterFile.write(NEW_LINE);
             }
-            if (!closingThreads.remove(Thread.currentThread())) {
-              throw new RuntimeException("Could not remove closing thread");
-            }
-            // Start more background threads if needed
-            int numRunningThreads = 0;
-            try {
-              for (int i_thread = 0; i_thread < closingThreads.size() &&
-                  numRunningThreads < MaxClosingThreads; i_thread++) {
-                Thread thread = closingThreads.elementAt(i_thread);
-                synchronized(thread) {
-                  switch (thread.getState()) {
-                  case NEW:
-                    // Start the thread and fall through to increment the counter
-                    thread.start();
-                  case RUNNABLE:
-                  case BLOCKED:
-                  case WAITING:
-                  case TIMED_WAITING:
-                    // No need to start. Just increment number of threads
-                    numRunningThreads++;
-                    break;
-                  case TERMINATED: // Do nothing.
-                    // Should never happen as each thread removes itself from
-                    // the list before completion 
-                  }
-                }
-              }
-            } catch (ArrayIndexOutOfBoundsException e) {
-              // No problem. The array of threads might have gone empty
-            }
-          } catch (IOException e) {
-            e.printStackTrace();
-            throw new RuntimeException("Error closing partition: "+partitionInfo, e);
+            partitionsClosed.incrementAndGet();
+            writeMillis.addAndGet(t2 - t1);
+            localIndexMillis.addAndGet(t3 - t2);
+            LOG.info(String.format("Closed partition #%d (%d records, %d bytes)"
+                + " write: %d millis, local index: %d millis", id,
+                partitionInfo.recordCount, partitionInfo.size, t2 - t1, t3 - t2));
+          } catch (Throwable e) {
+            listOfErrors.add(new RuntimeException("Error closing partition: "+partitionInfo, e));
+          } finally {
+            closingSlots.release();
           }
         }
-      };
-      
-      closeThread.setUncaughtExceptionHandler(new UncaughtExceptionHandler() {
-        @Override
-        public void uncaughtException(Thread t, Throwable e) {
-          listOfErrors.add(e);
-        }
       });
-      
-      // Clear partition information to indicate we can no longer write to it
-      partitionsInfo.remove(id);
-      partitionsOutput.remove(id);
-      tempFiles.remove(id);
-
-      if (closingThreads.size() < MaxClosingThreads) {
-        // Start the thread in the background and make sure it started before
-        // adding it to the list of threads to avoid an exception when other
-        // thread tries to start it after it is in the queue
-        closeThread.start();
-        try {
-          while (closeThread.getState() == State.NEW) {
-            Thread.sleep(1000);
-            LOG.info("Waiting for thread #"+closeThread.getId()+" to start");
-          }
-        } catch (InterruptedException e) {}
-      }
-      closingThreads.add(closeThread);
     }
 
     /**
@@ -306,7 +444,7 @@ public class IndexOutputFormat<S extends Shape>
         } else {
           // Write to a temporary file that will later get indexed
           File tempFile = File.createTempFile(String.format("part-%05d", id), "lindex");
-          out = new BufferedOutputStream(new FileOutputStream(tempFile));
+          out = new FileOutputStream(tempFile);
           tempFiles.put(id, tempFile);
         }
         partition.cellId = id;
@@ -316,6 +454,7 @@ public class IndexOutputFormat<S extends Shape>
             -Double.MAX_VALUE, -Double.MAX_VALUE);
         // Store in the hashtables for further user
         partitionsOutput.put(id,  out);
+        partitionsBuffer.put(id, new Text2());
         partitionsInfo.put(id, partition);
       }
       return out;
@@ -328,14 +467,14 @@ public class IndexOutputFormat<S extends Shape>
      * @throws IOException 
      */
     private Path getPartitionFile(int id) throws IOException {
-      String format = "part-%05d";
+      String extension = "";
       if (localIndexer != null)
-        format += "."+localIndexer.getExtension();
-      Path partitionPath = new Path(outPath, String.format(format, id));
+        extension = "."+localIndexer.getExtension();
+      else if (mbrPrefix)
+        extension = "."+MBRPrefixExtension;
+      Path partitionPath = new Path(outPath, String.format("part-%05d", id)+extension);
       if (outFS.exists(partitionPath)) {
-        format = "part-%05d-%03d";
-        if (localIndexer != null)
-          format += "."+localIndexer.getExtension();
+        String format = "part-%05d-%03d"+extension;
         int i = 0;
         do {
           partitionPath = new Path(outPath, String.format(format, id, ++i));
@@ -353,29 +492,26 @@ public class IndexOutputFormat<S extends Shape>
           if (task != null)
             task.progress();
         }
-        if (task != null)
-          task.setStatus("Closing! "+closingThreads.size()+" remaining");
-        // Wait until all background threads are closed
+        // Wait until all background threads are done
+        closingExecutor.shutdown();
         try {
-          while (!closingThreads.isEmpty()) {
-            Thread thread = closingThreads.firstElement();
-            while (thread.isAlive()) {
-              try {
-                thread.join(10000);
-                if (task != null)
-                  task.progress();
-              } catch (InterruptedException e) {
-                e.printStackTrace();
-              }
+          while (!closingExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            if (task != null) {
+              task.progress();
+              task.setStatus("Closing! "+(maxPendingPartitions -
+                  closingSlots.availablePermits())+" remaining");
             }
-            if (task != null)
-              task.setStatus("Closing! "+closingThreads.size()+" remaining");
           }
-        } catch (ArrayIndexOutOfBoundsException e) {
-          // The array of threads has gone empty. Nothing to do
+        } catch (InterruptedException e) {
+          throw new IOException("Interrupted while closing partitions", e);
         }
-        if (task != null)
+        if (task != null) {
           task.setStatus("All closed");
+          task.getCounter(IndexCounters.PARTITIONS_CLOSED).increment(partitionsClosed.get());
+          task.getCounter(IndexCounters.PARTITION_WRITE_MILLIS).increment(writeMillis.get());
+          task.getCounter(IndexCounters.LOCAL_INDEX_MILLIS).increment(localIndexMillis.get());
+          task.getCounter(IndexCounters.CLOSE_WAIT_MILLIS).increment(closeWaitMillis.get());
+        }
         // All threads are now closed. Check if errors happened
         if (!listOfErrors.isEmpty()) {
           for (Throwable t : listOfErrors)
@@ -383,6 +519,7 @@ public class IndexOutputFormat<S extends Shape>
           throw new RuntimeException("Encountered "+listOfErrors.size()+" errors in background thread");
         }
       } finally {
+        closingExecutor.shutdownNow();
         // Close the master file to ensure there are no open files
         masterFile.close();
       }
@@ -447,6 +584,7 @@ public class IndexOutputFormat<S extends Shape>
         }
         wktOut.close();
         destOut.close();
+        SpatialSite.writeGlobalIndexBinary(outFs, outPath);
       }
     }
   }
@@ -0,0 +1,389 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.IndexOutputFormat.IndexRecordWriter;
+import edu.umn.cs.spatialHadoop.io.Text2;
+
+/**
+ * Rebalances the partitions of an existing index using the sizes recorded in
+ * its master file. Partitions that are much larger than a target size are
+ * split into partitions of about the target size, and small neighboring
+ * partitions are merged together. Only the affected partitions are rewritten
+ * and the master file is replaced in one rename at the end. Replicated
+ * indexes of a space-filling curve, i.e., zcurve+ and hilbert+, cannot be
+ * rebalanced because their partitions overlap.
+ * @author Ahmed Eldawy
+ *
+ */
+public class IndexRebalancer {
+  private static final Log LOG = LogFactory.getLog(IndexRebalancer.class);
+
+  /**Target size of partitions as a ratio of the HDFS block size*/
+  public static final String TargetRatio = "spatialHadoop.storage.RebalanceTargetRatio";
+
+  /**Partitions larger than this factor of the target size are split*/
+  private static final double SplitFactor = 1.5;
+
+  /**Partitions smaller than this factor of the target size are merged*/
+  private static final double MergeFactor = 0.5;
+
+  /**Name of the temporary directory that holds the rewritten partitions*/
+  private static final String TempDir = "_rebalance";
+
+  /**
+   * Rebalances the partitions of the given index.
+   * @param indexPath - path to the index directory
+   * @param params - parameters that include the shape of the records
+   * @return <code>true</code> if any partitions were rewritten
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static boolean rebalance(Path indexPath, OperationsParams params)
+      throws IOException, InterruptedException {
+    FileSystem fs = indexPath.getFileSystem(params);
+    Path masterPath = null;
+    for (FileStatus status : fs.listStatus(indexPath)) {
+      if (status.getPath().getName().startsWith("_master"))
+        masterPath = status.getPath();
+    }
+    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, indexPath);
+    if (masterPath == null || gindex == null)
+      throw new IOException("Cannot rebalance '"+indexPath+"' because it is not indexed");
+    String sindex = masterPath.getName().substring(masterPath.getName().lastIndexOf('.') + 1);
+    boolean replicated = gindex.isReplicated();
+    long targetSize = (long) (fs.getDefaultBlockSize(indexPath) *
+        params.getFloat(TargetRatio, 1.0f));
+
+    // Choose partitions to split and groups of partitions to merge
+    List<Partition> partitions = new ArrayList<Partition>();
+    int nextId = 0;
+    for (Partition p : gindex) {
+      partitions.add(p.clone());
+      nextId = Math.max(nextId, p.cellId + 1);
+    }
+    // New IDs should not collide with empty partitions of the stored
+    // partitioner as records might be appended to them later
+    Partitioner partitioner = Partitioner.readFromIndex(fs, indexPath);
+    // Replicated partitions of a space-filling curve overlap and each point
+    // belongs to the partition of its value on the curve. Splitting one of
+    // them into rectangles would assign points in the overlap to two
+    // partitions and report their records twice
+    if (replicated && (partitioner instanceof ZCurvePartitioner ||
+        partitioner instanceof HilbertCurvePartitioner ||
+        sindex.equals("zcurve+") || sindex.equals("hilbert+")))
+      throw new IOException("Cannot rebalance '"+indexPath+"' because the "+
+        "partitions of a '"+sindex+"' index overlap");
+    if (partitioner != null) {
+      for (int i = 0; i < partitioner.getPartitionCount(); i++)
+        nextId = Math.max(nextId, partitioner.getPartitionAt(i).cellId + 1);
+    }
+    List<Partition> toSplit = new ArrayList<Partition>();
+    List<Partition> smallPartitions = new ArrayList<Partition>();
+    for (Partition p : partitions) {
+      if (p.size > targetSize * SplitFactor)
+        toSplit.add(p);
+      else if (p.size < targetSize * MergeFactor)
+        smallPartitions.add(p);
+    }
+    // Merging replicated partitions would produce overlapping partitions
+    List<List<Partition>> toMerge = replicated ? new ArrayList<List<Partition>>() :
+      groupNeighbors(smallPartitions, targetSize);
+    if (toSplit.isEmpty() && toMerge.isEmpty()) {
+      LOG.info("Partitions of '"+indexPath+"' are already balanced");
+      return false;
+    }
+    LOG.info("Splitting "+toSplit.size()+" partitions and merging "+
+        toMerge.size()+" groups of partitions of '"+indexPath+"'");
+
+    // Write the new partitions to a temporary directory
+    Configuration conf = new Configuration(params);
+    if (partitions.get(0).filename.endsWith("."+ColumnarLocalIndexer.Extension))
+      conf.set(SpatialSite.PARTITION_FORMAT, "columnar");
+    Indexer.setLocalIndexer(conf, sindex);
+    Path tempPath = new Path(indexPath, TempDir);
+    fs.delete(tempPath, true);
+    final IndexRecordWriter<Shape> writer =
+        new IndexRecordWriter<Shape>(null, false, sindex, tempPath, conf);
+    List<Partition> removedPartitions = new ArrayList<Partition>();
+    // The cell of each new partition that comes from a replicated partition
+    Map<Integer, Rectangle> newCells = new HashMap<Integer, Rectangle>();
+    for (Partition p : toSplit) {
+      nextId = splitPartition(indexPath, p, targetSize, replicated, writer,
+          nextId, newCells, params);
+      removedPartitions.add(p);
+    }
+    for (List<Partition> group : toMerge) {
+      final IntWritable id = new IntWritable(nextId++);
+      for (Partition p : group) {
+        SpatialSite.readAllShapes(new Path(indexPath, p.filename), params, new ResultCollector<Shape>() {
+          @Override
+          public void collect(Shape s) {
+            writeRecord(writer, id, s);
+          }
+        });
+        removedPartitions.add(p);
+      }
+      writer.write(new IntWritable(-id.get() - 1), null);
+    }
+    writer.close(null);
+
+    // Move the new partitions to the index directory
+    List<Partition> newPartitions = readMasterFile(fs, new Path(tempPath, "_master."+sindex));
+    for (Partition p : newPartitions) {
+      Rectangle cell = newCells.get(p.cellId);
+      if (cell != null) {
+        // Keep replicated partitions disjoint as done by the indexer
+        Rectangle intersection = p.getIntersection(cell);
+        if (intersection != null)
+          p.set(intersection);
+      }
+      Path destination = new Path(indexPath, p.filename);
+      if (fs.exists(destination) || !fs.rename(new Path(tempPath, p.filename), destination))
+        throw new IOException("Cannot move the new partition to '"+destination+"'");
+    }
+
+    // Replace the master file with a new one that contains the new partitions
+    partitions.removeAll(removedPartitions);
+    partitions.addAll(newPartitions);
+    replaceMasterFile(fs, masterPath, tempPath, partitions, conf);
+
+    // Clean up files that are no longer referenced by the master file
+    for (Partition p : removedPartitions)
+      fs.delete(new Path(indexPath, p.filename), false);
+    fs.delete(tempPath, true);
+    return true;
+  }
+
+  /**
+   * Replaces the master file of an index with the given partitions. The new
+   * master file is written to a temporary directory first and then renamed
+   * over the existing one so that readers see either the old or the new
+   * list of partitions. The WKT file and the binary global index are updated
+   * as well.
+   * @param fs
+   * @param masterPath - path to the existing master file
+   * @param tempPath - a temporary directory in the same file system
+   * @param partitions - all partitions of the index
+   * @param conf
+   * @throws IOException
+   */
+  static void replaceMasterFile(FileSystem fs, Path masterPath, Path tempPath,
+      List<Partition> partitions, Configuration conf) throws IOException {
+    Path indexPath = masterPath.getParent();
+    String sindex = masterPath.getName().substring(masterPath.getName().lastIndexOf('.') + 1);
+    Path newMasterPath = new Path(tempPath, "master."+sindex);
+    OutputStream masterOut = fs.create(newMasterPath);
+    PrintStream wktOut = new PrintStream(fs.create(new Path(indexPath, "_"+sindex+".wkt"), true));
+    wktOut.println("ID\tBoundaries\tRecord Count\tSize\tFile name");
+    Text line = new Text2();
+    for (Partition p : partitions) {
+      line.clear();
+      p.toText(line);
+      masterOut.write(line.getBytes(), 0, line.getLength());
+      masterOut.write(IndexOutputFormat.NEW_LINE);
+      wktOut.println(p.toWKT());
+    }
+    masterOut.close();
+    wktOut.close();
+    FileContext.getFileContext(fs.getUri(), conf).rename(newMasterPath, masterPath,
+        Options.Rename.OVERWRITE);
+    SpatialSite.writeGlobalIndexBinary(fs, indexPath);
+  }
+
+  /**
+   * Groups small partitions that are close to each other such that the total
+   * size of each group does not exceed the target size. Partitions are
+   * ordered by the Hilbert value of their centers so that consecutive
+   * partitions are spatial neighbors.
+   * @param smallPartitions
+   * @param targetSize
+   * @return groups of at least two partitions
+   */
+  static List<List<Partition>> groupNeighbors(List<Partition> smallPartitions,
+      long targetSize) {
+    List<List<Partition>> groups = new ArrayList<List<Partition>>();
+    if (smallPartitions.size() < 2)
+      return groups;
+    final Rectangle mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    for (Partition p : smallPartitions)
+      mbr.expand(p);
+    final Map<Partition, Integer> hValues = new HashMap<Partition, Integer>();
+    for (Partition p : smallPartitions)
+      hValues.put(p, HilbertCurvePartitioner.computeHValue(mbr,
+          (p.x1 + p.x2) / 2, (p.y1 + p.y2) / 2));
+    List<Partition> sorted = new ArrayList<Partition>(smallPartitions);
+    Collections.sort(sorted, new Comparator<Partition>() {
+      @Override
+      public int compare(Partition p1, Partition p2) {
+        return hValues.get(p1).compareTo(hValues.get(p2));
+      }
+    });
+    List<Partition> group = new ArrayList<Partition>();
+    long groupSize = 0;
+    for (Partition p : sorted) {
+      if (!group.isEmpty() && groupSize + p.size > targetSize) {
+        if (group.size() > 1)
+          groups.add(group);
+        group = new ArrayList<Partition>();
+        groupSize = 0;
+      }
+      group.add(p);
+      groupSize += p.size;
+    }
+    if (group.size() > 1)
+      groups.add(group);
+    return groups;
+  }
+
+  /**
+   * Splits one partition into partitions of about the target size. The
+   * centers of all records are read first to build a Kd-tree over the
+   * partition, then the records are read again and written to the leaves of
+   * the Kd-tree.
+   * @return the next available partition ID
+   */
+  private static int splitPartition(Path indexPath, Partition partition,
+      long targetSize, final boolean replicated,
+      final IndexRecordWriter<Shape> writer, final int firstId,
+      Map<Integer, Rectangle> newCells, OperationsParams params)
+      throws IOException, InterruptedException {
+    Path file = new Path(indexPath, partition.filename);
+    final Rectangle cell = new Rectangle(partition);
+    final double[][] centers = new double[2][(int) Math.min(Integer.MAX_VALUE - 8,
+        partition.recordCount)];
+    final int[] count = {0};
+    SpatialSite.readAllShapes(file, params, new ResultCollector<Shape>() {
+      @Override
+      public void collect(Shape s) {
+        Rectangle mbr = s.getMBR();
+        if (mbr == null || count[0] == centers[0].length)
+          return;
+        // Replicated records might have their centers outside the partition
+        centers[0][count[0]] = Math.max(cell.x1, Math.min(cell.x2, (mbr.x1 + mbr.x2) / 2));
+        centers[1][count[0]] = Math.max(cell.y1, Math.min(cell.y2, (mbr.y1 + mbr.y2) / 2));
+        count[0]++;
+      }
+    });
+    int numPartitions = (int) Math.ceil((double) partition.size / targetSize);
+    final KdTreePartitioner kdtree = new KdTreePartitioner();
+    kdtree.createFromPoints(cell, Arrays.copyOf(centers[0], count[0]),
+        Arrays.copyOf(centers[1], count[0]),
+        Math.max(1, (int) Math.ceil((double) count[0] / numPartitions)));
+
+    // Map leaves of the Kd-tree to new partition IDs
+    final Map<Integer, IntWritable> ids = new HashMap<Integer, IntWritable>();
+    int nextId = firstId;
+    for (int i = 0; i < kdtree.getPartitionCount(); i++) {
+      CellInfo leaf = kdtree.getPartitionAt(i);
+      ids.put(leaf.cellId, new IntWritable(nextId));
+      if (replicated)
+        newCells.put(nextId, new Rectangle(leaf));
+      nextId++;
+    }
+    SpatialSite.readAllShapes(file, params, new ResultCollector<Shape>() {
+      @Override
+      public void collect(final Shape s) {
+        if (replicated) {
+          kdtree.overlapPartitions(s, new ResultCollector<Integer>() {
+            @Override
+            public void collect(Integer leaf) {
+              writeRecord(writer, ids.get(leaf), s);
+            }
+          });
+        } else {
+          writeRecord(writer, ids.get(kdtree.overlapPartition(s)), s);
+        }
+      }
+    });
+    for (IntWritable id : ids.values())
+      writer.write(new IntWritable(-id.get() - 1), null);
+    return nextId;
+  }
+
+  /**Writes one record to the given partition*/
+  static void writeRecord(IndexRecordWriter<Shape> writer,
+      IntWritable id, Shape s) {
+    try {
+      writer.write(id, s);
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing to partition #"+id, e);
+    }
+  }
+
+  /**Reads all partitions in a master file*/
+  static List<Partition> readMasterFile(FileSystem fs, Path masterPath)
+      throws IOException {
+    List<Partition> partitions = new ArrayList<Partition>();
+    if (!fs.exists(masterPath))
+      return partitions;
+    LineReader in = new LineReader(fs.open(masterPath));
+    Text line = new Text2();
+    while (in.readLine(line) > 0) {
+      Partition p = new Partition();
+      p.fromText(line);
+      partitions.add(p);
+    }
+    in.close();
+    return partitions;
+  }
+
+  private static void printUsage() {
+    System.out.println("Splits large partitions and merges small partitions of an index");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<index path>: (*) Path to the index directory");
+    System.out.println("shape:<input shape>: (*) Type of shapes stored in the index");
+    System.out.println(TargetRatio+":<r> - Target partition size as a ratio of the block size");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    if (!params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    long t1 = System.currentTimeMillis();
+    boolean changed = rebalance(params.getInputPath(), params);
+    long t2 = System.currentTimeMillis();
+    System.out.println((changed ? "Rebalanced" : "No changes to")+" the index in "
+        +(t2-t1)+" millis");
+  }
+}
@@ -36,13 +36,13 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
-import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.IndexOutputFormat.IndexRecordWriter;
@@ -51,9 +51,9 @@ import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
-import edu.umn.cs.spatialHadoop.operations.FileMBR;
-import edu.umn.cs.spatialHadoop.operations.Sampler;
-import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.operations.FileSummary;
+import edu.umn.cs.spatialHadoop.operations.FileSummary.Summary;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * @author Ahmed Eldawy
@@ -66,6 +66,18 @@ public class Indexer {
   private static final Map<String, Class<? extends LocalIndexer>> LocalIndexes;
   private static final Map<String, Boolean> PartitionerReplicate;
   
+  /**
+   * Whether mappers combine the records of each partition into blocks
+   * before the shuffle rather than shuffling records one by one
+   */
+  public static final String BlockShuffle = "blockshuffle";
+  /**Whether to split large partitions and merge small ones after the index is built*/
+  public static final String Rebalance = "rebalance";
+  /**Maximum size in bytes of one block shuffled by the mappers*/
+  public static final String ShuffleBlockSize = "spatialHadoop.storage.ShuffleBlockSize";
+  /**Total memory of blocks buffered by each mapper before it writes all of them*/
+  public static final String ShuffleBufferSize = "spatialHadoop.storage.ShuffleBufferSize";
+  
   static {
     PartitionerClasses = new HashMap<String, Class<? extends Partitioner>>();
     PartitionerClasses.put("grid", GridPartitioner.class);
@@ -76,6 +88,8 @@ public class Indexer {
     PartitionerClasses.put("quadtree", QuadTreePartitioner.class);
     PartitionerClasses.put("zcurve", ZCurvePartitioner.class);
     PartitionerClasses.put("hilbert", HilbertCurvePartitioner.class);
+    PartitionerClasses.put("zcurve+", ZCurvePartitioner.class);
+    PartitionerClasses.put("hilbert+", HilbertCurvePartitioner.class);
     PartitionerClasses.put("kdtree", KdTreePartitioner.class);
     
     PartitionerReplicate = new HashMap<String, Boolean>();
@@ -87,6 +101,8 @@ public class Indexer {
     PartitionerReplicate.put("quadtree", true);
     PartitionerReplicate.put("zcurve", false);
     PartitionerReplicate.put("hilbert", false);
+    PartitionerReplicate.put("zcurve+", true);
+    PartitionerReplicate.put("hilbert+", true);
     PartitionerReplicate.put("kdtree", true);
     
     LocalIndexes = new HashMap<String, Class<? extends LocalIndexer>>();
@@ -95,6 +111,154 @@ public class Indexer {
   }
 
 
+  /**
+   * Assigns shapes to partitions in batches using the batch methods of
+   * {@link Partitioner} to avoid creating objects for each record. Since
+   * record readers reuse the same object for all records, points and
+   * rectangles are copied into a pool of objects that are reused across
+   * batches. Other shapes cost more to copy than what batching saves so each
+   * of them is partitioned and written as soon as it is added.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static abstract class PartitionBatch {
+    /**Maximum number of shapes in one batch*/
+    public static final int BatchSize = 1024;
+    
+    /**The partitioner used to assign shapes to partitions*/
+    private final Partitioner partitioner;
+    /**Whether to replicate each shape to all overlapping partitions*/
+    private final boolean replicate;
+    /**Shapes of the current batch*/
+    private final Shape[] shapes = new Shape[BatchSize];
+    /**MBRs of the shapes in the current batch*/
+    private final double[] x1 = new double[BatchSize], y1 = new double[BatchSize],
+        x2 = new double[BatchSize], y2 = new double[BatchSize];
+    /**Centers of the MBRs of shapes in the current batch*/
+    private final double[] centerX, centerY;
+    /**The partition assigned to each shape*/
+    private final int[] partitionIDs;
+    /**Offsets of partitions of each shape in {@link #replicatedIDs}*/
+    private final int[] offsets;
+    /**Partitions of all shapes when they are replicated*/
+    private final IntArray replicatedIDs;
+    /**Number of shapes in the current batch*/
+    private int count;
+    /**Passed to {@link #write(IntWritable, Shape)}*/
+    private final IntWritable partitionID = new IntWritable();
+    
+    public PartitionBatch(Partitioner partitioner, boolean replicate) {
+      this.partitioner = partitioner;
+      this.replicate = replicate;
+      if (replicate) {
+        centerX = centerY = null;
+        partitionIDs = null;
+        offsets = new int[BatchSize + 1];
+        replicatedIDs = new IntArray();
+      } else {
+        centerX = new double[BatchSize];
+        centerY = new double[BatchSize];
+        partitionIDs = new int[BatchSize];
+        offsets = null;
+        replicatedIDs = null;
+      }
+    }
+    
+    /**
+     * Adds a shape to the current batch. The shape is not retained after
+     * this call and can be reused by the caller.
+     * @param shape
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void add(Shape shape) throws IOException, InterruptedException {
+      if (shape == null)
+        return;
+      Shape copy = shapes[count];
+      if (shape.getClass() == Point.class) {
+        Point p = (Point) shape;
+        // Same as the MBR returned by Point#getMBR()
+        x1[count] = p.x;
+        y1[count] = p.y;
+        x2[count] = p.x + Math.ulp(p.x);
+        y2[count] = p.y + Math.ulp(p.y);
+        if (copy != null && copy.getClass() == Point.class)
+          ((Point) copy).set(p.x, p.y);
+        else
+          copy = p.clone();
+      } else if (shape.getClass() == Rectangle.class) {
+        Rectangle r = (Rectangle) shape;
+        x1[count] = r.x1;
+        y1[count] = r.y1;
+        x2[count] = r.x2;
+        y2[count] = r.y2;
+        if (copy != null && copy.getClass() == Rectangle.class)
+          ((Rectangle) copy).set(r.x1, r.y1, r.x2, r.y2);
+        else
+          copy = r.clone();
+      } else {
+        Rectangle mbr = shape.getMBR();
+        if (mbr == null)
+          return;
+        // Write the shape in a batch of its own to avoid copying it
+        if (count > 0)
+          flush();
+        x1[0] = mbr.x1;
+        y1[0] = mbr.y1;
+        x2[0] = mbr.x2;
+        y2[0] = mbr.y2;
+        shapes[0] = shape;
+        count = 1;
+        flush();
+        shapes[0] = null;
+        return;
+      }
+      shapes[count++] = copy;
+      if (count == BatchSize)
+        flush();
+    }
+    
+    /**
+     * Assigns all shapes in the current batch to partitions and writes them
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void flush() throws IOException, InterruptedException {
+      if (replicate) {
+        partitioner.overlapPartitions(x1, y1, x2, y2, count, offsets, replicatedIDs);
+        for (int i = 0; i < count; i++) {
+          for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+            partitionID.set(replicatedIDs.get(j));
+            write(partitionID, shapes[i]);
+          }
+        }
+      } else {
+        for (int i = 0; i < count; i++) {
+          centerX[i] = (x1[i] + x2[i]) / 2;
+          centerY[i] = (y1[i] + y2[i]) / 2;
+        }
+        partitioner.overlapPartition(centerX, centerY, count, partitionIDs);
+        for (int i = 0; i < count; i++) {
+          if (partitionIDs[i] >= 0) {
+            partitionID.set(partitionIDs[i]);
+            write(partitionID, shapes[i]);
+          }
+        }
+      }
+      count = 0;
+    }
+    
+    /**
+     * Writes a shape that is assigned to a partition
+     * @param partitionID
+     * @param shape
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected abstract void write(IntWritable partitionID, Shape shape)
+        throws IOException, InterruptedException;
+  }
+
   /**
    * The map function that partitions the data using the configured partitioner
    * @author Eldawy
@@ -123,32 +287,167 @@ public class Indexer {
     protected void map(Rectangle key, Iterable<? extends Shape> shapes,
         final Context context) throws IOException,
         InterruptedException {
-      final IntWritable partitionID = new IntWritable();
+      PartitionBatch batch = new PartitionBatch(partitioner, replicate) {
+        @Override
+        protected void write(IntWritable partitionID, Shape shape)
+            throws IOException, InterruptedException {
+          context.write(partitionID, shape);
+        }
+      };
       for (final Shape shape : shapes) {
-        if (replicate) {
-          partitioner.overlapPartitions(shape, new ResultCollector<Integer>() {
-            @Override
-            public void collect(Integer r) {
-              partitionID.set(r);
-              try {
-                context.write(partitionID, shape);
-              } catch (IOException e) {
-                LOG.warn("Error checking overlapping partitions", e);
-              } catch (InterruptedException e) {
-                LOG.warn("Error checking overlapping partitions", e);
-              }
-            }
-          });
-        } else {
-          partitionID.set(partitioner.overlapPartition(shape));
-          if (partitionID.get() >= 0)
-            context.write(partitionID, shape);
+        batch.add(shape);
+        context.progress();
+      }
+      batch.flush();
+    }
+  }
+
+  /**
+   * A map function that partitions the data using the configured partitioner
+   * and combines the records of each partition into a {@link RecordBlock}.
+   * A block is written when it reaches {@link #ShuffleBlockSize} or when the
+   * total memory of all buffered blocks reaches {@link #ShuffleBufferSize}.
+   * This reduces the number of records sorted and shuffled to one per block.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class BlockPartitionerMap extends
+    Mapper<Rectangle, Iterable<? extends Shape>, IntWritable, RecordBlock> {
+
+    /**Assigns records to partitions and adds them to their blocks*/
+    private PartitionBatch batch;
+    /**
+     * Records buffered for each partition. Blocks are removed once written
+     * so that only partitions with buffered records retain memory.
+     */
+    private final Map<Integer, RecordBlock> blocks = new HashMap<Integer, RecordBlock>();
+    /**Maximum size of one block*/
+    private int blockSize;
+    /**Maximum total size of all blocks*/
+    private long bufferSize;
+    /**Total memory allocated by all blocks currently buffered*/
+    private long bufferedSize;
+    /**Whether records are written with an MBR prefix*/
+    private boolean mbrPrefix;
+    
+    @Override
+    protected void setup(final Context context)
+        throws IOException, InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      Partitioner partitioner = Partitioner.getPartitioner(conf);
+      boolean replicate = conf.getBoolean("replicate", false);
+      this.blockSize = conf.getInt(ShuffleBlockSize, 1024 * 1024);
+      this.bufferSize = conf.getLong(ShuffleBufferSize, 64 * 1024 * 1024);
+      this.mbrPrefix = IndexOutputFormat.isMBRPrefixEnabled(conf);
+      this.batch = new PartitionBatch(partitioner, replicate) {
+        @Override
+        protected void write(IntWritable partitionID, Shape shape)
+            throws IOException, InterruptedException {
+          RecordBlock block = blocks.get(partitionID.get());
+          if (block == null) {
+            block = new RecordBlock();
+            block.setMBRPrefix(mbrPrefix);
+            blocks.put(partitionID.get(), block);
+            bufferedSize += block.getCapacity();
+          }
+          // Count the allocated memory rather than the used bytes because a
+          // block keeps its grown array until it is dropped
+          int capacityBefore = block.getCapacity();
+          block.add(shape);
+          bufferedSize += block.getCapacity() - capacityBefore;
+          if (block.getLength() >= blockSize) {
+            context.write(partitionID, block);
+            blocks.remove(partitionID.get());
+            bufferedSize -= block.getCapacity();
+          }
         }
+      };
+    }
+    
+    @Override
+    protected void map(Rectangle key, Iterable<? extends Shape> shapes,
+        final Context context) throws IOException,
+        InterruptedException {
+      for (final Shape shape : shapes) {
+        batch.add(shape);
+        if (bufferedSize >= bufferSize)
+          writeAllBlocks(context);
         context.progress();
       }
     }
+    
+    @Override
+    protected void cleanup(Context context) throws IOException,
+        InterruptedException {
+      batch.flush();
+      writeAllBlocks(context);
+      super.cleanup(context);
+    }
+    
+    /**
+     * Writes all non-empty blocks and drops them to release their memory
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void writeAllBlocks(Context context)
+        throws IOException, InterruptedException {
+      IntWritable partitionID = new IntWritable();
+      for (Map.Entry<Integer, RecordBlock> entry : blocks.entrySet()) {
+        RecordBlock block = entry.getValue();
+        if (block.getRecordCount() > 0) {
+          partitionID.set(entry.getKey());
+          context.write(partitionID, block);
+        }
+      }
+      blocks.clear();
+      bufferedSize = 0;
+    }
   }
+  
+  /**
+   * The reduce function that writes the blocks produced by
+   * {@link BlockPartitionerMap} to partition files without parsing their
+   * records.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class BlockPartitionerReduce
+    extends Reducer<IntWritable, RecordBlock, IntWritable, Shape> {
 
+    /**Writes the blocks directly to partition files*/
+    private IndexRecordWriter<Shape> writer;
+    
+    @Override
+    protected void setup(Context context) throws IOException,
+        InterruptedException {
+      super.setup(context);
+      Path outPath = new IndexOutputFormat<Shape>()
+          .getDefaultWorkFile(context, "").getParent();
+      writer = new IndexRecordWriter<Shape>(context, outPath);
+    }
+    
+    @Override
+    protected void reduce(IntWritable partitionID, Iterable<RecordBlock> blocks,
+        Context context) throws IOException, InterruptedException {
+      LOG.info("Working on partition #"+partitionID);
+      for (RecordBlock block : blocks) {
+        writer.writeBlock(partitionID.get(), block);
+        context.progress();
+      }
+      // Indicate end of partition to close the file
+      writer.write(new IntWritable(-partitionID.get()-1), null);
+      LOG.info("Done with partition #"+partitionID);
+    }
+    
+    @Override
+    protected void cleanup(Context context) throws IOException,
+        InterruptedException {
+      writer.close(context);
+      super.cleanup(context);
+    }
+  }
   
   public static class PartitionerReduce<S extends Shape>
     extends Reducer<IntWritable, Shape, IntWritable, Shape> {
@@ -174,13 +473,6 @@ public class Indexer {
     Configuration conf = job.getConfiguration();
     job.setJarByClass(Indexer.class);
     
-    // Set input file MBR if not already set
-    Rectangle inputMBR = (Rectangle) OperationsParams.getShape(conf, "mbr");
-    if (inputMBR == null) {
-      inputMBR = FileMBR.fileMBR(inPath, new OperationsParams(conf));
-      OperationsParams.setShape(conf, "mbr", inputMBR);
-    }
-    
     // Set the correct partitioner according to index type
     String index = conf.get("sindex");
     if (index == null)
@@ -195,14 +487,24 @@ public class Indexer {
     
     // Set mapper and reducer
     Shape shape = OperationsParams.getShape(conf, "shape");
-    job.setMapperClass(PartitionerMap.class);
     job.setMapOutputKeyClass(IntWritable.class);
-    job.setMapOutputValueClass(shape.getClass());
-    job.setReducerClass(PartitionerReduce.class);
     // Set input and output
     job.setInputFormatClass(SpatialInputFormat3.class);
     SpatialInputFormat3.setInputPaths(job, inPath);
-    job.setOutputFormatClass(IndexOutputFormat.class);
+    if (conf.getBoolean(BlockShuffle, false)) {
+      job.setMapperClass(BlockPartitionerMap.class);
+      job.setMapOutputValueClass(RecordBlock.class);
+      job.setReducerClass(BlockPartitionerReduce.class);
+      // The reducer creates its own record writer. The lazy output format
+      // keeps the output committer of IndexOutputFormat without creating
+      // another record writer that would write an empty master file
+      LazyOutputFormat.setOutputFormatClass(job, IndexOutputFormat.class);
+    } else {
+      job.setMapperClass(PartitionerMap.class);
+      job.setMapOutputValueClass(shape.getClass());
+      job.setReducerClass(PartitionerReduce.class);
+      job.setOutputFormatClass(IndexOutputFormat.class);
+    }
     IndexOutputFormat.setOutputPath(job, outPath);
     // Set number of reduce tasks according to cluster status
     ClusterStatus clusterStatus = new JobClient(new JobConf()).getClusterStatus();
@@ -218,6 +520,9 @@ public class Indexer {
       job.submit();
     } else {
       job.waitForCompletion(conf.getBoolean("verbose", false));
+      // Store the partitioner with the index to append records to it later
+      if (job.isSuccessful())
+        Partitioner.writeToIndex(outPath.getFileSystem(conf), outPath, partitioner);
     }
     return job;
   }
@@ -227,12 +532,25 @@ public class Indexer {
    * @param job
    * @param sindex
    */
-  private static void setLocalIndexer(Configuration conf, String sindex) {
+  static void setLocalIndexer(Configuration conf, String sindex) {
     Class<? extends LocalIndexer> localIndexerClass = LocalIndexes.get(sindex);
+    if (localIndexerClass == null &&
+        conf.get(SpatialSite.PARTITION_FORMAT, "text").equals("columnar"))
+      localIndexerClass = ColumnarLocalIndexer.class;
     if (localIndexerClass != null)
       conf.setClass(LocalIndexer.LocalIndexerClass, localIndexerClass, LocalIndexer.class);
   }
 
+  /**
+   * Returns the partitioner class used for the given index type or
+   * <code>null</code> if the index type is unknown.
+   * @param sindex
+   * @return
+   */
+  public static Class<? extends Partitioner> getPartitionerClass(String sindex) {
+    return PartitionerClasses.get(sindex.toLowerCase());
+  }
+
   public static Partitioner createPartitioner(Path in, Path out,
       Configuration job, String partitionerName) throws IOException {
     return createPartitioner(new Path[] {in}, out, job, partitionerName);
@@ -269,46 +587,33 @@ public class Indexer {
       partitioner = partitionerClass.newInstance();
       
       long t1 = System.currentTimeMillis();
-      final Rectangle inMBR = (Rectangle) OperationsParams.getShape(job, "mbr");
-      // Determine number of partitions
-      long inSize = 0;
-      for (Path in : ins) {
-        inSize += FileUtil.getPathSize(in.getFileSystem(job), in);
+      float sample_ratio = job.getFloat(SpatialSite.SAMPLE_RATIO, 0.01f);
+      LOG.info("Reading a sample of "+(int)Math.round(sample_ratio*100) + "%");
+      // Compute the MBR, size and a sample of the input in one scan
+      Summary summary = FileSummary.summarize(ins, new OperationsParams(job));
+      if (summary == null)
+        throw new RuntimeException("Cannot compute the summary of the input");
+      Rectangle inMBR = (Rectangle) OperationsParams.getShape(job, "mbr");
+      if (inMBR == null) {
+        inMBR = summary.mbr;
+        OperationsParams.setShape(job, "mbr", inMBR);
       }
+      
+      // Determine number of partitions
+      long inSize = summary.size;
       long estimatedOutSize = (long) (inSize * (1.0 + job.getFloat(SpatialSite.INDEXING_OVERHEAD, 0.1f)));
       FileSystem outFS = out.getFileSystem(job);
       long outBlockSize = outFS.getDefaultBlockSize(out);
-
-      final List<Point> sample = new ArrayList<Point>();
-      float sample_ratio = job.getFloat(SpatialSite.SAMPLE_RATIO, 0.01f);
-      long sample_size = job.getLong(SpatialSite.SAMPLE_SIZE, 100 * 1024 * 1024);
-
-      LOG.info("Reading a sample of "+(int)Math.round(sample_ratio*100) + "%");
-      ResultCollector<Point> resultCollector = new ResultCollector<Point>(){
-        @Override
-        public void collect(Point p) {
-          sample.add(p.clone());
-        }
-      };
-
-      OperationsParams params2 = new OperationsParams(job);
-      params2.setFloat("ratio", sample_ratio);
-      params2.setLong("size", sample_size);
-      if (job.get("shape") != null)
-      params2.set("shape", job.get("shape"));
-      if (job.get("local") != null)
-      params2.set("local", job.get("local"));
-      params2.setClass("outshape", Point.class, Shape.class);
-      Sampler.sample(ins, resultCollector, params2);
+      int numPartitions = Math.max(1, (int) Math.ceil((float)estimatedOutSize / outBlockSize));
+      double[][] sample = summary.getSample(numPartitions);
+      int sampleSize = sample[0].length;
       long t2 = System.currentTimeMillis();
       System.out.println("Total time for sampling in millis: "+(t2-t1));
-      LOG.info("Finished reading a sample of "+sample.size()+" records");
-      
-      int partitionCapacity = (int) Math.max(1, Math.floor((double)sample.size() * outBlockSize / estimatedOutSize));
-      int numPartitions = Math.max(1, (int) Math.ceil((float)estimatedOutSize / outBlockSize));
+      LOG.info("Finished reading a sample of "+sampleSize+" records");
+      int partitionCapacity = (int) Math.max(1, Math.floor((double)sampleSize * outBlockSize / estimatedOutSize));
       LOG.info("Partitioning the space into "+numPartitions+" partitions with capacity of "+partitionCapacity);
 
-      partitioner.createFromPoints(inMBR, sample.toArray(new Point[sample.size()]), partitionCapacity);
+      partitioner.createFromPoints(inMBR, sample[0], sample[1], partitionCapacity);
       
       return partitioner;
     } catch (InstantiationException e) {
@@ -317,6 +622,8 @@ public class Indexer {
     } catch (IllegalAccessException e) {
       e.printStackTrace();
       return null;
+    } catch (InterruptedException e) {
+      throw new IOException(e);
     }
   }
 
@@ -348,13 +655,6 @@ public class Indexer {
     final FileSplit[] fsplits = splits.toArray(new FileSplit[splits.size()]);
     boolean replicate = PartitionerReplicate.get(sindex);
     
-    // Set input file MBR if not already set
-    Rectangle inputMBR = (Rectangle) OperationsParams.getShape(conf, "mbr");
-    if (inputMBR == null) {
-      inputMBR = FileMBR.fileMBR(inPath, new OperationsParams(conf));
-      OperationsParams.setShape(conf, "mbr", inputMBR);
-    }
-    
     setLocalIndexer(conf, sindex);
     final Partitioner partitioner = createPartitioner(inPath, outPath, conf, sindex);
 
@@ -372,34 +672,20 @@ public class Indexer {
         throw new RuntimeException("Unknown record reader");
       }
 
-      final IntWritable partitionID = new IntWritable();
+      PartitionBatch batch = new PartitionBatch(partitioner, replicate) {
+        @Override
+        protected void write(IntWritable partitionID, Shape shape)
+            throws IOException {
+          recordWriter.write(partitionID, shape);
+        }
+      };
 
       while (reader.nextKeyValue()) {
         Iterable<Shape> shapes = reader.getCurrentValue();
-        if (replicate) {
-          for (final Shape s : shapes) {
-            partitioner.overlapPartitions(s, new ResultCollector<Integer>() {
-              @Override
-              public void collect(Integer id) {
-                partitionID.set(id);
-                try {
-                  recordWriter.write(partitionID, s);
-                } catch (IOException e) {
-                  throw new RuntimeException(e);
-                }
-              }
-            });
-          }
-        } else {
-          for (final Shape s : shapes) {
-            int pid = partitioner.overlapPartition(s);
-            if (pid != -1) {
-              partitionID.set(pid);
-              recordWriter.write(partitionID, s);
-            }
-          }
-        }
+        for (Shape s : shapes)
+          batch.add(s);
       }
+      batch.flush();
       reader.close();
     }
     recordWriter.close(null);
@@ -419,16 +705,23 @@ public class Indexer {
     }
     in.close();
     wktOut.close();
+    SpatialSite.writeGlobalIndexBinary(outFs, outPath);
+    Partitioner.writeToIndex(outFs, outPath, partitioner);
   }
   
   public static Job index(Path inPath, Path outPath, OperationsParams params)
       throws IOException, InterruptedException, ClassNotFoundException {
+    Job job;
     if (OperationsParams.isLocal(new JobConf(params), inPath)) {
       indexLocal(inPath, outPath, params);
-      return null;
+      job = null;
     } else {
-      return indexMapReduce(inPath, outPath, params);
+      job = indexMapReduce(inPath, outPath, params);
     }
+    if (params.getBoolean(Rebalance, false) &&
+        (job == null || (job.isComplete() && job.isSuccessful())))
+      IndexRebalancer.rebalance(outPath, params);
+    return job;
   }
 
   protected static void printUsage() {
@@ -437,8 +730,12 @@ public class Indexer {
     System.out.println("<input file> - (*) Path to input file");
     System.out.println("<output file> - (*) Path to output file");
     System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes stored in input file");
-    System.out.println("sindex:<index> - (*) Type of spatial index (grid|str|str+|quadtree|zcurve|kdtree)");
+    System.out.println("sindex:<index> - (*) Type of spatial index (grid|str|str+|quadtree|zcurve|zcurve+|hilbert|hilbert+|kdtree)");
+    System.out.println(SpatialSite.PARTITION_FORMAT+":<text|columnar> - Format of partitions that are not locally indexed");
     System.out.println("-overwrite - Overwrite output file without noitce");
+    System.out.println("-sketch - Create the partitioner from a histogram of all records instead of a sample");
+    System.out.println("-rebalance - Split large partitions and merge small partitions after building the index");
+    System.out.println("-blockshuffle - Combine records of each partition into blocks before the shuffle");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
 
@@ -30,6 +30,7 @@ import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * A partitioner that partitioner data using a K-d tree-based partitioner.
@@ -55,29 +56,27 @@ public class KdTreePartitioner extends Partitioner {
   
   @Override
   public void createFromPoints(Rectangle mbr, Point[] points, int capacity) {
-
-    // Enumerate all partition IDs to be able to count leaf nodes in any split
-    // TODO do the same functionality without enumerating all IDs
-    int numSplits = (int) Math.ceil((double)points.length / capacity);
-    String[] ids = new String[numSplits];
-    for (int id = numSplits; id < 2 * numSplits; id++)
-      ids[id - numSplits] = Integer.toBinaryString(id);
-    
-    // Keep splitting the space into halves until we reach the desired number of
-    // partitions
-    @SuppressWarnings("unchecked")
-    Comparator<Point>[] comparators = new Comparator[] {
-      new Comparator<Point>() {
-        @Override
-        public int compare(Point a, Point b) {
-          return a.x < b.x? -1 : (a.x > b.x? 1 : 0);
-        }},
-      new Comparator<Point>() {
-        @Override
-        public int compare(Point a, Point b) {
-          return a.y < b.y? -1 : (a.y > b.y? 1 : 0);
-        }}
-    };
+    double[] xs = new double[points.length];
+    double[] ys = new double[points.length];
+    for (int i = 0; i < points.length; i++) {
+      xs[i] = points[i].x;
+      ys[i] = points[i].y;
+    }
+    createFromPoints(mbr, xs, ys, capacity);
+  }
+  
+  /**
+   * Populates this partitioner from the coordinates of a set of points. The
+   * two arrays are reordered in place.
+   * @param mbr - the minimal bounding rectangle of the input space
+   * @param xs - the x coordinates of the points
+   * @param ys - the y coordinates of the points
+   * @param capacity - maximum number of points per partition
+   */
+  @Override
+  public void createFromPoints(Rectangle mbr, double[] xs, double[] ys,
+      int capacity) {
+    int numSplits = (int) Math.ceil((double)xs.length / capacity);
     
     class SplitTask {
       int fromIndex;
@@ -95,8 +94,10 @@ public class KdTreePartitioner extends Partitioner {
       }
       
     }
+    // Keep splitting the space into halves until we reach the desired number of
+    // partitions
     Queue<SplitTask> splitTasks = new ArrayDeque<SplitTask>();
-    splitTasks.add(new SplitTask(0, points.length, 0, 1));
+    splitTasks.add(new SplitTask(0, xs.length, 0, 1));
     
     this.mbr.set(mbr);
     this.splits = new double[numSplits];
@@ -104,25 +105,20 @@ public class KdTreePartitioner extends Partitioner {
     while (!splitTasks.isEmpty()) {
       SplitTask splitTask = splitTasks.remove();
       if (splitTask.partitionID < numSplits) {
-        String child1 = Integer.toBinaryString(splitTask.partitionID * 2);
-        String child2 = Integer.toBinaryString(splitTask.partitionID * 2 + 1);
-        int size_child1 = 0, size_child2 = 0;
-        for (int i = 0; i < ids.length; i++) {
-          if (ids[i].startsWith(child1))
-            size_child1++;
-          else if (ids[i].startsWith(child2))
-            size_child2++;
-        }
+        long size_child1 = countLeaves(splitTask.partitionID * 2, numSplits);
+        long size_child2 = countLeaves(splitTask.partitionID * 2 + 1, numSplits);
         
         // Calculate the index which partitions the subrange into sizes
         // proportional to size_child1 and size_child2
-        int splitIndex = (int) (((long)size_child1 * splitTask.toIndex + (long)size_child2 * splitTask.fromIndex)
+        int splitIndex = (int) ((size_child1 * splitTask.toIndex + size_child2 * splitTask.fromIndex)
             / (size_child1 + size_child2));
-        partialQuickSort(points, splitTask.fromIndex, splitTask.toIndex,
-            splitIndex, comparators[splitTask.direction]);
-        Point splitValue = points[splitIndex];
-        this.splits[splitTask.partitionID] = splitTask.direction == 0 ?
-            splitValue.x : splitValue.y;
+        double[] keys = splitTask.direction == 0 ? xs : ys;
+        double[] values = splitTask.direction == 0 ? ys : xs;
+        if (splitIndex < splitTask.toIndex)
+          quickSelect(keys, values, splitTask.fromIndex, splitTask.toIndex, splitIndex);
+        // An empty range happens only if there are too few points. Use the
+        // closest point to keep the tree valid.
+        this.splits[splitTask.partitionID] = keys[Math.min(splitIndex, keys.length - 1)];
         splitTasks.add(new SplitTask(splitTask.fromIndex, splitIndex,
             1 - splitTask.direction, splitTask.partitionID * 2));
         splitTasks.add(new SplitTask(splitIndex, splitTask.toIndex,
@@ -130,6 +126,75 @@ public class KdTreePartitioner extends Partitioner {
       }
     }
   }
+  
+  /**
+   * Counts the leaf nodes under the given node in a tree with the given
+   * number of splits. Leaf nodes have the IDs [numSplits, 2 * numSplits).
+   * The descendants of a node at each level have contiguous IDs which makes
+   * it possible to count them without enumerating them.
+   * @param nodeID
+   * @param numSplits
+   * @return
+   */
+  static long countLeaves(int nodeID, int numSplits) {
+    long count = 0;
+    long firstLeaf = numSplits, lastLeaf = 2L * numSplits;
+    long first = nodeID, last = nodeID + 1L;
+    while (first < lastLeaf) {
+      count += Math.max(0, Math.min(last, lastLeaf) - Math.max(first, firstLeaf));
+      first <<= 1;
+      last <<= 1;
+    }
+    return count;
+  }
+  
+  /**
+   * Reorders the given subrange so that the key at the desired index is at
+   * its sorted position, all keys before it are less than or equal to it,
+   * and all keys after it are greater than or equal to it. The values array
+   * is reordered along with the keys.
+   * @param keys - the array to partition
+   * @param values - another array that is reordered in the same way
+   * @param fromIndex - the index of the first element in the subrange
+   * @param toIndex - the index after the last element in the subrange
+   * @param desiredIndex - the index which needs to be adjusted
+   */
+  static void quickSelect(double[] keys, double[] values, int fromIndex,
+      int toIndex, int desiredIndex) {
+    int left = fromIndex, right = toIndex - 1;
+    while (left < right) {
+      // Median of three to avoid the worst case on sorted input
+      int mid = (left + right) >>> 1;
+      if (keys[mid] < keys[left])
+        swap(keys, values, mid, left);
+      if (keys[right] < keys[left])
+        swap(keys, values, right, left);
+      if (keys[right] < keys[mid])
+        swap(keys, values, right, mid);
+      double pivot = keys[mid];
+      int i = left, j = right;
+      while (i <= j) {
+        while (keys[i] < pivot)
+          i++;
+        while (keys[j] > pivot)
+          j--;
+        if (i <= j)
+          swap(keys, values, i++, j--);
+      }
+      // Now [left, j] <= pivot and [i, right] >= pivot
+      if (desiredIndex <= j)
+        right = j;
+      else if (desiredIndex >= i)
+        left = i;
+      else
+        return;
+    }
+  }
+  
+  private static void swap(double[] keys, double[] values, int i, int j) {
+    double t = keys[i]; keys[i] = keys[j]; keys[j] = t;
+    t = values[i]; values[i] = values[j]; values[j] = t;
+  }
 
   /**
    * Reorders the given subrange of the array so that the element at the
@@ -235,18 +300,28 @@ public class KdTreePartitioner extends Partitioner {
     if (shape == null || shape.getMBR() == null)
       return -1;
     Point pt = shape.getMBR().getCenterPoint();
+    return overlapPartition(pt.x, pt.y);
+  }
+  
+  /**
+   * Returns the partition that contains the given point
+   * @param x
+   * @param y
+   * @return
+   */
+  private int overlapPartition(double x, double y) {
     int splitID = 1; // Start from the root
     int direction = 0;
     while (splitID < splits.length) {
       if (direction == 0) {
         // The corresponding split is vertical (along the x-axis). Like |
-        if (pt.x < splits[splitID])
+        if (x < splits[splitID])
           splitID = splitID * 2; // Go left
         else
           splitID = splitID * 2 + 1; // Go right
       } else {
         // The corresponding split is horizontal (along the y-axis). Like -
-        if (pt.y < splits[splitID])
+        if (y < splits[splitID])
           splitID = splitID * 2;
         else
           splitID = splitID * 2 + 1;
@@ -256,6 +331,45 @@ public class KdTreePartitioner extends Partitioner {
     return splitID;
   }
   
+  @Override
+  public void overlapPartition(double[] x, double[] y, int count,
+      int[] partitionIDs) {
+    for (int i = 0; i < count; i++)
+      partitionIDs[i] = overlapPartition(x[i], y[i]);
+  }
+  
+  @Override
+  public void overlapPartitions(double[] x1, double[] y1, double[] x2,
+      double[] y2, int count, int[] offsets, IntArray partitionIDs) {
+    partitionIDs.clear();
+    // A stack of splits to test. The direction of each split is determined
+    // by its depth in the tree which is the number of bits in its ID
+    IntArray splitsToTest = new IntArray();
+    for (int i = 0; i < count; i++) {
+      offsets[i] = partitionIDs.size();
+      splitsToTest.add(1);
+      while (!splitsToTest.isEmpty()) {
+        int splitID = splitsToTest.pop();
+        if (splitID >= splits.length) {
+          partitionIDs.add(splitID);
+        } else if ((getNumberOfSignificantBits(splitID) & 1) == 1) {
+          // A vertical split (along the x-axis). Like |
+          if (x2[i] > splits[splitID])
+            splitsToTest.add(splitID * 2 + 1);
+          if (x1[i] < splits[splitID])
+            splitsToTest.add(splitID * 2);
+        } else {
+          // A horizontal split (along the y-axis). Like -
+          if (y2[i] > splits[splitID])
+            splitsToTest.add(splitID * 2 + 1);
+          if (y1[i] < splits[splitID])
+            splitsToTest.add(splitID * 2);
+        }
+      }
+    }
+    offsets[count] = partitionIDs.size();
+  }
+  
   @Override
   public CellInfo getPartitionAt(int index) {
     return getPartition(index + splits.length);
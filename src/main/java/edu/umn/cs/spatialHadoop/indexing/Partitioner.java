@@ -25,6 +25,7 @@ import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * An interface for spatially partitioning data into partitions.
@@ -35,6 +36,12 @@ public abstract class Partitioner implements Writable {
   /**Configuration line for partitioner class*/
   private static final String PartitionerClass = "Partitioner.Class";
   private static final String PartitionerValue = "Partitioner.Value";
+  
+  /**
+   * Name of the file that stores the partitioner of an index in the index
+   * directory. It is used to add new records to the same partitions.
+   */
+  public static final String PartitionerFile = "_partitioner.bin";
 
   /**
    * Populate this partitioner for a set of points and number of partitions
@@ -45,6 +52,24 @@ public abstract class Partitioner implements Writable {
    */
   public abstract void createFromPoints(Rectangle mbr, Point[] points,
       int capacity) throws IllegalArgumentException;
+
+  /**
+   * Populates this partitioner from the coordinates of a set of points. The
+   * arrays might be reordered in place. Partitioners should override this
+   * method to avoid creating an object for each point.
+   * @param mbr - the minimal bounding rectangle of the input space
+   * @param xs - the x coordinates of the points
+   * @param ys - the y coordinates of the points
+   * @param capacity - maximum number of points per partition
+   * @throws IllegalArgumentException if points are empty
+   */
+  public void createFromPoints(Rectangle mbr, double[] xs, double[] ys,
+      int capacity) throws IllegalArgumentException {
+    Point[] points = new Point[xs.length];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(xs[i], ys[i]);
+    createFromPoints(mbr, points, capacity);
+  }
   
   /**
    * Overlap a shape with partitions and calls a matcher for each overlapping
@@ -65,6 +90,78 @@ public abstract class Partitioner implements Writable {
    */
   public abstract int overlapPartition(Shape shape);
   
+  /**
+   * Assigns each point in a batch to exactly one partition. This is the batch
+   * version of {@link #overlapPartition(Shape)} where each record is
+   * represented by the center of its MBR. Partitioners should override this
+   * method to avoid creating an object for each point.
+   * 
+   * @param x - the x coordinates of the points
+   * @param y - the y coordinates of the points
+   * @param count - the number of points in the batch
+   * @param partitionIDs - (output) the ID of the partition of each point or
+   *   -1 if it does not overlap any partition
+   */
+  public void overlapPartition(double[] x, double[] y, int count,
+      int[] partitionIDs) {
+    Rectangle point = new Rectangle();
+    for (int i = 0; i < count; i++) {
+      point.set(x[i], y[i], x[i], y[i]);
+      partitionIDs[i] = overlapPartition(point);
+    }
+  }
+  
+  /**
+   * Finds all partitions that overlap each rectangle in a batch. This is the
+   * batch version of {@link #overlapPartitions(Shape, ResultCollector)}. The
+   * result is stored in a compressed sparse row (CSR) format where the IDs of
+   * the partitions that overlap rectangle #i are stored in partitionIDs at
+   * the positions [offsets[i], offsets[i+1]).
+   * Partitioners should override this method to avoid creating objects for
+   * each rectangle.
+   * 
+   * @param x1 - the lower x coordinates of the rectangles
+   * @param y1 - the lower y coordinates of the rectangles
+   * @param x2 - the upper x coordinates of the rectangles
+   * @param y2 - the upper y coordinates of the rectangles
+   * @param count - the number of rectangles in the batch
+   * @param offsets - (output) an array of at least count + 1 entries
+   * @param partitionIDs - (output) the IDs of all overlapping partitions.
+   *   Its existing contents are cleared.
+   */
+  public void overlapPartitions(double[] x1, double[] y1, double[] x2,
+      double[] y2, int count, int[] offsets, final IntArray partitionIDs) {
+    partitionIDs.clear();
+    Rectangle rect = new Rectangle();
+    ResultCollector<Integer> collector = new ResultCollector<Integer>() {
+      @Override
+      public void collect(Integer id) {
+        partitionIDs.add(id);
+      }
+    };
+    for (int i = 0; i < count; i++) {
+      offsets[i] = partitionIDs.size();
+      rect.set(x1[i], y1[i], x2[i], y2[i]);
+      overlapPartitions(rect, collector);
+    }
+    offsets[count] = partitionIDs.size();
+  }
+
+  /**
+   * Tests whether the reference point of a record, or of a pair of records,
+   * is assigned to the given partition of a replicated index. Each result is
+   * reported only by the partition of its reference point to avoid
+   * duplicates. By default, a point is assigned to the partition that
+   * contains it which assumes that partitions have disjoint MBRs.
+   * @param partition
+   * @param x
+   * @param y
+   * @return
+   */
+  public boolean isReferencePointIn(CellInfo partition, double x, double y) {
+    return partition.contains(x, y);
+  }
+
   /**
    * Returns the details of a specific partition given its ID.
    * @param partitionID
@@ -109,6 +206,54 @@ public abstract class Partitioner implements Writable {
     conf.set(PartitionerValue, tempFile.getName());
   }
   
+  /**
+   * Stores a partitioner in the directory of the index that it created.
+   * @param fs
+   * @param indexPath
+   * @param partitioner
+   * @throws IOException
+   */
+  public static void writeToIndex(FileSystem fs, Path indexPath,
+      Partitioner partitioner) throws IOException {
+    FSDataOutputStream out = fs.create(new Path(indexPath, PartitionerFile), true);
+    try {
+      out.writeUTF(partitioner.getClass().getName());
+      partitioner.write(out);
+    } finally {
+      out.close();
+    }
+  }
+  
+  /**
+   * Reads the partitioner stored in the directory of an index.
+   * @param fs
+   * @param indexPath
+   * @return the stored partitioner or <code>null</code> if the index does not
+   *   store its partitioner
+   * @throws IOException
+   */
+  public static Partitioner readFromIndex(FileSystem fs, Path indexPath)
+      throws IOException {
+    Path partitionerPath = new Path(indexPath, PartitionerFile);
+    if (!fs.exists(partitionerPath))
+      return null;
+    FSDataInputStream in = fs.open(partitionerPath);
+    try {
+      Partitioner partitioner = Class.forName(in.readUTF())
+          .asSubclass(Partitioner.class).newInstance();
+      partitioner.readFields(in);
+      return partitioner;
+    } catch (ClassNotFoundException e) {
+      throw new IOException("Unknown partitioner in '"+partitionerPath+"'", e);
+    } catch (InstantiationException e) {
+      throw new IOException("Cannot create the partitioner in '"+partitionerPath+"'", e);
+    } catch (IllegalAccessException e) {
+      throw new IOException("Cannot create the partitioner in '"+partitionerPath+"'", e);
+    } finally {
+      in.close();
+    }
+  }
+  
   /**
    * Retrieves the value of a partitioner for a given job.
    * @param conf
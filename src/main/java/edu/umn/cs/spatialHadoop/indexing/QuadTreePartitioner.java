@@ -163,27 +163,38 @@ public class QuadTreePartitioner extends Partitioner {
       return -1;
 
     Point queryPoint = shape.getMBR().getCenterPoint();
+    return overlapPartition(queryPoint.x, queryPoint.y);
+  }
+  
+  /**
+   * Returns the partition that contains the given point
+   * @param x
+   * @param y
+   * @return
+   */
+  private int overlapPartition(double x, double y) {
     int nodeToSearch = 1; // Start from the root
-    Rectangle nodeMBR = mbr.clone();
+    double nodeX1 = mbr.x1, nodeY1 = mbr.y1, nodeX2 = mbr.x2, nodeY2 = mbr.y2;
     // Keep going deeper in the Quad tree until reaching a leaf node
     while (nodeToSearch < leafNodes.size() && !leafNodes.get(nodeToSearch)) {
-      Point nodeCenter = nodeMBR.getCenterPoint();
-      if (queryPoint.x < nodeCenter.x && queryPoint.y < nodeCenter.y) {
+      double centerX = (nodeX1 + nodeX2) / 2;
+      double centerY = (nodeY1 + nodeY2) / 2;
+      if (x < centerX && y < centerY) {
         nodeToSearch = nodeToSearch * 4;
-        nodeMBR.x2 = nodeCenter.x;
-        nodeMBR.y2 = nodeCenter.y;
-      } else if (queryPoint.x < nodeCenter.x && queryPoint.y >= nodeCenter.y) {
+        nodeX2 = centerX;
+        nodeY2 = centerY;
+      } else if (x < centerX && y >= centerY) {
         nodeToSearch = nodeToSearch * 4 + 1;
-        nodeMBR.x2 = nodeCenter.x;
-        nodeMBR.y1 = nodeCenter.y;
-      } else if (queryPoint.x >= nodeCenter.x && queryPoint.y < nodeCenter.y) {
+        nodeX2 = centerX;
+        nodeY1 = centerY;
+      } else if (x >= centerX && y < centerY) {
         nodeToSearch = nodeToSearch * 4 + 2;
-        nodeMBR.x1 = nodeCenter.x;
-        nodeMBR.y2 = nodeCenter.y;
+        nodeX1 = centerX;
+        nodeY2 = centerY;
       } else {
         nodeToSearch = nodeToSearch * 4 + 3;
-        nodeMBR.x1 = nodeCenter.x;
-        nodeMBR.y1 = nodeCenter.y;
+        nodeX1 = centerX;
+        nodeY1 = centerY;
       }
     }
     // Reached a node deeper than the deepest leaf node in the Quad tree
@@ -192,6 +203,59 @@ public class QuadTreePartitioner extends Partitioner {
     return nodeToSearch;
   }
   
+  @Override
+  public void overlapPartition(double[] x, double[] y, int count,
+      int[] partitionIDs) {
+    for (int i = 0; i < count; i++)
+      partitionIDs[i] = overlapPartition(x[i], y[i]);
+  }
+  
+  @Override
+  public void overlapPartitions(double[] x1, double[] y1, double[] x2,
+      double[] y2, int count, int[] offsets, IntArray partitionIDs) {
+    partitionIDs.clear();
+    for (int i = 0; i < count; i++) {
+      offsets[i] = partitionIDs.size();
+      overlapPartitions(1, mbr.x1, mbr.y1, mbr.x2, mbr.y2,
+          x1[i], y1[i], x2[i], y2[i], partitionIDs);
+    }
+    offsets[count] = partitionIDs.size();
+  }
+  
+  /**
+   * Adds all leaf nodes under the given node that overlap a rectangle
+   * @param nodeID - the ID of the node to search
+   * @param nodeX1 - the boundaries of the node
+   * @param nodeY1
+   * @param nodeX2
+   * @param nodeY2
+   * @param x1 - the boundaries of the rectangle
+   * @param y1
+   * @param x2
+   * @param y2
+   * @param partitionIDs - (output) the IDs of overlapping leaf nodes
+   */
+  private void overlapPartitions(int nodeID, double nodeX1, double nodeY1,
+      double nodeX2, double nodeY2, double x1, double y1, double x2, double y2,
+      IntArray partitionIDs) {
+    if (!(x2 > nodeX1 && nodeX2 > x1 && y2 > nodeY1 && nodeY2 > y1))
+      return;
+    if (leafNodes.get(nodeID)) {
+      partitionIDs.add(nodeID);
+    } else {
+      double centerX = (nodeX1 + nodeX2) / 2;
+      double centerY = (nodeY1 + nodeY2) / 2;
+      overlapPartitions(nodeID * 4, nodeX1, nodeY1, centerX, centerY,
+          x1, y1, x2, y2, partitionIDs);
+      overlapPartitions(nodeID * 4 + 1, nodeX1, centerY, centerX, nodeY2,
+          x1, y1, x2, y2, partitionIDs);
+      overlapPartitions(nodeID * 4 + 2, centerX, nodeY1, nodeX2, centerY,
+          x1, y1, x2, y2, partitionIDs);
+      overlapPartitions(nodeID * 4 + 3, centerX, centerY, nodeX2, nodeY2,
+          x1, y1, x2, y2, partitionIDs);
+    }
+  }
+  
   @Override
   public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
     if (shape == null || shape.getMBR() == null)
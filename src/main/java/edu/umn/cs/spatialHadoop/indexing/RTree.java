@@ -17,12 +17,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
 import java.util.Map;
 import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Stack;
 import java.util.Vector;
 
@@ -38,7 +39,6 @@ import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.apache.hadoop.util.IndexedSortable;
-import org.apache.hadoop.util.IndexedSorter;
 import org.apache.hadoop.util.LineReader;
 import org.apache.hadoop.util.QuickSort;
 
@@ -56,6 +56,8 @@ import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.io.MemoryInputStream;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * A disk-based R-tree that can be loaded using a bulk loading method and
@@ -116,8 +118,41 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   /**A cached copy of data offset for each node.*/
   private int[] dataOffset;
 
+  /**Whether leaf records are stored in the binary layout or as text lines*/
+  private boolean binaryLeaves;
+
+  /**
+   * The serialized tree structure (nodes) kept as is for trees with binary
+   * leaves. Node MBRs are tested directly from this buffer.
+   */
+  private ByteBuffer structure;
+
+  /**
+   * The whole tree (header + structure + data) as one buffer for trees with
+   * binary leaves which are either memory-mapped or read fully in memory.
+   * Positions in this buffer are relative to the start of the tree.
+   */
+  private ByteBuffer mappedTree;
+
+  /**A reusable buffer to copy records out of a memory-mapped tree*/
+  private byte[] recordBytes;
+
+
   public RTree() {
   }
+
+  /**
+   * Sets whether the tree to be read stores its leaf records in the binary
+   * layout. Must be called before {@link #readFields(DataInput)}.
+   * @param binaryLeaves
+   */
+  public void setBinaryLeaves(boolean binaryLeaves) {
+    this.binaryLeaves = binaryLeaves;
+  }
+
+  public boolean isBinaryLeaves() {
+    return binaryLeaves;
+  }
   
   /**
    * Builds the RTree given a serialized list of elements. It uses the given
@@ -138,25 +173,75 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
    *          - output stream to write the result to.
    * @param fast_sort
    *          - setting this to <code>true</code> allows the method to run
-   *          faster by materializing the offset of each element in the list
-   *          which speeds up the comparison. However, this requires an
-   *          additional 16 bytes per element. So, for each 1M elements, the
-   *          method will require an additional 16 M bytes (approximately).
+   *          faster by materializing the center and MBR of each element in
+   *          primitive arrays which speeds up the comparison, avoids parsing
+   *          each element more than once, and allows sorting in parallel.
+   *          However, this requires an additional 52 bytes per element. So,
+   *          for each 1M elements, the method will require an additional
+   *          52 M bytes (approximately).
    */
   public static void bulkLoadWrite(final byte[] element_bytes,
       final int offset, final int len, final int degree, DataOutput dataOut,
       final Shape stockObject, final boolean fast_sort) {
-    try {
+    bulkLoadWrite(element_bytes, offset, len, degree, dataOut, stockObject,
+        fast_sort, false);
+  }
 
+  /**
+   * Builds the RTree given a serialized list of elements and writes it to
+   * the given output. If <code>binary</code> is set, leaf records are written
+   * in the binary layout where each record is prefixed by its MBR and the
+   * length of its text representation. This allows search to test records
+   * against the query directly from the raw bytes and parse only the records
+   * that match. A tree written in the binary layout must be read back after
+   * calling {@link #setBinaryLeaves(boolean)}.
+   * 
+   * @param element_bytes
+   * @param offset
+   * @param len
+   * @param degree
+   * @param dataOut
+   * @param stockObject
+   * @param fast_sort
+   * @param binary
+   *          - write leaf records in the binary layout
+   */
+  public static void bulkLoadWrite(final byte[] element_bytes,
+      final int offset, final int len, final int degree, DataOutput dataOut,
+      final Shape stockObject, final boolean fast_sort, final boolean binary) {
+    try {
+      final Text line = new Text();
+      // Parse all elements in one pass. In fast mode, the offset, MBR and
+      // center of each element are kept in primitive arrays so that elements
+      // are never parsed again while sorting or computing node MBRs.
       int elementCount = 0;
-      // Count number of elements in the given text
+      int[] offsetsBuffer = new int[1024];
+      double[] xsBuffer = fast_sort? new double[offsetsBuffer.length] : null;
+      double[] ysBuffer = fast_sort? new double[offsetsBuffer.length] : null;
+      double[] mbrsBuffer = fast_sort? new double[offsetsBuffer.length * 4] : null;
       int i_start = offset;
-      final Text line = new Text();
       while (i_start < offset + len) {
         int i_end = skipToEOL(element_bytes, i_start);
-        // Extract the line without end of line character
-        line.set(element_bytes, i_start, i_end - i_start - 1);
-        stockObject.fromText(line);
+        if (elementCount == offsetsBuffer.length) {
+          int newCapacity = offsetsBuffer.length * 2;
+          offsetsBuffer = Arrays.copyOf(offsetsBuffer, newCapacity);
+          if (fast_sort) {
+            xsBuffer = Arrays.copyOf(xsBuffer, newCapacity);
+            ysBuffer = Arrays.copyOf(ysBuffer, newCapacity);
+            mbrsBuffer = Arrays.copyOf(mbrsBuffer, newCapacity * 4);
+          }
+        }
+        offsetsBuffer[elementCount] = i_start;
+        if (fast_sort) {
+          // Extract the line without end of line character
+          line.set(element_bytes, i_start, i_end - i_start - 1);
+          stockObject.fromText(line);
+          Rectangle mbr = stockObject.getMBR();
+          // Sample center of the shape
+          xsBuffer[elementCount] = (mbr.x1 + mbr.x2) / 2;
+          ysBuffer[elementCount] = (mbr.y1 + mbr.y2) / 2;
+          setRecordMBR(mbrsBuffer, elementCount, mbr);
+        }
         elementCount++;
         i_start = i_end;
       }
@@ -179,24 +264,16 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       int nonLeafNodeCount = nodeCount - leafNodeCount;
 
       // Keep track of the offset of each element in the text
-      final int[] offsets = new int[elementCount];
-      final double[] xs = fast_sort? new double[elementCount] : null;
-      final double[] ys = fast_sort? new double[elementCount] : null;
-      
-      i_start = offset;
-      line.clear();
-      for (int i = 0; i < elementCount; i++) {
-        offsets[i] = i_start;
-        int i_end = skipToEOL(element_bytes, i_start);
-        if (xs != null) {
-          // Extract the line with end of line character
-          line.set(element_bytes, i_start, i_end - i_start - 1);
-          stockObject.fromText(line);
-          // Sample center of the shape
-          xs[i] = (stockObject.getMBR().x1 + stockObject.getMBR().x2) / 2;
-          ys[i] = (stockObject.getMBR().y1 + stockObject.getMBR().y2) / 2;
-        }
-        i_start = i_end;
+      final int[] offsets = offsetsBuffer;
+      final double[] xs = xsBuffer;
+      final double[] ys = ysBuffer;
+      // MBRs of elements indexed by their original position (fast mode only)
+      final double[] elementMBRs = mbrsBuffer;
+      // Original position of each element after sorting (fast mode only)
+      final int[] ids = fast_sort? new int[elementCount] : null;
+      if (ids != null) {
+        for (int i = 0; i < elementCount; i++)
+          ids[i] = i;
       }
 
       /**A struct to store information about a split*/
@@ -223,7 +300,21 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           super.write(out);
         }
 
-        void partition(Queue<SplitStruct> toBePartitioned) {
+        /**
+         * Sorts the elements of this split and splits them into
+         * <code>degree</code> splits which are stored in the given array
+         * starting at the given index.
+         */
+        void partition(SplitStruct[] children, int firstChild) {
+          new QuickSort().sort(getSortable(), index1, index2);
+          split(children, firstChild);
+        }
+
+        /**
+         * Returns a sortable over all elements that compares them along the
+         * direction of this split.
+         */
+        IndexedSortable getSortable() {
           IndexedSortable sortableX;
           IndexedSortable sortableY;
 
@@ -240,10 +331,13 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
                 double tempY = ys[i];
                 ys[i] = ys[j];
                 ys[j] = tempY;
-                // Swap id
-                int tempid = offsets[i];
+                // Swap offset and id
+                int tempoffset = offsets[i];
                 offsets[i] = offsets[j];
-                offsets[j] = tempid;
+                offsets[j] = tempoffset;
+                int tempid = ids[i];
+                ids[i] = ids[j];
+                ids[j] = tempid;
               }
               
               @Override
@@ -267,10 +361,13 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
                 double tempY = ys[i];
                 ys[i] = ys[j];
                 ys[j] = tempY;
-                // Swap id
-                int tempid = offsets[i];
+                // Swap offset and id
+                int tempoffset = offsets[i];
                 offsets[i] = offsets[j];
-                offsets[j] = tempid;
+                offsets[j] = tempoffset;
+                int tempid = ids[i];
+                ids[i] = ids[j];
+                ids[j] = tempid;
               }
               
               @Override
@@ -342,21 +439,25 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             };
           }
 
-          final IndexedSorter sorter = new QuickSort();
-          
           final IndexedSortable[] sortables = new IndexedSortable[2];
           sortables[SplitStruct.DIRECTION_X] = sortableX;
           sortables[SplitStruct.DIRECTION_Y] = sortableY;
-          
-          sorter.sort(sortables[direction], index1, index2);
+          return sortables[direction];
+        }
 
+        /**
+         * Splits the sorted elements of this split into <code>degree</code>
+         * splits which are stored in the given array starting at the given
+         * index.
+         */
+        void split(SplitStruct[] children, int firstChild) {
           // Partition into maxEntries partitions (equally) and
           // create a SplitStruct for each partition
           int i1 = index1;
           for (int iSplit = 0; iSplit < degree; iSplit++) {
             int i2 = index1 + (index2 - index1) * (iSplit + 1) / degree;
             SplitStruct newSplit = new SplitStruct(i1, i2, (byte)(1 - direction));
-            toBePartitioned.add(newSplit);
+            children[firstChild + iSplit] = newSplit;
             i1 = i2;
           }
         }
@@ -364,16 +465,40 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       
       // All nodes stored in level-order traversal
       Vector<SplitStruct> nodes = new Vector<SplitStruct>();
-      final Queue<SplitStruct> toBePartitioned = new LinkedList<SplitStruct>();
-      toBePartitioned.add(new SplitStruct(0, elementCount, SplitStruct.DIRECTION_X));
+      SplitStruct[] level = { new SplitStruct(0, elementCount, SplitStruct.DIRECTION_X) };
+      // Splits in one level cover disjoint ranges of the elements. In fast
+      // mode, the sort keys are in primitive arrays and all the splits in one
+      // level can be sorted in parallel. The root is sorted by parallelSort.
+      int parallelism = fast_sort && elementCount >= ParallelBulkLoadThreshold ?
+          Runtime.getRuntime().availableProcessors() : 1;
       
-      while (!toBePartitioned.isEmpty()) {
-        SplitStruct split = toBePartitioned.poll();
-        if (nodes.size() < nonLeafNodeCount) {
-          // This is a non-leaf
-          split.partition(toBePartitioned);
+      while (level.length > 0) {
+        for (SplitStruct split : level)
+          nodes.add(split);
+        if (nodes.size() > nonLeafNodeCount)
+          break; // Reached the leaf level
+        // This is a non-leaf level
+        final SplitStruct[] parents = level;
+        final SplitStruct[] children = new SplitStruct[parents.length * degree];
+        if (parents.length == 1 && parallelism > 1) {
+          // The root cannot be sorted in parallel with other splits. Sort its
+          // elements with all the threads instead.
+          SplitStruct root = parents[0];
+          parallelSort(new double[][] {xs, ys}, new int[][] {offsets, ids},
+              root.direction, root.getSortable(), root.index1, root.index2,
+              parallelism);
+          root.split(children, 0);
+        } else {
+          Parallel.forEach(parents.length, new RunnableRange<Object>() {
+            @Override
+            public Object run(int i1, int i2) {
+              for (int i = i1; i < i2; i++)
+                parents[i].partition(children, i * degree);
+              return null;
+            }
+          }, parallelism);
         }
-        nodes.add(split);
+        level = children;
       }
       
       if (nodes.size() != nodeCount) {
@@ -383,6 +508,13 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       // Now we have our data sorted in the required order. Start building
       // the tree.
       // Store the offset of each leaf node in the tree
+      // MBRs of all records. In fast mode, these are the MBRs computed in the
+      // first pass indexed by ids. Otherwise, they are computed while
+      // writing leaf nodes and indexed by the sorted position (binary only)
+      final double[] recordMBRs = fast_sort ? elementMBRs
+          : (binary ? new double[elementCount * 4] : null);
+      // Total size of the tree as it is written to disk
+      int treeDataEnd = 0;
       FSDataOutputStream fakeOut = null;
       try {
         fakeOut = new FSDataOutputStream(new java.io.OutputStream() {
@@ -400,40 +532,45 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             // Do nothing
           }
         }, null, TreeHeaderSize + nodes.size() * NodeSize);
+        Rectangle mbr = new Rectangle();
         for (int i_leaf = nonLeafNodeCount, i=0; i_leaf < nodes.size(); i_leaf++) {
-          nodes.elementAt(i_leaf).offsetOfFirstElement = (int)fakeOut.getPos();
-          if (i != nodes.elementAt(i_leaf).index1) throw new RuntimeException();
-          double x1, y1, x2, y2;
+          SplitStruct leaf = nodes.elementAt(i_leaf);
+          leaf.offsetOfFirstElement = (int)fakeOut.getPos();
+          if (i != leaf.index1) throw new RuntimeException();
+          double x1 = Double.POSITIVE_INFINITY, y1 = Double.POSITIVE_INFINITY;
+          double x2 = Double.NEGATIVE_INFINITY, y2 = Double.NEGATIVE_INFINITY;
           
-          // Initialize MBR to first object
-          int eol = skipToEOL(element_bytes, offsets[i]);
-          fakeOut.write(element_bytes, offsets[i],
-              eol - offsets[i]);
-          line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-          stockObject.fromText(line);
-          Rectangle mbr = stockObject.getMBR();
-          x1 = mbr.x1;
-          y1 = mbr.y1;
-          x2 = mbr.x2;
-          y2 = mbr.y2;
-          i++;
-          
-          while (i < nodes.elementAt(i_leaf).index2) {
-            eol = skipToEOL(element_bytes, offsets[i]);
-            fakeOut.write(element_bytes, offsets[i],
-                eol - offsets[i]);
-            line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
-            stockObject.fromText(line);
-            mbr = stockObject.getMBR();
+          while (i < leaf.index2) {
+            int eol = skipToEOL(element_bytes, offsets[i]);
+            int mbr_i;
+            if (fast_sort) {
+              // Use the MBR computed in the first pass
+              mbr_i = ids[i];
+              mbr.set(recordMBRs[4 * mbr_i], recordMBRs[4 * mbr_i + 1],
+                  recordMBRs[4 * mbr_i + 2], recordMBRs[4 * mbr_i + 3]);
+            } else {
+              mbr_i = i;
+              line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
+              stockObject.fromText(line);
+              mbr.set(stockObject.getMBR());
+              if (recordMBRs != null)
+                setRecordMBR(recordMBRs, mbr_i, mbr);
+            }
+            if (binary) {
+              writeBinaryRecord(fakeOut, element_bytes, offsets[i], eol,
+                  recordMBRs, mbr_i);
+            } else {
+              fakeOut.write(element_bytes, offsets[i], eol - offsets[i]);
+            }
             if (mbr.x1 < x1) x1 = mbr.x1;
             if (mbr.y1 < y1) y1 = mbr.y1;
             if (mbr.x2 > x2) x2 = mbr.x2;
             if (mbr.y2 > y2) y2 = mbr.y2;
             i++;
           }
-          nodes.elementAt(i_leaf).set(x1, y1, x2, y2);
+          leaf.set(x1, y1, x2, y2);
         }
-        
+        treeDataEnd = (int) fakeOut.getPos();
       } finally {
         if (fakeOut != null)
           fakeOut.close();
@@ -467,7 +604,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       // Start writing the tree
       // write tree header (including size)
       // Total tree size. (== Total bytes written - 8 bytes for the size itself)
-      dataOut.writeInt(TreeHeaderSize + NodeSize * nodeCount + len);
+      // The binary layout adds a fixed header to each record and drops the
+      // end-of-line characters, so its size is taken from the fake output
+      dataOut.writeInt(binary ? treeDataEnd
+          : TreeHeaderSize + NodeSize * nodeCount + len);
       // Tree height
       dataOut.writeInt(height);
       // Degree
@@ -481,14 +621,161 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       // write elements
       for (int element_i = 0; element_i < elementCount; element_i++) {
         int eol = skipToEOL(element_bytes, offsets[element_i]);
-        dataOut.write(element_bytes, offsets[element_i],
-            eol - offsets[element_i]);
+        if (binary) {
+          writeBinaryRecord(dataOut, element_bytes, offsets[element_i], eol,
+              recordMBRs, fast_sort ? ids[element_i] : element_i);
+        } else {
+          dataOut.write(element_bytes, offsets[element_i],
+              eol - offsets[element_i]);
+        }
       }
       
     } catch (IOException e) {
       e.printStackTrace();
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while bulk loading the tree", e);
     }
   }
+
+  /**
+   * Minimum number of elements to sort the splits of one level in parallel
+   * while bulk loading the tree.
+   */
+  private static final int ParallelBulkLoadThreshold = 100000;
+
+  /**
+   * Sorts the elements in the range [i1, i2) using multiple threads. Each
+   * thread sorts a chunk of the range using the given sortable. The sorted
+   * chunks are then merged in pairs where the merges of one round run in
+   * parallel. All the given arrays are permuted together.
+   * @param doubles - arrays of values of the elements such as their centers
+   * @param ints - arrays of values of the elements such as their offsets
+   * @param key - the index of the array in doubles to sort by
+   * @param sortable - a sortable that compares the elements by the key and
+   *   swaps all the arrays
+   * @param i1
+   * @param i2
+   * @param parallelism - number of threads to use
+   * @throws InterruptedException
+   */
+  static void parallelSort(final double[][] doubles, final int[][] ints,
+      final int key, final IndexedSortable sortable, int i1, int i2,
+      int parallelism) throws InterruptedException {
+    parallelism = Math.max(1, Math.min(parallelism, i2 - i1));
+    int[] runs = new int[parallelism + 1];
+    for (int i = 0; i <= parallelism; i++)
+      runs[i] = (int) (i1 + (long) (i2 - i1) * i / parallelism);
+    final int[] chunks = runs;
+    Parallel.forEach(parallelism, new RunnableRange<Object>() {
+      @Override
+      public Object run(int c1, int c2) {
+        for (int c = c1; c < c2; c++)
+          new QuickSort().sort(sortable, chunks[c], chunks[c + 1]);
+        return null;
+      }
+    }, parallelism);
+    if (parallelism == 1)
+      return;
+
+    // Merge the sorted runs alternating between the arrays and a buffer
+    double[][] srcDoubles = doubles, dstDoubles = new double[doubles.length][];
+    int[][] srcInts = ints, dstInts = new int[ints.length][];
+    for (int a = 0; a < doubles.length; a++)
+      dstDoubles[a] = new double[i2];
+    for (int a = 0; a < ints.length; a++)
+      dstInts[a] = new int[i2];
+    while (runs.length > 2) {
+      final int numRuns = runs.length - 1;
+      final int numMerges = (numRuns + 1) / 2;
+      final int[] mergedRuns = new int[numMerges + 1];
+      for (int m = 0; m < numMerges; m++)
+        mergedRuns[m] = runs[2 * m];
+      mergedRuns[numMerges] = runs[numRuns];
+      final int[] currentRuns = runs;
+      final double[][] fromDoubles = srcDoubles, toDoubles = dstDoubles;
+      final int[][] fromInts = srcInts, toInts = dstInts;
+      Parallel.forEach(numMerges, new RunnableRange<Object>() {
+        @Override
+        public Object run(int m1, int m2) {
+          for (int m = m1; m < m2; m++) {
+            int lo = currentRuns[2 * m];
+            int mid = currentRuns[Math.min(2 * m + 1, numRuns)];
+            int hi = currentRuns[Math.min(2 * m + 2, numRuns)];
+            merge(fromDoubles, fromInts, toDoubles, toInts, key, lo, mid, hi);
+          }
+          return null;
+        }
+      }, numMerges);
+      srcDoubles = toDoubles; dstDoubles = fromDoubles;
+      srcInts = toInts; dstInts = fromInts;
+      runs = mergedRuns;
+    }
+    if (srcDoubles != doubles) {
+      // The result ended up in the buffer
+      for (int a = 0; a < doubles.length; a++)
+        System.arraycopy(srcDoubles[a], i1, doubles[a], i1, i2 - i1);
+      for (int a = 0; a < ints.length; a++)
+        System.arraycopy(srcInts[a], i1, ints[a], i1, i2 - i1);
+    }
+  }
+
+  /**
+   * Merges the two sorted runs [lo, mid) and [mid, hi) of the source arrays
+   * into the range [lo, hi) of the destination arrays.
+   */
+  private static void merge(double[][] srcDoubles, int[][] srcInts,
+      double[][] dstDoubles, int[][] dstInts, int key, int lo, int mid, int hi) {
+    double[] keys = srcDoubles[key];
+    int i = lo, j = mid;
+    for (int k = lo; k < hi; k++) {
+      int from = j >= hi || (i < mid && keys[i] <= keys[j]) ? i++ : j++;
+      for (int a = 0; a < srcDoubles.length; a++)
+        dstDoubles[a][k] = srcDoubles[a][from];
+      for (int a = 0; a < srcInts.length; a++)
+        dstInts[a][k] = srcInts[a][from];
+    }
+  }
+
+  /**Size of the fixed header of a record in the binary layout. MBR + length*/
+  public static final int BinaryRecordHeaderSize = 8 * 4 + 4;
+
+  /**
+   * Stores the MBR of the record at the given index in the array of MBRs.
+   * @param mbrs
+   * @param i
+   * @param mbr
+   */
+  private static void setRecordMBR(double[] mbrs, int i, Rectangle mbr) {
+    mbrs[4 * i] = mbr.x1;
+    mbrs[4 * i + 1] = mbr.y1;
+    mbrs[4 * i + 2] = mbr.x2;
+    mbrs[4 * i + 3] = mbr.y2;
+  }
+
+  /**
+   * Writes one record in the binary layout. The four coordinates of its MBR,
+   * the length of its text representation, and the text representation
+   * itself without end-of-line characters.
+   * @param out
+   * @param bytes
+   * @param start - offset of the first byte of the record in bytes
+   * @param eol - offset right after the end-of-line of the record
+   * @param mbrs
+   * @param i - index of the record in the array of MBRs
+   * @throws IOException
+   */
+  private static void writeBinaryRecord(DataOutput out, byte[] bytes,
+      int start, int eol, double[] mbrs, int i) throws IOException {
+    int end = eol;
+    while (end > start && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r'))
+      end--;
+    out.writeDouble(mbrs[4 * i]);
+    out.writeDouble(mbrs[4 * i + 1]);
+    out.writeDouble(mbrs[4 * i + 2]);
+    out.writeDouble(mbrs[4 * i + 3]);
+    out.writeInt(end - start);
+    out.write(bytes, start, end - start);
+  }
   
   @Override
   public void write(DataOutput out) throws IOException {
@@ -501,6 +788,9 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     // Read the whole tree structure and keep it in memory. Leave data on disk
     // Tree size (Header + structure + data)
     treeSize = in.readInt();
+    this.nodes = null;
+    this.structure = null;
+    this.mappedTree = null;
     
     if (in instanceof Seekable)
       this.treeStartOffset = ((Seekable) in).getPos();
@@ -519,19 +809,37 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     
     // Keep only tree structure in memory
     nodeCount = (int) ((powInt(degree, height) - 1) / (degree - 1));
-    this.nodes = new Rectangle[nodeCount];
     this.dataOffset = new int[nodeCount + 1];
     
-    for (int node_id = 0; node_id < nodeCount; node_id++) {
-      this.dataOffset[node_id] = in.readInt();
-      this.nodes[node_id] = new Rectangle();
-      this.nodes[node_id].readFields(in);
+    if (binaryLeaves) {
+      // Keep the nodes in their serialized form without creating an object
+      // for each node. Node MBRs are tested directly from this buffer.
+      byte[] structureBytes = new byte[nodeCount * NodeSize];
+      in.readFully(structureBytes);
+      this.structure = ByteBuffer.wrap(structureBytes);
+      for (int node_id = 0; node_id < nodeCount; node_id++)
+        this.dataOffset[node_id] = structure.getInt(node_id * NodeSize);
+    } else {
+      this.nodes = new Rectangle[nodeCount];
+      for (int node_id = 0; node_id < nodeCount; node_id++) {
+        this.dataOffset[node_id] = in.readInt();
+        this.nodes[node_id] = new Rectangle();
+        this.nodes[node_id].readFields(in);
+      }
     }
     this.dataOffset[nodeCount] = treeSize;
 
     if (in instanceof FSDataInputStream) {
       // A random input stream, can keep the data on disk
       this.data = (FSDataInputStream) in;
+    } else if (binaryLeaves) {
+      // A sequential input stream, read all data into one buffer keeping
+      // records at the same offsets stored in the nodes
+      int treeDataSize = this.dataOffset[nodeCount] - this.dataOffset[0];
+      this.treeStartOffset = -this.dataOffset[0];
+      byte[] treeData = new byte[treeSize];
+      in.readFully(treeData, this.dataOffset[0], treeDataSize);
+      this.mappedTree = ByteBuffer.wrap(treeData);
     } else {
       // A sequential input stream, need to read all data now
       int treeDataSize = this.dataOffset[nodeCount] - this.dataOffset[0];
@@ -544,6 +852,124 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     leafNodeCount = (int) Math.pow(degree, height - 1);
     nonLeafNodeCount = nodeCount - leafNodeCount;
   }
+
+  /**
+   * Maps the data of a tree with binary leaves in memory from the given file
+   * channel. Should be called after {@link #readFields(DataInput)} with the
+   * channel of the same file the tree was read from. After this call, search
+   * reads records directly from the mapped pages without copying them to the
+   * heap or issuing a read call per leaf node.
+   * @param channel
+   * @throws IOException
+   */
+  public void mapTree(FileChannel channel) throws IOException {
+    if (!binaryLeaves)
+      throw new RuntimeException("Only trees with binary leaves can be mapped");
+    if (treeStartOffset < 0 || height == 0)
+      return; // Already in memory or empty
+    this.mappedTree = channel.map(FileChannel.MapMode.READ_ONLY,
+        treeStartOffset, treeSize);
+  }
+
+  /**
+   * Returns the MBRs of all nodes as objects. For trees with binary leaves,
+   * the objects are created on the first call. This is used by methods that
+   * need random access to node MBRs, e.g., spatial join.
+   * @return
+   */
+  private Rectangle[] getNodes() {
+    if (nodes == null && structure != null) {
+      Rectangle[] ns = new Rectangle[nodeCount];
+      for (int node_id = 0; node_id < nodeCount; node_id++) {
+        int pos = node_id * NodeSize + 4;
+        ns[node_id] = new Rectangle(structure.getDouble(pos),
+            structure.getDouble(pos + 8), structure.getDouble(pos + 16),
+            structure.getDouble(pos + 24));
+      }
+      nodes = ns;
+    }
+    return nodes;
+  }
+
+  /**
+   * Tests if the MBR of the given node overlaps the given rectangle without
+   * creating any objects.
+   * @param node_id
+   * @param r
+   * @return
+   */
+  private boolean isNodeIntersected(int node_id, Rectangle r) {
+    if (structure == null)
+      return r.isIntersected(nodes[node_id]);
+    int pos = node_id * NodeSize + 4;
+    return isIntersected(r, structure.getDouble(pos),
+        structure.getDouble(pos + 8), structure.getDouble(pos + 16),
+        structure.getDouble(pos + 24));
+  }
+
+  /**
+   * Tests if the given rectangle overlaps the rectangle given by its four
+   * coordinates. Uses the same semantics of {@link Rectangle#isIntersected(Shape)}
+   */
+  private static boolean isIntersected(Rectangle r, double x1, double y1,
+      double x2, double y2) {
+    return r.x2 > x1 && x2 > r.x1 && r.y2 > y1 && y2 > r.y1;
+  }
+
+  /**
+   * Returns a buffer that contains the binary records stored between the two
+   * given offsets. The returned buffer is positioned at the first record and
+   * limited right after the last record. If the tree is mapped in memory, a
+   * view of the mapped tree is returned without copying any data. Otherwise,
+   * the records are read using one positioned read into the given buffer
+   * which is reused if it is large enough.
+   * @param start_offset - offset of the first record relative to tree start
+   * @param end_offset - offset right after the last record
+   * @param reuse - a buffer to reuse or <code>null</code>
+   * @return
+   * @throws IOException
+   */
+  private ByteBuffer readBinaryRecords(int start_offset, int end_offset,
+      ByteBuffer reuse) throws IOException {
+    if (mappedTree != null) {
+      ByteBuffer view = mappedTree.duplicate();
+      view.limit(end_offset);
+      view.position(start_offset);
+      return view;
+    }
+    int length = end_offset - start_offset;
+    if (reuse == null || reuse.capacity() < length)
+      reuse = ByteBuffer.allocate(length);
+    data.readFully(treeStartOffset + start_offset, reuse.array(), 0, length);
+    reuse.clear();
+    reuse.limit(length);
+    return reuse;
+  }
+
+  /**
+   * Parses the text of the binary record at the current position of the
+   * given buffer into the given shape. The buffer must be positioned right
+   * after the record header. The position is advanced to the next record.
+   * @param records
+   * @param length - length of the text representation of the record
+   * @param line - a temporary text to use while parsing
+   * @param shape
+   */
+  private void parseBinaryRecord(ByteBuffer records, int length, Text line,
+      Shape shape) {
+    if (records.hasArray()) {
+      line.set(records.array(), records.arrayOffset() + records.position(),
+          length);
+      records.position(records.position() + length);
+    } else {
+      // A memory-mapped buffer. Copy only the bytes of this record
+      if (recordBytes == null || recordBytes.length < length)
+        recordBytes = new byte[Math.max(length, 1024)];
+      records.get(recordBytes, 0, length);
+      line.set(recordBytes, 0, length);
+    }
+    shape.fromText(line);
+  }
   
   /**
    * Reads and skips the header of the tree returning the total number of
@@ -613,7 +1039,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
    * @return
    */
   public Rectangle getMBR() {
-    return nodes[0];
+    return getNodes()[0];
   }
   
   /**
@@ -735,12 +1161,22 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     /**A reader to read lines from the tree*/
     LineReader reader;
     
+    /**Records of the current leaf node for trees with binary leaves*/
+    ByteBuffer records;
+    
+    /**The next leaf node to read for trees with binary leaves*/
+    int nextLeaf;
+    
     RTreeIterator() throws IOException {
       offset = TreeHeaderSize + NodeSize * RTree.this.nodeCount;
       _stockObject = (T) RTree.this.stockObject.clone();
       line = new Text();
-      RTree.this.data.seek(offset + RTree.this.treeStartOffset);
-      reader = new LineReader(RTree.this.data);
+      if (RTree.this.binaryLeaves) {
+        nextLeaf = RTree.this.nonLeafNodeCount;
+      } else {
+        RTree.this.data.seek(offset + RTree.this.treeStartOffset);
+        reader = new LineReader(RTree.this.data);
+      }
     }
 
     @Override
@@ -753,8 +1189,21 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       if (!hasNext())
         return null;
       try {
-        offset += reader.readLine(line);
-        _stockObject.fromText(line);
+        if (RTree.this.binaryLeaves) {
+          // Read records one leaf node at a time
+          while (records == null || !records.hasRemaining()) {
+            records = readBinaryRecords(dataOffset[nextLeaf],
+                dataOffset[nextLeaf + 1], records);
+            nextLeaf++;
+          }
+          records.position(records.position() + 8 * 4);
+          int length = records.getInt();
+          parseBinaryRecord(records, length, line, _stockObject);
+          offset += BinaryRecordHeaderSize + length;
+        } else {
+          offset += reader.readLine(line);
+          _stockObject.fromText(line);
+        }
       } catch (IOException e) {
         e.printStackTrace();
         return null;
@@ -846,6 +1295,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
 
     // Holds one data line from tree data
     Text line = new Text2();
+    // Holds records of one leaf node for trees with binary leaves
+    ByteBuffer records = null;
     
     while (!toBeSearched.isEmpty()) {
       int searchNumber = toBeSearched.pop();
@@ -853,7 +1304,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       if (searchNumber < nodeCount) {
         // Searching a node
         int nodeID = searchNumber;
-        if (query_mbr.isIntersected(nodes[nodeID])) {
+        if (isNodeIntersected(nodeID, query_mbr)) {
           boolean is_leaf = nodeID >= nonLeafNodeCount;
           if (is_leaf) {
             // Check all objects under this node
@@ -873,6 +1324,30 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         // in stack
         int end_offset = searchNumber;
         int start_offset = toBeSearched.pop();
+        if (binaryLeaves) {
+          // Test the MBR of each record from the raw bytes and parse only
+          // records that overlap the query
+          records = readBinaryRecords(start_offset, end_offset, records);
+          while (records.hasRemaining()) {
+            int pos = records.position();
+            boolean mbrMatch = isIntersected(query_mbr, records.getDouble(pos),
+                records.getDouble(pos + 8), records.getDouble(pos + 16),
+                records.getDouble(pos + 24));
+            int length = records.getInt(pos + 8 * 4);
+            if (!mbrMatch) {
+              records.position(pos + BinaryRecordHeaderSize + length);
+              continue;
+            }
+            records.position(pos + BinaryRecordHeaderSize);
+            parseBinaryRecord(records, length, line, stockObject);
+            if (stockObject.isIntersected(query_shape)) {
+              resultSize++;
+              if (output != null)
+                output.collect(stockObject);
+            }
+          }
+          continue;
+        }
         // All data offsets are relative to tree start (typically 4)
         this.data.seek(start_offset + this.treeStartOffset);
         // Should not close the line reader because we do not want to close
@@ -925,6 +1400,9 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     
     /**If searching within a node, lineReader points to result items*/
     LineReader lineReader;
+    
+    /**If searching within a node with binary records, the remaining records*/
+    ByteBuffer records;
 
 
     public SearchIterator(Shape queryShape) {
@@ -966,6 +1444,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
      */
     protected void prepareNextResult() {
       try {
+        if (binaryLeaves && records != null && nextBinaryMatch())
+          return;
         while (lineReader != null && firstOffset < lastOffset) {
           // Case 1: Searching within a node
           firstOffset += lineReader.readLine(line);
@@ -981,7 +1461,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           if (searchNumber < nodeCount) {
             // Searching a node
             int nodeID = searchNumber;
-            if (queryMBR.isIntersected(nodes[nodeID])) {
+            if (isNodeIntersected(nodeID, queryMBR)) {
               boolean is_leaf = nodeID >= nonLeafNodeCount;
               if (is_leaf) {
                 // Check all objects under this node
@@ -1002,6 +1482,12 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             lastOffset = searchNumber;
             firstOffset = toBeSearched.pop();
 
+            if (binaryLeaves) {
+              records = readBinaryRecords(firstOffset, lastOffset, records);
+              if (nextBinaryMatch())
+                return;
+              continue;
+            }
             data.seek(firstOffset + treeStartOffset);
             lineReader = new LineReader(data);
             while (firstOffset < lastOffset) {
@@ -1022,6 +1508,30 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       }
     }
     
+    /**
+     * Advances in the current buffer of binary records until a record that
+     * matches the query is found and parsed into nextResultShape.
+     * @return <code>true</code> if a matching record is found
+     */
+    private boolean nextBinaryMatch() {
+      while (records.hasRemaining()) {
+        int pos = records.position();
+        boolean mbrMatch = isIntersected(queryMBR, records.getDouble(pos),
+            records.getDouble(pos + 8), records.getDouble(pos + 16),
+            records.getDouble(pos + 24));
+        int length = records.getInt(pos + 8 * 4);
+        if (!mbrMatch) {
+          records.position(pos + BinaryRecordHeaderSize + length);
+          continue;
+        }
+        records.position(pos + BinaryRecordHeaderSize);
+        parseBinaryRecord(records, length, line, nextResultShape);
+        if (nextResultShape.isIntersected(queryShape))
+          return true;
+      }
+      return false;
+    }
+    
   }
   
   /**
@@ -1053,88 +1563,176 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   }
   
   /**
-   * k nearest neighbor query
+   * k nearest neighbor query. Returns the k elements closest to the given
+   * query point ordered by their distance to it.
    * @param qx
    * @param qy
    * @param k
    * @param output
+   * @return - number of results found
    */
   public int knn(final double qx, final double qy, int k, final ResultCollector2<T, Double> output) {
-    double query_area = ((getMBR().x2 - getMBR().x1) * (getMBR().y2 - getMBR().y1)) * k / getElementCount();
-    double query_radius = Math.sqrt(query_area / Math.PI);
-
-    boolean result_correct;
-    final Vector<Double> distances = new Vector<Double>();
-    final Vector<T> shapes = new Vector<T>();
-    // Find results in the range and increase this range if needed to ensure
-    // correctness of the answer
-    do {
-      // Initialize result and query range
-      distances.clear(); shapes.clear();
-      Rectangle queryRange = new Rectangle();
-      queryRange.x1 = qx - query_radius;
-      queryRange.y1 = qy - query_radius;
-      queryRange.x2 = qx + query_radius;
-      queryRange.y2 = qy + query_radius;
-      // Retrieve all results in range
-      search(queryRange, new ResultCollector<T>() {
-        @Override
-        public void collect(T shape) {
-          distances.add(shape.distanceTo(qx, qy));
-          shapes.add((T) shape.clone());
-        }
-      });
-      if (shapes.size() < k) {
-        // Didn't find k elements in range, double the range to get more items
-        if (shapes.size() == getElementCount()) {
-          // Already returned all possible elements
-          result_correct = true;
-        } else {
-          query_radius *= 2;
-          result_correct = false;
-        }
-      } else {
-        // Sort items by distance to get the kth neighbor
-        IndexedSortable s = new IndexedSortable() {
-          @Override
-          public void swap(int i, int j) {
-            double temp_distance = distances.elementAt(i);
-            distances.set(i, distances.elementAt(j));
-            distances.set(j, temp_distance);
-            
-            T temp_shape = shapes.elementAt(i);
-            shapes.set(i, shapes.elementAt(j));
-            shapes.set(j, temp_shape);
-          }
-          @Override
-          public int compare(int i, int j) {
-            // Note. Equality is not important to check because items with the
-            // same distance can be ordered anyway. 
-        	if (distances.elementAt(i) == distances.elementAt(j))
-                  return 0;
-        	if (distances.elementAt(i) < distances.elementAt(j))
-              return -1;
-            return 1;
+    KNNIterator iter = knn(qx, qy);
+    int result_size = 0;
+    while (result_size < k && iter.hasNext()) {
+      T shape = iter.next();
+      result_size++;
+      if (output != null)
+        output.collect(shape, iter.getDistance());
+    }
+    return result_size;
+  }
+
+  /**
+   * Returns an iterator over all elements in the tree ordered by their
+   * distance to the given query point. Elements are retrieved incrementally
+   * so the caller can stop as soon as it has enough results.
+   * @param qx
+   * @param qy
+   * @return
+   */
+  public KNNIterator knn(double qx, double qy) {
+    return new KNNIterator(qx, qy);
+  }
+
+  /**
+   * An entry in the priority queue of the best-first kNN search. It is
+   * either a node (shape is <code>null</code>) or an element of the tree.
+   */
+  static class KNNEntry<S> implements Comparable<KNNEntry<S>> {
+    /**ID of the node or -1 if this entry is an element*/
+    int nodeID;
+    /**Minimum distance from the query point to this node or element*/
+    double distance;
+    /**The element or <code>null</code> if this entry is a node*/
+    S shape;
+
+    KNNEntry(int nodeID, double distance, S shape) {
+      this.nodeID = nodeID;
+      this.distance = distance;
+      this.shape = shape;
+    }
+
+    @Override
+    public int compareTo(KNNEntry<S> o) {
+      return this.distance < o.distance ? -1 : (this.distance > o.distance ? +1 : 0);
+    }
+  }
+
+  /**
+   * An iterator that returns elements of the tree ordered by their distance
+   * to a query point. It runs a best-first search where nodes and elements
+   * are kept in one priority queue ordered by their distance to the query
+   * point. A node is expanded only when it reaches the head of the queue
+   * which means that only leaf nodes that might contain one of the returned
+   * elements are read.
+   * @author Ahmed Eldawy
+   */
+  public class KNNIterator implements Iterable<T>, Iterator<T> {
+    /**Coordinates of the query point*/
+    private final double qx, qy;
+    
+    /**Nodes and elements to visit ordered by their distance*/
+    private final PriorityQueue<KNNEntry<T>> queue = new PriorityQueue<KNNEntry<T>>();
+    
+    /**Distance of the last element returned by next*/
+    private double distance;
+    
+    /**Used to deserialize elements*/
+    private Text line = new Text2();
+    
+    /**Records of a leaf node for trees with binary leaves*/
+    private ByteBuffer records;
+
+    KNNIterator(double qx, double qy) {
+      this.qx = qx;
+      this.qy = qy;
+      if (height > 0 && elementCount > 0)
+        queue.add(new KNNEntry<T>(0, getNodes()[0].getMinDistanceTo(qx, qy), null));
+    }
+    
+    @Override
+    public Iterator<T> iterator() {
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      expandNodes();
+      return !queue.isEmpty();
+    }
+
+    @Override
+    public T next() {
+      expandNodes();
+      KNNEntry<T> entry = queue.poll();
+      if (entry == null)
+        return null;
+      distance = entry.distance;
+      return entry.shape;
+    }
+    
+    /**
+     * Returns the distance between the query point and the last element
+     * returned by {@link #next()}
+     * @return
+     */
+    public double getDistance() {
+      return distance;
+    }
+
+    @Override
+    public void remove() {
+      throw new RuntimeException("Unsupported method");
+    }
+    
+    /**
+     * Expands nodes at the head of the queue until an element is at the head
+     * or the queue is empty.
+     */
+    private void expandNodes() {
+      try {
+        while (!queue.isEmpty() && queue.peek().shape == null) {
+          int nodeID = queue.poll().nodeID;
+          if (nodeID < nonLeafNodeCount) {
+            // Add all child nodes
+            for (int iChild = 0; iChild < degree; iChild++) {
+              int childID = nodeID * degree + iChild + 1;
+              queue.add(new KNNEntry<T>(childID,
+                  getNodes()[childID].getMinDistanceTo(qx, qy), null));
+            }
+          } else {
+            // A leaf node, add all elements under it
+            int start_offset = dataOffset[nodeID];
+            int end_offset = dataOffset[nodeID + 1];
+            if (binaryLeaves) {
+              records = readBinaryRecords(start_offset, end_offset, records);
+              while (records.hasRemaining()) {
+                records.position(records.position() + 8 * 4);
+                int length = records.getInt();
+                T shape = (T) stockObject.clone();
+                parseBinaryRecord(records, length, line, shape);
+                queue.add(new KNNEntry<T>(-1, shape.distanceTo(qx, qy), shape));
+              }
+            } else {
+              data.seek(start_offset + treeStartOffset);
+              // Should not close the line reader to keep the data stream open
+              @SuppressWarnings("resource")
+              LineReader lineReader = new LineReader(data);
+              while (start_offset < end_offset) {
+                start_offset += lineReader.readLine(line);
+                T shape = (T) stockObject.clone();
+                shape.fromText(line);
+                queue.add(new KNNEntry<T>(-1, shape.distanceTo(qx, qy), shape));
+              }
+            }
           }
-        };
-        IndexedSorter sorter = new QuickSort();
-        sorter.sort(s, 0, shapes.size());
-        if (distances.elementAt(k - 1) > query_radius) {
-          result_correct = false;
-          query_radius = distances.elementAt(k);
-        } else {
-          result_correct = true;
         }
-      }
-    } while (!result_correct);
-    
-    int result_size = Math.min(k,  shapes.size());
-    if (output != null) {
-      for (int i = 0; i < result_size; i++) {
-        output.collect(shapes.elementAt(i), distances.elementAt(i));
+      } catch (IOException e) {
+        e.printStackTrace();
+        queue.clear();
       }
     }
-    return result_size;
   }
 
   protected static<S1 extends Shape, S2 extends Shape> int spatialJoinMemory(
@@ -1160,6 +1758,97 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     return SpatialAlgorithms.SpatialJoin_planeSweep(rs, ss, output, reporter);
   }
   
+  /**
+   * Returns the ID of the last leaf node that has the same parent as the
+   * given leaf node.
+   * @param leafID
+   * @return
+   */
+  int getLastSiblingLeaf(int leafID) {
+    if (leafID == 0)
+      return 0; // The root is the only leaf
+    int parentID = (leafID - 1) / degree;
+    return parentID * degree + degree;
+  }
+
+  /**
+   * Returns the total size of all records in the given leaf node in bytes
+   * @param leafID
+   * @return
+   */
+  int getLeafSize(int leafID) {
+    return dataOffset[leafID + 1] - dataOffset[leafID];
+  }
+
+  /**
+   * Reads the raw bytes of a range of consecutive leaf nodes in one read
+   * operation and returns one page per leaf node.
+   * @param firstLeaf - ID of the first leaf to read
+   * @param endLeaf - ID right after the last leaf to read
+   * @return
+   * @throws IOException
+   */
+  byte[][] readLeafPages(int firstLeaf, int endLeaf) throws IOException {
+    int start_offset = dataOffset[firstLeaf];
+    int length = dataOffset[endLeaf] - start_offset;
+    byte[] buffer = new byte[length];
+    if (mappedTree != null) {
+      ByteBuffer view = mappedTree.duplicate();
+      view.position(start_offset);
+      view.get(buffer);
+    } else {
+      data.readFully(treeStartOffset + start_offset, buffer, 0, length);
+    }
+    byte[][] pages = new byte[endLeaf - firstLeaf][];
+    if (pages.length == 1) {
+      pages[0] = buffer;
+    } else {
+      for (int leaf = firstLeaf; leaf < endLeaf; leaf++) {
+        pages[leaf - firstLeaf] = Arrays.copyOfRange(buffer,
+            dataOffset[leaf] - start_offset, dataOffset[leaf + 1] - start_offset);
+      }
+    }
+    return pages;
+  }
+
+  /**
+   * Parses all records in the given leaf page into the given array of shapes.
+   * Objects are created only for empty slots in the array.
+   * @param page - the raw bytes of all records in one leaf node
+   * @param records
+   * @param line
+   * @return - number of records parsed
+   */
+  private int parseLeafPage(byte[] page, Shape[] records, Text line) {
+    int record_i = 0;
+    if (binaryLeaves) {
+      ByteBuffer buffer = ByteBuffer.wrap(page);
+      while (buffer.hasRemaining()) {
+        buffer.position(buffer.position() + 8 * 4);
+        int length = buffer.getInt();
+        if (records[record_i] == null)
+          records[record_i] = stockObject.clone();
+        parseBinaryRecord(buffer, length, line, records[record_i]);
+        record_i++;
+      }
+    } else {
+      int start = 0;
+      while (start < page.length) {
+        int eol = skipToEOL(page, start);
+        int end = eol;
+        while (end > start && (page[end - 1] == '\n' || page[end - 1] == '\r'))
+          end--;
+        line.set(page, start, end - start);
+        if (records[record_i] == null)
+          records[record_i] = stockObject.clone();
+        records[record_i].fromText(line);
+        record_i++;
+        start = eol;
+      }
+    }
+    return record_i;
+  }
+
   //LRU cache used to avoid deserializing the same records again and again
   static class LruCache<A, B> extends LinkedHashMap<A, B> {
     private static final long serialVersionUID = 702044567572914544L;
@@ -1188,25 +1877,26 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   }
 
   /**
-   * Performs a spatial join between records in two R-trees
+   * Performs a spatial join between records in two R-trees. Records of leaf
+   * nodes are read through the given page cache which is shared by both trees.
    * @param R
    * @param S
    * @param output
+   * @param reporter
+   * @param pageCache
    * @return
    * @throws IOException
-   * SuppresWarnings("resource") is used because we create LineReaders on the
-   * internal data stream of both R and S. We do not want to close the
-   * LineReader because it will subsequently close the internal data stream
-   * of R and S which is something we want to avoid because both R and S are
-   * not created by this function and it should not free these resources.
    */
   protected static<S1 extends Shape, S2 extends Shape> int spatialJoinDisk(
       final RTree<S1> R,
       final RTree<S2> S,
       final ResultCollector2<S1, S2> output,
-      final Reporter reporter)
+      final Reporter reporter,
+      final RTreePageCache pageCache)
       throws IOException {
     PriorityQueue<Long> nodesToJoin = new PriorityQueue<Long>(R.nodeCount+S.nodeCount);
+    final Rectangle[] r_nodes = R.getNodes();
+    final Rectangle[] s_nodes = S.getNodes();
     
     // Start with the two roots
     nodesToJoin.add(0L);
@@ -1221,11 +1911,6 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     Text line = new Text2();
     
     int result_count = 0;
-
-    LineReader r_lr = null, s_lr = null;
-    // Last offset read from r and s
-    int r_last_offset = 0;
-    int s_last_offset = 0;
     
     while (!nodesToJoin.isEmpty()) {
       long nodes_to_join = nodesToJoin.remove();
@@ -1245,7 +1930,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           int new_r_node = r_node * R.degree + i + 1;
           for (int j = 0; j < S.degree; j++) {
             int new_s_node = s_node * S.degree + j + 1;
-            if (R.nodes[new_r_node].isIntersected(S.nodes[new_s_node])) {
+            if (r_nodes[new_r_node].isIntersected(s_nodes[new_s_node])) {
               long new_pair = (((long)new_r_node) << 32) | new_s_node;
               nodesToJoin.add(new_pair);
             }
@@ -1256,7 +1941,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         // Compare the leaf node in R against all child nodes of S
         for (int j = 0; j < S.degree; j++) {
           int new_s_node = s_node * S.degree + j + 1;
-          if (R.nodes[r_node].isIntersected(S.nodes[new_s_node])) {
+          if (r_nodes[r_node].isIntersected(s_nodes[new_s_node])) {
             long new_pair = (((long)r_node) << 32) | new_s_node;
             nodesToJoin.add(new_pair);
           }
@@ -1266,7 +1951,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         // Compare child nodes of R against the leaf node in S
         for (int i = 0; i < R.degree; i++) {
           int new_r_node = r_node * R.degree + i + 1;
-          if (R.nodes[new_r_node].isIntersected(S.nodes[s_node])) {
+          if (r_nodes[new_r_node].isIntersected(s_nodes[s_node])) {
             long new_pair = (((long)new_r_node) << 32) | s_node;
             nodesToJoin.add(new_pair);
           }
@@ -1274,9 +1959,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       } else if (r_leaf && s_leaf) {
         // Both are leaf nodes, join objects under them
         int r_start_offset = R.dataOffset[r_node];
-        int r_end_offset = R.dataOffset[r_node+1];
         int s_start_offset = S.dataOffset[s_node];
-        int s_end_offset = S.dataOffset[s_node+1];
         
         // Read or retrieve r_records
         Shape[] r_records = r_records_cache.get(r_start_offset);
@@ -1287,21 +1970,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             r_records = new Shape[R.degree * 2];
           }
 
-          // Need to read it from stream
-          if (r_last_offset != r_start_offset) {
-            long seekTo = r_start_offset + R.treeStartOffset;
-            R.data.seek(seekTo);
-            r_lr = new LineReader(R.data);
-          }
-          int record_i = 0;
-          while (r_start_offset < r_end_offset) {
-            r_start_offset += r_lr.readLine(line);
-            if (r_records[record_i] == null)
-              r_records[record_i] = R.stockObject.clone();
-            r_records[record_i].fromText(line);
-            record_i++;
-          }
-          r_last_offset = r_start_offset;
+          int record_i = R.parseLeafPage(pageCache.getPage(R, r_node),
+              r_records, line);
           // Nullify other records
           while (record_i < r_records.length)
             r_records[record_i++] = null;
@@ -1313,31 +1983,17 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         if (s_records == null) {
           int cache_key = s_start_offset;
 
-          // Need to read it from stream
-          if (s_lr == null || s_last_offset != s_start_offset) {
-            // Need to reposition s_lr (LineReader of S)
-            long seekTo = s_start_offset + S.treeStartOffset;
-            S.data.seek(seekTo);
-            s_lr = new LineReader(S.data);
-          }
           s_records = s_records_cache.popUnusedEntry();
           if (s_records == null) {
             s_records = new Shape[S.degree * 2];
           }
-          int record_i = 0;
-          while (s_start_offset < s_end_offset) {
-            s_start_offset += s_lr.readLine(line);
-            if (s_records[record_i] == null)
-              s_records[record_i] = S.stockObject.clone();
-            s_records[record_i].fromText(line);
-            record_i++;
-          }
+          int record_i = S.parseLeafPage(pageCache.getPage(S, s_node),
+              s_records, line);
           // Nullify other records
           while (record_i < s_records.length)
             s_records[record_i++] = null;
           // Put in cache
           s_records_cache.put(cache_key, s_records);
-          s_last_offset = s_start_offset;
         }
 
         // Do Cartesian product between records to find overlapping pairs
@@ -1356,6 +2012,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       if (reporter != null)
         reporter.progress();
     }
+    if (reporter != null)
+      pageCache.reportCounters(reporter);
     return result_count;
   }
   
@@ -1365,10 +2023,34 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       final ResultCollector2<S1, S2> output,
       final Reporter reporter)
       throws IOException {
+    return spatialJoin(R, S, output, reporter, null);
+  }
+
+  /**
+   * Performs a spatial join between two R-trees. If both trees are on disk,
+   * leaf nodes are read through the given page cache. If the page cache is
+   * <code>null</code>, a new one is created for this join.
+   * @param R
+   * @param S
+   * @param output
+   * @param reporter
+   * @param pageCache
+   * @return
+   * @throws IOException
+   */
+  public static<S1 extends Shape, S2 extends Shape> int spatialJoin(
+      final RTree<S1> R,
+      final RTree<S2> S,
+      final ResultCollector2<S1, S2> output,
+      final Reporter reporter,
+      RTreePageCache pageCache)
+      throws IOException {
     try {
       if (R.treeStartOffset >= 0 && S.treeStartOffset >= 0) {
         // Both trees are read from disk
-        return spatialJoinDisk(R, S, output, reporter);
+        if (pageCache == null)
+          pageCache = new RTreePageCache(RTreePageCache.DefaultCapacity);
+        return spatialJoinDisk(R, S, output, reporter, pageCache);
       } else {
         return spatialJoinMemory(R, S, output, reporter);
       }
@@ -1520,7 +2202,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   public void toWKT(PrintStream out) throws IOException {
     out.println("NodeID\tBoundaries");
     for (int nodeID = 0; nodeID < this.nodeCount; nodeID++) {
-      out.printf("%d\t%s\n", nodeID, nodes[nodeID].toWKT());
+      out.printf("%d\t%s\n", nodeID, getNodes()[nodeID].toWKT());
     }
   }
 
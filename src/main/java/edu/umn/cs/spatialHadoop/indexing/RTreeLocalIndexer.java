@@ -59,11 +59,13 @@ public class RTreeLocalIndexer implements LocalIndexer {
     // Create the output file
     FileSystem outFS = outputIndexedFile.getFileSystem(conf);
     DataOutputStream cellStream = outFS.create(outputIndexedFile);
-    cellStream.writeLong(SpatialSite.RTreeFileMarker);
+    boolean binaryLeaves = conf.get(SpatialSite.RTREE_LEAF_FORMAT, "text").equals("binary");
+    cellStream.writeLong(binaryLeaves ? SpatialSite.RTreeBinaryFileMarker
+        : SpatialSite.RTreeFileMarker);
     int degree = 4096 / RTree.NodeSize;
     boolean fastAlgorithm = conf.get(SpatialSite.RTREE_BUILD_MODE, "fast").equals("fast");
     RTree.bulkLoadWrite(cellData, 0, cellData.length, degree, cellStream,
-        shape.clone(), fastAlgorithm);
+        shape.clone(), fastAlgorithm, binaryLeaves);
     cellStream.close();
   }
 
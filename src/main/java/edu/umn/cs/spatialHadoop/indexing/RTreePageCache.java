@@ -0,0 +1,302 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * A cache of R-tree leaf pages (the raw bytes of all records in one leaf
+ * node) used by the disk-based spatial join. The cache is limited by the
+ * total size of pages in bytes rather than the number of pages and one cache
+ * can be shared by both trees of a join or by several joins in the same
+ * task. When a page is missing, the following sibling leaves are fetched in
+ * the same read because the join visits leaves in increasing order. Which
+ * page to evict is decided by a pluggable {@link EvictionPolicy}.
+ * @author Ahmed Eldawy
+ *
+ */
+public class RTreePageCache {
+  /**Logger*/
+  private static final Log LOG = LogFactory.getLog(RTreePageCache.class);
+
+  /**Configuration parameter for the capacity of the cache in bytes*/
+  public static final String CacheCapacity = "spatialHadoop.RTree.PageCacheCapacity";
+
+  /**Configuration parameter for the class of the eviction policy*/
+  public static final String EvictionPolicyClass = "spatialHadoop.RTree.PageCacheEviction";
+
+  /**Default capacity of the cache in bytes*/
+  public static final long DefaultCapacity = 64 * 1024 * 1024;
+
+  /**Counters reported to Hadoop for the page cache*/
+  public static enum PageCacheCounters {
+    PAGE_CACHE_HITS, PAGE_CACHE_MISSES, PAGE_CACHE_PREFETCHED, PAGE_CACHE_EVICTIONS
+  };
+
+  /**
+   * Decides which page to evict when the cache is full.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static interface EvictionPolicy {
+    /**Called when a new page is added to the cache*/
+    public void inserted(Object key);
+    /**Called when a cached page is accessed*/
+    public void accessed(Object key);
+    /**Chooses a page to evict and removes it from the policy*/
+    public Object evict();
+  }
+
+  /**
+   * Evicts the least recently used page.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class LRUEviction implements EvictionPolicy {
+    /**Keys of all pages ordered from least to most recently used*/
+    private LinkedHashSet<Object> keys = new LinkedHashSet<Object>();
+
+    @Override
+    public void inserted(Object key) {
+      keys.add(key);
+    }
+
+    @Override
+    public void accessed(Object key) {
+      keys.remove(key);
+      keys.add(key);
+    }
+
+    @Override
+    public Object evict() {
+      Iterator<Object> iter = keys.iterator();
+      Object victim = iter.next();
+      iter.remove();
+      return victim;
+    }
+  }
+
+  /**
+   * The CLOCK (second chance) approximation of LRU. An access only sets a
+   * reference bit which makes it cheaper than LRU for frequent hits.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class ClockEviction implements EvictionPolicy {
+    /**Keys of all pages in a circular order*/
+    private ArrayList<Object> keys = new ArrayList<Object>();
+    /**Reference bit of each page*/
+    private Map<Object, Boolean> referenced = new HashMap<Object, Boolean>();
+    /**Current position of the clock hand*/
+    private int hand;
+
+    @Override
+    public void inserted(Object key) {
+      keys.add(key);
+      referenced.put(key, Boolean.FALSE);
+    }
+
+    @Override
+    public void accessed(Object key) {
+      referenced.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public Object evict() {
+      while (true) {
+        if (hand >= keys.size())
+          hand = 0;
+        Object key = keys.get(hand);
+        if (referenced.get(key)) {
+          // Give it a second chance
+          referenced.put(key, Boolean.FALSE);
+          hand++;
+        } else {
+          // Replace with the last key to remove in constant time
+          Object last = keys.remove(keys.size() - 1);
+          if (hand < keys.size())
+            keys.set(hand, last);
+          referenced.remove(key);
+          return key;
+        }
+      }
+    }
+  }
+
+  /**The key of one page. A leaf node in a specific tree*/
+  static class PageKey {
+    final RTree<?> tree;
+    final int leafID;
+
+    PageKey(RTree<?> tree, int leafID) {
+      this.tree = tree;
+      this.leafID = leafID;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      PageKey other = (PageKey) obj;
+      return this.tree == other.tree && this.leafID == other.leafID;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(tree) * 31 + leafID;
+    }
+  }
+
+  /**All cached pages*/
+  private Map<PageKey, byte[]> pages = new HashMap<PageKey, byte[]>();
+
+  /**Maximum total size of cached pages in bytes*/
+  private final long capacity;
+
+  /**Total size of cached pages in bytes*/
+  private long usedBytes;
+
+  /**Decides which pages to evict*/
+  private final EvictionPolicy evictionPolicy;
+
+  /**Statistics of the cache*/
+  private long hits, misses, prefetched, evictions;
+
+  /**Statistics already reported to Hadoop counters*/
+  private long reportedHits, reportedMisses, reportedPrefetched, reportedEvictions;
+
+  public RTreePageCache(long capacity, EvictionPolicy evictionPolicy) {
+    this.capacity = capacity;
+    this.evictionPolicy = evictionPolicy;
+  }
+
+  public RTreePageCache(long capacity) {
+    this(capacity, new LRUEviction());
+  }
+
+  /**
+   * Creates a page cache with the capacity and eviction policy set in the
+   * given configuration.
+   * @param conf
+   */
+  public RTreePageCache(Configuration conf) {
+    this(conf.getLong(CacheCapacity, DefaultCapacity),
+        ReflectionUtils.newInstance(conf.getClass(EvictionPolicyClass,
+            LRUEviction.class, EvictionPolicy.class), conf));
+  }
+
+  /**
+   * Returns the raw bytes of all records in the given leaf node. If the page
+   * is not cached, it is read from the tree along with the following sibling
+   * leaves that are not cached yet in one read operation.
+   * @param tree
+   * @param leafID
+   * @return
+   * @throws IOException
+   */
+  public synchronized byte[] getPage(RTree<?> tree, int leafID) throws IOException {
+    PageKey key = new PageKey(tree, leafID);
+    byte[] page = pages.get(key);
+    if (page != null) {
+      hits++;
+      evictionPolicy.accessed(key);
+      return page;
+    }
+    misses++;
+    // Prefetch the following siblings as long as they fit in a fraction of
+    // the cache to avoid evicting pages that are still needed
+    int lastLeaf = tree.getLastSiblingLeaf(leafID);
+    long prefetchBudget = capacity / 4;
+    long bytesToRead = tree.getLeafSize(leafID);
+    int endLeaf = leafID + 1;
+    while (endLeaf <= lastLeaf &&
+        bytesToRead + tree.getLeafSize(endLeaf) <= prefetchBudget &&
+        !pages.containsKey(new PageKey(tree, endLeaf))) {
+      bytesToRead += tree.getLeafSize(endLeaf);
+      endLeaf++;
+    }
+    byte[][] readPages = tree.readLeafPages(leafID, endLeaf);
+    for (int i = 1; i < readPages.length; i++)
+      put(new PageKey(tree, leafID + i), readPages[i]);
+    prefetched += readPages.length - 1;
+    put(key, readPages[0]);
+    return readPages[0];
+  }
+
+  /**
+   * Adds a page to the cache evicting other pages as needed. Pages that are
+   * larger than the capacity are not cached.
+   * @param key
+   * @param page
+   */
+  private void put(PageKey key, byte[] page) {
+    if (page.length > capacity)
+      return;
+    while (usedBytes + page.length > capacity) {
+      Object victim = evictionPolicy.evict();
+      usedBytes -= pages.remove(victim).length;
+      evictions++;
+    }
+    pages.put(key, page);
+    usedBytes += page.length;
+    evictionPolicy.inserted(key);
+  }
+
+  /**
+   * Adds the statistics collected since the last call to the Hadoop counters
+   * @param reporter
+   */
+  public synchronized void reportCounters(Reporter reporter) {
+    reporter.incrCounter(PageCacheCounters.PAGE_CACHE_HITS, hits - reportedHits);
+    reporter.incrCounter(PageCacheCounters.PAGE_CACHE_MISSES, misses - reportedMisses);
+    reporter.incrCounter(PageCacheCounters.PAGE_CACHE_PREFETCHED, prefetched - reportedPrefetched);
+    reporter.incrCounter(PageCacheCounters.PAGE_CACHE_EVICTIONS, evictions - reportedEvictions);
+    reportedHits = hits;
+    reportedMisses = misses;
+    reportedPrefetched = prefetched;
+    reportedEvictions = evictions;
+  }
+
+  /**
+   * Removes all cached pages. Should be called when the cached trees are
+   * closed.
+   */
+  public synchronized void clear() {
+    while (!pages.isEmpty())
+      pages.remove(evictionPolicy.evict());
+    usedBytes = 0;
+    LOG.debug("Page cache cleared. Hits: "+hits+", misses: "+misses);
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Returns the total size of the cached pages in bytes which never exceeds
+   * the capacity of the cache
+   * @return
+   */
+  public synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+}
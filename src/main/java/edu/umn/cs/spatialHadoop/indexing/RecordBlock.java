@@ -0,0 +1,143 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+
+/**
+ * A block of records that belong to the same partition. Records are stored
+ * in the same text format of partition files, one record per line, along
+ * with their count and MBR. This allows mappers to shuffle records in
+ * large blocks and reducers to write them to partition files without
+ * parsing them.
+ * @author Ahmed Eldawy
+ *
+ */
+public class RecordBlock implements Writable {
+  /**Number of records in this block*/
+  private long recordCount;
+  /**The MBR of all records in this block*/
+  private final Rectangle mbr = new Rectangle();
+  /**Text representation of all records*/
+  private byte[] data = new byte[1024];
+  /**Number of bytes used in {@link #data}*/
+  private int length;
+  /**A temporary text to serialize records*/
+  private Text tempText;
+  /**Whether to write the MBR of each record before its text*/
+  private boolean mbrPrefix;
+
+  public RecordBlock() {
+    clear();
+  }
+
+  /**Removes all records in this block*/
+  public void clear() {
+    recordCount = 0;
+    length = 0;
+    mbr.set(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+  }
+
+  /**
+   * Sets whether records are written with an MBR prefix as done by
+   * {@link IndexOutputFormat.IndexRecordWriter} when
+   * {@link IndexOutputFormat#MBRPrefix} is set.
+   * @param mbrPrefix
+   */
+  public void setMBRPrefix(boolean mbrPrefix) {
+    this.mbrPrefix = mbrPrefix;
+  }
+
+  /**
+   * Appends a record to this block
+   * @param shape
+   */
+  public void add(Shape shape) {
+    if (tempText == null)
+      tempText = new Text();
+    tempText.clear();
+    if (mbrPrefix) {
+      Rectangle shapeMBR = shape.getMBR();
+      if (shapeMBR != null)
+        TextSerializerHelper.serializeMBRPrefix(shapeMBR.x1, shapeMBR.y1,
+            shapeMBR.x2, shapeMBR.y2, tempText);
+    }
+    shape.toText(tempText);
+    int newLength = length + tempText.getLength() + IndexOutputFormat.NEW_LINE.length;
+    if (newLength > data.length)
+      data = Arrays.copyOf(data, Math.max(newLength, data.length * 2));
+    System.arraycopy(tempText.getBytes(), 0, data, length, tempText.getLength());
+    System.arraycopy(IndexOutputFormat.NEW_LINE, 0, data,
+        length + tempText.getLength(), IndexOutputFormat.NEW_LINE.length);
+    length = newLength;
+    recordCount++;
+    mbr.expand(shape);
+  }
+
+  public long getRecordCount() {
+    return recordCount;
+  }
+
+  public Rectangle getMBR() {
+    return mbr;
+  }
+
+  /**
+   * Returns the text representation of all records. Only the first
+   * {@link #getLength()} bytes are valid.
+   * @return
+   */
+  public byte[] getData() {
+    return data;
+  }
+
+  /**Number of bytes of the text representation of all records*/
+  public int getLength() {
+    return length;
+  }
+
+  /**
+   * Number of bytes allocated for the text representation of records. This
+   * is the memory retained by this block which is not released by
+   * {@link #clear()}.
+   * @return
+   */
+  public int getCapacity() {
+    return data.length;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeLong(recordCount);
+    mbr.write(out);
+    out.writeInt(length);
+    out.write(data, 0, length);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    recordCount = in.readLong();
+    mbr.readFields(in);
+    length = in.readInt();
+    if (data.length < length)
+      data = new byte[length];
+    in.readFully(data, 0, length);
+  }
+}
@@ -21,6 +21,7 @@ import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * A partitioner that partitioner data using the STR bulk loading algorithm.
@@ -165,15 +166,58 @@ public class STRPartitioner extends Partitioner {
       return -1;
     // Assign to only one partition
     Point center = shapeMBR.getCenterPoint();
-    int col = Arrays.binarySearch(xSplits, center.x);
+    return overlapPartition(center.x, center.y);
+  }
+  
+  /**
+   * Returns the partition that contains the given point
+   * @param x
+   * @param y
+   * @return
+   */
+  private int overlapPartition(double x, double y) {
+    int col = Arrays.binarySearch(xSplits, x);
     if (col < 0)
       col = -col - 1;
-    int cell = Arrays.binarySearch(ySplits, col * rows, (col+1)*rows, center.y);
+    int cell = Arrays.binarySearch(ySplits, col * rows, (col+1)*rows, y);
     if (cell < 0)
       cell = -cell - 1;
     return cell;
   }
   
+  @Override
+  public void overlapPartition(double[] x, double[] y, int count,
+      int[] partitionIDs) {
+    for (int i = 0; i < count; i++)
+      partitionIDs[i] = overlapPartition(x[i], y[i]);
+  }
+  
+  @Override
+  public void overlapPartitions(double[] x1, double[] y1, double[] x2,
+      double[] y2, int count, int[] offsets, IntArray partitionIDs) {
+    partitionIDs.clear();
+    for (int i = 0; i < count; i++) {
+      offsets[i] = partitionIDs.size();
+      int col1 = Arrays.binarySearch(xSplits, x1[i]);
+      if (col1 < 0)
+        col1 = -col1 - 1;
+      int col2 = Arrays.binarySearch(xSplits, x2[i]);
+      if (col2 < 0)
+        col2 = -col2 - 1;
+      for (int col = col1; col <= col2; col++) {
+        int cell1 = Arrays.binarySearch(ySplits, col * rows, (col+1) * rows, y1[i]);
+        if (cell1 < 0)
+          cell1 = -cell1 - 1;
+        int cell2 = Arrays.binarySearch(ySplits, col * rows, (col+1) * rows, y2[i]);
+        if (cell2 < 0)
+          cell2 = -cell2 - 1;
+        for (int cell = cell1; cell <= cell2; cell++)
+          partitionIDs.add(cell);
+      }
+    }
+    offsets[count] = partitionIDs.size();
+  }
+  
   @Override
   public CellInfo getPartitionAt(int index) {
     return getPartition(index);
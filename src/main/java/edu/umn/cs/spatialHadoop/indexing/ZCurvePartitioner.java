@@ -13,6 +13,7 @@ import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.BitSet;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,6 +23,7 @@ import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * Partition the space based on Z-curve.
@@ -54,6 +56,16 @@ public class ZCurvePartitioner extends Partitioner {
     createFromZValues(zValues, capacity);
   }
 
+  @Override
+  public void createFromPoints(Rectangle mbr, double[] xs, double[] ys,
+      int capacity) {
+    this.mbr.set(mbr);
+    long[] zValues = new long[xs.length];
+    for (int i = 0; i < xs.length; i++)
+      zValues[i] = computeZ(mbr, xs[i], ys[i]);
+    createFromZValues(zValues, capacity);
+  }
+
   /**
    * Create a ZCurvePartitioner from a list of points
    * @param zValues
@@ -203,10 +215,92 @@ public class ZCurvePartitioner extends Partitioner {
 
   @Override
   public void overlapPartitions(Shape shape, ResultCollector<Integer> matcher) {
-    // TODO match with all overlapping partitions instead of only one
-    int partition = overlapPartition(shape);
-    if (partition >= 0)
-      matcher.collect(partition);
+    if (shape == null)
+      return;
+    Rectangle shapeMBR = shape.getMBR();
+    if (shapeMBR == null)
+      return;
+    BitSet matched = new BitSet(zSplits.length);
+    overlapPartitions(shapeMBR.x1, shapeMBR.y1, shapeMBR.x2, shapeMBR.y2, matched);
+    for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1))
+      matcher.collect(i);
+  }
+  
+  /**
+   * Finds all partitions that overlap the given rectangle. The rectangle is
+   * decomposed into aligned quadrants, each of which is a contiguous range on
+   * the Z-curve, until each quadrant is either contained in the rectangle or
+   * falls in a single partition. This keeps the number of visited quadrants
+   * proportional to the number of partitions along the rectangle boundary.
+   * @param x1
+   * @param y1
+   * @param x2
+   * @param y2
+   * @param matched - (output) the IDs of all overlapping partitions are set
+   */
+  protected void overlapPartitions(double x1, double y1, double x2, double y2,
+      BitSet matched) {
+    long ix1 = toGrid(x1, mbr.x1, mbr.getWidth());
+    long iy1 = toGrid(y1, mbr.y1, mbr.getHeight());
+    long ix2 = toGrid(x2, mbr.x1, mbr.getWidth());
+    long iy2 = toGrid(y2, mbr.y1, mbr.getHeight());
+    overlapPartitions(0, 0, 31, ix1, iy1, ix2, iy2, matched);
+  }
+  
+  /**
+   * Converts a coordinate to its integer position on the curve grid in the
+   * same way {@link #computeZ(Rectangle, double, double)} does. Values out of
+   * the input MBR are clamped to the grid boundaries.
+   */
+  private static long toGrid(double v, double min, double extent) {
+    long i = (long) ((v - min) * Resolution / extent);
+    return Math.max(0, Math.min(Resolution, i));
+  }
+  
+  /**
+   * Recursively finds partitions that overlap the query within an aligned
+   * quadrant of the grid.
+   * @param ox - the column of the lower left corner of the quadrant
+   * @param oy - the row of the lower left corner of the quadrant
+   * @param level - the quadrant spans (2^level)x(2^level) cells
+   * @param qx1 - the first column of the query
+   * @param qy1 - the first row of the query
+   * @param qx2 - the last column of the query
+   * @param qy2 - the last row of the query
+   * @param matched - (output) the IDs of overlapping partitions
+   */
+  private void overlapPartitions(long ox, long oy, int level, long qx1,
+      long qy1, long qx2, long qy2, BitSet matched) {
+    long size = 1L << level;
+    if (ox > qx2 || ox + size - 1 < qx1 || oy > qy2 || oy + size - 1 < qy1)
+      return;
+    long zMin = computeZOrder(ox, oy);
+    long zMax = zMin + (1L << (2 * level)) - 1;
+    int p1 = getPartitionOfZ(zMin);
+    int p2 = getPartitionOfZ(zMax);
+    if (p1 == p2 || (ox >= qx1 && ox + size - 1 <= qx2 &&
+        oy >= qy1 && oy + size - 1 <= qy2)) {
+      // The whole range of the quadrant on the curve overlaps the query
+      matched.set(p1, p2 + 1);
+      return;
+    }
+    long half = size >> 1;
+    overlapPartitions(ox, oy, level - 1, qx1, qy1, qx2, qy2, matched);
+    overlapPartitions(ox, oy + half, level - 1, qx1, qy1, qx2, qy2, matched);
+    overlapPartitions(ox + half, oy, level - 1, qx1, qy1, qx2, qy2, matched);
+    overlapPartitions(ox + half, oy + half, level - 1, qx1, qy1, qx2, qy2, matched);
+  }
+  
+  /**
+   * Returns the partition that contains the given value on the Z-curve
+   * @param z
+   * @return
+   */
+  private int getPartitionOfZ(long z) {
+    int partition = Arrays.binarySearch(zSplits, z);
+    if (partition < 0)
+      partition = -partition - 1;
+    return Math.min(partition, zSplits.length - 1);
   }
   
   @Override
@@ -218,11 +312,58 @@ public class ZCurvePartitioner extends Partitioner {
       return -1;
     // Assign to only one partition that contains the center point
     Point center = shapeMBR.getCenterPoint();
-    long zValue = computeZ(mbr, center.x, center.y);
-    int partition = Arrays.binarySearch(zSplits, zValue);
-    if (partition < 0)
-      partition = -partition - 1;
-    return partition;
+    return overlapPartition(center.x, center.y);
+  }
+  
+  /**
+   * Returns the partition that contains the given point. Points out of the
+   * input MBR are clamped to the grid as done by
+   * {@link #overlapPartitions(double, double, double, double, BitSet)} so
+   * a point is always assigned to one of the partitions of any rectangle
+   * that contains it.
+   * @param x
+   * @param y
+   * @return
+   */
+  private int overlapPartition(double x, double y) {
+    long ix = toGrid(x, mbr.x1, mbr.getWidth());
+    long iy = toGrid(y, mbr.y1, mbr.getHeight());
+    return getPartitionOfZ(computeZOrder(ix, iy));
+  }
+
+  /**
+   * Partitions of the Z-curve might have overlapping MBRs so the reference
+   * point is assigned to the partition of its value on the curve. Other
+   * partitions are tested by their MBRs. Indexes of the curve cannot be
+   * rebalanced, so all their partitions are cells of this partitioner.
+   */
+  @Override
+  public boolean isReferencePointIn(CellInfo partition, double x, double y) {
+    if (partition.cellId < 0 || partition.cellId >= zSplits.length)
+      return super.isReferencePointIn(partition, x, y);
+    return overlapPartition(x, y) == partition.cellId;
+  }
+  
+  @Override
+  public void overlapPartition(double[] x, double[] y, int count,
+      int[] partitionIDs) {
+    for (int i = 0; i < count; i++)
+      partitionIDs[i] = overlapPartition(x[i], y[i]);
+  }
+  
+  @Override
+  public void overlapPartitions(double[] x1, double[] y1, double[] x2,
+      double[] y2, int count, int[] offsets, IntArray partitionIDs) {
+    partitionIDs.clear();
+    BitSet matched = new BitSet(zSplits.length);
+    for (int i = 0; i < count; i++) {
+      offsets[i] = partitionIDs.size();
+      matched.clear();
+      overlapPartitions(x1[i], y1[i], x2[i], y2[i], matched);
+      for (int p = matched.nextSetBit(0); p >= 0; p = matched.nextSetBit(p + 1))
+        partitionIDs.add(p);
+    }
+    offsets[count] = partitionIDs.size();
   }
 
   @Override
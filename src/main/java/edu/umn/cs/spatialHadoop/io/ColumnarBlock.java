@@ -0,0 +1,415 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+/**
+ * A block of shapes stored column by column in binary. Points and rectangles
+ * are stored as primitive columns of their coordinates so that reading them
+ * does not require any parsing. Other shapes are stored as columns of their
+ * MBRs followed by their {@link org.apache.hadoop.io.Writable} representation.
+ * Each block starts with a fixed-size header that contains the number of
+ * records and their MBR which allows skipping the whole block without
+ * reading its data.
+ * <pre>
+ * Header: count (int), encoding (byte), compressed (boolean),
+ *   MBR (4 doubles), raw length (int), stored length (int)
+ * Data: stored length bytes, deflated if compressed
+ * </pre>
+ * A file of blocks ends with a trailer that stores the offsets of all blocks
+ * so that a reader can go to the first block of its split directly.
+ * <pre>
+ * Trailer: block offsets (longs), number of blocks (int), marker (long)
+ * </pre>
+ * @author Ahmed Eldawy
+ *
+ */
+public class ColumnarBlock {
+  /**Shapes are points stored as two columns x and y*/
+  public static final byte PointColumns = 0;
+  /**Shapes are rectangles stored as four columns x1, y1, x2 and y2*/
+  public static final byte RectangleColumns = 1;
+  /**Shapes are stored as MBR columns followed by their binary representation*/
+  public static final byte WritableColumns = 2;
+
+  /**Size of the header of each block in bytes*/
+  public static final int HeaderSize = 4 + 1 + 1 + 8 * 4 + 4 + 4;
+
+  /**Size of the end of the trailer that follows the block offsets*/
+  private static final int TrailerSize = 4 + 8;
+
+  /**How shapes are stored in this block*/
+  private byte encoding;
+  /**Number of records in this block*/
+  private int count;
+  /**Whether the data of this block is compressed or not*/
+  private boolean compressed;
+  /**Length of the data before and after compression*/
+  private int rawLength, storedLength;
+  /**The MBR of all records in this block*/
+  private final Rectangle mbr = new Rectangle();
+
+  /**Coordinate columns. Points use only x1 and y1*/
+  private double[] x1, y1, x2, y2;
+  /**End offset of each record in {@link #records} (WritableColumns only)*/
+  private int[] recordEnds;
+  /**Binary representation of all records (WritableColumns only)*/
+  private byte[] records;
+  /**Number of bytes used in {@link #records}*/
+  private int recordsLength;
+
+  /**Used to serialize shapes that are not stored as primitive columns*/
+  private ByteArrayOutputStream recordBuffer;
+  private DataOutputStream recordOut;
+  /**Buffers reused for the data of each block*/
+  private byte[] rawData, storedData;
+  /**Used to decompress blocks*/
+  private Inflater inflater;
+
+  public ColumnarBlock() {
+    x1 = new double[16];
+    y1 = new double[16];
+    x2 = new double[16];
+    y2 = new double[16];
+    recordEnds = new int[16];
+    records = new byte[0];
+  }
+
+  /**
+   * Returns the encoding that is used to store the given shape
+   * @param shape
+   * @return
+   */
+  public static byte getEncoding(Shape shape) {
+    if (shape.getClass() == Point.class)
+      return PointColumns;
+    if (shape.getClass() == Rectangle.class)
+      return RectangleColumns;
+    return WritableColumns;
+  }
+
+  /**
+   * Removes all records and sets the encoding of the records to be added
+   * @param encoding
+   */
+  public void clear(byte encoding) {
+    this.encoding = encoding;
+    this.count = 0;
+    this.recordsLength = 0;
+    this.mbr.set(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+        Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+  }
+
+  /**Makes sure the columns can hold the given number of records*/
+  private void ensureCapacity(int capacity) {
+    if (capacity > x1.length) {
+      int newCapacity = Math.max(capacity, x1.length * 2);
+      x1 = Arrays.copyOf(x1, newCapacity);
+      y1 = Arrays.copyOf(y1, newCapacity);
+      x2 = Arrays.copyOf(x2, newCapacity);
+      y2 = Arrays.copyOf(y2, newCapacity);
+      recordEnds = Arrays.copyOf(recordEnds, newCapacity);
+    }
+  }
+
+  /**
+   * Appends a shape to this block. The shape must match the encoding of the
+   * block as returned by {@link #getEncoding(Shape)}.
+   * @param shape
+   * @throws IOException
+   */
+  public void add(Shape shape) throws IOException {
+    ensureCapacity(count + 1);
+    if (encoding == PointColumns) {
+      Point p = (Point) shape;
+      x1[count] = x2[count] = p.x;
+      y1[count] = y2[count] = p.y;
+    } else {
+      Rectangle shapeMBR = encoding == RectangleColumns ?
+          (Rectangle) shape : shape.getMBR();
+      x1[count] = shapeMBR.x1;
+      y1[count] = shapeMBR.y1;
+      x2[count] = shapeMBR.x2;
+      y2[count] = shapeMBR.y2;
+      if (encoding == WritableColumns) {
+        if (recordOut == null) {
+          recordBuffer = new ByteArrayOutputStream();
+          recordOut = new DataOutputStream(recordBuffer);
+        }
+        recordBuffer.reset();
+        shape.write(recordOut);
+        recordOut.flush();
+        if (recordsLength + recordBuffer.size() > records.length)
+          records = Arrays.copyOf(records,
+              Math.max(recordsLength + recordBuffer.size(), records.length * 2));
+        byte[] bytes = recordBuffer.toByteArray();
+        System.arraycopy(bytes, 0, records, recordsLength, bytes.length);
+        recordsLength += bytes.length;
+        recordEnds[count] = recordsLength;
+      }
+    }
+    mbr.x1 = Math.min(mbr.x1, x1[count]);
+    mbr.y1 = Math.min(mbr.y1, y1[count]);
+    mbr.x2 = Math.max(mbr.x2, x2[count]);
+    mbr.y2 = Math.max(mbr.y2, y2[count]);
+    count++;
+  }
+
+  /**Number of coordinate columns stored for the current encoding*/
+  private int numColumns() {
+    return encoding == PointColumns ? 2 : 4;
+  }
+
+  /**
+   * Writes this block to the given output.
+   * @param out
+   * @param compress - whether to compress the data of the block or not
+   * @throws IOException
+   */
+  public void write(DataOutput out, boolean compress) throws IOException {
+    rawLength = count * 8 * numColumns();
+    if (encoding == WritableColumns)
+      rawLength += count * 4 + recordsLength;
+    if (rawData == null || rawData.length < rawLength)
+      rawData = new byte[rawLength];
+    ByteBuffer bb = ByteBuffer.wrap(rawData, 0, rawLength);
+    putColumn(bb, x1);
+    putColumn(bb, y1);
+    if (encoding != PointColumns) {
+      putColumn(bb, x2);
+      putColumn(bb, y2);
+    }
+    if (encoding == WritableColumns) {
+      bb.asIntBuffer().put(recordEnds, 0, count);
+      bb.position(bb.position() + count * 4);
+      bb.put(records, 0, recordsLength);
+    }
+    byte[] data = rawData;
+    storedLength = rawLength;
+    if (compress) {
+      ByteArrayOutputStream compressedData = new ByteArrayOutputStream(rawLength / 2 + 16);
+      DeflaterOutputStream deflaterOut = new DeflaterOutputStream(compressedData);
+      deflaterOut.write(rawData, 0, rawLength);
+      deflaterOut.close();
+      data = compressedData.toByteArray();
+      storedLength = data.length;
+    }
+    out.writeInt(count);
+    out.writeByte(encoding);
+    out.writeBoolean(compress);
+    out.writeDouble(mbr.x1);
+    out.writeDouble(mbr.y1);
+    out.writeDouble(mbr.x2);
+    out.writeDouble(mbr.y2);
+    out.writeInt(rawLength);
+    out.writeInt(storedLength);
+    out.write(data, 0, storedLength);
+  }
+
+  private void putColumn(ByteBuffer bb, double[] column) {
+    bb.asDoubleBuffer().put(column, 0, count);
+    bb.position(bb.position() + count * 8);
+  }
+
+  private void getColumn(ByteBuffer bb, double[] column) {
+    bb.asDoubleBuffer().get(column, 0, count);
+    bb.position(bb.position() + count * 8);
+  }
+
+  /**
+   * Reads the header of the next block. The data of the block should then be
+   * either read using {@link #readData(DataInput)} or skipped using
+   * {@link #getStoredLength()}.
+   * @param in
+   * @throws IOException
+   */
+  public void readHeader(DataInput in) throws IOException {
+    count = in.readInt();
+    encoding = in.readByte();
+    compressed = in.readBoolean();
+    mbr.x1 = in.readDouble();
+    mbr.y1 = in.readDouble();
+    mbr.x2 = in.readDouble();
+    mbr.y2 = in.readDouble();
+    rawLength = in.readInt();
+    storedLength = in.readInt();
+  }
+
+  /**
+   * Reads and decodes the data of a block whose header was just read.
+   * @param in
+   * @throws IOException
+   */
+  public void readData(DataInput in) throws IOException {
+    if (rawData == null || rawData.length < rawLength)
+      rawData = new byte[rawLength];
+    if (compressed) {
+      if (storedData == null || storedData.length < storedLength)
+        storedData = new byte[storedLength];
+      in.readFully(storedData, 0, storedLength);
+      if (inflater == null)
+        inflater = new Inflater();
+      inflater.reset();
+      inflater.setInput(storedData, 0, storedLength);
+      try {
+        int inflated = 0;
+        while (inflated < rawLength && !inflater.finished())
+          inflated += inflater.inflate(rawData, inflated, rawLength - inflated);
+      } catch (DataFormatException e) {
+        throw new IOException("Corrupted columnar block", e);
+      }
+    } else {
+      in.readFully(rawData, 0, rawLength);
+    }
+    ensureCapacity(count);
+    ByteBuffer bb = ByteBuffer.wrap(rawData, 0, rawLength);
+    getColumn(bb, x1);
+    getColumn(bb, y1);
+    if (encoding == PointColumns) {
+      System.arraycopy(x1, 0, x2, 0, count);
+      System.arraycopy(y1, 0, y2, 0, count);
+    } else {
+      getColumn(bb, x2);
+      getColumn(bb, y2);
+    }
+    if (encoding == WritableColumns) {
+      bb.asIntBuffer().get(recordEnds, 0, count);
+      bb.position(bb.position() + count * 4);
+      recordsLength = bb.remaining();
+      if (records.length < recordsLength)
+        records = new byte[recordsLength];
+      bb.get(records, 0, recordsLength);
+    }
+  }
+
+  /**
+   * Tests whether the MBR of the given record overlaps the given rectangle
+   * without decoding the record.
+   * @param i
+   * @param r
+   * @return
+   */
+  public boolean isRecordMBRIntersected(int i, Rectangle r) {
+    return x2[i] >= r.x1 && r.x2 >= x1[i] && y2[i] >= r.y1 && r.y2 >= y1[i];
+  }
+
+  /**
+   * Decodes the record at the given position into the given shape. For
+   * points and rectangles, the shape must be an instance of {@link Point}
+   * and {@link Rectangle}, respectively.
+   * @param i
+   * @param shape
+   * @throws IOException
+   */
+  public void getShape(int i, Shape shape) throws IOException {
+    switch (encoding) {
+    case PointColumns:
+      Point p = (Point) shape;
+      p.x = x1[i];
+      p.y = y1[i];
+      break;
+    case RectangleColumns:
+      ((Rectangle) shape).set(x1[i], y1[i], x2[i], y2[i]);
+      break;
+    default:
+      int recordStart = i == 0 ? 0 : recordEnds[i - 1];
+      shape.readFields(new DataInputStream(new MemoryInputStream(records,
+          recordStart, recordEnds[i] - recordStart)));
+    }
+  }
+
+  /**
+   * Writes the trailer of a file with the offsets of all its blocks.
+   * @param out
+   * @param offsets - the offset of each block in the file
+   * @param count - the number of blocks
+   * @throws IOException
+   */
+  public static void writeBlockOffsets(DataOutput out, long[] offsets,
+      int count) throws IOException {
+    for (int i = 0; i < count; i++)
+      out.writeLong(offsets[i]);
+    out.writeInt(count);
+    out.writeLong(SpatialSite.ColumnarFileMarker);
+  }
+
+  /**
+   * Reads the offsets of all blocks from the trailer of a file.
+   * @param in
+   * @param fileLength
+   * @return the offset of each block followed by the offset where the data
+   *   of the last block ends
+   * @throws IOException if the file does not end with a valid trailer
+   */
+  public static long[] readBlockOffsets(FSDataInputStream in, long fileLength)
+      throws IOException {
+    if (fileLength < 8 + TrailerSize)
+      throw new IOException("Columnar file is too short");
+    in.seek(fileLength - TrailerSize);
+    int count = in.readInt();
+    long trailerStart = fileLength - TrailerSize - 8L * count;
+    if (in.readLong() != SpatialSite.ColumnarFileMarker || count < 0 ||
+        trailerStart < 8)
+      throw new IOException("Columnar file does not end with its block offsets");
+    long[] offsets = new long[count + 1];
+    in.seek(trailerStart);
+    for (int i = 0; i < count; i++)
+      offsets[i] = in.readLong();
+    offsets[count] = trailerStart;
+    return offsets;
+  }
+
+  /**
+   * Returns the index of the first block that starts at or after the given
+   * offset, or the number of blocks if there are no such blocks.
+   * @param offsets - as returned by {@link #readBlockOffsets(FSDataInputStream, long)}
+   * @param offset
+   * @return
+   */
+  public static int firstBlockAt(long[] offsets, long offset) {
+    int count = offsets.length - 1;
+    int i = Arrays.binarySearch(offsets, 0, count, offset);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  public byte getEncoding() {
+    return encoding;
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public Rectangle getMBR() {
+    return mbr;
+  }
+
+  /**Number of bytes that follow the header of this block*/
+  public int getStoredLength() {
+    return storedLength;
+  }
+}
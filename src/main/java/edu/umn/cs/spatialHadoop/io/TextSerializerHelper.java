@@ -162,6 +162,121 @@ public final class TextSerializerHelper {
   }
   
   
+  /**Exact powers of ten that can be represented in a double*/
+  private static final double[] DoublePowersOf10 = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+  
+  /**Powers of ten that fit in a long*/
+  private static final long[] LongPowersOf10 = new long[19];
+  
+  /**Largest integer such that all smaller integers are exact in a double*/
+  private static final long MaxExactLong = 1L << 53;
+  
+  static {
+    LongPowersOf10[0] = 1;
+    for (int i = 1; i < LongPowersOf10.length; i++)
+      LongPowersOf10[i] = LongPowersOf10[i - 1] * 10;
+  }
+  
+  /**
+   * Parses a double from the given bytes without creating any objects.
+   * Numbers with up to 15 significant digits and a small exponent, which
+   * covers most coordinates, are converted with a single exact floating point
+   * operation which gives the correctly rounded result. Other numbers are
+   * passed to {@link Double#parseDouble(String)}.
+   * @param buf
+   * @param offset
+   * @param len
+   * @return
+   */
+  public static double deserializeDouble(byte[] buf, int offset, int len) {
+    int i = offset;
+    int end = offset + len;
+    boolean negative = false;
+    if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+      negative = buf[i] == '-';
+      i++;
+    }
+    long mantissa = 0;
+    int exp10 = 0;
+    int numDigits = 0;
+    // Set when some non-zero digits do not fit in the mantissa
+    boolean inexact = false;
+    boolean digitFound = false;
+    // Integer part
+    while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+      digitFound = true;
+      if (numDigits < 18) {
+        mantissa = mantissa * 10 + (buf[i] - '0');
+        if (mantissa != 0)
+          numDigits++;
+      } else {
+        exp10++;
+        inexact |= buf[i] != '0';
+      }
+      i++;
+    }
+    // Fraction part
+    if (i < end && buf[i] == '.') {
+      i++;
+      while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+        digitFound = true;
+        if (numDigits < 18) {
+          mantissa = mantissa * 10 + (buf[i] - '0');
+          if (mantissa != 0)
+            numDigits++;
+          exp10--;
+        } else {
+          inexact |= buf[i] != '0';
+        }
+        i++;
+      }
+    }
+    // Exponent part
+    if (digitFound && i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+      i++;
+      boolean negativeExp = false;
+      if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+        negativeExp = buf[i] == '-';
+        i++;
+      }
+      int exp = 0;
+      int expStart = i;
+      while (i < end && buf[i] >= '0' && buf[i] <= '9' && exp < 10000)
+        exp = exp * 10 + (buf[i++] - '0');
+      if (i == expStart)
+        digitFound = false; // An empty exponent is invalid
+      exp10 += negativeExp ? -exp : exp;
+    }
+    if (digitFound && i == end && !inexact) {
+      if (mantissa == 0)
+        return negative ? -0.0 : 0.0;
+      if (mantissa <= MaxExactLong) {
+        // Both the mantissa and the power of ten are exact. A single
+        // multiplication or division produces the correctly rounded value
+        double d = mantissa;
+        if (exp10 >= 0 && exp10 <= 22) {
+          d *= DoublePowersOf10[exp10];
+          return negative ? -d : d;
+        }
+        if (exp10 < 0 && exp10 >= -22) {
+          d /= DoublePowersOf10[-exp10];
+          return negative ? -d : d;
+        }
+        if (exp10 > 22 && exp10 - 22 < LongPowersOf10.length &&
+            mantissa <= MaxExactLong / LongPowersOf10[exp10 - 22]) {
+          // Move part of the exponent to the mantissa while it is exact
+          d = (mantissa * LongPowersOf10[exp10 - 22]) * DoublePowersOf10[22];
+          return negative ? -d : d;
+        }
+      }
+    }
+    // Less common formats are handled by the slower standard parser
+    return Double.parseDouble(new String(buf, offset, len));
+  }
+  
   /**
    * Deserializes and consumes a double from the given text. Consuming means all
    * characters read for deserialization are removed from the given text.
@@ -179,7 +294,7 @@ public final class TextSerializerHelper {
         && ((bytes[i] >= '0' && bytes[i] <= '9') || bytes[i] == 'e'
             || bytes[i] == 'E' || bytes[i] == '-' || bytes[i] == '+' || bytes[i] == '.'))
       i++;
-    double d = Double.parseDouble(new String(bytes, 0, i));
+    double d = deserializeDouble(bytes, 0, i);
     if (i < text.getLength() && bytes[i] == separator)
       i++;
     System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
@@ -187,19 +302,122 @@ public final class TextSerializerHelper {
     return d;
   }
   
+  /**First character of a record that starts with the MBR of its shape*/
+  public static final byte MBRPrefixMarker = '@';
+  private static final byte[] MBRPrefixMarkerBytes = {MBRPrefixMarker};
+
   /**
-   * Appends hex representation of the given number to the given string.
-   * If append is set to true, a comma is also appended to the text.
+   * Appends the MBR of a shape in the form <code>@x1,y1,x2,y2</code>
+   * followed by a tab. When written before the text of a shape, readers can
+   * test the MBR of the record without parsing the shape itself.
+   * @param x1
+   * @param y1
+   * @param x2
+   * @param y2
+   * @param t
+   * @see #consumeMBRPrefix(Text, double[])
+   */
+  public static void serializeMBRPrefix(double x1, double y1, double x2,
+      double y2, Text t) {
+    t.append(MBRPrefixMarkerBytes, 0, 1);
+    serializeDouble(x1, t, ',');
+    serializeDouble(y1, t, ',');
+    serializeDouble(x2, t, ',');
+    serializeDouble(y2, t, '\t');
+  }
+
+  /**
+   * Parses and consumes the MBR prefix of a record if it has one. The four
+   * coordinates x1, y1, x2 and y2 are stored in the given array.
+   * @param text
+   * @param mbr - an array of at least four values to store the MBR in
+   * @return <code>true</code> if the record started with an MBR prefix
+   */
+  public static boolean consumeMBRPrefix(Text text, double[] mbr) {
+    byte[] bytes = text.getBytes();
+    int length = text.getLength();
+    if (length == 0 || bytes[0] != MBRPrefixMarker)
+      return false;
+    int i = 1;
+    for (int coord = 0; coord < 4; coord++) {
+      int start = i;
+      while (i < length && bytes[i] != ',' && bytes[i] != '\t')
+        i++;
+      mbr[coord] = deserializeDouble(bytes, start, i - start);
+      if (i < length)
+        i++;
+    }
+    System.arraycopy(bytes, i, bytes, 0, length - i);
+    text.set(bytes, 0, length - i);
+    return true;
+  }
+
+  /**
+   * Appends the shortest decimal representation of the given number that
+   * parses back to the same number. If toAppend is not zero, it is appended
+   * after the number. Numbers are written in the same plain notation used by
+   * {@link Double#toString(double)} including the trailing ".0" of integral
+   * values. Numbers that {@link Double#toString(double)} writes in scientific
+   * notation are still written by it.
    * @param d
    * @param t
    * @param toAppend
    */
   public static void serializeDouble(double d, Text t, char toAppend) {
-    byte[] bytes = Double.toString(d).getBytes();
-    t.append(bytes, 0, bytes.length);
-    if (toAppend != '\0') {
-      t.append(new byte[] {(byte)toAppend}, 0, 1);
+    double abs = Math.abs(d);
+    int decimals = -1;
+    long scaled = 0;
+    if (abs >= 1E-3 && abs < 1E7) {
+      // Find the fewest decimal places that represent the number exactly
+      for (int k = 0; k < LongPowersOf10.length; k++) {
+        double scaledD = abs * DoublePowersOf10[k];
+        if (scaledD >= MaxExactLong)
+          break;
+        long candidate = Math.round(scaledD);
+        if (candidate / DoublePowersOf10[k] == abs) {
+          decimals = k;
+          scaled = candidate;
+          break;
+        }
+      }
+    }
+    if (decimals == -1) {
+      // Zero, NaN, infinity, numbers in scientific notation, or numbers that
+      // need too many digits
+      byte[] bytes = Double.toString(d).getBytes();
+      t.append(bytes, 0, bytes.length);
+      if (toAppend != '\0')
+        t.append(new byte[] {(byte)toAppend}, 0, 1);
+      return;
+    }
+    long integerPart = scaled / LongPowersOf10[decimals];
+    long fractionPart = scaled % LongPowersOf10[decimals];
+    int fractionDigits = Math.max(decimals, 1);
+    int integerDigits = 1;
+    for (long temp = integerPart / 10; temp != 0; temp /= 10)
+      integerDigits++;
+    int bytes_needed = integerDigits + 1 + fractionDigits;
+    if (d < 0)
+      bytes_needed++;
+    if (toAppend != '\0')
+      bytes_needed++;
+    // Reserve the bytes needed in the text and fill them from the end
+    t.append(ToAppend, 0, bytes_needed);
+    byte[] buffer = t.getBytes();
+    int position = t.getLength() - 1;
+    if (toAppend != '\0')
+      buffer[position--] = (byte) toAppend;
+    for (int i = 0; i < fractionDigits; i++) {
+      buffer[position--] = digits[(int) (fractionPart % 10)];
+      fractionPart /= 10;
     }
+    buffer[position--] = '.';
+    do {
+      buffer[position--] = digits[(int) (integerPart % 10)];
+      integerPart /= 10;
+    } while (integerPart != 0);
+    if (d < 0)
+      buffer[position--] = '-';
   }
   
   public static void serializeLong(long i, Text t, char toAppend) {
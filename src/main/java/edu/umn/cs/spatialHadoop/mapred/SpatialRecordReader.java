@@ -10,8 +10,10 @@ package edu.umn.cs.spatialHadoop.mapred;
 
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Vector;
@@ -37,17 +39,23 @@ import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 import org.apache.hadoop.util.LineReader;
 
+import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
-import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.ColumnarLocalIndexer;
+import edu.umn.cs.spatialHadoop.indexing.IndexOutputFormat;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
+import edu.umn.cs.spatialHadoop.io.ColumnarBlock;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
  * A base class to read shapes from files. It reads either single shapes,
  * list of shapes, or R-trees. It automatically detects the format of the
- * underlying block and parses it accordingly.
+ * underlying block and parses it accordingly. Files in the columnar format
+ * are decoded block by block and their records are returned as shapes or as
+ * the text of the shape configured in the job.
  * 
  * The class implement the RecordReader interface allowing it to be used in
  * MapReduce programs with an appropriate InputFormat. The key is always
@@ -70,7 +78,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**Maximum size in bytes that can be read in one read*/
   private int maxBytesInOneRead;
   
-  enum BlockType { HEAP, RTREE};
+  enum BlockType { HEAP, RTREE, COLUMNAR};
   
   /** First offset that is read from the input */
   protected long start;
@@ -89,6 +97,10 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   protected LineReader lineReader;
   /** A temporary text to read lines from lineReader */
   protected Text tempLine = new Text();
+  /**Whether the records of this file start with an MBR prefix*/
+  private boolean mbrPrefix;
+  /**The MBR prefix of the last line read*/
+  private final double[] recordMBR = new double[4];
   /** Some bytes that were read from the stream but not parsed yet */
   protected byte[] buffer;
 
@@ -107,6 +119,30 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**The type of the currently parsed block*/
   protected BlockType blockType;
 
+  /**Whether the R-tree in the current block stores its leaves in binary*/
+  protected boolean binaryRTree;
+
+  /**Reads the records of an R-tree with binary leaves*/
+  private DataInputStream binaryIn;
+
+  /**A reusable buffer for the text of a record with a binary layout*/
+  private byte[] binaryRecord;
+
+  /**The block of a columnar file currently being read*/
+  private ColumnarBlock columnarBlock;
+
+  /**Offsets of the blocks of a columnar file followed by the end of the last*/
+  private long[] blockOffsets;
+
+  /**Index of the next block of a columnar file to read*/
+  private int nextBlock;
+
+  /**Index of the next record to return from the current columnar block*/
+  private int nextRecord;
+
+  /**The shape used to return records of a columnar file as lines*/
+  private Shape columnarShape;
+
   /**
    * The input stream that reads directly from the input file.
    * If the file is not compressed, this stream is the same as the in.
@@ -183,6 +219,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     this.pos = start;
     this.maxShapesInOneRead = job.getInt(SpatialSite.MaxShapesInOneRead, 1000000);
     this.maxBytesInOneRead = job.getInt(SpatialSite.MaxBytesInOneRead, 32*1024*1024);
+    this.columnarShape = OperationsParams.getShape(job, "shape");
 
     initializeReader();
   }
@@ -278,16 +315,12 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   protected boolean initializeReader() throws IOException {
     // Get the cell info for the current block
     cellMbr.invalidate(); // Initialize to invalid rectangle
+    mbrPrefix = IndexOutputFormat.hasMBRPrefix(path);
     if (path != null) {
-      GlobalIndex<Partition> globalIndex =
-          SpatialSite.getGlobalIndex(fs, path.getParent());
-      if (globalIndex != null) {
-        for (Partition partition : globalIndex) {
-          if (partition.filename.equals(path.getName())) {
-            cellMbr.set(partition);
-          }
-        }
-      }
+      Partition partition =
+          SpatialSite.getPartitionByName(fs, path.getParent(), path.getName());
+      if (partition != null)
+        cellMbr.set(partition);
     }
     
     // Read the first part of the block to determine its type
@@ -300,8 +333,25 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       buffer = new byte[bufferLength];
       System.arraycopy(old_buffer, 0, buffer, 0, bufferLength);
     }
-    if (buffer != null && Arrays.equals(buffer, SpatialSite.RTreeFileMarkerB)) {
+    boolean columnar = path != null &&
+        path.getName().endsWith("."+ColumnarLocalIndexer.Extension);
+    if (columnar || (buffer != null && buffer.length == 8 &&
+        ByteBuffer.wrap(buffer).getLong() == SpatialSite.ColumnarFileMarker)) {
+      // Blocks are found from the offsets at the end of the file
+      if (directIn == null || isCompressedInput())
+        throw new IOException("Cannot read the columnar file '"+path+
+            "' from a stream or a compressed file");
+      blockType = BlockType.COLUMNAR;
+      columnarBlock = new ColumnarBlock();
+      blockOffsets = ColumnarBlock.readBlockOffsets(directIn,
+          fs.getFileStatus(path).getLen());
+      nextBlock = ColumnarBlock.firstBlockAt(blockOffsets, start);
+      nextRecord = 0;
+      buffer = null;
+    } else if (buffer != null && (Arrays.equals(buffer, SpatialSite.RTreeFileMarkerB)
+        || Arrays.equals(buffer, SpatialSite.RTreeBinaryFileMarkerB))) {
       blockType = BlockType.RTREE;
+      binaryRTree = Arrays.equals(buffer, SpatialSite.RTreeBinaryFileMarkerB);
       pos += 8;
       // Ignore the signature
       buffer = null;
@@ -358,11 +408,30 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
   /**
    * Reads the next line from input and return true if a line was read.
    * If no more lines are available in this split, a false is returned.
+   * The MBR prefix of the line is removed if the file is written with it.
    * @param value
    * @return
    * @throws IOException
    */
   protected boolean nextLine(Text value) throws IOException {
+    if (!readLine(value))
+      return false;
+    if (mbrPrefix)
+      TextSerializerHelper.consumeMBRPrefix(value, recordMBR);
+    return true;
+  }
+
+  /**
+   * Reads the next line from input as it is
+   * @param value
+   * @return
+   * @throws IOException
+   */
+  private boolean readLine(Text value) throws IOException {
+    if (blockType == BlockType.COLUMNAR)
+      return readColumnarRecord(value);
+    if (blockType == BlockType.RTREE && binaryRTree)
+      return readBinaryRecord(value);
     if (blockType == BlockType.RTREE && pos == 8) {
       // File is positioned at the RTree header
       // Skip the header and go to first data object in file
@@ -414,6 +483,85 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
     return false;
   }
 
+  /**
+   * Reads the text of the next record of an R-tree with binary leaves. The
+   * records follow the tree structure, each with its MBR and the length of
+   * its text. The text is returned as a line with the MBR kept as the MBR
+   * of the last line read.
+   * @param value
+   * @return
+   * @throws IOException
+   */
+  private boolean readBinaryRecord(Text value) throws IOException {
+    if (pos == 8) {
+      // Skip the header and go to first data object in file
+      pos += RTree.skipHeader(in);
+      binaryIn = in instanceof DataInputStream ? (DataInputStream) in
+          : new DataInputStream(in);
+    }
+    if (getFilePosition() >= end)
+      return false;
+    try {
+      recordMBR[0] = binaryIn.readDouble();
+    } catch (EOFException e) {
+      // Reached end of file
+      return false;
+    }
+    recordMBR[1] = binaryIn.readDouble();
+    recordMBR[2] = binaryIn.readDouble();
+    recordMBR[3] = binaryIn.readDouble();
+    int length = binaryIn.readInt();
+    if (binaryRecord == null || binaryRecord.length < length + 1)
+      binaryRecord = new byte[Math.max(length + 1, 1024)];
+    binaryIn.readFully(binaryRecord, 0, length);
+    // Terminate with a new line similar to lines of the text layout
+    binaryRecord[length] = '\n';
+    value.set(binaryRecord, 0, length + 1);
+    pos += RTree.BinaryRecordHeaderSize + length;
+    return true;
+  }
+
+  /**
+   * Moves to the next record of a columnar file and reads the next block of
+   * this split if all records of the current block were returned.
+   * @return <code>false</code> if there are no more records in this split
+   * @throws IOException
+   */
+  private boolean nextColumnarRecord() throws IOException {
+    while (nextRecord >= columnarBlock.getCount()) {
+      if (nextBlock >= blockOffsets.length - 1 || blockOffsets[nextBlock] >= end) {
+        pos = end;
+        return false;
+      }
+      pos = blockOffsets[nextBlock++];
+      directIn.seek(pos);
+      columnarBlock.readHeader(directIn);
+      columnarBlock.readData(directIn);
+      nextRecord = 0;
+    }
+    return true;
+  }
+
+  /**
+   * Decodes the next record of a columnar file into the shape configured in
+   * the job and returns its text as a line.
+   * @param value
+   * @return
+   * @throws IOException
+   */
+  private boolean readColumnarRecord(Text value) throws IOException {
+    if (columnarShape == null)
+      throw new IOException("The shape must be set to read the columnar file '"
+          +path+"' as text");
+    if (!nextColumnarRecord())
+      return false;
+    columnarBlock.getShape(nextRecord++, columnarShape);
+    value.clear();
+    columnarShape.toText(value);
+    value.append(new byte[] {'\n'}, 0, 1);
+    return true;
+  }
+
   /**
    * Reads next shape from input and returns true. If no more shapes are left
    * in the split, a false is returned. This function first reads a line
@@ -425,6 +573,13 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
    * @throws IOException 
    */
   protected boolean nextShape(Shape s) throws IOException {
+    if (blockType == BlockType.COLUMNAR) {
+      // Decode the record directly without going through its text
+      if (!nextColumnarRecord())
+        return false;
+      columnarBlock.getShape(nextRecord++, s);
+      return true;
+    }
     if (!nextLine(tempLine))
       return false;
     s.fromText(tempLine);
@@ -580,6 +735,7 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       buffer = null;
       DataInput dataIn = in instanceof DataInput?
           (DataInput) in : new DataInputStream(in);
+      rtree.setBinaryLeaves(binaryRTree);
       rtree.readFields(dataIn);
       pos++;
       return true;
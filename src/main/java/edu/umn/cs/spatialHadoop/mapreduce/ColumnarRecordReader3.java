@@ -0,0 +1,257 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.Partitioner;
+import edu.umn.cs.spatialHadoop.io.ColumnarBlock;
+
+/**
+ * Reads a file stored in the columnar format written by
+ * {@link edu.umn.cs.spatialHadoop.indexing.ColumnarLocalIndexer}. Each call
+ * to {@link #nextKeyValue()} returns the records of one block. A block is
+ * read by the split that contains its header, which is found from the block
+ * offsets at the end of the file. If a query range is set, blocks that do
+ * not overlap it are skipped without reading their data.
+ * @author Ahmed Eldawy
+ *
+ */
+public class ColumnarRecordReader3<V extends Shape> extends
+    RecordReader<Partition, Iterable<V>> {
+
+  private static final Log LOG = LogFactory.getLog(ColumnarRecordReader3.class);
+
+  /**The path of the input file to read*/
+  private Path path;
+  /**The offset to start reading the file*/
+  private long start;
+  /**The last byte to read in the file*/
+  private long end;
+  /**Offsets of all blocks in the file followed by the end of the last one*/
+  private long[] blockOffsets;
+  /**Index of the next block to read*/
+  private int nextBlock;
+  /**Input stream that reads data from input file*/
+  private FSDataInputStream in;
+
+  /** The boundary of the partition currently being read */
+  protected Partition cellMBR;
+
+  /** The partitioner of a replicated index used to avoid duplicates */
+  protected Partitioner partitioner;
+
+  /**The shape used to return records*/
+  private V stockShape;
+
+  /**Optional query range*/
+  private Shape inputQueryRange;
+  /**The MBR of the input query. Used to apply duplicate avoidance technique*/
+  private Rectangle inputQueryMBR;
+
+  /**The block currently being read*/
+  private ColumnarBlock block;
+
+  /**Value to be returned*/
+  private BlockIterator value;
+
+  @Override
+  public void initialize(InputSplit split, TaskAttemptContext context)
+      throws IOException, InterruptedException {
+    Configuration conf = context != null? context.getConfiguration() : new Configuration();
+    initialize(split, conf);
+  }
+
+  public void initialize(InputSplit split, Configuration conf)
+      throws IOException, InterruptedException {
+    LOG.info("Open a ColumnarRecordReader to split: "+split);
+    FileSplit fsplit = (FileSplit) split;
+    this.path = fsplit.getPath();
+    this.start = fsplit.getStart();
+    this.end = this.start + split.getLength();
+    FileSystem fs = this.path.getFileSystem(conf);
+    long fileLength = fs.getFileStatus(path).getLen();
+    this.in = fs.open(this.path);
+    if (in.readLong() != SpatialSite.ColumnarFileMarker)
+      throw new RuntimeException("Incorrect signature for columnar file "+path);
+    this.blockOffsets = ColumnarBlock.readBlockOffsets(in, fileLength);
+    this.nextBlock = ColumnarBlock.firstBlockAt(blockOffsets, start);
+    this.stockShape = (V) OperationsParams.getShape(conf, "shape");
+    this.block = new ColumnarBlock();
+    this.value = new BlockIterator();
+
+    if (conf.get(SpatialInputFormat3.InputQueryRange) != null) {
+      // Retrieve the input query range to apply on all records
+      this.inputQueryRange = OperationsParams.getShape(conf,
+          SpatialInputFormat3.InputQueryRange);
+      this.inputQueryMBR = this.inputQueryRange.getMBR();
+    }
+
+    // Set from the associated partition in the global index, if any
+    cellMBR = SpatialSite.getPartitionByName(fs, path.getParent(), path.getName());
+    if (cellMBR == null) {
+      // Not indexed or not listed in the global index
+      cellMBR = new Partition();
+      cellMBR.filename = path.getName();
+      cellMBR.invalidate();
+    }
+    partitioner = SpatialSite.getReplicatedPartitioner(fs, path.getParent());
+  }
+
+  @Override
+  public boolean nextKeyValue() throws IOException, InterruptedException {
+    while (nextBlock < blockOffsets.length - 1 && blockOffsets[nextBlock] < end) {
+      in.seek(blockOffsets[nextBlock++]);
+      block.readHeader(in);
+      // Skip blocks that do not match the query without reading their data
+      if (block.getCount() == 0 ||
+          (inputQueryMBR != null && !isIntersected(block.getMBR(), inputQueryMBR)))
+        continue;
+      block.readData(in);
+      value.reset();
+      if (value.hasNext())
+        return true;
+    }
+    return false;
+  }
+
+  /**Tests if two rectangles overlap including their boundaries*/
+  private static boolean isIntersected(Rectangle r1, Rectangle r2) {
+    return r1.x2 >= r2.x1 && r2.x2 >= r1.x1 && r1.y2 >= r2.y1 && r2.y2 >= r1.y1;
+  }
+
+  protected boolean isMatched(Shape shape) {
+    // Match with the query
+    if (inputQueryRange != null && !shape.isIntersected(inputQueryRange))
+      return false;
+    // Check if we need to apply a duplicate avoidance step or not
+    if (!cellMBR.isValid() || inputQueryMBR == null)
+      return true;
+    // Apply reference point duplicate avoidance technique
+    Rectangle shapeMBR = shape.getMBR();
+    double reference_x = Math.max(inputQueryMBR.x1, shapeMBR.x1);
+    double reference_y = Math.max(inputQueryMBR.y1, shapeMBR.y1);
+    return partitioner == null ? cellMBR.contains(reference_x, reference_y) :
+        partitioner.isReferencePointIn(cellMBR, reference_x, reference_y);
+  }
+
+  /**
+   * Iterates over the matching records of the current block. Records are
+   * decoded into the same shape object which is returned by all calls to
+   * {@link #next()}.
+   * @author Ahmed Eldawy
+   *
+   */
+  class BlockIterator implements Iterable<V>, Iterator<V> {
+    /**Position of the next record to check in the block*/
+    private int i;
+    /**
+     * Position of the next matching record, which is already decoded in the
+     * stock shape, or -1 if it is not found yet
+     */
+    private int next;
+
+    void reset() {
+      i = 0;
+      next = -1;
+    }
+
+    /**
+     * Finds and decodes the next matching record. Returns its position or
+     * the block size if there are no more matching records.
+     */
+    private int findNext() {
+      try {
+        while (i < block.getCount()) {
+          int current = i++;
+          // Filter on the record MBR before decoding the record
+          if (inputQueryMBR != null &&
+              !block.isRecordMBRIntersected(current, inputQueryMBR))
+            continue;
+          block.getShape(current, stockShape);
+          if (isMatched(stockShape))
+            return current;
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading from file", e);
+      }
+      return block.getCount();
+    }
+
+    @Override
+    public Iterator<V> iterator() {
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == -1)
+        next = findNext();
+      return next < block.getCount();
+    }
+
+    @Override
+    public V next() {
+      if (!hasNext())
+        return null;
+      next = -1;
+      return stockShape;
+    }
+
+    @Override
+    public void remove() {
+      throw new RuntimeException("Non-implemented method");
+    }
+  }
+
+  @Override
+  public Partition getCurrentKey() throws IOException, InterruptedException {
+    return cellMBR;
+  }
+
+  @Override
+  public Iterable<V> getCurrentValue() throws IOException, InterruptedException {
+    return value;
+  }
+
+  @Override
+  public float getProgress() throws IOException, InterruptedException {
+    if (start == end) {
+      return 0.0f;
+    } else {
+      return Math.min(1.0f,
+        (in.getPos() - start) / (float)(end - start));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (in != null) {
+      in.close();
+      in = null;
+    }
+  }
+}
@@ -10,6 +10,7 @@ package edu.umn.cs.spatialHadoop.mapreduce;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -18,6 +19,7 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.compress.CodecPool;
@@ -33,11 +35,12 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
-import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.Partitioner;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
 
 /**
@@ -66,6 +69,9 @@ public class RTreeRecordReader3<V extends Shape> extends
   
   /** The boundary of the partition currently being read */
   protected Partition cellMBR;
+
+  /** The partitioner of a replicated index used to avoid duplicates */
+  protected Partitioner partitioner;
   
   /**
    * The input stream that reads directly from the input file.
@@ -93,6 +99,11 @@ public class RTreeRecordReader3<V extends Shape> extends
   /**The MBR of the input query. Used to apply duplicate avoidance technique*/
   private Rectangle inputQueryMBR;
 
+  /**Whether the trees in this file store their leaf records in binary*/
+  private boolean binaryLeaves;
+  /**A channel to memory-map trees with binary leaves in local files*/
+  private RandomAccessFile mappedFile;
+
   public RTreeRecordReader3() {
   }
 
@@ -144,7 +155,14 @@ public class RTreeRecordReader3<V extends Shape> extends
     }
     byte[] signature = new byte[8];
     in.readFully(signature);
-    if (!Arrays.equals(signature, SpatialSite.RTreeFileMarkerB)) {
+    if (Arrays.equals(signature, SpatialSite.RTreeBinaryFileMarkerB)) {
+      binaryLeaves = true;
+      if (codec == null && fs instanceof LocalFileSystem) {
+        // Memory-map the file to search the trees without copying records
+        mappedFile = new RandomAccessFile(
+            ((LocalFileSystem)fs).pathToFile(path), "r");
+      }
+    } else if (!Arrays.equals(signature, SpatialSite.RTreeFileMarkerB)) {
       throw new RuntimeException("Incorrect signature for RTree");
     }
     this.stockShape = (V) OperationsParams.getShape(conf, "shape");
@@ -156,18 +174,14 @@ public class RTreeRecordReader3<V extends Shape> extends
       this.inputQueryMBR = this.inputQueryRange.getMBR();
     }
 
-    // Check if there is an associated global index to read cell boundaries
-    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, path.getParent());
-    if (gindex == null) {
+    // Set from the associated partition in the global index, if any
+    cellMBR = SpatialSite.getPartitionByName(fs, path.getParent(), path.getName());
+    if (cellMBR == null) {
+      // Not indexed or not listed in the global index
       cellMBR = new Partition();
       cellMBR.invalidate();
-    } else {
-      // Set from the associated partition in the global index
-      for (Partition p : gindex) {
-        if (p.filename.equals(this.path.getName()))
-          cellMBR = p;
-      }
     }
+    partitioner = SpatialSite.getReplicatedPartitioner(fs, path.getParent());
   }
   
   @Override
@@ -184,7 +198,10 @@ public class RTreeRecordReader3<V extends Shape> extends
       return false;
     RTree<V> rtree = new RTree<V>();
     rtree.setStockObject(stockShape);
+    rtree.setBinaryLeaves(binaryLeaves);
     rtree.readFields(in);
+    if (mappedFile != null)
+      rtree.mapTree(mappedFile.getChannel());
     this.offsetOfNextTree = rtree.getEndOffset();
 
     if (inputQueryRange != null) {
@@ -210,6 +227,8 @@ public class RTreeRecordReader3<V extends Shape> extends
   public static class DuplicateAvoidanceIterator<V extends Shape> implements Iterable<V>, Iterator<V> {
     /**MBR of the containing cell to run the reference point technique*/
     private Rectangle cellMBR;
+    /**Partitioner of a replicated index that assigns reference points*/
+    private Partitioner partitioner;
     /**MBR of the query range*/
     private Rectangle inputQueryMBR;
     /**All underlying values*/
@@ -219,7 +238,22 @@ public class RTreeRecordReader3<V extends Shape> extends
 
     public DuplicateAvoidanceIterator(Rectangle cellMBR,
         Rectangle inputQueryMBR, Iterator<V> values) {
+      this(cellMBR, null, inputQueryMBR, values);
+    }
+
+    /**
+     * Creates an iterator that assigns reference points to cells using the
+     * partitioner of a replicated index.
+     * @param cellMBR
+     * @param partitioner - the partitioner of the index or null to test the
+     *   reference point against the MBR of the cell
+     * @param inputQueryMBR
+     * @param values
+     */
+    public DuplicateAvoidanceIterator(Rectangle cellMBR, Partitioner partitioner,
+        Rectangle inputQueryMBR, Iterator<V> values) {
       this.cellMBR = cellMBR;
+      this.partitioner = cellMBR instanceof CellInfo ? partitioner : null;
       this.inputQueryMBR = inputQueryMBR;
       this.values = values;
       getNextValue();
@@ -230,7 +264,8 @@ public class RTreeRecordReader3<V extends Shape> extends
       Rectangle shapeMBR = shape.getMBR();
       double reference_x = Math.max(inputQueryMBR.x1, shapeMBR.x1);
       double reference_y = Math.max(inputQueryMBR.y1, shapeMBR.y1);
-      return cellMBR.contains(reference_x, reference_y);
+      return partitioner == null ? cellMBR.contains(reference_x, reference_y) :
+          partitioner.isReferencePointIn((CellInfo) cellMBR, reference_x, reference_y);
     }
     
     @Override
@@ -269,7 +304,8 @@ public class RTreeRecordReader3<V extends Shape> extends
   public Iterable<V> getCurrentValue() throws IOException, InterruptedException {
     if (cellMBR.isValid() && inputQueryMBR != null) {
       // need to run a duplicate avoidance technique on all results
-      return new DuplicateAvoidanceIterator<V>(cellMBR, inputQueryMBR, value.iterator());
+      return new DuplicateAvoidanceIterator<V>(cellMBR, partitioner,
+          inputQueryMBR, value.iterator());
     }
     return value;
   }
@@ -293,6 +329,10 @@ public class RTreeRecordReader3<V extends Shape> extends
       if (decompressor != null) {
         CodecPool.returnDecompressor(decompressor);
       }
+      if (mappedFile != null) {
+        mappedFile.close();
+        mappedFile = null;
+      }
     }
 
   }
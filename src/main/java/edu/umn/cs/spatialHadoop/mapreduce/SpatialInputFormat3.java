@@ -10,8 +10,10 @@ package edu.umn.cs.spatialHadoop.mapreduce;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Vector;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -29,14 +31,18 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.ColumnarLocalIndexer;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.ZCurvePartitioner;
 import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.CombineBlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.FileSplitUtil;
@@ -44,6 +50,7 @@ import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.nasa.HTTPFileSystem;
 import edu.umn.cs.spatialHadoop.operations.RangeFilter;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * @author Ahmed Eldawy
@@ -96,9 +103,12 @@ public class SpatialInputFormat3<K extends Rectangle, V extends Shape>
       if (SpatialSite.isRTree(path.getFileSystem(conf), path)) {
         return (RecordReader)new RTreeRecordReader3<V>();
       }
-      // Check if a custom record reader is configured with this extension
+      // Check if a custom record reader is configured with this extension.
+      // Files in the columnar format are read by default with their own reader
       Class<?> recordReaderClass = conf.getClass("SpatialInputFormat."
-          + extension + ".recordreader", SpatialRecordReader3.class);
+          + extension + ".recordreader",
+          extension.equals(ColumnarLocalIndexer.Extension) ?
+              ColumnarRecordReader3.class : SpatialRecordReader3.class);
       try {
         return (RecordReader<K, Iterable<V>>) recordReaderClass.newInstance();
       } catch (InstantiationException e) {
@@ -225,6 +235,136 @@ public class SpatialInputFormat3<K extends Rectangle, V extends Shape>
     }
   }
   
+  /**
+   * Combines file splits into about 1/combine as many splits with balanced
+   * sizes. First, the splits are ordered by the Z-order of the MBRs of their
+   * partitions if they belong to an indexed file, or by their order in the
+   * input otherwise. Then, each split is assigned to the host, among its
+   * locations, with the least number of bytes assigned so far. Consecutive
+   * splits of each host are combined until they reach the average size of a
+   * combined split so that each combined split is local to one host and
+   * covers a compact region of the space. The few splits left at the end of
+   * each host are combined together in the same order. This takes
+   * O(n log n) time for n splits.
+   * @param splits
+   * @param combine - the average number of splits in one combined split
+   * @param conf
+   * @return
+   * @throws IOException
+   */
+  protected static List<InputSplit> combineSplits(final List<FileSplit> splits,
+      int combine, Configuration conf) throws IOException {
+    final int n = splits.size();
+    if (n == 0)
+      return new ArrayList<InputSplit>();
+    // Find the partition of each split to order them spatially
+    Rectangle[] mbrs = new Rectangle[n];
+    Rectangle space = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
+        -Double.MAX_VALUE, -Double.MAX_VALUE);
+    long totalBytes = 0;
+    for (int i = 0; i < n; i++) {
+      FileSplit split = splits.get(i);
+      totalBytes += split.getLength();
+      Path path = split.getPath();
+      Partition partition = SpatialSite.getPartitionByName(
+          path.getFileSystem(conf), path.getParent(), path.getName());
+      if (partition != null && partition.isValid()) {
+        mbrs[i] = partition;
+        space.expand(partition);
+      }
+    }
+    final long[] keys = new long[n];
+    final int[] order = new int[n];
+    for (int i = 0; i < n; i++) {
+      order[i] = i;
+      keys[i] = mbrs[i] == null ? Long.MAX_VALUE : ZCurvePartitioner.computeZ(
+          space, (mbrs[i].x1 + mbrs[i].x2) / 2, (mbrs[i].y1 + mbrs[i].y2) / 2);
+    }
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        if (keys[i] != keys[j])
+          return keys[i] < keys[j] ? -1 : 1;
+        // Keep the input order of splits that are not indexed
+        return order[i] - order[j];
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        long tempKey = keys[i];
+        keys[i] = keys[j];
+        keys[j] = tempKey;
+        int temp = order[i];
+        order[i] = order[j];
+        order[j] = temp;
+      }
+    }, 0, n);
+
+    // Assign each split to its least loaded host in the spatial order
+    Map<String, IntArray> hostSplits = new LinkedHashMap<String, IntArray>();
+    Map<String, Long> hostBytes = new HashMap<String, Long>();
+    for (int rank = 0; rank < n; rank++) {
+      FileSplit split = splits.get(order[rank]);
+      String bestHost = "";
+      long bestBytes = Long.MAX_VALUE;
+      for (String host : split.getLocations()) {
+        Long bytes = hostBytes.get(host);
+        long assignedBytes = bytes == null ? 0 : bytes;
+        if (assignedBytes < bestBytes) {
+          bestHost = host;
+          bestBytes = assignedBytes;
+        }
+      }
+      hostBytes.put(bestHost, (bestBytes == Long.MAX_VALUE ? 0 : bestBytes)
+          + split.getLength());
+      IntArray ranks = hostSplits.get(bestHost);
+      if (ranks == null) {
+        ranks = new IntArray();
+        hostSplits.put(bestHost, ranks);
+      }
+      ranks.add(rank);
+    }
+
+    // Combine consecutive splits of each host up to the average size
+    int numCombinedSplits = (n + combine - 1) / combine;
+    long targetBytes = (totalBytes + numCombinedSplits - 1) / numCombinedSplits;
+    List<InputSplit> combinedSplits = new ArrayList<InputSplit>(numCombinedSplits);
+    IntArray remaining = new IntArray();
+    List<FileSplit> group = new ArrayList<FileSplit>();
+    for (IntArray ranks : hostSplits.values()) {
+      int groupStart = 0;
+      long groupBytes = 0;
+      for (int i = 0; i < ranks.size(); i++) {
+        groupBytes += splits.get(order[ranks.get(i)]).getLength();
+        if (groupBytes >= targetBytes) {
+          group.clear();
+          for (int j = groupStart; j <= i; j++)
+            group.add(splits.get(order[ranks.get(j)]));
+          combinedSplits.add(FileSplitUtil.combineFileSplits(group, 0, group.size()));
+          groupStart = i + 1;
+          groupBytes = 0;
+        }
+      }
+      for (int j = groupStart; j < ranks.size(); j++)
+        remaining.add(ranks.get(j));
+    }
+    // Combine the remaining splits of all hosts in the spatial order
+    remaining.sort();
+    group.clear();
+    long groupBytes = 0;
+    for (int i = 0; i < remaining.size(); i++) {
+      FileSplit split = splits.get(order[remaining.get(i)]);
+      group.add(split);
+      groupBytes += split.getLength();
+      if (groupBytes >= targetBytes || i == remaining.size() - 1) {
+        combinedSplits.add(FileSplitUtil.combineFileSplits(group, 0, group.size()));
+        group.clear();
+        groupBytes = 0;
+      }
+    }
+    return combinedSplits;
+  }
+  
   @Override
   public List<InputSplit> getSplits(JobContext job) throws IOException {
     List<InputSplit> splits = super.getSplits(job);
@@ -232,69 +372,10 @@ public class SpatialInputFormat3<K extends Rectangle, V extends Shape>
     if (jobConf.getInt(CombineSplits, 1) > 1) {
       long t1 = System.currentTimeMillis();
       int combine = jobConf.getInt(CombineSplits, 1);
-      /*
-       * Combine splits to reduce number of map tasks. Currently, this is done
-       * using a greedy algorithm that combines splits based on how many hosts
-       * they share.
-       * TODO: Use a graph clustering algorithm where each vertex represents a
-       * split, and each edge is weighted with number of shared hosts between
-       * the two splits
-       */
-      Vector<Vector<FileSplit>> openSplits = new Vector<Vector<FileSplit>>();
-      int maxNumberOfSplits = (int) Math.ceil((float)splits.size() / combine);
-      List<InputSplit> combinedSplits = new Vector<InputSplit>();
-      for (InputSplit split : splits) {
-        FileSplit fsplit = (FileSplit) split;
-        int maxSimilarity = -1; // Best similarity found so far
-        int bestFit = -1; // Index of a random open split with max similarity
-        int numMatches = 0; // Number of splits with max similarity
-        for (int i = 0; i < openSplits.size(); i++) {
-          Vector<FileSplit> splitList = openSplits.elementAt(i);
-          int similarity = 0;
-          for (FileSplit otherSplit : splitList) {
-            for (String host1 : fsplit.getLocations())
-              for (String host2 : otherSplit.getLocations())
-                if (host1.equals(host2))
-                  similarity++;
-          }
-          if (similarity > maxSimilarity) {
-            maxSimilarity = similarity;
-            bestFit = i;
-            numMatches = 1;
-          } else if (similarity == maxSimilarity) {
-            numMatches++;
-            // Replace with a probability () for a reservoir sample
-            double random = Math.random();
-            if (random < (double) 1 / numMatches) {
-              // Replace the element in the reservoir
-              bestFit = i;
-            }
-          }
-        }
-        if (maxSimilarity > 0 || (openSplits.size() + combinedSplits.size()) >= maxNumberOfSplits) {
-          // Good fit || cannot create more open splits,
-          // add it to an existing open split.
-          Vector<FileSplit> bestList = openSplits.elementAt(bestFit);
-          bestList.add(fsplit);
-          if (bestList.size() > combine) {
-            // Reached threshold for this list. Add it to combined splits
-            combinedSplits.add(FileSplitUtil.combineFileSplits(bestList, 0, bestList.size()));
-            // Remove it from open splits
-            openSplits.remove(bestFit);
-          }
-        } else {
-          // Bad fit && can add a new split
-          // Create a new open split just for this one
-          Vector<FileSplit> newOpenSplit = new Vector<FileSplit>();
-          newOpenSplit.add(fsplit);
-          openSplits.addElement(newOpenSplit);
-        }
-      }
-      
-      // Add all remaining open splits to the list of combined splits
-      for (Vector<FileSplit> openSplit : openSplits) {
-        combinedSplits.add(FileSplitUtil.combineFileSplits(openSplit, 0, openSplit.size()));
-      }
+      List<FileSplit> fsplits = new ArrayList<FileSplit>(splits.size());
+      for (InputSplit split : splits)
+        fsplits.add((FileSplit) split);
+      List<InputSplit> combinedSplits = combineSplits(fsplits, combine, jobConf);
       
       String msg = String.format("Combined %d splits into %d combined splits",
           splits.size(), combinedSplits.size());
@@ -40,8 +40,10 @@ import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
-import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.IndexOutputFormat;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.Partitioner;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
  * @author Ahmed Eldawy
@@ -68,6 +70,9 @@ public class SpatialRecordReader3<V extends Shape> extends
   
   /** The boundary of the partition currently being read */
   protected Partition cellMBR;
+
+  /** The partitioner of a replicated index used to avoid duplicates */
+  protected Partitioner partitioner;
   
   /**
    * The input stream that reads directly from the input file.
@@ -93,6 +98,10 @@ public class SpatialRecordReader3<V extends Shape> extends
   private Shape inputQueryRange;
   /**The MBR of the input query. Used to apply duplicate avoidance technique*/
   private Rectangle inputQueryMBR;
+  /**Whether the records of this file start with an MBR prefix*/
+  private boolean mbrPrefix;
+  /**The MBR prefix of the current record as (x1, y1, x2, y2)*/
+  private final double[] recordMBR = new double[4];
 
   private CompressionCodecFactory compressionCodecFactory;
 
@@ -131,6 +140,7 @@ public class SpatialRecordReader3<V extends Shape> extends
     this.start = fsplit.getStart();
     this.end = this.start + split.getLength();
     this.fs = this.path.getFileSystem(conf);
+    this.mbrPrefix = IndexOutputFormat.hasMBRPrefix(this.path);
     this.directIn = fs.open(this.path);
     codec = compressionCodecFactory.getCodec(this.path);
     
@@ -179,19 +189,15 @@ public class SpatialRecordReader3<V extends Shape> extends
       this.inputQueryMBR = this.inputQueryRange.getMBR();
     }
     
-    // Check if there is an associated global index to read cell boundaries
-    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, path.getParent());
-    if (gindex == null) {
+    // Set from the associated partition in the global index, if any
+    cellMBR = SpatialSite.getPartitionByName(fs, path.getParent(), path.getName());
+    if (cellMBR == null) {
+      // Not indexed or not listed in the global index
       cellMBR = new Partition();
       cellMBR.filename = path.getName();
       cellMBR.invalidate();
-    } else {
-      // Set from the associated partition in the global index
-      for (Partition p : gindex) {
-        if (p.filename.equals(this.path.getName()))
-          cellMBR = p;
-      }
     }
+    partitioner = SpatialSite.getReplicatedPartitioner(fs, path.getParent());
     
     this.value = new ShapeIterator<V>();
     value.setShape(stockShape);
@@ -250,7 +256,30 @@ public class SpatialRecordReader3<V extends Shape> extends
     Rectangle shapeMBR = shape.getMBR();
     double reference_x = Math.max(inputQueryMBR.x1, shapeMBR.x1);
     double reference_y = Math.max(inputQueryMBR.y1, shapeMBR.y1);
-    return cellMBR.contains(reference_x, reference_y);
+    return partitioner == null ? cellMBR.contains(reference_x, reference_y) :
+        partitioner.isReferencePointIn(cellMBR, reference_x, reference_y);
+  }
+  
+  /**
+   * Tests the MBR of a record that is not parsed yet against the query range
+   * and the duplicate avoidance test. This is a necessary condition for
+   * {@link #isMatched(Shape)} to accept the record so records that fail this
+   * test are skipped without parsing them.
+   * @param mbr - the MBR of the record as (x1, y1, x2, y2)
+   * @return
+   */
+  protected boolean isMBRMatched(double[] mbr) {
+    if (inputQueryMBR == null)
+      return true;
+    if (mbr[2] < inputQueryMBR.x1 || inputQueryMBR.x2 < mbr[0] ||
+        mbr[3] < inputQueryMBR.y1 || inputQueryMBR.y2 < mbr[1])
+      return false;
+    if (!cellMBR.isValid())
+      return true;
+    double reference_x = Math.max(inputQueryMBR.x1, mbr[0]);
+    double reference_y = Math.max(inputQueryMBR.y1, mbr[1]);
+    return partitioner == null ? cellMBR.contains(reference_x, reference_y) :
+        partitioner.isReferencePointIn(cellMBR, reference_x, reference_y);
   }
   
   /**
@@ -258,18 +287,23 @@ public class SpatialRecordReader3<V extends Shape> extends
    * in the split, a false is returned. This function first reads a line
    * by calling the method {@link #nextLine(Text)} then parses the returned
    * line by calling {@link Shape#fromText(Text)} on that line. If no stock
-   * shape is set, a {@link NullPointerException} is thrown.
+   * shape is set, a {@link NullPointerException} is thrown. In files written
+   * with an MBR prefix, lines with an MBR that does not match the query are
+   * skipped without parsing them.
    * @param s A mutable shape object to update with the next value
    * @return <code>true</code> if an object was read; <code>false</code> if end-of-file was reached.
    * @throws IOException If an error happens while reading from disk
    */
   protected boolean nextShape(V s) throws IOException {
-    do {
-      if (!nextLine(tempLine))
-        return false;
+    while (nextLine(tempLine)) {
+      if (mbrPrefix && TextSerializerHelper.consumeMBRPrefix(tempLine, recordMBR)
+          && !isMBRMatched(recordMBR))
+        continue;
       s.fromText(tempLine);
-    } while (!isMatched(s));
-    return true;
+      if (isMatched(s))
+        return true;
+    }
+    return false;
   }
 
   @Override
@@ -11,8 +11,10 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -51,13 +53,16 @@ import org.apache.hadoop.util.QuickSort;
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.Partitioner;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
+import edu.umn.cs.spatialHadoop.indexing.RTreePageCache;
 import edu.umn.cs.spatialHadoop.mapred.BinaryRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.BinarySpatialInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
@@ -72,6 +77,7 @@ import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 import edu.umn.cs.spatialHadoop.operations.Repartition.RepartitionMap;
 import edu.umn.cs.spatialHadoop.operations.Repartition.RepartitionMapNoReplication;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.Progressable;
 
 /**
@@ -96,6 +102,8 @@ public class DistributedJoin {
 	private static final String InactiveMode = "DJ.InactiveMode";
 	private static final String isFilterOnlyMode = "DJ.FilterOnlyMode";
 	private static final String JoiningThresholdPerOnce = "DJ.JoiningThresholdPerOnce";
+	/**Whether the indexed file is the first input of a co-partitioned join*/
+	private static final String CoPartitionIndexedFirst = "DJ.CoPartitionIndexedFirst";
 	
 	public static class SpatialJoinFilter extends DefaultBlockFilter {
 		@Override
@@ -133,22 +141,103 @@ public class DistributedJoin {
 		}
 	}
 
+	/**
+	 * Tests whether the reference point of a result pair is assigned to the
+	 * pair of partitions joined by a map task. Each result is reported only by
+	 * the pair of partitions of its reference point to avoid duplicates. An
+	 * indexed side is tested with the partitioner of its index if the index is
+	 * replicated and its partitioner is known. This assigns the point to
+	 * exactly one partition even if partitions overlap, e.g., along a
+	 * space-filling curve. Otherwise, the side is tested by the MBR of its
+	 * partition.
+	 */
+	static class ReferencePointFilter {
+		/**The split that the partitions are looked up for*/
+		private InputSplit split;
+		/**The partition of each side or null if it is not indexed*/
+		private final CellInfo[] cells = new CellInfo[2];
+		/**The partitioner of each side or null if not replicated or not known*/
+		private final Partitioner[] partitioners = new Partitioner[2];
+
+		/**
+		 * Finds the partitions of a pair of blocks. The partitioners are looked
+		 * up from the paths of the split if it is a combined split of two files.
+		 * @param job
+		 * @param key - the MBRs of the partitions of the two blocks
+		 * @param split - the split of the current map task or null if not known
+		 * @throws IOException
+		 */
+		void setPartitions(JobConf job, PairWritable<Rectangle> key,
+				InputSplit split) throws IOException {
+			if (split != null && split == this.split)
+				return;
+			this.split = split;
+			Rectangle[] mbrs = {key.first, key.second};
+			for (int i = 0; i < 2; i++) {
+				partitioners[i] = null;
+				cells[i] = mbrs[i].isValid() ? new CellInfo(0, mbrs[i]) : null;
+				if (cells[i] == null || !(split instanceof CombineFileSplit)
+						|| ((CombineFileSplit) split).getNumPaths() != 2)
+					continue;
+				Path path = ((CombineFileSplit) split).getPath(i);
+				FileSystem fs = path.getFileSystem(job);
+				Partitioner partitioner = SpatialSite.getReplicatedPartitioner(fs,
+						path.getParent());
+				Partition partition = partitioner == null ? null :
+					SpatialSite.getPartitionByName(fs, path.getParent(), path.getName());
+				if (partition != null) {
+					cells[i] = partition;
+					partitioners[i] = partitioner;
+				}
+			}
+		}
+
+		boolean isReferencePointIn(double x, double y) {
+			for (int i = 0; i < 2; i++) {
+				if (cells[i] == null)
+					continue;
+				if (partitioners[i] == null ? !cells[i].contains(x, y)
+						: !partitioners[i].isReferencePointIn(cells[i], x, y))
+					return false;
+			}
+			return true;
+		}
+	}
+
 	public static class RedistributeJoinMap extends MapReduceBase
 			implements
 			Mapper<PairWritable<Rectangle>, PairWritable<? extends Writable>, Shape, Shape> {
 
 		private boolean isFilterOnly;
 		
+		/**A page cache shared by both R-trees of each join*/
+		private RTreePageCache pageCache;
+		
+		private JobConf job;
+		
+		/**Assigns each result to exactly one pair of partitions*/
+		private final ReferencePointFilter referencePoints = new ReferencePointFilter();
+		
 		@Override
 		public void configure(JobConf job) {
 			super.configure(job);
+			this.job = job;
 			isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
+			pageCache = new RTreePageCache(job);
 		}
 		
 		public void map(final PairWritable<Rectangle> key,
 				final PairWritable<? extends Writable> value,
 				final OutputCollector<Shape, Shape> output, final Reporter reporter)
 				throws IOException {
+			InputSplit split;
+			try {
+				split = reporter.getInputSplit();
+			} catch (UnsupportedOperationException e) {
+				// Not running in a map task. Partitions are tested by their MBRs
+				split = null;
+			}
+			referencePoints.setPartitions(job, key, split);
 		
 		  final Rectangle dupAvoidanceMBR = !key.first.isValid()
 					&& !key.second.isValid() ? null // Both blocks are heap blocks
@@ -188,7 +277,7 @@ public class DistributedJoin {
 									    double intersectionY = Math.max(
 									        r.getMBR().y1, s.getMBR().y1);
 									    // Employ reference point duplicate avoidance technique
-                      if (dupAvoidanceMBR.contains(intersectionX, intersectionY))
+                      if (referencePoints.isReferencePointIn(intersectionX, intersectionY))
 									      output.collect(r, s);
 									  } catch (IOException e) {
 									    e.printStackTrace();
@@ -206,7 +295,7 @@ public class DistributedJoin {
 									    double intersectionY = Math.max(
 									        r.getMBR().y1, s.getMBR().y1);
 									    // Employ reference point duplicate avoidance technique
-                      if (dupAvoidanceMBR.contains(intersectionX, intersectionY))
+                      if (referencePoints.isReferencePointIn(intersectionX, intersectionY))
 									      output.collect(r, s);
 									  } catch (IOException e) {
 									    e.printStackTrace();
@@ -278,14 +367,15 @@ public class DistributedJoin {
 								// y in the intersection rectangle)
 								double intersectionX = Math.max(r.getMBR().x1, s.getMBR().x1);
 								double intersectionY = Math.max(r.getMBR().y1, s.getMBR().y1);
-                if (dupAvoidanceMBR.contains(intersectionX, intersectionY))
+                if (referencePoints.isReferencePointIn(intersectionX, intersectionY))
 									output.collect(r, s);
 							}
 						} catch (IOException e) {
 							e.printStackTrace();
 						}	
 					}
-				}, reporter);
+				}, reporter, pageCache);
+				pageCache.clear();
 			} else {
 				throw new RuntimeException("Cannot join "
 						+ value.first.getClass() + " with "
@@ -301,10 +391,14 @@ public class DistributedJoin {
 
 		private boolean isFilterOnly;
 		
+		/**A page cache shared by both R-trees of each join*/
+		private RTreePageCache pageCache;
+		
 		@Override
 		public void configure(JobConf job) {
 			super.configure(job);
 			isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
+			pageCache = new RTreePageCache(job);
 		}
 		
 		public void map(final PairWritable<Rectangle> key,
@@ -423,7 +517,8 @@ public class DistributedJoin {
 							e.printStackTrace();
 						}	
 					}
-				}, reporter);
+				}, reporter, pageCache);
+				pageCache.clear();
 			} else {
 				throw new RuntimeException("Cannot join "
 						+ value.first.getClass() + " with "
@@ -991,6 +1086,316 @@ public class DistributedJoin {
 		return resultCount;
 	}
 
+	/**
+	 * Routes each record of the file that is not indexed to all partitions of
+	 * the indexed file that its MBR overlaps. Records are keyed by the cell ID
+	 * of the partition so that a partition and its delta files are joined
+	 * together.
+	 * @author Ahmed Eldawy
+	 *
+	 */
+	public static class CoPartitionMap<T extends Shape> extends MapReduceBase
+			implements Mapper<Rectangle, T, IntWritable, T> {
+		/**Global index of the indexed file*/
+		private GlobalIndex<Partition> gIndex;
+		/**Cell IDs of all partitions that overlap the current record*/
+		private final IntArray cellIds = new IntArray();
+		/**Collects the cell IDs of the overlapping partitions*/
+		private final ResultCollector<Partition> cellCollector = new ResultCollector<Partition>() {
+			@Override
+			public void collect(Partition p) {
+				cellIds.add(p.cellId);
+			}
+		};
+		/**Used to output intermediate records*/
+		private final IntWritable cellId = new IntWritable();
+		private JobConf job;
+		/**The split of the current record*/
+		private InputSplit lastSplit;
+		/**The partition of the current split if its file is a replicated index*/
+		private Partition routedPartition;
+		/**The partitioner of the file of the current split if replicated*/
+		private Partitioner routedPartitioner;
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			this.job = job;
+			try {
+				Path indexDir = OperationsParams.getRepartitionJoinIndexPath(job,
+						RepartitionJoinIndexPath);
+				gIndex = SpatialSite.getGlobalIndex(indexDir.getFileSystem(job), indexDir);
+			} catch (IOException e) {
+				throw new RuntimeException("Cannot read the global index", e);
+			}
+		}
+
+		public void map(Rectangle cellMbr, T shape,
+				OutputCollector<IntWritable, T> output, Reporter reporter)
+				throws IOException {
+			Rectangle mbr = shape.getMBR();
+			if (mbr == null)
+				return;
+			// If this file is also a replicated index, only one replica is routed
+			if (cellMbr.isValid()) {
+				if (lastSplit != reporter.getInputSplit()) {
+					lastSplit = reporter.getInputSplit();
+					routedPartition = null;
+					routedPartitioner = null;
+					if (lastSplit instanceof FileSplit) {
+						Path path = ((FileSplit) lastSplit).getPath();
+						FileSystem fs = path.getFileSystem(job);
+						routedPartitioner = SpatialSite.getReplicatedPartitioner(fs,
+								path.getParent());
+						if (routedPartitioner != null)
+							routedPartition = SpatialSite.getPartitionByName(fs,
+									path.getParent(), path.getName());
+					}
+				}
+				// The partitioner assigns the replica to one partition even if
+				// partitions overlap, e.g., along a space-filling curve
+				if (routedPartition != null ?
+						!routedPartitioner.isReferencePointIn(routedPartition, mbr.x1, mbr.y1) :
+						!cellMbr.contains(mbr.x1, mbr.y1))
+					return;
+			}
+			cellIds.clear();
+			gIndex.rangeQuery(mbr, gIndex.getPartitioner(), cellCollector);
+			cellIds.sort();
+			for (int i = 0; i < cellIds.size(); i++) {
+				if (i == 0 || cellIds.get(i) != cellIds.get(i - 1)) {
+					cellId.set(cellIds.get(i));
+					output.collect(cellId, shape);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Joins the records routed to one cell with all partition files of that
+	 * cell in the indexed file using the plane sweep algorithm. If the indexed
+	 * file is replicated, a result pair is reported only in the partition that
+	 * contains the reference point of the pair.
+	 * Both sides are copied into memory since Hadoop reuses the objects it
+	 * passes. To bound the memory of a skewed cell, at most
+	 * {@link DistributedJoin#joiningThresholdPerOnce} (joining-per-once)
+	 * routed records are kept at a time and each partition file is joined
+	 * with them in chunks of the same size. A cell that receives more routed
+	 * records reads its partition files once for each chunk.
+	 * @author Ahmed Eldawy
+	 *
+	 */
+	public static class CoPartitionJoinReduce<T extends Shape> extends
+			MapReduceBase implements Reducer<IntWritable, T, Shape, Shape> {
+		/**Directory of the indexed file*/
+		private Path indexDir;
+		/**Partition files of each cell of the indexed file*/
+		private Map<Integer, List<Partition>> cellPartitions;
+		/**Whether the indexed file is replicated*/
+		private boolean replicated;
+		/**Partitioner of the indexed file that assigns reference points*/
+		private Partitioner partitioner;
+		/**Whether the indexed file is the first input to keep the order of pairs*/
+		private boolean indexedFirst;
+		private boolean isFilterOnly;
+		/**Maximum number of records of each side joined at once*/
+		private int shapesThresholdPerOnce;
+		private JobConf job;
+
+		@Override
+		public void configure(JobConf job) {
+			super.configure(job);
+			this.job = job;
+			indexDir = OperationsParams.getRepartitionJoinIndexPath(job,
+					RepartitionJoinIndexPath);
+			isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
+			shapesThresholdPerOnce = OperationsParams.getJoiningThresholdPerOnce(job,
+					JoiningThresholdPerOnce);
+			indexedFirst = job.getBoolean(CoPartitionIndexedFirst, false);
+			try {
+				GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(
+						indexDir.getFileSystem(job), indexDir);
+				replicated = gIndex.isReplicated();
+				partitioner = gIndex.getPartitioner();
+				cellPartitions = new HashMap<Integer, List<Partition>>();
+				for (Partition p : gIndex) {
+					List<Partition> partitions = cellPartitions.get(p.cellId);
+					if (partitions == null) {
+						partitions = new ArrayList<Partition>();
+						cellPartitions.put(p.cellId, partitions);
+					}
+					partitions.add(p);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Cannot read the global index", e);
+			}
+		}
+
+		@Override
+		public void reduce(IntWritable cellId, Iterator<T> shapes,
+				final OutputCollector<Shape, Shape> output, final Reporter reporter)
+				throws IOException {
+			final List<Shape> routed = new ArrayList<Shape>();
+			while (shapes.hasNext()) {
+				routed.clear();
+				do {
+					routed.add(shapes.next().clone());
+				} while (shapes.hasNext() && routed.size() < shapesThresholdPerOnce);
+				for (final Partition p : cellPartitions.get(cellId.get())) {
+					LOG.info("Joining "+routed.size()+" records with partition: "+p);
+					final ResultCollector2<Shape, Shape> pairCollector = new ResultCollector2<Shape, Shape>() {
+						@Override
+						public void collect(Shape r, Shape s) {
+							try {
+								if (replicated) {
+									// Reference point duplicate avoidance technique
+									double intersectionX = Math.max(r.getMBR().x1, s.getMBR().x1);
+									double intersectionY = Math.max(r.getMBR().y1, s.getMBR().y1);
+									if (partitioner == null ? !p.contains(intersectionX, intersectionY) :
+											!partitioner.isReferencePointIn(p, intersectionX, intersectionY))
+										return;
+								}
+								if (indexedFirst)
+									output.collect(s, r);
+								else
+									output.collect(r, s);
+							} catch (IOException e) {
+								e.printStackTrace();
+							}
+						}
+					};
+					final List<Shape> indexed = new ArrayList<Shape>();
+					try {
+						SpatialSite.readAllShapes(new Path(indexDir, p.filename), job,
+								new ResultCollector<Shape>() {
+							@Override
+							public void collect(Shape s) {
+								if (s.getMBR() == null)
+									return;
+								indexed.add(s.clone());
+								if (indexed.size() == shapesThresholdPerOnce) {
+									try {
+										join(routed, indexed, pairCollector, reporter);
+									} catch (IOException e) {
+										throw new RuntimeException("Error joining with "+p, e);
+									}
+									indexed.clear();
+								}
+							}
+						});
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while reading "+p, e);
+					}
+					join(routed, indexed, pairCollector, reporter);
+				}
+			}
+		}
+
+		/**
+		 * Joins a chunk of the routed records with a chunk of the records of
+		 * one partition
+		 * @param routed
+		 * @param indexed
+		 * @param pairCollector
+		 * @param reporter
+		 * @throws IOException
+		 */
+		private void join(List<Shape> routed, List<Shape> indexed,
+				ResultCollector2<Shape, Shape> pairCollector, Reporter reporter)
+				throws IOException {
+			if (indexed.isEmpty())
+				return;
+			if (isFilterOnly)
+				SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(routed, indexed,
+						pairCollector, reporter);
+			else
+				SpatialAlgorithms.SpatialJoin_planeSweep(routed, indexed,
+						pairCollector, reporter);
+			reporter.progress();
+		}
+	}
+
+	/**
+	 * Spatially joins two files where one of them is indexed by routing only
+	 * the records of the other file to the partitions of the indexed file.
+	 * Unlike {@link #repartitionJoinStep(Path[], int, Path, OperationsParams)},
+	 * the indexed file is neither repartitioned nor read in the map phase and
+	 * each of its partitions is read once by the reducer of its cell. Records
+	 * are routed with replication to all overlapping partitions, which keeps
+	 * the join correct for both replicated and non-replicated indexes.
+	 * 
+	 * @param inputFiles
+	 *            Input datasets to be spatially joined
+	 * @param indexedFile
+	 *            Index of the indexed file in inputFiles
+	 * @param outputFile
+	 *            Output file contains the joining results
+	 * @param params
+	 *            Job configurations
+	 * @return number of result pairs
+	 * @throws IOException
+	 */
+	protected static long coPartitionJoinStep(final Path[] inputFiles,
+			int indexedFile, Path outputFile, OperationsParams params)
+			throws IOException {
+		long t1 = System.currentTimeMillis();
+		Shape stockShape = params.getShape("shape");
+		JobConf job = new JobConf(params, DistributedJoin.class);
+		job.setJobName("CoPartitionJoin");
+
+		FileSystem fs = inputFiles[indexedFile].getFileSystem(params);
+		Path outputPath = outputFile;
+		if (outputPath == null) {
+			do {
+				outputPath = new Path(inputFiles[0].getName() + ".dj_"
+						+ (int) (Math.random() * 1000000));
+			} while (fs.exists(outputPath));
+		}
+
+		GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs,
+				inputFiles[indexedFile]);
+		if (gindex == null)
+			throw new RuntimeException("Input file '"+inputFiles[indexedFile]
+					+"' is not indexed");
+		LOG.info("Co-partitioned join - Routing " + inputFiles[1 - indexedFile]
+				+ " to the partitions of " + inputFiles[indexedFile]);
+		OperationsParams.setRepartitionJoinIndexPath(job,
+				RepartitionJoinIndexPath, inputFiles[indexedFile]);
+		OperationsParams.setFilterOnlyModeFlag(job, isFilterOnlyMode, isFilterOnly);
+		OperationsParams.setJoiningThresholdPerOnce(job, JoiningThresholdPerOnce,
+				joiningThresholdPerOnce);
+		job.setBoolean(CoPartitionIndexedFirst, indexedFile == 0);
+
+		job.setMapperClass(CoPartitionMap.class);
+		job.setMapOutputKeyClass(IntWritable.class);
+		job.setMapOutputValueClass(stockShape.getClass());
+		ShapeInputFormat.setInputPaths(job, inputFiles[1 - indexedFile]);
+		job.setInputFormat(ShapeInputFormat.class);
+
+		ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+		job.setNumMapTasks(10 * Math.max(1, clusterStatus.getMaxMapTasks()));
+		job.setReducerClass(CoPartitionJoinReduce.class);
+		job.setNumReduceTasks(Math.max(1, Math.min(gindex.size(),
+				(clusterStatus.getMaxReduceTasks() * 9 + 5) / 10)));
+
+		job.setOutputFormat(TextOutputFormat.class);
+		TextOutputFormat.setOutputPath(job, outputPath);
+
+		RunningJob runningJob = JobClient.runJob(job);
+		Counters counters = runningJob.getCounters();
+		Counter outputRecordCounter = counters
+				.findCounter(Task.Counter.REDUCE_OUTPUT_RECORDS);
+		final long resultCount = outputRecordCounter.getValue();
+
+		// Delete output directory if not explicitly set by user
+		if (outputFile == null)
+			fs.delete(outputPath, true);
+		long t2 = System.currentTimeMillis();
+		System.out.println("Co-partitioned join time " + (t2 - t1) + " millis");
+
+		return resultCount;
+	}
+
 	/**
 	 * Spatially joins two files.
 	 * @param inputFiles
@@ -1163,7 +1568,7 @@ public class DistributedJoin {
 				.println("<input file 2> - (*) Path to the second input file");
 		System.out.println("<output file> - Path to output file");
 		System.out
-				.println("repartition:<decision> - (*) Decision to repartition smaller dataset (yes|no|auto)");
+				.println("repartition:<decision> - (*) Decision to repartition smaller dataset (yes|no|auto|copartition)");
 		System.out
 				.println("all-inmemory-load:<decision> - (*) Decision to load all file blocks in memory (yes|no)");
 		System.out
@@ -1250,6 +1655,13 @@ public class DistributedJoin {
 				repartitionStep(inputPaths, file_to_repartition, params);
 				result_size = joinStep(inputPaths, outputPath, params);
 			}
+		} else if (repartition.equals("copartition")) {
+			// Route the smaller or non-indexed file to the partitions of the other
+			int file_to_repartition = selectRepartition(inputPaths, params);
+			if (file_to_repartition == -1)
+				throw new RuntimeException("Co-partitioned join requires one indexed file");
+			result_size = coPartitionJoinStep(inputPaths, 1 - file_to_repartition,
+					outputPath, params);
 		} else if (repartition.equals("no")) {
 			result_size = joinStep(inputPaths, outputPath, params);
 		} else {
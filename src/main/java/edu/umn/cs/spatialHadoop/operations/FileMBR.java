@@ -397,7 +397,8 @@ public class FileMBR {
   }
 
   /**
-   * Returns the MBR of a file given that it is globally indexed.
+   * Returns the MBR of a file given that it is globally indexed or that its
+   * summary has been cached by {@link FileSummary}.
    * @param file
    * @return
    * @throws IOException 
@@ -408,8 +409,15 @@ public class FileMBR {
       FileSystem inFs = file.getFileSystem(params);
       // Quickly get file MBR if it is globally indexed
       GlobalIndex<Partition> globalIndex = SpatialSite.getGlobalIndex(inFs, file);
-      if (globalIndex == null)
-        return null;
+      if (globalIndex == null) {
+        if (files.length != 1)
+          return null;
+        FileSummary.Summary summary = FileSummary.getCachedSummary(file, params);
+        if (summary == null)
+          return null;
+        sizeOfLastProcessedFile = summary.size;
+        return summary.getPartition();
+      }
       p.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
       for (Partition part : globalIndex) {
         p.expand(part);
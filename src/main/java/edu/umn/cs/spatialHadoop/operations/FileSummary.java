@@ -0,0 +1,673 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.LocalJobRunner;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.io.Text2;
+import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
+import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
+import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+import edu.umn.cs.spatialHadoop.util.GridHistogram;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * Computes the MBR, number of records, size and a random sample of the input
+ * in one scan. This replaces running {@link FileMBR} and {@link Sampler} one
+ * after the other which reads the input twice. The summary of an input is
+ * cached in a hidden file next to it so that subsequent runs on the same
+ * input do not need to scan it at all.
+ * @author Ahmed Eldawy
+ *
+ */
+public class FileSummary {
+  /**Logger for FileSummary*/
+  private static final Log LOG = LogFactory.getLog(FileSummary.class);
+
+  /**Each sample point is counted as 16 bytes towards the sample size*/
+  private static final int PointSize = 16;
+
+  /**
+   * Whether to build a histogram of all records instead of a random sample.
+   * The sample is then generated from the histogram.
+   */
+  public static final String Sketch = "sketch";
+
+  /**Maximum number of non-empty cells in the histogram of the input*/
+  public static final String SketchSize = "spatialHadoop.storage.SketchSize";
+
+  /**
+   * Number of points generated from the histogram for each partition. The
+   * generated sample grows with the number of partitions rather than the
+   * number of records.
+   */
+  private static final int SketchPointsPerPartition = 1000;
+
+  /**
+   * The summary of a set of records. The sample is drawn by selecting each
+   * record with a fixed ratio and keeping the selected records in a
+   * reservoir of a limited capacity. Summaries computed for different parts
+   * of the input are combined using {@link #merge(Summary)}. Alternatively,
+   * a {@link GridHistogram} of all records can be used instead of the sample
+   * to capture the distribution of skewed data with bounded memory.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class Summary implements Writable {
+    /**The MBR of all records*/
+    public final Rectangle mbr = new Rectangle();
+    /**Number of records*/
+    public long recordCount;
+    /**Total size of records in their text representation*/
+    public long size;
+    /**Ratio of records selected to the sample*/
+    private float ratio;
+    /**Maximum number of points kept in the sample*/
+    private int capacity;
+    /**Number of records selected to the sample including dropped ones*/
+    private long numSelected;
+    /**Number of points currently in the sample*/
+    private int sampleCount;
+    /**Coordinates of the sample points*/
+    private double[] xs, ys;
+    /**Random number generator used for sampling*/
+    private Random random;
+    /**A histogram of all records used instead of the sample if not null*/
+    private GridHistogram sketch;
+
+    public Summary() {
+      this(0, 0, System.currentTimeMillis());
+    }
+
+    public Summary(float ratio, int capacity, long seed) {
+      this.ratio = ratio;
+      this.capacity = capacity;
+      this.random = new Random(seed);
+      this.xs = new double[Math.min(capacity, 1024)];
+      this.ys = new double[xs.length];
+      mbr.set(Double.MAX_VALUE, Double.MAX_VALUE,
+          -Double.MAX_VALUE, -Double.MAX_VALUE);
+    }
+
+    /**
+     * Uses a histogram of all records instead of sampling them
+     * @param maxCells - the maximum number of non-empty cells in the histogram
+     */
+    public void enableSketch(int maxCells) {
+      this.sketch = new GridHistogram(maxCells);
+    }
+
+    /**
+     * Adds a record to the summary
+     * @param recordMBR - the MBR of the record
+     * @param textSize - size of the record in bytes including the new line
+     */
+    public void add(Rectangle recordMBR, int textSize) {
+      recordCount++;
+      size += textSize;
+      if (recordMBR == null)
+        return;
+      this.mbr.expand(recordMBR);
+      double x = (recordMBR.x1 + recordMBR.x2) / 2;
+      double y = (recordMBR.y1 + recordMBR.y2) / 2;
+      if (sketch != null) {
+        sketch.add(x, y);
+      } else if (random.nextFloat() < ratio) {
+        numSelected++;
+        if (sampleCount < capacity) {
+          ensureSampleCapacity(sampleCount + 1);
+          xs[sampleCount] = x;
+          ys[sampleCount] = y;
+          sampleCount++;
+        } else {
+          // Reservoir sampling of the selected records
+          long i = (long) (random.nextDouble() * numSelected);
+          if (i < capacity) {
+            xs[(int) i] = x;
+            ys[(int) i] = y;
+          }
+        }
+      }
+    }
+
+    /**
+     * Merges another summary into this summary. The merged sample is a
+     * uniform sample of the records selected in both summaries.
+     * @param other
+     */
+    public void merge(Summary other) {
+      this.recordCount += other.recordCount;
+      this.size += other.size;
+      this.mbr.expand(other.mbr.x1, other.mbr.y1, other.mbr.x2, other.mbr.y2);
+      if (this.sketch != null && other.sketch != null)
+        this.sketch.merge(other.sketch);
+      long totalSelected = this.numSelected + other.numSelected;
+      if (this.numSelected == this.sampleCount && other.numSelected == other.sampleCount
+          && totalSelected <= capacity) {
+        // No records were dropped from either sample, keep all of them
+        ensureSampleCapacity(sampleCount + other.sampleCount);
+        System.arraycopy(other.xs, 0, xs, sampleCount, other.sampleCount);
+        System.arraycopy(other.ys, 0, ys, sampleCount, other.sampleCount);
+        sampleCount += other.sampleCount;
+      } else {
+        // Each point in the merged sample comes from one of the two samples
+        // with a probability proportional to the records they represent
+        double[] xs1 = this.xs, ys1 = this.ys;
+        double[] xs2 = other.xs.clone(), ys2 = other.ys.clone();
+        int n1 = this.sampleCount, n2 = other.sampleCount;
+        long r1 = this.numSelected, r2 = other.numSelected;
+        int k = (int) Math.min(capacity, (long) n1 + n2);
+        double[] newXs = new double[k], newYs = new double[k];
+        for (int i = 0; i < k; i++) {
+          if (random.nextDouble() * (r1 + r2) < r1) {
+            int j = random.nextInt(n1);
+            newXs[i] = xs1[j];
+            newYs[i] = ys1[j];
+            xs1[j] = xs1[--n1];
+            ys1[j] = ys1[n1];
+            r1--;
+          } else {
+            int j = random.nextInt(n2);
+            newXs[i] = xs2[j];
+            newYs[i] = ys2[j];
+            xs2[j] = xs2[--n2];
+            ys2[j] = ys2[n2];
+            r2--;
+          }
+        }
+        this.xs = newXs;
+        this.ys = newYs;
+        this.sampleCount = k;
+      }
+      this.numSelected = totalSelected;
+    }
+
+    /**Makes sure that the sample arrays can hold the given number of points*/
+    private void ensureSampleCapacity(int count) {
+      if (count > xs.length) {
+        int newLength = (int) Math.min(capacity, Math.max(count, xs.length * 2L));
+        double[] newXs = new double[newLength], newYs = new double[newLength];
+        System.arraycopy(xs, 0, newXs, 0, sampleCount);
+        System.arraycopy(ys, 0, newYs, 0, sampleCount);
+        xs = newXs;
+        ys = newYs;
+      }
+    }
+
+    /**
+     * Returns the sample as the coordinates {xs, ys} of the center points of
+     * the MBRs of the sampled records. If a histogram is used, the sample is
+     * generated from the histogram with a fixed number of points for each
+     * partition, up to the capacity of the sample.
+     * @param numPartitions - the number of partitions to create from the sample
+     * @return
+     */
+    public double[][] getSample(int numPartitions) {
+      if (sketch != null) {
+        int numPoints = (int) Math.min(Math.min(capacity, recordCount),
+            (long) numPartitions * SketchPointsPerPartition);
+        double[] sampleXs = new double[numPoints], sampleYs = new double[numPoints];
+        int n = sketch.generatePoints(mbr, sampleXs, sampleYs, random.nextLong());
+        return new double[][] {Arrays.copyOf(sampleXs, n), Arrays.copyOf(sampleYs, n)};
+      }
+      return new double[][] {Arrays.copyOf(xs, sampleCount), Arrays.copyOf(ys, sampleCount)};
+    }
+
+    /**
+     * Returns the MBR, number of records and size of this summary as one
+     * partition
+     * @return
+     */
+    public Partition getPartition() {
+      Partition p = new Partition();
+      p.set(mbr);
+      p.recordCount = recordCount;
+      p.size = size;
+      return p;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      mbr.write(out);
+      out.writeLong(recordCount);
+      out.writeLong(size);
+      out.writeFloat(ratio);
+      out.writeInt(capacity);
+      out.writeLong(numSelected);
+      out.writeInt(sampleCount);
+      for (int i = 0; i < sampleCount; i++) {
+        out.writeDouble(xs[i]);
+        out.writeDouble(ys[i]);
+      }
+      out.writeBoolean(sketch != null);
+      if (sketch != null)
+        sketch.write(out);
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      mbr.readFields(in);
+      recordCount = in.readLong();
+      size = in.readLong();
+      ratio = in.readFloat();
+      capacity = in.readInt();
+      numSelected = in.readLong();
+      sampleCount = in.readInt();
+      if (xs.length < sampleCount) {
+        xs = new double[sampleCount];
+        ys = new double[sampleCount];
+      }
+      for (int i = 0; i < sampleCount; i++) {
+        xs[i] = in.readDouble();
+        ys[i] = in.readDouble();
+      }
+      if (in.readBoolean()) {
+        if (sketch == null)
+          sketch = new GridHistogram();
+        sketch.readFields(in);
+      } else {
+        sketch = null;
+      }
+    }
+  }
+
+  /**
+   * Computes the summary of all lines in an input split. The summary is
+   * written when the mapper is closed, so each map task writes one record.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class SummaryMapper extends MapReduceBase implements
+      Mapper<Rectangle, Text, NullWritable, Summary> {
+
+    /**Stock shape to parse input file*/
+    private Shape shape;
+
+    /**Summary of all records processed by this mapper*/
+    private Summary summary;
+
+    /**The output collector given to the last call of map*/
+    private OutputCollector<NullWritable, Summary> output;
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      this.shape = OperationsParams.getShape(job, "shape");
+      this.summary = createSummary(job, job.getLong("seed",
+          System.currentTimeMillis()) + job.getInt("mapred.task.partition", 0));
+    }
+
+    public void map(Rectangle dummy, Text text,
+        OutputCollector<NullWritable, Summary> output, Reporter reporter)
+            throws IOException {
+      this.output = output;
+      int textSize = text.getLength() + 1; // +1 for new line
+      shape.fromText(text);
+      summary.add(shape.getMBR(), textSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (output != null)
+        output.collect(NullWritable.get(), summary);
+      super.close();
+    }
+  }
+
+  /**
+   * Returns the maximum number of sample points according to the configured
+   * sample size
+   * @param params
+   * @return
+   */
+  private static int getSampleCapacity(Configuration params) {
+    long sampleSize = params.getLong(SpatialSite.SAMPLE_SIZE, 100 * 1024 * 1024);
+    return (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, sampleSize / PointSize));
+  }
+
+  /**
+   * Creates an empty summary with the sampling parameters of the given
+   * configuration
+   * @param conf
+   * @param seed
+   * @return
+   */
+  private static Summary createSummary(Configuration conf, long seed) {
+    Summary summary = new Summary(conf.getFloat(SpatialSite.SAMPLE_RATIO, 0.01f),
+        getSampleCapacity(conf), seed);
+    if (conf.getBoolean(Sketch, false))
+      summary.enableSketch(conf.getInt(SketchSize, 64 * 1024));
+    return summary;
+  }
+
+  private static Summary summarizeLocal(Path[] inFiles, final OperationsParams params)
+      throws IOException, InterruptedException {
+    // 1- Split the input path/file to get splits that can be processed independently
+    final SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    Job job = Job.getInstance(params);
+    SpatialInputFormat3.setInputPaths(job, inFiles);
+    final List<InputSplit> splits = inputFormat.getSplits(job);
+    int parallelism = params.getInt("parallel", Runtime.getRuntime().availableProcessors());
+    final long seed = params.getLong("seed", System.currentTimeMillis());
+
+    // 2- Process splits in parallel
+    List<Summary> summaries = Parallel.forEach(splits.size(), new RunnableRange<Summary>() {
+      @Override
+      public Summary run(int i1, int i2) {
+        Summary summary = createSummary(params, seed + i1);
+        Text temp = new Text2();
+        for (int i = i1; i < i2; i++) {
+          try {
+            FileSplit fsplit = (FileSplit) splits.get(i);
+            final RecordReader<Rectangle, Iterable<Shape>> reader =
+                inputFormat.createRecordReader(fsplit, null);
+            if (reader instanceof SpatialRecordReader3) {
+              ((SpatialRecordReader3)reader).initialize(fsplit, params);
+            } else if (reader instanceof RTreeRecordReader3) {
+              ((RTreeRecordReader3)reader).initialize(fsplit, params);
+            } else if (reader instanceof HDFRecordReader) {
+              ((HDFRecordReader)reader).initialize(fsplit, params);
+            } else {
+              throw new RuntimeException("Unknown record reader");
+            }
+            while (reader.nextKeyValue()) {
+              Iterable<Shape> shapes = reader.getCurrentValue();
+              for (Shape s : shapes) {
+                temp.clear();
+                s.toText(temp);
+                summary.add(s.getMBR(), temp.getLength() + 1);
+              }
+            }
+            reader.close();
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return summary;
+      }
+    }, parallelism);
+    Summary result = summaries.remove(summaries.size() - 1);
+    for (Summary summary : summaries)
+      result.merge(summary);
+    return result;
+  }
+
+  private static Summary summarizeMapReduce(Path[] inFiles,
+      OperationsParams params) throws IOException, InterruptedException {
+    JobConf job = new JobConf(params, FileSummary.class);
+
+    Path outputPath;
+    FileSystem outFs = FileSystem.get(job);
+    do {
+      outputPath = new Path(inFiles[0].getName()+".summary_"+(int)(Math.random()*1000000));
+    } while (outFs.exists(outputPath));
+
+    job.setJobName("FileSummary");
+    job.setMapperClass(SummaryMapper.class);
+    // Summaries are merged locally so there is no need for a reduce phase
+    job.setNumReduceTasks(0);
+    job.setOutputKeyClass(NullWritable.class);
+    job.setOutputValueClass(Summary.class);
+    ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+    job.setNumMapTasks(clusterStatus.getMaxMapTasks() * 5);
+
+    job.setInputFormat(ShapeLineInputFormat.class);
+    job.setOutputFormat(SequenceFileOutputFormat.class);
+    ShapeInputFormat.setInputPaths(job, inFiles);
+    FileOutputFormat.setOutputPath(job, outputPath);
+
+    if (OperationsParams.isLocal(job, inFiles)) {
+      // Enforce local execution if explicitly set by user or for small files
+      job.set("mapred.job.tracker", "local");
+      // Use multithreading too
+      job.setInt(LocalJobRunner.LOCAL_MAX_MAPS, Runtime.getRuntime().availableProcessors());
+    }
+    JobClient.runJob(job);
+
+    // Merge the summaries of all map tasks
+    Summary result = createSummary(job, job.getLong("seed", System.currentTimeMillis()));
+    Summary summary = new Summary();
+    FileStatus[] outFiles = outFs.listStatus(outputPath,
+        SpatialSite.NonHiddenFileFilter);
+    for (FileStatus outFile : outFiles) {
+      if (outFile.isDir() || outFile.getLen() == 0)
+        continue;
+      SequenceFile.Reader reader = new SequenceFile.Reader(outFs, outFile.getPath(), job);
+      while (reader.next(NullWritable.get(), summary))
+        result.merge(summary);
+      reader.close();
+    }
+    outFs.delete(outputPath, true);
+    return result;
+  }
+
+  /**
+   * Returns the path of the file that caches the summary of the given input.
+   * For a directory, it is a hidden file inside it. For a file, it is a hidden
+   * file next to it.
+   * @param fs
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  private static Path getCachePath(FileSystem fs, Path in) throws IOException {
+    if (fs.getFileStatus(in).isDir())
+      return new Path(in, "_summary");
+    return new Path(in.getParent(), "_"+in.getName()+".summary");
+  }
+
+  /**
+   * Computes the total size and the latest modification time of the data
+   * files of the input. A cached summary is only valid if both did not
+   * change since the summary was computed.
+   * @param fs
+   * @param in
+   * @return
+   * @throws IOException
+   */
+  private static long[] getInputSignature(FileSystem fs, Path in) throws IOException {
+    FileStatus[] files = fs.getFileStatus(in).isDir() ?
+        fs.listStatus(in, SpatialSite.NonHiddenFileFilter) :
+        new FileStatus[] {fs.getFileStatus(in)};
+    long[] signature = {0, 0};
+    for (FileStatus file : files) {
+      signature[0] += file.getLen();
+      signature[1] = Math.max(signature[1], file.getModificationTime());
+    }
+    return signature;
+  }
+
+  /**
+   * Returns the cached summary of the given input if it exists and the input
+   * did not change since it was written. Otherwise, returns null.
+   * @param in
+   * @param params
+   * @return
+   * @throws IOException
+   */
+  public static Summary getCachedSummary(Path in, OperationsParams params)
+      throws IOException {
+    FileSystem fs = in.getFileSystem(params);
+    if (!fs.exists(in))
+      return null;
+    Path cachePath = getCachePath(fs, in);
+    if (!fs.exists(cachePath))
+      return null;
+    long[] signature = getInputSignature(fs, in);
+    String shape = params.get("shape", "");
+    DataInputStream cacheIn = fs.open(cachePath);
+    try {
+      if (cacheIn.readLong() != signature[0] || cacheIn.readLong() != signature[1]
+          || !cacheIn.readUTF().equals(shape))
+        return null;
+      Summary summary = new Summary();
+      summary.readFields(cacheIn);
+      return summary;
+    } catch (IOException e) {
+      LOG.warn("Error reading the cached summary "+cachePath, e);
+      return null;
+    } finally {
+      cacheIn.close();
+    }
+  }
+
+  /**
+   * Writes the summary of the given input to its cache file. Errors are
+   * ignored as the input might be in a read-only directory.
+   * @param in
+   * @param params
+   * @param summary
+   */
+  private static void cacheSummary(Path in, OperationsParams params, Summary summary) {
+    try {
+      FileSystem fs = in.getFileSystem(params);
+      long[] signature = getInputSignature(fs, in);
+      DataOutputStream cacheOut = fs.create(getCachePath(fs, in), true);
+      cacheOut.writeLong(signature[0]);
+      cacheOut.writeLong(signature[1]);
+      cacheOut.writeUTF(params.get("shape", ""));
+      summary.write(cacheOut);
+      cacheOut.close();
+    } catch (IOException e) {
+      LOG.info("Error caching the summary of "+in);
+    }
+  }
+
+  /**
+   * Checks whether two summaries are computed with the same sampling
+   * parameters
+   * @param s1
+   * @param s2
+   * @return
+   */
+  private static boolean hasSameParameters(Summary s1, Summary s2) {
+    if (s1.ratio != s2.ratio || s1.capacity != s2.capacity)
+      return false;
+    if (s1.sketch == null || s2.sketch == null)
+      return s1.sketch == s2.sketch;
+    return s1.sketch.getMaxCells() == s2.sketch.getMaxCells();
+  }
+
+  /**
+   * Returns the summary of the given input files. The sample is drawn with
+   * the ratio {@link SpatialSite#SAMPLE_RATIO} and is limited to
+   * {@link SpatialSite#SAMPLE_SIZE} bytes. If {@link #Sketch} is set, the
+   * sample is generated from a histogram of all records instead. If the
+   * summary of a single input has been cached with the same sampling
+   * parameters, it is returned without scanning the input.
+   * @param files
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static Summary summarize(Path[] files, OperationsParams params)
+      throws IOException, InterruptedException {
+    if (files.length == 1) {
+      Summary cached = getCachedSummary(files[0], params);
+      if (cached != null && hasSameParameters(cached, createSummary(params, 0))) {
+        LOG.info("Using the cached summary of "+files[0]);
+        return cached;
+      }
+    }
+    if (!params.autoDetectShape()) {
+      LOG.error("shape of input files is not set and cannot be auto detected");
+      return null;
+    }
+
+    Summary summary;
+    if (OperationsParams.isLocal(params, files)) {
+      summary = summarizeLocal(files, params);
+    } else {
+      summary = summarizeMapReduce(files, params);
+    }
+    if (files.length == 1)
+      cacheSummary(files[0], params, summary);
+    return summary;
+  }
+
+  private static void printUsage() {
+    System.out.println("Computes the MBR, number of records, size and a sample of an input file");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input file>: (*) Path to input file");
+    System.out.println("shape:<input shape>: (*) Input file format");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws IOException, InterruptedException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    if (!params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    Path[] inputFiles = params.getInputPaths();
+    long t1 = System.currentTimeMillis();
+    Summary summary = summarize(inputFiles, params);
+    long t2 = System.currentTimeMillis();
+    if (summary == null) {
+      LOG.error("Error computing the summary");
+      System.exit(1);
+    }
+    System.out.println("Total processing time: "+(t2-t1)+" millis");
+    System.out.println("MBR: "+summary.mbr);
+    System.out.println("Number of records: "+summary.recordCount);
+    System.out.println("Total size: "+summary.size);
+    System.out.println("Sample size: "+summary.sampleCount);
+  }
+}
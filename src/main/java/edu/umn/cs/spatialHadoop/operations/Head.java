@@ -8,13 +8,16 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.operations;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.TaskAttemptID;
@@ -22,6 +25,7 @@ import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
 import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
 
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
 
 /**
@@ -50,8 +54,18 @@ public class Head {
     if (p.getName().endsWith(".rtree")) {
       // R-tree indexed file
       FSDataInputStream in = fs.open(p);
-      in.skip(8); // Skip R-tree signature
+      byte[] signature = new byte[8];
+      in.readFully(signature);
       int treeHeaderSize = RTree.skipHeader(in);
+      if (Arrays.equals(signature, SpatialSite.RTreeBinaryFileMarkerB)) {
+        // Leaves are stored in binary and cannot be read as lines
+        try {
+          headBinaryRecords(in, lines);
+        } finally {
+          in.close();
+        }
+        return lines;
+      }
       in.close();
       split = new FileSplit(p, treeHeaderSize + 8, fstatus.getLen() - treeHeaderSize - 8, new String[0]);
     } else {
@@ -67,6 +81,36 @@ public class Head {
     return lines;
   }
 
+  /**
+   * Reads the text of the records of an R-tree with binary leaves. Each
+   * record is stored as its MBR, the length of its text, and the text itself.
+   * The input should be positioned right after the header of the tree.
+   * @param in
+   * @param lines - (output) filled with the text of the records until it is
+   *   full or the end of file is reached
+   * @throws IOException
+   */
+  private static void headBinaryRecords(FSDataInputStream in, String[] lines)
+      throws IOException {
+    Text line = new Text();
+    byte[] record = new byte[1024];
+    for (int numOfLines = 0; numOfLines < lines.length; numOfLines++) {
+      try {
+        in.readDouble();
+      } catch (EOFException e) {
+        // Reached end of file
+        return;
+      }
+      in.readDouble(); in.readDouble(); in.readDouble(); // Skip the MBR
+      int length = in.readInt();
+      if (record.length < length)
+        record = new byte[length];
+      in.readFully(record, 0, length);
+      line.set(record, 0, length);
+      lines[numOfLines] = line.toString();
+    }
+  }
+
   private static TaskAttemptContext createDummyContext() {
     TaskAttemptID taskId = new TaskAttemptID();
     return new TaskAttemptContextImpl(new Configuration(), taskId);
@@ -42,6 +42,7 @@ import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
 import org.apache.hadoop.util.PriorityQueue;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
@@ -76,6 +77,12 @@ public class KNN {
   /**Statistics for debugging. Total number of iterations by all KNN queries*/
   private static AtomicInteger TotalIterations = new AtomicInteger();
 
+  /**Path to the results of the previous iteration of the MapReduce job*/
+  public static final String PreviousResults = "KNN.PreviousResults";
+  
+  /**Names of partitions that were processed in previous iterations*/
+  public static final String ProcessedPartitions = "KNN.ProcessedPartitions";
+
   /**
    * Stores a shape text along with its distance to the query point. Notice that
    * it cannot be a ShapeWithDistance because we cannot easily deserialize it
@@ -271,7 +278,10 @@ public class KNN {
   
   /**
    * Reduce (and combine) class for KNN MapReduce. Given a list of shapes,
-   * choose the k with least distances.
+   * choose the k with least distances. If the results of a previous
+   * iteration are given in {@link #PreviousResults}, they are merged with
+   * the new results so that partitions processed in previous iterations do
+   * not need to be processed again.
    * @author eldawy
    *
    */
@@ -280,6 +290,8 @@ public class KNN {
     /**User query*/
     private Point queryPoint;
     private int k;
+    /**Top-k results found so far*/
+    private PriorityQueue<TextWithDistance> knn;
 
     @Override
     protected void setup(Context context)
@@ -288,6 +300,26 @@ public class KNN {
       Configuration conf = context.getConfiguration();
       queryPoint = (Point) OperationsParams.getShape(conf, "point");
       k = conf.getInt("k", 1);
+      if (k == 0)
+        return;
+      knn = new KNNObjects<TextWithDistance>(k);
+      String previousResults = conf.get(PreviousResults);
+      if (previousResults != null) {
+        Path previousPath = new Path(previousResults);
+        FileSystem fs = previousPath.getFileSystem(conf);
+        Text line = new Text();
+        for (FileStatus resultFile : fs.listStatus(previousPath)) {
+          if (!resultFile.getPath().getName().startsWith("part-"))
+            continue;
+          LineReader reader = new LineReader(fs.open(resultFile.getPath()));
+          while (reader.readLine(line) > 0) {
+            TextWithDistance t = new TextWithDistance();
+            t.fromText(line);
+            knn.insert(t);
+          }
+          reader.close();
+        }
+      }
     }
     
     @Override
@@ -296,11 +328,16 @@ public class KNN {
         InterruptedException {
       if (k == 0)
         return;
-      PriorityQueue<TextWithDistance> knn = new KNNObjects<TextWithDistance>(k);
       for (TextWithDistance t : values) {
         knn.insert(t.clone());
       }
-      
+    }
+    
+    @Override
+    protected void cleanup(Context context) throws IOException,
+        InterruptedException {
+      if (k == 0)
+        return;
       TextWithDistance[] knnAscendingOrder = new TextWithDistance[knn.size()];
       int i = knnAscendingOrder.length;
       while (knn.size() > 0) {
@@ -308,8 +345,43 @@ public class KNN {
         knnAscendingOrder[--i] = t;
       }
       // Write results in the ascending order
+      NullWritable dummy = NullWritable.get();
       for (TextWithDistance t : knnAscendingOrder)
         context.write(dummy, t);
+      super.cleanup(context);
+    }
+  }
+  
+  /**
+   * A filter that selects partitions overlapping the query range which were
+   * not processed in a previous iteration.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class KNNFilter extends RangeFilter {
+    /**Names of partitions processed in previous iterations*/
+    private Set<String> processedPartitions = new HashSet<String>();
+    
+    @Override
+    public void configure(Configuration job) {
+      super.configure(job);
+      String[] processed = job.getStrings(ProcessedPartitions);
+      if (processed != null) {
+        for (String partition : processed)
+          processedPartitions.add(partition);
+      }
+    }
+    
+    @Override
+    public void selectCells(GlobalIndex<Partition> gIndex,
+        final ResultCollector<Partition> output) {
+      super.selectCells(gIndex, new ResultCollector<Partition>() {
+        @Override
+        public void collect(Partition p) {
+          if (!processedPartitions.contains(p.filename))
+            output.collect(p);
+        }
+      });
     }
   }
   
@@ -342,7 +414,7 @@ public class KNN {
     job.setReducerClass(KNNReduce.class);
     job.setNumReduceTasks(1);
     
-    job.getConfiguration().setClass(SpatialSite.FilterClass, RangeFilter.class, BlockFilter.class);
+    job.getConfiguration().setClass(SpatialSite.FilterClass, KNNFilter.class, BlockFilter.class);
     final Point queryPoint = (Point) params.getShape("point");
     final int k = params.getInt("k", 1);
     
@@ -366,12 +438,24 @@ public class KNN {
     FileSystem outFs = outputPath.getFileSystem(params);
     // Start with the query point to select all partitions overlapping with it
     Shape range_for_this_iteration = new Point(queryPoint.x, queryPoint.y);
+    // Partitions processed so far. Each partition is processed only once and
+    // results of previous iterations are merged in the reducer
+    final Set<String> processedPartitions = new HashSet<String>();
+    Path previousResults = new Path(outputPath.toString()+"_previous");
+    outFs.delete(outputPath, true);
     
     do {
       job = new Job(templateConf);
-      // Delete results of last iteration if not first iteration
-      if (outputPath != null)
-        outFs.delete(outputPath, true);
+      // Keep the results of last iteration if not first iteration
+      outFs.delete(previousResults, true);
+      if (outFs.exists(outputPath)) {
+        outFs.rename(outputPath, previousResults);
+        job.getConfiguration().set(PreviousResults, previousResults.toString());
+      }
+      if (!processedPartitions.isEmpty()) {
+        job.getConfiguration().setStrings(ProcessedPartitions,
+            processedPartitions.toArray(new String[processedPartitions.size()]));
+      }
         
       LOG.info("Running iteration: "+(++iterations));
       // Set query range for the SpatialInputFormat
@@ -393,6 +477,12 @@ public class KNN {
       resultCount = resultSizeCounter.getValue();
       
       if (globalIndex != null) {
+        globalIndex.rangeQuery(range_for_this_iteration, new ResultCollector<Partition>() {
+          @Override
+          public void collect(Partition p) {
+            processedPartitions.add(p.filename);
+          }
+        });
         Circle range_for_next_iteration;
         if (resultCount < k) {
           LOG.info("Found only "+resultCount+" results");
@@ -449,11 +539,10 @@ public class KNN {
         // Calculate the number of blocks to be processed to check the
         // terminating condition;
         additional_blocks_2b_processed.set(0);
-        final Shape temp = range_for_this_iteration;
         globalIndex.rangeQuery(range_for_next_iteration, new ResultCollector<Partition>() {
           @Override
           public void collect(Partition p) {
-            if (!(p.isIntersected(temp))) {
+            if (!processedPartitions.contains(p.filename)) {
               additional_blocks_2b_processed.set(additional_blocks_2b_processed.get() + 1);
             }
           }
@@ -462,6 +551,7 @@ public class KNN {
       }
     } while (additional_blocks_2b_processed.get() > 0);
     
+    outFs.delete(previousResults, true);
     // If output file is not set by user, delete it
     if (userOutputPath == null)
       outFs.delete(outputPath, true);
@@ -526,10 +616,25 @@ public class KNN {
         
         while (reader.nextKeyValue()) {
           Iterable<Shape> shapes = reader.getCurrentValue();
-          for (Shape shape : shapes) {
-            double distance = shape.distanceTo(queryPoint.x, queryPoint.y);
-            if (distance <= kthDistance)
-              knn.insert(new ShapeWithDistance<S>((S)shape.clone(), distance));
+          if (shapes instanceof RTree) {
+            // Retrieve shapes in distance order and stop as soon as the
+            // current kth neighbor is closer
+            RTree<Shape>.KNNIterator iter =
+                ((RTree<Shape>)shapes).knn(queryPoint.x, queryPoint.y);
+            while (iter.hasNext()) {
+              Shape shape = iter.next();
+              if (iter.getDistance() > kthDistance)
+                break;
+              knn.insert(new ShapeWithDistance<S>((S)shape, iter.getDistance()));
+              if (knn.size() >= k)
+                kthDistance = knn.top().distance;
+            }
+          } else {
+            for (Shape shape : shapes) {
+              double distance = shape.distanceTo(queryPoint.x, queryPoint.y);
+              if (distance <= kthDistance)
+                knn.insert(new ShapeWithDistance<S>((S)shape.clone(), distance));
+            }
           }
         }
         reader.close();
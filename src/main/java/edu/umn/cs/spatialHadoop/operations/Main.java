@@ -13,6 +13,7 @@ import org.apache.hadoop.util.ProgramDriver;
 
 import edu.umn.cs.spatialHadoop.RandomSpatialGenerator;
 import edu.umn.cs.spatialHadoop.ReadFile;
+import edu.umn.cs.spatialHadoop.indexing.IndexAppender;
 import edu.umn.cs.spatialHadoop.indexing.Indexer;
 import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree;
 import edu.umn.cs.spatialHadoop.nasa.HDFPlot;
@@ -63,6 +64,9 @@ public class Main {
       pgd.addClass("index", Indexer.class,
           "Spatially index a file using a specific indexer");
       
+      pgd.addClass("append", IndexAppender.class,
+          "Appends new records to an existing index");
+      
       pgd.addClass("oldindex", Repartition.class,
           "Spatially index a file using a specific indexer");
       
@@ -3,6 +3,7 @@ package edu.umn.cs.spatialHadoop.operations;
 import org.apache.hadoop.conf.Configuration;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
@@ -41,7 +42,13 @@ public class RangeFilter extends DefaultBlockFilter {
     int numPartitions;
     if (gIndex.isReplicated()) {
       // Need to process all partitions to perform duplicate avoidance
-      numPartitions = gIndex.rangeQuery(queryRange, output);
+      if (queryRange instanceof Point) {
+        // Only the cell that contains the point is needed
+        Point point = (Point) queryRange;
+        numPartitions = gIndex.pointQuery(point.x, point.y, output);
+      } else {
+        numPartitions = gIndex.rangeQuery(queryRange, gIndex.getPartitioner(), output);
+      }
       RangeQuery.LOG.info("Selected "+numPartitions+" partitions overlapping "+queryRange);
     } else {
       Rectangle queryMBR = this.queryRange.getMBR();
@@ -0,0 +1,238 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.io.Writable;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+
+/**
+ * A sparse histogram that counts points in the cells of a uniform grid. All
+ * cells are squares with a side length of 2<sup>level</sup> aligned at the
+ * origin, and only non-empty cells are stored. When the number of non-empty
+ * cells exceeds a limit, the level is increased which merges every 2x2 cells
+ * into one. This keeps the memory bounded while dense regions keep a fine
+ * resolution as long as the data is clustered. Two histograms are merged by
+ * bringing them to the same level and adding their counts.
+ * @author Ahmed Eldawy
+ *
+ */
+public class GridHistogram implements Writable {
+  /**Maximum number of non-empty cells*/
+  private int maxCells;
+  /**The side length of each cell is 2^level*/
+  private int level;
+  /**Total number of points in the histogram*/
+  private long totalCount;
+  /**Number of non-empty cells*/
+  private int numCells;
+  /**Hash table of cell coordinates packed into one long per cell*/
+  private long[] keys;
+  /**Number of points in each cell, zero for empty slots of the hash table*/
+  private long[] counts;
+
+  public GridHistogram() {
+    this(1024);
+  }
+
+  public GridHistogram(int maxCells) {
+    this.maxCells = maxCells;
+    allocate();
+  }
+
+  /**Allocates an empty hash table that can hold all non-empty cells*/
+  private void allocate() {
+    int tableSize = Integer.highestOneBit(Math.max(maxCells, 8)) * 4;
+    keys = new long[tableSize];
+    counts = new long[tableSize];
+    numCells = 0;
+  }
+
+  public int getMaxCells() {
+    return maxCells;
+  }
+
+  public long getTotalCount() {
+    return totalCount;
+  }
+
+  public int getNumCells() {
+    return numCells;
+  }
+
+  /**
+   * Adds a point to the histogram
+   * @param x
+   * @param y
+   */
+  public void add(double x, double y) {
+    if (totalCount == 0) {
+      // Start with a fine resolution relative to the magnitude of coordinates
+      double magnitude = Math.max(1.0, Math.max(Math.abs(x), Math.abs(y)));
+      level = Math.getExponent(magnitude) - 24;
+    }
+    long cx = (long) Math.floor(Math.scalb(x, -level));
+    long cy = (long) Math.floor(Math.scalb(y, -level));
+    while (cx != (int) cx || cy != (int) cy) {
+      // The cell cannot be packed in one long, use larger cells
+      coarsen();
+      cx >>= 1;
+      cy >>= 1;
+    }
+    increment(cx, cy, 1);
+    totalCount++;
+    while (numCells > maxCells)
+      coarsen();
+  }
+
+  /**
+   * Adds all counts of another histogram to this histogram
+   * @param other
+   */
+  public void merge(GridHistogram other) {
+    if (other.totalCount == 0)
+      return;
+    if (this.totalCount == 0)
+      this.level = other.level;
+    while (this.level < other.level)
+      coarsen();
+    int shift = this.level - other.level;
+    for (int i = 0; i < other.keys.length; i++) {
+      if (other.counts[i] > 0) {
+        long cx = (other.keys[i] >> 32) >> shift;
+        long cy = ((long) (int) other.keys[i]) >> shift;
+        increment(cx, cy, other.counts[i]);
+      }
+    }
+    this.totalCount += other.totalCount;
+    while (numCells > maxCells)
+      coarsen();
+  }
+
+  /**Adds the given count to a cell*/
+  private void increment(long cx, long cy, long count) {
+    long key = (cx << 32) | (cy & 0xffffffffL);
+    int mask = keys.length - 1;
+    int i = hash(key) & mask;
+    while (counts[i] > 0 && keys[i] != key)
+      i = (i + 1) & mask;
+    if (counts[i] == 0) {
+      keys[i] = key;
+      numCells++;
+    }
+    counts[i] += count;
+  }
+
+  private static int hash(long key) {
+    key *= 0x9E3779B97F4A7C15L;
+    return (int) (key ^ (key >>> 32));
+  }
+
+  /**Doubles the side length of cells by merging every 2x2 cells into one*/
+  private void coarsen() {
+    long[] oldKeys = keys, oldCounts = counts;
+    allocate();
+    level++;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldCounts[i] > 0)
+        increment((oldKeys[i] >> 32) >> 1, ((int) oldKeys[i]) >> 1, oldCounts[i]);
+    }
+  }
+
+  /**
+   * Generates points that follow the distribution of this histogram. Each
+   * cell receives a number of points proportional to its count, and the
+   * points are placed uniformly at random inside the part of the cell that
+   * overlaps the given MBR.
+   * @param mbr - the MBR of all points added to the histogram
+   * @param numPoints - the total number of points to generate
+   * @param seed - the seed of the random number generator
+   * @return
+   */
+  public Point[] generatePoints(Rectangle mbr, int numPoints, long seed) {
+    double[] xs = new double[numPoints], ys = new double[numPoints];
+    Point[] points = new Point[generatePoints(mbr, xs, ys, seed)];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(xs[i], ys[i]);
+    return points;
+  }
+
+  /**
+   * Generates points that follow the distribution of this histogram into
+   * the given arrays without creating an object for each point. The number
+   * of generated points is the length of the arrays unless the histogram is
+   * empty.
+   * @param mbr - the MBR of all points added to the histogram
+   * @param xs - (output) the x coordinates of the generated points
+   * @param ys - (output) the y coordinates of the generated points
+   * @param seed - the seed of the random number generator
+   * @return - the number of generated points
+   */
+  public int generatePoints(Rectangle mbr, double[] xs, double[] ys, long seed) {
+    if (totalCount == 0)
+      return 0;
+    Random random = new Random(seed);
+    int numPoints = xs.length;
+    double cellSize = Math.scalb(1.0, level);
+    long cumulativeCount = 0;
+    int n = 0;
+    for (int i = 0; i < keys.length && n < numPoints; i++) {
+      if (counts[i] == 0)
+        continue;
+      // Number of points is the difference of rounded cumulative counts
+      // to assign exactly numPoints points to all cells
+      int first = (int) ((double) cumulativeCount / totalCount * numPoints);
+      cumulativeCount += counts[i];
+      int last = (int) ((double) cumulativeCount / totalCount * numPoints);
+      double x1 = Math.max(mbr.x1, (keys[i] >> 32) * cellSize);
+      double y1 = Math.max(mbr.y1, ((int) keys[i]) * cellSize);
+      double x2 = Math.min(mbr.x2, ((keys[i] >> 32) + 1) * cellSize);
+      double y2 = Math.min(mbr.y2, (((int) keys[i]) + 1) * cellSize);
+      for (int j = first; j < last; j++) {
+        xs[n] = x1 + random.nextDouble() * Math.max(0, x2 - x1);
+        ys[n] = y1 + random.nextDouble() * Math.max(0, y2 - y1);
+        n++;
+      }
+    }
+    return n;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    out.writeInt(maxCells);
+    out.writeInt(level);
+    out.writeLong(totalCount);
+    out.writeInt(numCells);
+    for (int i = 0; i < keys.length; i++) {
+      if (counts[i] > 0) {
+        out.writeLong(keys[i]);
+        out.writeLong(counts[i]);
+      }
+    }
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    maxCells = in.readInt();
+    level = in.readInt();
+    totalCount = in.readLong();
+    int cellsToRead = in.readInt();
+    allocate();
+    while (cellsToRead-- > 0) {
+      long key = in.readLong();
+      increment(key >> 32, (int) key, in.readLong());
+    }
+  }
+}
@@ -159,6 +159,11 @@ public class IntArray implements Writable, Iterable<Integer> {
     return size == 0;
   }
 
+  /**Removes all elements without releasing the underlying array*/
+  public void clear() {
+    size = 0;
+  }
+
   /**
    * Returns the underlying array. The returned array might have a length that
    * is larger than {@link #size()}. The values of those additional slots are
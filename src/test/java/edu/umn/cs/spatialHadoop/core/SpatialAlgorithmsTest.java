@@ -0,0 +1,119 @@
+package edu.umn.cs.spatialHadoop.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.mapred.OutputCollector;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the plane sweep joins in {@link SpatialAlgorithms}.
+ */
+public class SpatialAlgorithmsTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SpatialAlgorithmsTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SpatialAlgorithmsTest.class);
+  }
+
+  private static Rectangle[] randomRectangles(Random random, int n) {
+    Rectangle[] rects = new Rectangle[n];
+    for (int i = 0; i < n; i++) {
+      // Use integer coordinates to have many ties and touching rectangles
+      double x = random.nextInt(100), y = random.nextInt(100);
+      rects[i] = new Rectangle(x, y, x + random.nextInt(10), y + random.nextInt(10));
+    }
+    return rects;
+  }
+
+  public void testSpatialJoinMatchesNestedLoops() throws IOException {
+    Random random = new Random(0);
+    final Rectangle[] R = randomRectangles(random, 500);
+    final Rectangle[] S = randomRectangles(random, 400);
+    Set<String> expected = new HashSet<String>();
+    for (int i = 0; i < R.length; i++)
+      for (int j = 0; j < S.length; j++)
+        if (R[i].isIntersected(S[j]))
+          expected.add(i + "," + j);
+    final List<String> actual = new ArrayList<String>();
+    int count = SpatialAlgorithms.SpatialJoin_rectangles(R, S,
+        new OutputCollector<Rectangle, Rectangle>() {
+      @Override
+      public void collect(Rectangle r, Rectangle s) {
+        actual.add(indexOf(R, r) + "," + indexOf(S, s));
+      }
+    }, null);
+    assertEquals(expected.size(), count);
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected, new HashSet<String>(actual));
+  }
+
+  public void testSelfJoinReportsEachPairOnce() throws IOException {
+    Random random = new Random(1);
+    final Rectangle[] R = randomRectangles(random, 500);
+    Set<String> expected = new HashSet<String>();
+    for (int i = 0; i < R.length; i++)
+      for (int j = i + 1; j < R.length; j++)
+        if (R[i].isIntersected(R[j]))
+          expected.add(i + "," + j);
+    final List<String> actual = new ArrayList<String>();
+    int count = SpatialAlgorithms.SelfJoin_planeSweep(R, true,
+        new OutputCollector<Rectangle, Rectangle>() {
+      @Override
+      public void collect(Rectangle r, Rectangle s) {
+        int i = indexOf(R, r), j = indexOf(R, s);
+        actual.add(Math.min(i, j) + "," + Math.max(i, j));
+      }
+    }, null);
+    assertEquals(expected.size(), count);
+    assertEquals(expected.size(), actual.size());
+    assertEquals(expected, new HashSet<String>(actual));
+  }
+
+  public void testParallelJoinMatchesSequentialJoin() throws IOException, InterruptedException {
+    Random random = new Random(2);
+    List<Rectangle> R = Arrays.asList(randomRectangles(random, 1000));
+    List<Rectangle> S = Arrays.asList(randomRectangles(random, 800));
+    int expected = SpatialAlgorithms.SpatialJoin_planeSweep(R, S, null, null);
+    for (int parallelism = 2; parallelism <= 16; parallelism *= 2) {
+      final int[] collected = {0};
+      int count = SpatialAlgorithms.SpatialJoin_planeSweep(R, S,
+          new ResultCollector2<Rectangle, Rectangle>() {
+        @Override
+        public void collect(Rectangle r, Rectangle s) {
+          collected[0]++;
+        }
+      }, null, parallelism);
+      assertEquals(expected, count);
+      assertEquals(expected, collected[0]);
+    }
+  }
+
+  /**Finds an object by identity as rectangles can be duplicate*/
+  private static int indexOf(Object[] array, Object o) {
+    for (int i = 0; i < array.length; i++)
+      if (array[i] == o)
+        return i;
+    return -1;
+  }
+}
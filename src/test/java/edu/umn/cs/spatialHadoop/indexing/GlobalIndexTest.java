@@ -0,0 +1,200 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link GlobalIndex}.
+ */
+public class GlobalIndexTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public GlobalIndexTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(GlobalIndexTest.class);
+  }
+
+  /**Creates random partitions of different sizes in the space [0, 1000)^2*/
+  private static Partition[] createPartitions(Random random, int count) {
+    Partition[] partitions = new Partition[count];
+    for (int i = 0; i < count; i++) {
+      double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+      double size = random.nextDouble() * (i % 10 == 0 ? 200 : 20);
+      partitions[i] = new Partition(String.format("part-%05d", i),
+          new CellInfo(i + 1, x, y, x + size, y + size));
+      partitions[i].recordCount = random.nextInt(1000);
+      partitions[i].size = partitions[i].recordCount * 100;
+    }
+    return partitions;
+  }
+
+  /**Returns the file names of all partitions that overlap the query*/
+  private static TreeSet<String> rangeQuery(GlobalIndex<Partition> gindex,
+      Rectangle query) {
+    final TreeSet<String> results = new TreeSet<String>();
+    int count = gindex.rangeQuery(query, new ResultCollector<Partition>() {
+      @Override
+      public void collect(Partition p) {
+        assertTrue("Reported twice "+p.filename, results.add(p.filename));
+      }
+    });
+    assertEquals(results.size(), count);
+    return results;
+  }
+
+  public void testRangeQueryMatchesLinearScan() {
+    Random random = new Random(0);
+    // Include sizes around the fanout of the tree and multiple levels
+    int[] sizes = {1, 15, 16, 17, 100, 5000};
+    for (int size : sizes) {
+      Partition[] partitions = createPartitions(random, size);
+      GlobalIndex<Partition> gindex = new GlobalIndex<Partition>();
+      gindex.bulkLoad(partitions);
+      for (int q = 0; q < 100; q++) {
+        double x = random.nextDouble() * 1100 - 100;
+        double y = random.nextDouble() * 1100 - 100;
+        Rectangle query = new Rectangle(x, y, x + random.nextDouble() * 300,
+            y + random.nextDouble() * 300);
+        TreeSet<String> expected = new TreeSet<String>();
+        for (Partition p : partitions)
+          if (p.isIntersected(query))
+            expected.add(p.filename);
+        assertEquals("Index of "+size+" partitions", expected,
+            rangeQuery(gindex, query));
+      }
+    }
+  }
+
+  public void testCopyIsIndependent() {
+    Random random = new Random(0);
+    Partition[] partitions = createPartitions(random, 100);
+    GlobalIndex<Partition> gindex = new GlobalIndex<Partition>();
+    gindex.bulkLoad(partitions);
+    GlobalIndex<Partition> copy = gindex.copy();
+    Rectangle query = new Rectangle(0, 0, 1000, 1000);
+    TreeSet<String> expected = rangeQuery(gindex, query);
+    for (Partition p : copy) {
+      p.set(-10, -10, -5, -5);
+      p.recordCount = -1;
+    }
+    copy.setReplicated(true);
+    assertEquals(expected, rangeQuery(gindex, query));
+    assertFalse(gindex.isReplicated());
+    for (Partition p : gindex)
+      assertTrue(p.recordCount >= 0);
+  }
+
+  public void testCachedGlobalIndexIsNotShared() throws IOException {
+    Random random = new Random(0);
+    Partition[] partitions = createPartitions(random, 50);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    File tempDir = File.createTempFile("gindex", "test");
+    tempDir.delete();
+    Path indexPath = new Path(tempDir.getAbsolutePath());
+    try {
+      FSDataOutputStream out = fs.create(new Path(indexPath, "_master.grid"));
+      Text line = new Text();
+      for (Partition p : partitions) {
+        line.clear();
+        p.toText(line);
+        out.write(line.getBytes(), 0, line.getLength());
+        out.write('\n');
+      }
+      out.close();
+
+      GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, indexPath);
+      assertEquals(partitions.length, gindex.size());
+      for (Partition p : gindex)
+        p.expand(new Partition("", new CellInfo(0, -1000, -1000, -999, -999)));
+      Partition p0 = SpatialSite.getPartitionByName(fs, indexPath,
+          partitions[0].filename);
+      p0.set(-5, -5, -1, -1);
+
+      // Later callers should see the partitions as stored in the master file
+      for (Partition p : SpatialSite.getGlobalIndex(fs, indexPath))
+        assertTrue(p.x1 >= 0 && p.y1 >= 0);
+      assertEquals(partitions[0].x1, SpatialSite.getPartitionByName(fs,
+          indexPath, partitions[0].filename).x1);
+      assertNull(SpatialSite.getPartitionByName(fs, indexPath, "missing"));
+    } finally {
+      fs.delete(indexPath, true);
+    }
+  }
+
+  /**
+   * The kNN iterator returns all partitions ordered by their distance to the
+   * query point. The distances are compared to a brute force search.
+   */
+  public void testKNNIterator() {
+    Random random = new Random(0);
+    for (int size : new int[] {1, 17, 500}) {
+      Partition[] partitions = createPartitions(random, size);
+      GlobalIndex<Partition> gindex = new GlobalIndex<Partition>();
+      gindex.bulkLoad(partitions);
+      for (int q = 0; q < 20; q++) {
+        double qx = random.nextDouble() * 1200 - 100;
+        double qy = random.nextDouble() * 1200 - 100;
+        List<Double> expected = new ArrayList<Double>();
+        for (Partition p : partitions)
+          expected.add(p.distanceTo(qx, qy));
+        Collections.sort(expected);
+
+        GlobalIndex<Partition>.KNNIterator iter = gindex.knn(qx, qy);
+        List<Double> actual = new ArrayList<Double>();
+        Map<Partition, Boolean> returned = new IdentityHashMap<Partition, Boolean>();
+        for (Partition p : iter) {
+          assertNull("Returned twice "+p.filename, returned.put(p, Boolean.TRUE));
+          assertEquals(p.distanceTo(qx, qy), iter.getDistance());
+          actual.add(iter.getDistance());
+        }
+        assertEquals(expected, actual);
+
+        final List<Double> knn = new ArrayList<Double>();
+        int k = 1 + random.nextInt(20);
+        assertEquals(Math.min(k, size), gindex.knn(qx, qy, k,
+            new ResultCollector2<Partition, Double>() {
+          @Override
+          public void collect(Partition p, Double distance) {
+            knn.add(distance);
+          }
+        }));
+        assertEquals(expected.subList(0, Math.min(k, size)), knn);
+      }
+    }
+  }
+}
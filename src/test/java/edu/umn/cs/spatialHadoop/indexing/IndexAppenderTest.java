@@ -0,0 +1,207 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link IndexAppender}.
+ */
+public class IndexAppenderTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public IndexAppenderTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(IndexAppenderTest.class);
+  }
+
+  private static final Rectangle SpaceMBR = new Rectangle(0, 0, 1000, 1000);
+
+  /**Writes random points to a file and adds their text to the given list*/
+  private static void writePoints(FileSystem fs, Path path, Random random,
+      int count, List<String> records) throws IOException {
+    FSDataOutputStream out = fs.create(path);
+    Text line = new Text();
+    for (int i = 0; i < count; i++) {
+      line.clear();
+      new Point(random.nextDouble() * 1000, random.nextDouble() * 1000).toText(line);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write('\n');
+      Point p = new Point();
+      p.fromText(line);
+      records.add(p.toString());
+    }
+    out.close();
+  }
+
+  /**
+   * Reads all records of the index through its master file and checks that
+   * the master file lists all data files of the index.
+   */
+  private static List<String> readIndex(FileSystem fs, Path indexPath,
+      List<Partition> partitions, Configuration conf)
+      throws IOException, InterruptedException {
+    final List<String> records = new ArrayList<String>();
+    Set<String> files = new HashSet<String>();
+    long recordCount = 0;
+    for (Partition p : partitions) {
+      files.add(p.filename);
+      recordCount += p.recordCount;
+      SpatialSite.readAllShapes(new Path(indexPath, p.filename), conf,
+          new ResultCollector<Shape>() {
+        @Override
+        public void collect(Shape s) {
+          records.add(s.toString());
+        }
+      });
+    }
+    assertEquals(records.size(), recordCount);
+    for (FileStatus status : fs.listStatus(indexPath, SpatialSite.NonHiddenFileFilter))
+      assertTrue("Unlisted file "+status.getPath(),
+          files.remove(status.getPath().getName()));
+    assertTrue("Missing files "+files, files.isEmpty());
+    Collections.sort(records);
+    return records;
+  }
+
+  /**Groups the partitions of an index by their cell ID*/
+  private static Map<Integer, List<Partition>> groupByCell(
+      List<Partition> partitions) {
+    Map<Integer, List<Partition>> cells = new HashMap<Integer, List<Partition>>();
+    for (Partition p : partitions) {
+      if (!cells.containsKey(p.cellId))
+        cells.put(p.cellId, new ArrayList<Partition>());
+      cells.get(p.cellId).add(p);
+    }
+    return cells;
+  }
+
+  /**
+   * Appends twice to a grid index where one cell is initially empty. The
+   * delta files of all cells, including the lone delta files of the empty
+   * cell, are compacted once they reach the limit.
+   */
+  public void testAppendAndCompact() throws IOException, InterruptedException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path indexPath = IndexRebalancerTest.createTempDir(fs);
+    File newFile = File.createTempFile("append", ".txt");
+    Path newPath = new Path(newFile.getAbsolutePath());
+    try {
+      // Write an index where the last cell of a 2x2 grid has no file
+      Partitioner partitioner = new GridPartitioner(SpaceMBR, 2, 2);
+      CellInfo emptyCell = partitioner.getPartitionAt(3);
+      List<String> expected = new ArrayList<String>();
+      Map<Integer, List<String>> cellRecords = new HashMap<Integer, List<String>>();
+      for (int i = 0; i < 1000; i++) {
+        Point p = new Point();
+        p.fromText(new Point(random.nextDouble() * 1000,
+            random.nextDouble() * 1000).toText(new Text()));
+        int id = partitioner.overlapPartition(p);
+        if (id == emptyCell.cellId)
+          continue;
+        if (!cellRecords.containsKey(id))
+          cellRecords.put(id, new ArrayList<String>());
+        cellRecords.get(id).add(p.toText(new Text()).toString());
+        expected.add(p.toString());
+      }
+      Partition[] partitions = new Partition[cellRecords.size()];
+      int iPartition = 0;
+      for (Map.Entry<Integer, List<String>> cell : cellRecords.entrySet()) {
+        partitions[iPartition] = new Partition(String.format("part-%05d", cell.getKey()),
+            partitioner.getPartition(cell.getKey()));
+        FSDataOutputStream out = fs.create(new Path(indexPath, partitions[iPartition].filename));
+        for (String line : cell.getValue()) {
+          out.write(line.getBytes());
+          out.write('\n');
+        }
+        out.close();
+        partitions[iPartition].recordCount = cell.getValue().size();
+        partitions[iPartition].size = fs.getFileStatus(new Path(indexPath,
+            partitions[iPartition].filename)).getLen();
+        iPartition++;
+      }
+      assertEquals(3, partitions.length);
+      IndexRebalancerTest.writeMasterFile(fs, indexPath, "grid", partitions);
+      Partitioner.writeToIndex(fs, indexPath, partitioner);
+      Path masterPath = new Path(indexPath, "_master.grid");
+
+      OperationsParams params = new OperationsParams(conf);
+      OperationsParams.setShape(params, "shape", new Point());
+      params.setInt(IndexAppender.MaxDeltaFiles, 2);
+
+      // The first append adds one delta file to each cell
+      writePoints(fs, newPath, random, 100, expected);
+      IndexAppender.append(new Path[] {newPath}, indexPath, params);
+      List<Partition> master = IndexRebalancer.readMasterFile(fs, masterPath);
+      Collections.sort(expected);
+      assertEquals(expected, readIndex(fs, indexPath, master, params));
+      Map<Integer, List<Partition>> cells = groupByCell(master);
+      assertEquals(4, cells.size());
+      for (List<Partition> files : cells.values()) {
+        int numDeltaFiles = 0;
+        for (Partition p : files)
+          if (IndexAppender.isDeltaFile(p.filename))
+            numDeltaFiles++;
+        assertEquals(1, numDeltaFiles);
+      }
+      assertEquals(1, cells.get(emptyCell.cellId).size());
+
+      // The second append reaches the limit and compacts all cells
+      writePoints(fs, newPath, random, 100, expected);
+      IndexAppender.append(new Path[] {newPath}, indexPath, params);
+      master = IndexRebalancer.readMasterFile(fs, masterPath);
+      Collections.sort(expected);
+      assertEquals(expected, readIndex(fs, indexPath, master, params));
+      assertEquals(4, master.size());
+      assertEquals(4, groupByCell(master).size());
+      for (Partition p : master) {
+        assertFalse(p.filename, IndexAppender.isDeltaFile(p.filename));
+        Rectangle cell = partitioner.getPartition(p.cellId);
+        assertTrue(p.x1 >= cell.x1 || p.x1 == -Double.MAX_VALUE);
+        assertTrue(p.x2 <= cell.x2 || p.x2 == Double.MAX_VALUE);
+      }
+    } finally {
+      fs.delete(indexPath, true);
+      fs.delete(newPath, false);
+    }
+  }
+}
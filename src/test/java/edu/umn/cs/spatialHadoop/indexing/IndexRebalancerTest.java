@@ -0,0 +1,407 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link IndexRebalancer}.
+ */
+public class IndexRebalancerTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public IndexRebalancerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(IndexRebalancerTest.class);
+  }
+
+  private static final Rectangle SpaceMBR = new Rectangle(0, 0, 1000, 1000);
+
+  /**Creates an empty temporary directory on the local file system*/
+  static Path createTempDir(FileSystem fs) throws IOException {
+    File tempDir = File.createTempFile("rebalance", "test");
+    tempDir.delete();
+    Path path = new Path(tempDir.getAbsolutePath());
+    fs.mkdirs(path);
+    return path;
+  }
+
+  /**Writes the given partitions to a master file in the index directory*/
+  static void writeMasterFile(FileSystem fs, Path indexPath,
+      String sindex, Partition[] partitions) throws IOException {
+    FSDataOutputStream out = fs.create(new Path(indexPath, "_master."+sindex));
+    Text line = new Text();
+    for (Partition p : partitions) {
+      line.clear();
+      p.toText(line);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write('\n');
+    }
+    out.close();
+  }
+
+  /**
+   * Indexes of a space-filling curve cannot be rebalanced as splitting their
+   * overlapping partitions would report records twice. The index should be
+   * left as is and a range query should still report each record once.
+   */
+  public void testCurveIndexIsNotRebalanced() throws IOException,
+      InterruptedException {
+    Random random = new Random(0);
+    Partitioner[] partitioners = {new ZCurvePartitioner(),
+        new HilbertCurvePartitioner()};
+    String[] sindexes = {"zcurve+", "hilbert+"};
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    for (int i = 0; i < partitioners.length; i++) {
+      Partitioner p = partitioners[i];
+      Point[] points = new Point[10000];
+      for (int j = 0; j < points.length; j++)
+        points[j] = new Point(random.nextDouble() * 1000,
+            Math.pow(random.nextDouble(), 3) * 1000);
+      p.createFromPoints(SpaceMBR, points, 500);
+      Rectangle[] records = new Rectangle[1000];
+      for (int j = 0; j < records.length; j++) {
+        double x = random.nextDouble() * 950, y = random.nextDouble() * 950;
+        records[j] = new Rectangle(x, y, x + random.nextDouble() * 50,
+            y + random.nextDouble() * 50);
+      }
+      Path indexPath = createTempDir(fs);
+      try {
+        // All partitions are too large to trigger splitting them
+        Partition[] partitions = new Partition[p.getPartitionCount()];
+        for (int j = 0; j < partitions.length; j++) {
+          partitions[j] = new Partition(String.format("part-%05d", j),
+              p.getPartitionAt(j));
+          partitions[j].recordCount = 1000;
+          partitions[j].size = 1L << 40;
+        }
+        writeMasterFile(fs, indexPath, sindexes[i], partitions);
+        Partitioner.writeToIndex(fs, indexPath, p);
+        FileStatus master = fs.getFileStatus(new Path(indexPath, "_master."+sindexes[i]));
+
+        try {
+          IndexRebalancer.rebalance(indexPath, new OperationsParams(conf));
+          fail("Should not rebalance a "+sindexes[i]+" index");
+        } catch (IOException e) {
+          // Expected
+        }
+        FileStatus newMaster = fs.getFileStatus(master.getPath());
+        assertEquals(master.getModificationTime(), newMaster.getModificationTime());
+        assertEquals(master.getLen(), newMaster.getLen());
+
+        // Each record is stored in all partitions it overlaps and is reported
+        // only by the partition of its reference point
+        final GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, indexPath);
+        assertEquals(partitions.length, gindex.size());
+        assertTrue(gindex.isReplicated());
+        final Partitioner partitioner = gindex.getPartitioner();
+        assertNotNull(partitioner);
+        for (int q = 0; q < 20; q++) {
+          double qx = random.nextDouble() * 1000, qy = random.nextDouble() * 1000;
+          final Rectangle query = new Rectangle(qx, qy,
+              qx + random.nextDouble() * 300, qy + random.nextDouble() * 300);
+          for (final Rectangle record : records) {
+            if (!record.isIntersected(query))
+              continue;
+            final int[] count = {0};
+            gindex.rangeQuery(query, partitioner, new ResultCollector<Partition>() {
+              @Override
+              public void collect(final Partition partition) {
+                partitioner.overlapPartitions(record, new ResultCollector<Integer>() {
+                  @Override
+                  public void collect(Integer cellId) {
+                    if (cellId == partition.cellId && partitioner.isReferencePointIn(
+                        partition, Math.max(query.x1, record.x1),
+                        Math.max(query.y1, record.y1)))
+                      count[0]++;
+                  }
+                });
+              }
+            });
+            assertEquals(sindexes[i], 1, count[0]);
+          }
+        }
+      } finally {
+        fs.delete(indexPath, true);
+      }
+    }
+  }
+
+  /**
+   * Creates a random rectangle with its lower corner in the given range. The
+   * rectangle is parsed from its text so that it is written as is.
+   */
+  private static Rectangle randomRecord(Random random, Rectangle range,
+      double maxSize) {
+    double x = range.x1 + random.nextDouble() * range.getWidth();
+    double y = range.y1 + random.nextDouble() * range.getHeight();
+    Rectangle r = new Rectangle();
+    r.fromText(new Rectangle(x, y, x + (0.01 + random.nextDouble()) * maxSize,
+        y + (0.01 + random.nextDouble()) * maxSize).toText(new Text()));
+    return r;
+  }
+
+  /**Writes the records of a partition to its file and sets its size*/
+  private static void writePartition(FileSystem fs, Path indexPath,
+      Partition p, List<Rectangle> records) throws IOException {
+    Path file = new Path(indexPath, p.filename);
+    FSDataOutputStream out = fs.create(file);
+    Text line = new Text();
+    for (Rectangle r : records) {
+      line.clear();
+      r.toText(line);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write('\n');
+    }
+    out.close();
+    p.recordCount = records.size();
+    p.size = fs.getFileStatus(file).getLen();
+  }
+
+  /**Reads all records of a partition*/
+  private static List<Rectangle> readPartition(Path indexPath, Partition p,
+      Configuration conf) throws IOException, InterruptedException {
+    final List<Rectangle> records = new ArrayList<Rectangle>();
+    SpatialSite.readAllShapes(new Path(indexPath, p.filename), conf,
+        new ResultCollector<Shape>() {
+      @Override
+      public void collect(Shape s) {
+        records.add(new Rectangle(s.getMBR()));
+      }
+    });
+    return records;
+  }
+
+  /**Sets the target partition size of the rebalancer in bytes*/
+  private static void setTargetSize(OperationsParams params, FileSystem fs,
+      Path indexPath, double targetSize) {
+    params.setFloat(IndexRebalancer.TargetRatio,
+        (float) (targetSize / fs.getDefaultBlockSize(indexPath)));
+  }
+
+  /**
+   * Small partitions of a grid are grouped with their neighbors along the
+   * Hilbert curve without exceeding the target size.
+   */
+  public void testGroupNeighbors() {
+    Random random = new Random(0);
+    int gridSize = 16;
+    long targetSize = 100;
+    List<Partition> partitions = new ArrayList<Partition>();
+    for (int row = 0; row < gridSize; row++) {
+      for (int col = 0; col < gridSize; col++) {
+        Partition p = new Partition(String.format("part-%05d", partitions.size()),
+            new CellInfo(partitions.size(), col, row, col + 1, row + 1));
+        p.size = 1 + random.nextInt(40);
+        partitions.add(p);
+      }
+    }
+    assertTrue(IndexRebalancer.groupNeighbors(partitions.subList(0, 1),
+        targetSize).isEmpty());
+    List<List<Partition>> groups = IndexRebalancer.groupNeighbors(partitions,
+        targetSize);
+    assertFalse(groups.isEmpty());
+    Set<String> grouped = new HashSet<String>();
+    for (List<Partition> group : groups) {
+      assertTrue(group.size() >= 2);
+      long groupSize = 0;
+      for (int i = 0; i < group.size(); i++) {
+        Partition p = group.get(i);
+        assertTrue("Grouped twice "+p.filename, grouped.add(p.filename));
+        groupSize += p.size;
+        if (i > 0) {
+          // Consecutive cells on the curve share an edge
+          Partition prev = group.get(i - 1);
+          assertEquals(1.0, Math.abs(p.x1 - prev.x1) + Math.abs(p.y1 - prev.y1));
+        }
+      }
+      assertTrue(groupSize <= targetSize);
+    }
+    // A partition is left out only if it does not fit with its neighbors
+    assertTrue(grouped.size() > partitions.size() / 2);
+  }
+
+  /**
+   * A large partition of a non-replicated index is split into partitions of
+   * about the target size along a Kd-tree. Each record is moved to exactly one
+   * of the new partitions and the other partitions are kept as is.
+   */
+  public void testSplitPartition() throws IOException, InterruptedException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path indexPath = createTempDir(fs);
+    try {
+      List<Rectangle> largeRecords = new ArrayList<Rectangle>();
+      for (int i = 0; i < 2000; i++)
+        largeRecords.add(randomRecord(random, new Rectangle(0, 0, 480, 980), 20));
+      List<Rectangle> smallRecords = new ArrayList<Rectangle>();
+      for (int i = 0; i < 50; i++)
+        smallRecords.add(randomRecord(random, new Rectangle(500, 0, 980, 980), 20));
+      Partition large = new Partition("part-00000", new CellInfo(0, 0, 0, 500, 1000));
+      writePartition(fs, indexPath, large, largeRecords);
+      Partition small = new Partition("part-00001", new CellInfo(1, 500, 0, 1000, 1000));
+      writePartition(fs, indexPath, small, smallRecords);
+      writeMasterFile(fs, indexPath, "str", new Partition[] {large, small});
+
+      OperationsParams params = new OperationsParams(conf);
+      OperationsParams.setShape(params, "shape", new Rectangle());
+      double targetSize = large.size / 3.5;
+      setTargetSize(params, fs, indexPath, targetSize);
+      assertTrue(IndexRebalancer.rebalance(indexPath, params));
+
+      List<Partition> master = IndexRebalancer.readMasterFile(fs,
+          new Path(indexPath, "_master.str"));
+      assertTrue(master.remove(small));
+      assertTrue(master.size() >= 3);
+      assertFalse(fs.exists(new Path(indexPath, large.filename)));
+      List<String> expected = new ArrayList<String>();
+      for (Rectangle r : largeRecords)
+        expected.add(r.toString());
+      Collections.sort(expected);
+      List<String> actual = new ArrayList<String>();
+      Set<Integer> ids = new HashSet<Integer>();
+      for (Partition p : master) {
+        assertTrue(ids.add(p.cellId));
+        assertTrue(p.cellId > small.cellId);
+        assertTrue(large.contains(p));
+        assertTrue(p.size <= targetSize * 1.5);
+        List<Rectangle> records = readPartition(indexPath, p, params);
+        assertEquals(p.recordCount, records.size());
+        Rectangle mbr = new Rectangle(records.get(0));
+        for (Rectangle r : records) {
+          mbr.expand(r);
+          actual.add(r.toString());
+        }
+        assertEquals(mbr, new Rectangle(p));
+      }
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+      assertEquals(smallRecords.size(), readPartition(indexPath, small, params).size());
+    } finally {
+      fs.delete(indexPath, true);
+    }
+  }
+
+  /**
+   * A large partition of a replicated grid index is split into partitions
+   * that are clipped to its grid cell. Records are replicated to all new
+   * partitions they overlap and are reported once by their reference point.
+   */
+  public void testSplitReplicatedPartition() throws IOException,
+      InterruptedException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path indexPath = createTempDir(fs);
+    try {
+      Partitioner grid = new GridPartitioner(SpaceMBR, 2, 2);
+      CellInfo largeCell = grid.getPartitionAt(0);
+      List<Rectangle> records = new ArrayList<Rectangle>();
+      for (int i = 0; i < 2000; i++)
+        records.add(randomRecord(random, largeCell, 20));
+      for (int i = 0; i < 100; i++)
+        records.add(randomRecord(random, new Rectangle(0, 0, 980, 980), 20));
+      // Replicate the records to all cells they overlap
+      Partition[] partitions = new Partition[grid.getPartitionCount()];
+      Map<Integer, List<Rectangle>> cellRecords = new HashMap<Integer, List<Rectangle>>();
+      for (int i = 0; i < partitions.length; i++) {
+        CellInfo cell = grid.getPartitionAt(i);
+        List<Rectangle> overlapping = new ArrayList<Rectangle>();
+        Rectangle mbr = null;
+        for (Rectangle r : records) {
+          if (r.isIntersected(cell)) {
+            overlapping.add(r);
+            mbr = mbr == null ? new Rectangle(r) : mbr.union(r);
+          }
+        }
+        partitions[i] = new Partition(String.format("part-%05d", cell.cellId), cell);
+        partitions[i].set(mbr.getIntersection(cell));
+        writePartition(fs, indexPath, partitions[i], overlapping);
+        cellRecords.put(cell.cellId, overlapping);
+      }
+      writeMasterFile(fs, indexPath, "grid", partitions);
+      Partitioner.writeToIndex(fs, indexPath, grid);
+
+      OperationsParams params = new OperationsParams(conf);
+      OperationsParams.setShape(params, "shape", new Rectangle());
+      double targetSize = partitions[0].size / 3.5;
+      for (int i = 1; i < partitions.length; i++)
+        assertTrue(partitions[i].size < targetSize * 1.5);
+      setTargetSize(params, fs, indexPath, targetSize);
+      assertTrue(IndexRebalancer.rebalance(indexPath, params));
+
+      List<Partition> master = IndexRebalancer.readMasterFile(fs,
+          new Path(indexPath, "_master.grid"));
+      for (int i = 1; i < partitions.length; i++)
+        assertTrue(master.remove(partitions[i]));
+      assertTrue(master.size() >= 3);
+      assertFalse(master.contains(partitions[0]));
+      // Each record that starts in the large cell is reported by exactly one
+      // new partition and all other records by none of them
+      Map<String, Integer> reported = new HashMap<String, Integer>();
+      for (Partition p : master) {
+        assertTrue(largeCell.contains(p));
+        assertTrue(partitions[0].contains(p));
+        List<Rectangle> newRecords = readPartition(indexPath, p, params);
+        assertEquals(p.recordCount, newRecords.size());
+        for (Rectangle r : newRecords) {
+          if (p.contains(r.x1, r.y1)) {
+            Integer count = reported.get(r.toString());
+            reported.put(r.toString(), count == null ? 1 : count + 1);
+          }
+        }
+      }
+      int recordsInCell = 0;
+      for (Rectangle r : cellRecords.get(largeCell.cellId)) {
+        if (largeCell.contains(r.x1, r.y1)) {
+          recordsInCell++;
+          assertEquals(r.toString(), Integer.valueOf(1), reported.get(r.toString()));
+        } else {
+          assertNull(r.toString(), reported.get(r.toString()));
+        }
+      }
+      assertEquals(recordsInCell, reported.size());
+    } finally {
+      fs.delete(indexPath, true);
+    }
+  }
+}
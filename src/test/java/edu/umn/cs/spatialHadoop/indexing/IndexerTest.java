@@ -0,0 +1,93 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.io.IntWritable;
+
+import edu.umn.cs.spatialHadoop.core.Circle;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link Indexer}.
+ */
+public class IndexerTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public IndexerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(IndexerTest.class);
+  }
+
+  /**
+   * Adds records to a batch reusing one object per type as record readers do
+   * and checks that each record is written to the same partitions as when it
+   * is partitioned on its own.
+   */
+  public void testPartitionBatchWithReusedShapes() throws IOException,
+      InterruptedException {
+    Random random = new Random(0);
+    final Partitioner partitioner = new GridPartitioner(
+        new Rectangle(0, 0, 1000, 1000), 7, 5);
+    Shape[] reused = {new Point(), new Rectangle(), new Circle()};
+    for (final boolean replicate : new boolean[] {false, true}) {
+      final List<String> expected = new ArrayList<String>();
+      final List<String> actual = new ArrayList<String>();
+      Indexer.PartitionBatch batch = new Indexer.PartitionBatch(partitioner,
+          replicate) {
+        @Override
+        protected void write(IntWritable partitionID, Shape shape) {
+          actual.add(partitionID.get() + " " + shape);
+        }
+      };
+      for (int i = 0; i < 3 * Indexer.PartitionBatch.BatchSize; i++) {
+        double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+        // Switch between record types in runs of different lengths
+        final Shape shape = reused[(i / 100) % reused.length];
+        if (shape instanceof Point)
+          ((Point) shape).set(x, y);
+        else if (shape instanceof Rectangle)
+          ((Rectangle) shape).set(x, y, x + random.nextDouble() * 100,
+              y + random.nextDouble() * 100);
+        else
+          ((Circle) shape).set(x, y, random.nextDouble() * 50);
+        if (replicate) {
+          partitioner.overlapPartitions(shape, new ResultCollector<Integer>() {
+            @Override
+            public void collect(Integer id) {
+              expected.add(id + " " + shape);
+            }
+          });
+        } else {
+          expected.add(partitioner.overlapPartition(shape) + " " + shape);
+        }
+        batch.add(shape);
+      }
+      batch.flush();
+      Collections.sort(expected);
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+    }
+  }
+}
@@ -0,0 +1,239 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for the implementations of {@link Partitioner}.
+ */
+public class PartitionerTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public PartitionerTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(PartitionerTest.class);
+  }
+
+  private static final Rectangle SpaceMBR = new Rectangle(0, 0, 1000, 1000);
+
+  /**Creates a partitioner from random points that are skewed along y*/
+  private static Partitioner createPartitioner(Partitioner p, Random random) {
+    Point[] points = new Point[10000];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(random.nextDouble() * 1000,
+          Math.pow(random.nextDouble(), 3) * 1000);
+    p.createFromPoints(SpaceMBR, points, 100);
+    return p;
+  }
+
+  /**Creates a mix of random points and small rectangles in the space*/
+  private static Shape[] createShapes(Random random, int count) {
+    Shape[] shapes = new Shape[count];
+    for (int i = 0; i < count; i++) {
+      if (i % 2 == 0) {
+        shapes[i] = new Point(random.nextDouble() * 1000, random.nextDouble() * 1000);
+      } else {
+        double x = random.nextDouble() * 950, y = random.nextDouble() * 950;
+        shapes[i] = new Rectangle(x, y, x + random.nextDouble() * 50,
+            y + random.nextDouble() * 50);
+      }
+    }
+    return shapes;
+  }
+
+  public void testBatchOverlapPartition() {
+    Random random = new Random(0);
+    Partitioner[] partitioners = {new GridPartitioner(), new STRPartitioner(),
+        new KdTreePartitioner(), new QuadTreePartitioner(),
+        new ZCurvePartitioner(), new HilbertCurvePartitioner()};
+    for (Partitioner p : partitioners) {
+      createPartitioner(p, random);
+      Shape[] shapes = createShapes(random, 1000);
+      double[] x = new double[shapes.length], y = new double[shapes.length];
+      for (int i = 0; i < shapes.length; i++) {
+        Rectangle mbr = shapes[i].getMBR();
+        x[i] = (mbr.x1 + mbr.x2) / 2;
+        y[i] = (mbr.y1 + mbr.y2) / 2;
+      }
+      int[] partitionIDs = new int[shapes.length];
+      p.overlapPartition(x, y, shapes.length, partitionIDs);
+      for (int i = 0; i < shapes.length; i++)
+        assertEquals(p.getClass().getSimpleName(),
+            p.overlapPartition(shapes[i]), partitionIDs[i]);
+    }
+  }
+
+  public void testBatchOverlapPartitions() {
+    Random random = new Random(0);
+    Partitioner[] partitioners = {new GridPartitioner(), new STRPartitioner(),
+        new KdTreePartitioner(), new QuadTreePartitioner(),
+        new ZCurvePartitioner(), new HilbertCurvePartitioner()};
+    for (Partitioner p : partitioners) {
+      createPartitioner(p, random);
+      Shape[] shapes = createShapes(random, 1000);
+      double[] x1 = new double[shapes.length], y1 = new double[shapes.length],
+          x2 = new double[shapes.length], y2 = new double[shapes.length];
+      for (int i = 0; i < shapes.length; i++) {
+        Rectangle mbr = shapes[i].getMBR();
+        x1[i] = mbr.x1;
+        y1[i] = mbr.y1;
+        x2[i] = mbr.x2;
+        y2[i] = mbr.y2;
+      }
+      int[] offsets = new int[shapes.length + 1];
+      IntArray partitionIDs = new IntArray();
+      p.overlapPartitions(x1, y1, x2, y2, shapes.length, offsets, partitionIDs);
+      assertEquals(partitionIDs.size(), offsets[shapes.length]);
+      for (int i = 0; i < shapes.length; i++) {
+        final TreeSet<Integer> expected = new TreeSet<Integer>();
+        p.overlapPartitions(shapes[i], new ResultCollector<Integer>() {
+          @Override
+          public void collect(Integer id) {
+            expected.add(id);
+          }
+        });
+        TreeSet<Integer> actual = new TreeSet<Integer>();
+        for (int j = offsets[i]; j < offsets[i + 1]; j++)
+          actual.add(partitionIDs.get(j));
+        assertEquals(p.getClass().getSimpleName(), expected, actual);
+        assertEquals(expected.size(), offsets[i + 1] - offsets[i]);
+      }
+    }
+  }
+
+  /**
+   * Compares the partitions that overlap a rectangle to the partitions of all
+   * grid cells in that rectangle. The input space is chosen such that each
+   * grid cell of the curve is a unit square.
+   */
+  public void testCurveOverlapPartitions() {
+    Random random = new Random(0);
+    Partitioner[] partitioners = {new ZCurvePartitioner(),
+        new HilbertCurvePartitioner()};
+    double[] resolutions = {Integer.MAX_VALUE, Short.MAX_VALUE};
+    for (int iPartitioner = 0; iPartitioner < partitioners.length; iPartitioner++) {
+      Partitioner p = partitioners[iPartitioner];
+      double resolution = resolutions[iPartitioner];
+      Point[] points = new Point[10000];
+      for (int i = 0; i < points.length; i++)
+        points[i] = new Point(1000 + random.nextDouble() * 2000,
+            1000 + random.nextDouble() * 2000);
+      p.createFromPoints(new Rectangle(0, 0, resolution, resolution), points, 50);
+      Rectangle cell = new Rectangle();
+      for (int q = 0; q < 50; q++) {
+        int x1 = 900 + random.nextInt(2000), y1 = 900 + random.nextInt(2000);
+        int x2 = x1 + random.nextInt(100), y2 = y1 + random.nextInt(100);
+        TreeSet<Integer> expected = new TreeSet<Integer>();
+        for (int x = x1; x <= x2; x++) {
+          for (int y = y1; y <= y2; y++) {
+            cell.set(x + 0.25, y + 0.25, x + 0.25, y + 0.25);
+            expected.add(p.overlapPartition(cell));
+          }
+        }
+        final TreeSet<Integer> actual = new TreeSet<Integer>();
+        p.overlapPartitions(new Rectangle(x1 + 0.25, y1 + 0.25, x2 + 0.5, y2 + 0.5),
+            new ResultCollector<Integer>() {
+          @Override
+          public void collect(Integer id) {
+            actual.add(id);
+          }
+        });
+        assertEquals(p.getClass().getSimpleName(), expected, actual);
+      }
+    }
+  }
+
+  /**
+   * Each record that overlaps a query range should be reported by exactly one
+   * of the partitions it is replicated to even when the partitions of a curve
+   * have overlapping MBRs or the record is partially out of the input space.
+   */
+  public void testCurveReferencePoint() {
+    Random random = new Random(0);
+    Partitioner[] partitioners = {new ZCurvePartitioner(),
+        new HilbertCurvePartitioner()};
+    for (Partitioner p : partitioners) {
+      createPartitioner(p, random);
+      Shape[] shapes = createShapes(random, 1000);
+      for (int q = 0; q < 20; q++) {
+        double qx = random.nextDouble() * 1100 - 100;
+        double qy = random.nextDouble() * 1100 - 100;
+        Rectangle query = new Rectangle(qx, qy, qx + random.nextDouble() * 300,
+            qy + random.nextDouble() * 300);
+        for (Shape shape : shapes) {
+          // Odd queries extend records out of the input space
+          final Rectangle mbr = new Rectangle(shape.getMBR());
+          if (q % 2 == 1)
+            mbr.set(mbr.x1 - 50, mbr.y1 - 50, mbr.x2, mbr.y2);
+          if (!mbr.isIntersected(query))
+            continue;
+          final double refX = Math.max(query.x1, mbr.x1);
+          final double refY = Math.max(query.y1, mbr.y1);
+          final Partitioner partitioner = p;
+          final int[] count = {0};
+          p.overlapPartitions(mbr, new ResultCollector<Integer>() {
+            @Override
+            public void collect(Integer id) {
+              if (partitioner.isReferencePointIn(partitioner.getPartition(id), refX, refY))
+                count[0]++;
+            }
+          });
+          assertEquals(p.getClass().getSimpleName(), 1, count[0]);
+        }
+      }
+    }
+  }
+
+  public void testKdTreeCountLeaves() {
+    for (int numSplits = 1; numSplits < 300; numSplits++) {
+      for (int node = 1; node < 2 * numSplits; node++) {
+        // Count leaves whose binary IDs start with the ID of the node
+        String prefix = Integer.toBinaryString(node);
+        int expected = 0;
+        for (int leaf = numSplits; leaf < 2 * numSplits; leaf++)
+          if (Integer.toBinaryString(leaf).startsWith(prefix))
+            expected++;
+        assertEquals(expected, KdTreePartitioner.countLeaves(node, numSplits));
+      }
+    }
+  }
+
+  public void testKdTreePartitionSizes() {
+    Random random = new Random(0);
+    int numPoints = 100000, capacity = 10;
+    double[] xs = new double[numPoints], ys = new double[numPoints];
+    for (int i = 0; i < numPoints; i++) {
+      xs[i] = random.nextDouble() * 1000;
+      ys[i] = Math.pow(random.nextDouble(), 3) * 1000;
+    }
+    KdTreePartitioner p = new KdTreePartitioner();
+    p.createFromPoints(SpaceMBR, xs.clone(), ys.clone(), capacity);
+    assertEquals(numPoints / capacity, p.getPartitionCount());
+    int[] sizes = new int[2 * p.getPartitionCount()];
+    for (int i = 0; i < numPoints; i++)
+      sizes[p.overlapPartition(new Point(xs[i], ys[i]))]++;
+    for (int id = p.getPartitionCount(); id < sizes.length; id++)
+      assertEquals(capacity, sizes[id]);
+  }
+}
@@ -0,0 +1,122 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.indexing.RTreePageCache.ClockEviction;
+import edu.umn.cs.spatialHadoop.indexing.RTreePageCache.EvictionPolicy;
+import edu.umn.cs.spatialHadoop.indexing.RTreePageCache.LRUEviction;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link RTreePageCache}.
+ */
+public class RTreePageCacheTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public RTreePageCacheTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(RTreePageCacheTest.class);
+  }
+
+  public void testLRUEvictionOrder() {
+    EvictionPolicy lru = new LRUEviction();
+    lru.inserted("a");
+    lru.inserted("b");
+    lru.inserted("c");
+    lru.accessed("a");
+    lru.accessed("b");
+    assertEquals("c", lru.evict());
+    lru.inserted("d");
+    lru.accessed("a");
+    assertEquals("b", lru.evict());
+    assertEquals("d", lru.evict());
+    assertEquals("a", lru.evict());
+  }
+
+  public void testClockEvictionOrder() {
+    EvictionPolicy clock = new ClockEviction();
+    clock.inserted("a");
+    clock.inserted("b");
+    clock.inserted("c");
+    // A referenced page gets a second chance
+    clock.accessed("a");
+    assertEquals("b", clock.evict());
+    clock.inserted("d");
+    clock.accessed("c");
+    // The hand moves on from where it stopped
+    assertEquals("d", clock.evict());
+    // All reference bits were cleared by the hand
+    assertEquals("a", clock.evict());
+    assertEquals("c", clock.evict());
+  }
+
+  /**
+   * Accesses leaves of a tree where all leaves have the same size and the
+   * cache fits three leaves. Checks hits, misses and the cache size with
+   * both eviction policies.
+   */
+  public void testCapacity() throws IOException {
+    // One level of 20 leaves with 15 records of 16 bytes each
+    RTree<Rectangle> tree = RTreeTest.createTree(
+        RTreeTest.createRecords(new Random(0), 300), 20, true, false);
+    int leafSize = tree.getLeafSize(1);
+    for (int leaf = 1; leaf <= 20; leaf++)
+      assertEquals(leafSize, tree.getLeafSize(leaf));
+    assertEquals(20, tree.getLastSiblingLeaf(1));
+
+    for (EvictionPolicy policy : new EvictionPolicy[] {new LRUEviction(),
+        new ClockEviction()}) {
+      // The cache is too small to prefetch sibling leaves
+      RTreePageCache cache = new RTreePageCache(3 * leafSize, policy);
+      int[] leaves = {1, 2, 3, 1, 4, 3, 1, 2, 4};
+      boolean[] expectedHits = {false, false, false, true, false, true, true,
+          false, false};
+      for (int i = 0; i < leaves.length; i++) {
+        long hits = cache.getHits();
+        byte[] page = cache.getPage(tree, leaves[i]);
+        assertTrue(Arrays.equals(tree.readLeafPages(leaves[i], leaves[i] + 1)[0], page));
+        assertEquals(policy.getClass().getSimpleName()+" access #"+i,
+            expectedHits[i], cache.getHits() > hits);
+        assertTrue(cache.getUsedBytes() <= 3 * leafSize);
+      }
+      assertEquals(3 * leafSize, cache.getUsedBytes());
+      assertEquals(3, cache.getHits());
+      assertEquals(6, cache.getMisses());
+      cache.clear();
+      assertEquals(0, cache.getUsedBytes());
+    }
+
+    // Pages larger than the capacity are returned but not cached
+    RTreePageCache cache = new RTreePageCache(leafSize - 1);
+    assertNotNull(cache.getPage(tree, 1));
+    assertNotNull(cache.getPage(tree, 1));
+    assertEquals(0, cache.getUsedBytes());
+    assertEquals(2, cache.getMisses());
+
+    // A large cache prefetches the following siblings with the first miss
+    cache = new RTreePageCache(4 * 5 * leafSize);
+    cache.getPage(tree, 1);
+    assertEquals(5 * leafSize, cache.getUsedBytes());
+    for (int leaf = 2; leaf <= 5; leaf++)
+      cache.getPage(tree, leaf);
+    assertEquals(1, cache.getMisses());
+    assertEquals(4, cache.getHits());
+  }
+}
@@ -0,0 +1,171 @@
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.util.IndexedSortable;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.io.MemoryInputStream;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link RTree}.
+ */
+public class RTreeTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public RTreeTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(RTreeTest.class);
+  }
+
+  public void testParallelSort() throws InterruptedException {
+    Random random = new Random(0);
+    for (int parallelism : new int[] {1, 2, 3, 8, 1000}) {
+      int size = 10000;
+      final double[] keys = new double[size];
+      final double[] values = new double[size];
+      final int[] ids = new int[size];
+      for (int i = 0; i < size; i++) {
+        // Include duplicate keys
+        keys[i] = random.nextInt(size / 2);
+        values[i] = keys[i] * 2;
+        ids[i] = i;
+      }
+      double[] expected = keys.clone();
+      // Leave the first and last elements out of the sorted range
+      Arrays.sort(expected, 10, size - 10);
+      IndexedSortable sortable = new IndexedSortable() {
+        @Override
+        public int compare(int i, int j) {
+          return Double.compare(keys[i], keys[j]);
+        }
+
+        @Override
+        public void swap(int i, int j) {
+          double t = keys[i]; keys[i] = keys[j]; keys[j] = t;
+          t = values[i]; values[i] = values[j]; values[j] = t;
+          int id = ids[i]; ids[i] = ids[j]; ids[j] = id;
+        }
+      };
+      int[] originalIds = ids.clone();
+      double[] originalKeys = keys.clone();
+      RTree.parallelSort(new double[][] {keys, values}, new int[][] {ids}, 0,
+          sortable, 10, size - 10, parallelism);
+      assertTrue(Arrays.equals(expected, keys));
+      boolean[] seen = new boolean[size];
+      for (int i = 0; i < size; i++) {
+        // Values and IDs are moved with their keys
+        assertEquals(keys[i] * 2, values[i]);
+        assertEquals(originalKeys[ids[i]], keys[i]);
+        assertFalse(seen[ids[i]]);
+        seen[ids[i]] = true;
+        if (i < 10 || i >= size - 10)
+          assertEquals(originalIds[i], ids[i]);
+      }
+    }
+  }
+
+  /**
+   * Creates random rectangles with integer coordinates of three digits so that
+   * all records have the same size in text
+   */
+  static List<Rectangle> createRecords(Random random, int count) {
+    List<Rectangle> records = new ArrayList<Rectangle>();
+    for (int i = 0; i < count; i++) {
+      int x = 100 + random.nextInt(800), y = 100 + random.nextInt(800);
+      records.add(new Rectangle(x, y, x + 1 + random.nextInt(99),
+          y + 1 + random.nextInt(99)));
+    }
+    return records;
+  }
+
+  /**Bulk loads an R-tree over the given records and reads it back*/
+  static RTree<Rectangle> createTree(List<Rectangle> records, int degree,
+      boolean fastSort, boolean binary) throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (Rectangle r : records)
+      text.append((int) r.x1).append(',').append((int) r.y1).append(',')
+          .append((int) r.x2).append(',').append((int) r.y2).append('\n');
+    byte[] elements = text.toString().getBytes();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    RTree.bulkLoadWrite(elements, 0, elements.length, degree, out,
+        new Rectangle(), fastSort, binary);
+    out.close();
+    RTree<Rectangle> tree = new RTree<Rectangle>();
+    tree.setStockObject(new Rectangle());
+    tree.setBinaryLeaves(binary);
+    tree.readFields(new FSDataInputStream(new MemoryInputStream(bytes.toByteArray())));
+    return tree;
+  }
+
+  /**
+   * The kNN iterator returns all elements ordered by their distance to the
+   * query point. The distances are compared to a brute force search.
+   */
+  public void testKNNIterator() throws IOException {
+    Random random = new Random(0);
+    List<Rectangle> records = createRecords(random, 2000);
+    for (boolean binary : new boolean[] {false, true}) {
+      for (boolean fastSort : new boolean[] {false, true}) {
+        RTree<Rectangle> tree = createTree(records, 8, fastSort, binary);
+        assertEquals(records.size(), tree.getElementCount());
+        for (int q = 0; q < 10; q++) {
+          double qx = random.nextDouble() * 1200 - 100;
+          double qy = random.nextDouble() * 1200 - 100;
+          List<Double> expected = new ArrayList<Double>();
+          for (Rectangle r : records)
+            expected.add(r.distanceTo(qx, qy));
+          Collections.sort(expected);
+
+          RTree<Rectangle>.KNNIterator iter = tree.knn(qx, qy);
+          List<Double> actual = new ArrayList<Double>();
+          Map<Rectangle, Boolean> returned = new IdentityHashMap<Rectangle, Boolean>();
+          for (Rectangle r : iter) {
+            assertNull("Returned twice", returned.put(r, Boolean.TRUE));
+            assertEquals(r.distanceTo(qx, qy), iter.getDistance());
+            actual.add(iter.getDistance());
+          }
+          assertEquals(expected, actual);
+
+          // Stop after k results
+          final List<Double> knn = new ArrayList<Double>();
+          int k = 1 + random.nextInt(50);
+          assertEquals(k, tree.knn(qx, qy, k, new ResultCollector2<Rectangle, Double>() {
+            @Override
+            public void collect(Rectangle r, Double distance) {
+              knn.add(distance);
+            }
+          }));
+          assertEquals(expected.subList(0, k), knn);
+        }
+      }
+    }
+  }
+}
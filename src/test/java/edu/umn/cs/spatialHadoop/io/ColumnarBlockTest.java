@@ -0,0 +1,265 @@
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Circle;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.ColumnarLocalIndexer;
+import edu.umn.cs.spatialHadoop.mapred.ShapeLineRecordReader;
+import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+import edu.umn.cs.spatialHadoop.mapreduce.ColumnarRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link ColumnarBlock} and the files written with it.
+ */
+public class ColumnarBlockTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public ColumnarBlockTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(ColumnarBlockTest.class);
+  }
+
+  /**Writes the shapes in one block and reads them back*/
+  private static void assertRoundTrip(Shape[] shapes, Shape stock,
+      boolean compress) throws IOException {
+    ColumnarBlock block = new ColumnarBlock();
+    block.clear(ColumnarBlock.getEncoding(shapes[0]));
+    Rectangle mbr = new Rectangle(shapes[0].getMBR());
+    for (Shape shape : shapes) {
+      block.add(shape);
+      mbr.expand(shape.getMBR());
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    block.write(out, compress);
+    out.close();
+
+    ColumnarBlock readBlock = new ColumnarBlock();
+    DataInputStream in = new DataInputStream(new MemoryInputStream(
+        bytes.toByteArray(), 0, bytes.size()));
+    readBlock.readHeader(in);
+    assertEquals(shapes.length, readBlock.getCount());
+    assertEquals(mbr, readBlock.getMBR());
+    assertEquals(bytes.size() - ColumnarBlock.HeaderSize,
+        readBlock.getStoredLength());
+    readBlock.readData(in);
+    for (int i = 0; i < shapes.length; i++) {
+      readBlock.getShape(i, stock);
+      assertEquals(shapes[i].toString(), stock.toString());
+    }
+  }
+
+  public void testBlockRoundTrip() throws IOException {
+    Random random = new Random(0);
+    Shape[] points = new Shape[1000];
+    Shape[] rects = new Shape[1000];
+    Shape[] circles = new Shape[1000];
+    for (int i = 0; i < points.length; i++) {
+      double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+      points[i] = new Point(x, y);
+      rects[i] = new Rectangle(x, y, x + random.nextDouble(), y + random.nextDouble());
+      circles[i] = new Circle(x, y, random.nextDouble() * 10);
+    }
+    for (boolean compress : new boolean[] {false, true}) {
+      assertRoundTrip(points, new Point(), compress);
+      assertRoundTrip(rects, new Rectangle(), compress);
+      assertRoundTrip(circles, new Circle(), compress);
+    }
+  }
+
+  /**Reads all matching records of a file in the given number of splits*/
+  private static List<String> readFile(Path path, Configuration conf,
+      int numSplits) throws IOException, InterruptedException {
+    List<String> records = new ArrayList<String>();
+    long length = path.getFileSystem(conf).getFileStatus(path).getLen();
+    for (int i = 0; i < numSplits; i++) {
+      long start = length * i / numSplits;
+      long end = length * (i + 1) / numSplits;
+      ColumnarRecordReader3<Shape> reader = new ColumnarRecordReader3<Shape>();
+      reader.initialize(new FileSplit(path, start, end - start, new String[0]), conf);
+      while (reader.nextKeyValue()) {
+        for (Shape s : reader.getCurrentValue())
+          records.add(s.toString());
+      }
+      reader.close();
+    }
+    return records;
+  }
+
+  public void testFileRoundTripWithPruning() throws IOException,
+      InterruptedException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    File textFile = File.createTempFile("columnar", ".txt");
+    Path columnarFile = new Path(textFile.getAbsolutePath() + "."
+        + ColumnarLocalIndexer.Extension);
+    try {
+      // Records sorted by x so that blocks cover disjoint ranges of x
+      Rectangle[] rects = new Rectangle[10000];
+      PrintWriter writer = new PrintWriter(new FileWriter(textFile));
+      for (int i = 0; i < rects.length; i++) {
+        double x = i / 10.0, y = random.nextDouble() * 1000;
+        Text line = new Rectangle(x, y, x + random.nextDouble(),
+            y + random.nextDouble()).toText(new Text());
+        writer.println(line);
+        // Compare with the parsed text in case it is not an exact copy
+        rects[i] = new Rectangle();
+        rects[i].fromText(line);
+      }
+      writer.close();
+      for (boolean compress : new boolean[] {false, true}) {
+        conf.setInt(SpatialSite.COLUMNAR_BLOCK_SIZE, 100);
+        conf.setBoolean(SpatialSite.COLUMNAR_COMPRESS, compress);
+        ColumnarLocalIndexer indexer = new ColumnarLocalIndexer();
+        indexer.setup(conf);
+        indexer.buildLocalIndex(textFile, columnarFile, new Rectangle());
+
+        // Every record is read exactly once regardless of the splits
+        Configuration readConf = new Configuration(conf);
+        OperationsParams.setShape(readConf, "shape", new Rectangle());
+        List<String> expected = new ArrayList<String>();
+        for (Rectangle r : rects)
+          expected.add(r.toString());
+        for (int numSplits : new int[] {1, 3, 17})
+          assertEquals(expected, readFile(columnarFile, readConf, numSplits));
+
+        // The block offsets allow skipping blocks that do not match a query
+        Rectangle query = new Rectangle(200, 100, 300, 400);
+        FSDataInputStream in = fs.open(columnarFile);
+        long[] offsets = ColumnarBlock.readBlockOffsets(in,
+            fs.getFileStatus(columnarFile).getLen());
+        assertEquals(rects.length / 100, offsets.length - 1);
+        ColumnarBlock block = new ColumnarBlock();
+        int matchingBlocks = 0;
+        for (int i = 0; i < offsets.length - 1; i++) {
+          in.seek(offsets[i]);
+          block.readHeader(in);
+          if (block.getMBR().isIntersected(query))
+            matchingBlocks++;
+        }
+        in.close();
+        assertTrue(matchingBlocks > 0 && matchingBlocks < offsets.length / 5);
+        OperationsParams.setShape(readConf, SpatialInputFormat3.InputQueryRange, query);
+        expected.clear();
+        for (Rectangle r : rects)
+          if (r.isIntersected(query))
+            expected.add(r.toString());
+        for (int numSplits : new int[] {1, 3, 17})
+          assertEquals(expected, readFile(columnarFile, readConf, numSplits));
+      }
+    } finally {
+      textFile.delete();
+      fs.delete(columnarFile, false);
+    }
+  }
+
+  /**
+   * Files in the columnar format are decoded by the mapred readers as shapes
+   * and as lines of text.
+   */
+  public void testMapredReaders() throws IOException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    File textFile = File.createTempFile("columnar", ".txt");
+    Path columnarFile = new Path(textFile.getAbsolutePath() + "."
+        + ColumnarLocalIndexer.Extension);
+    try {
+      List<String> expected = new ArrayList<String>();
+      PrintWriter writer = new PrintWriter(new FileWriter(textFile));
+      for (int i = 0; i < 1000; i++) {
+        Text line = new Point(random.nextDouble() * 1000,
+            random.nextDouble() * 1000).toText(new Text());
+        writer.println(line);
+        Point p = new Point();
+        p.fromText(line);
+        expected.add(p.toString());
+      }
+      writer.close();
+      conf.setInt(SpatialSite.COLUMNAR_BLOCK_SIZE, 64);
+      ColumnarLocalIndexer indexer = new ColumnarLocalIndexer();
+      indexer.setup(conf);
+      indexer.buildLocalIndex(textFile, columnarFile, new Point());
+      OperationsParams.setShape(conf, "shape", new Point());
+
+      long length = fs.getFileStatus(columnarFile).getLen();
+      List<String> shapes = new ArrayList<String>();
+      List<String> lines = new ArrayList<String>();
+      int numSplits = 4;
+      for (int i = 0; i < numSplits; i++) {
+        long start = length * i / numSplits;
+        long end = length * (i + 1) / numSplits;
+        org.apache.hadoop.mapred.FileSplit split =
+            new org.apache.hadoop.mapred.FileSplit(columnarFile, start,
+                end - start, new String[0]);
+        ShapeRecordReader<Point> shapeReader = new ShapeRecordReader<Point>(conf, split);
+        Rectangle key = shapeReader.createKey();
+        Point point = shapeReader.createValue();
+        while (shapeReader.next(key, point))
+          shapes.add(point.toString());
+        shapeReader.close();
+        ShapeLineRecordReader lineReader = new ShapeLineRecordReader(conf, split);
+        Text line = lineReader.createValue();
+        while (lineReader.next(key, line)) {
+          Point p = new Point();
+          p.fromText(line);
+          lines.add(p.toString());
+        }
+        lineReader.close();
+      }
+      assertEquals(expected, shapes);
+      assertEquals(expected, lines);
+    } finally {
+      textFile.delete();
+      fs.delete(columnarFile, false);
+    }
+  }
+
+  public void testFirstBlockAt() {
+    long[] offsets = {8, 100, 250, 400};
+    assertEquals(0, ColumnarBlock.firstBlockAt(offsets, 0));
+    assertEquals(0, ColumnarBlock.firstBlockAt(offsets, 8));
+    assertEquals(1, ColumnarBlock.firstBlockAt(offsets, 9));
+    assertEquals(2, ColumnarBlock.firstBlockAt(offsets, 250));
+    assertEquals(3, ColumnarBlock.firstBlockAt(offsets, 251));
+    assertEquals(3, ColumnarBlock.firstBlockAt(offsets, 1000));
+  }
+}
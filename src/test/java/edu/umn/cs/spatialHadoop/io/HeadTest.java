@@ -1,9 +1,28 @@
 package edu.umn.cs.spatialHadoop.io;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.RTreeLocalIndexer;
+import edu.umn.cs.spatialHadoop.mapred.ShapeLineRecordReader;
+import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
+import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.operations.Head;
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -58,4 +77,92 @@ public class HeadTest extends TestCase {
       throw new RuntimeException("Error running test", e);
     }
   }
+
+  /**Parses a line of text as a rectangle and returns its text*/
+  private static String normalize(Text line) {
+    Rectangle r = new Rectangle();
+    r.fromText(line);
+    return r.toString();
+  }
+
+  /**
+   * Writes R-trees with text and binary leaves and reads all their records
+   * back through {@link Head}, the new record reader, and the mapred readers.
+   */
+  public void testRTreeLeafLayouts() throws IOException, InterruptedException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    File textFile = File.createTempFile("head", ".txt");
+    Path rtreeFile = new Path(textFile.getAbsolutePath() + ".rtree");
+    try {
+      List<String> expected = new ArrayList<String>();
+      PrintWriter writer = new PrintWriter(new FileWriter(textFile));
+      for (int i = 0; i < 1000; i++) {
+        double x = random.nextDouble() * 1000, y = random.nextDouble() * 1000;
+        Text line = new Rectangle(x, y, x + random.nextDouble(),
+            y + random.nextDouble()).toText(new Text());
+        writer.println(line);
+        expected.add(normalize(line));
+      }
+      writer.close();
+      Collections.sort(expected);
+      OperationsParams.setShape(conf, "shape", new Rectangle());
+
+      for (String leafFormat : new String[] {"text", "binary"}) {
+        conf.set(SpatialSite.RTREE_LEAF_FORMAT, leafFormat);
+        RTreeLocalIndexer indexer = new RTreeLocalIndexer();
+        indexer.setup(conf);
+        indexer.buildLocalIndex(textFile, rtreeFile, new Rectangle());
+        long length = fs.getFileStatus(rtreeFile).getLen();
+
+        // The records are returned in the order of the tree leaves
+        String[] headLines = Head.head(fs, rtreeFile, expected.size() + 1);
+        assertNull(headLines[expected.size()]);
+        List<String> actual = new ArrayList<String>();
+        for (int i = 0; i < expected.size(); i++)
+          actual.add(normalize(new Text(headLines[i])));
+        Collections.sort(actual);
+        assertEquals(leafFormat, expected, actual);
+
+        actual.clear();
+        RTreeRecordReader3<Shape> reader = new RTreeRecordReader3<Shape>();
+        reader.initialize(new FileSplit(rtreeFile, 0, length, new String[0]), conf);
+        while (reader.nextKeyValue()) {
+          for (Shape s : reader.getCurrentValue())
+            actual.add(s.toString());
+        }
+        reader.close();
+        Collections.sort(actual);
+        assertEquals(leafFormat, expected, actual);
+
+        org.apache.hadoop.mapred.FileSplit split =
+            new org.apache.hadoop.mapred.FileSplit(rtreeFile, 0, length,
+                new String[0]);
+        actual.clear();
+        ShapeRecordReader<Rectangle> shapeReader =
+            new ShapeRecordReader<Rectangle>(conf, split);
+        Rectangle key = shapeReader.createKey();
+        Rectangle rect = shapeReader.createValue();
+        while (shapeReader.next(key, rect))
+          actual.add(rect.toString());
+        shapeReader.close();
+        Collections.sort(actual);
+        assertEquals(leafFormat, expected, actual);
+
+        actual.clear();
+        ShapeLineRecordReader lineReader = new ShapeLineRecordReader(conf, split);
+        Text line = lineReader.createValue();
+        while (lineReader.next(key, line))
+          actual.add(normalize(line));
+        lineReader.close();
+        Collections.sort(actual);
+        assertEquals(leafFormat, expected, actual);
+        fs.delete(rtreeFile, false);
+      }
+    } finally {
+      textFile.delete();
+      fs.delete(rtreeFile, false);
+    }
+  }
 }
@@ -1,5 +1,7 @@
 package edu.umn.cs.spatialHadoop.io;
 
+import java.util.Random;
+
 import org.apache.hadoop.io.Text;
 
 import com.vividsolutions.jts.geom.Geometry;
@@ -62,4 +64,69 @@ public class TextSerializerHelperTest extends TestCase {
     int dummyInt = TextSerializerHelper.consumeInt(text, '\0');
     assertEquals(1234, dummyInt);
   }
+  
+  public void testConsumeDouble() {
+    Text text = new Text("-93.2650108,44.9866100,1.5E-7,12e3");
+    assertEquals(-93.2650108, TextSerializerHelper.consumeDouble(text, ','));
+    assertEquals(44.98661, TextSerializerHelper.consumeDouble(text, ','));
+    assertEquals(1.5E-7, TextSerializerHelper.consumeDouble(text, ','));
+    assertEquals(12000.0, TextSerializerHelper.consumeDouble(text, '\0'));
+    assertEquals(0, text.getLength());
+  }
+  
+  public void testDeserializeDoubleRounding() {
+    String[] values = {"0.1", "-0.0", "9007199254740993", "1e23",
+        "0.30000000000000004", "1.7976931348623157E308", "4.9E-324",
+        "123456789012345678901234567890", "2.2250738585072014E-308"};
+    for (String value : values) {
+      byte[] bytes = value.getBytes();
+      assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)),
+          Double.doubleToLongBits(TextSerializerHelper.deserializeDouble(bytes, 0, bytes.length)));
+    }
+    Random random = new Random(0);
+    for (int i = 0; i < 10000; i++) {
+      double d = i % 2 == 0 ? Double.longBitsToDouble(random.nextLong()) :
+        Math.round((random.nextDouble() - 0.5) * 3.6E9) / 1E7;
+      if (Double.isNaN(d) || Double.isInfinite(d))
+        continue;
+      byte[] bytes = Double.toString(d).getBytes();
+      assertEquals(d, TextSerializerHelper.deserializeDouble(bytes, 0, bytes.length));
+    }
+  }
+  
+  public void testSerializeDouble() {
+    Text text = new Text();
+    TextSerializerHelper.serializeDouble(3.0, text, ',');
+    TextSerializerHelper.serializeDouble(-0.1, text, ',');
+    TextSerializerHelper.serializeDouble(1E-5, text, '\0');
+    assertEquals("3.0,-0.1,1.0E-5", text.toString());
+    // Formatted numbers should parse back to the same value
+    Random random = new Random(0);
+    for (int i = 0; i < 10000; i++) {
+      double d = i % 2 == 0 ? Double.longBitsToDouble(random.nextLong()) :
+        Math.round((random.nextDouble() - 0.5) * 3.6E9) / 1E7;
+      if (Double.isNaN(d))
+        continue;
+      text.clear();
+      TextSerializerHelper.serializeDouble(d, text, '\0');
+      assertEquals(d, Double.parseDouble(text.toString()));
+    }
+  }
+
+  public void testMBRPrefix() {
+    Text text = new Text();
+    TextSerializerHelper.serializeMBRPrefix(-1.5, 2.0, 3.25, 1E-5, text);
+    text.append("POINT(1 2)".getBytes(), 0, 10);
+    assertEquals("@-1.5,2.0,3.25,1.0E-5\tPOINT(1 2)", text.toString());
+    double[] mbr = new double[4];
+    assertTrue(TextSerializerHelper.consumeMBRPrefix(text, mbr));
+    assertEquals(-1.5, mbr[0]);
+    assertEquals(2.0, mbr[1]);
+    assertEquals(3.25, mbr[2]);
+    assertEquals(1E-5, mbr[3]);
+    assertEquals("POINT(1 2)", text.toString());
+    // Records without a prefix are left as they are
+    assertFalse(TextSerializerHelper.consumeMBRPrefix(text, mbr));
+    assertEquals("POINT(1 2)", text.toString());
+  }
 }
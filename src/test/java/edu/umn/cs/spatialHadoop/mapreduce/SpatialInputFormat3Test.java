@@ -0,0 +1,280 @@
+package edu.umn.cs.spatialHadoop.mapreduce;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link SpatialInputFormat3}.
+ */
+public class SpatialInputFormat3Test extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public SpatialInputFormat3Test(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(SpatialInputFormat3Test.class);
+  }
+
+  private static final String[] Hosts = {"host1", "host2", "host3", "host4",
+      "host5"};
+
+  /**Creates an empty directory that is deleted by the caller*/
+  private static Path createTempDir(FileSystem fs) throws IOException {
+    File tempDir = File.createTempFile("combine", "test");
+    tempDir.delete();
+    Path dir = new Path(tempDir.getAbsolutePath());
+    fs.mkdirs(dir);
+    return dir;
+  }
+
+  /**Writes the master file of an index with the given partitions*/
+  private static void writeMasterFile(FileSystem fs, Path dir,
+      Partition[] partitions) throws IOException {
+    FSDataOutputStream out = fs.create(new Path(dir, "_master.grid"));
+    Text line = new Text();
+    for (Partition p : partitions) {
+      line.clear();
+      p.toText(line);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write('\n');
+    }
+    out.close();
+  }
+
+  /**Returns a key that identifies one file split*/
+  private static String splitKey(Path path, long start, long length) {
+    return path + ":" + start + "+" + length;
+  }
+
+  /**Returns the keys of all the file splits in a (combined) split*/
+  private static List<String> memberKeys(InputSplit split) {
+    List<String> keys = new ArrayList<String>();
+    if (split instanceof CombineFileSplit) {
+      CombineFileSplit csplit = (CombineFileSplit) split;
+      for (int i = 0; i < csplit.getNumPaths(); i++)
+        keys.add(splitKey(csplit.getPath(i), csplit.getOffset(i),
+            csplit.getLength(i)));
+    } else {
+      FileSplit fsplit = (FileSplit) split;
+      keys.add(splitKey(fsplit.getPath(), fsplit.getStart(), fsplit.getLength()));
+    }
+    return keys;
+  }
+
+  /**Combines the splits and checks that each split is used exactly once*/
+  private static List<InputSplit> combineAndCheck(List<FileSplit> splits,
+      int combine, Configuration conf) throws IOException {
+    List<InputSplit> combined = SpatialInputFormat3.combineSplits(
+        new ArrayList<FileSplit>(splits), combine, conf);
+    List<String> expected = new ArrayList<String>();
+    for (FileSplit split : splits)
+      expected.add(splitKey(split.getPath(), split.getStart(), split.getLength()));
+    List<String> actual = new ArrayList<String>();
+    for (InputSplit split : combined)
+      actual.addAll(memberKeys(split));
+    Collections.sort(expected);
+    Collections.sort(actual);
+    assertEquals(expected, actual);
+    return combined;
+  }
+
+  /**
+   * Splits of a file that is not indexed are each used once and combined
+   * into splits of about the same size.
+   */
+  public void testEverySplitOnceWithBalancedSizes() throws IOException,
+      InterruptedException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = createTempDir(fs);
+    try {
+      for (int n : new int[] {1, 7, 100, 1000}) {
+        List<FileSplit> splits = new ArrayList<FileSplit>();
+        long totalBytes = 0, maxBytes = 0;
+        for (int i = 0; i < n; i++) {
+          long length = 1 + random.nextInt(1000);
+          String[] locations = new String[1 + random.nextInt(3)];
+          for (int j = 0; j < locations.length; j++)
+            locations[j] = Hosts[random.nextInt(Hosts.length)];
+          splits.add(new FileSplit(new Path(dir, "data"), i * 1000L, length,
+              locations));
+          totalBytes += length;
+          maxBytes = Math.max(maxBytes, length);
+        }
+        for (int combine : new int[] {1, 2, 10, 2 * n}) {
+          List<InputSplit> combined = combineAndCheck(splits, combine, conf);
+          int numCombinedSplits = (n + combine - 1) / combine;
+          long targetBytes = (totalBytes + numCombinedSplits - 1) / numCombinedSplits;
+          // A split is closed as soon as it reaches the target size and only
+          // the last split of the leftovers may be smaller than the target
+          int smallSplits = 0;
+          for (InputSplit split : combined) {
+            assertTrue(split.getLength() < targetBytes + maxBytes);
+            if (split.getLength() < targetBytes)
+              smallSplits++;
+          }
+          assertTrue(smallSplits <= 1);
+        }
+      }
+      assertTrue(combineAndCheck(new ArrayList<FileSplit>(), 5, conf).isEmpty());
+    } finally {
+      fs.delete(dir, true);
+    }
+  }
+
+  /**
+   * Each combined split, except the few that combine the leftovers of all
+   * hosts, reads its splits from one host that stores all of them.
+   */
+  public void testHostAffinity() throws IOException, InterruptedException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = createTempDir(fs);
+    try {
+      List<FileSplit> splits = new ArrayList<FileSplit>();
+      Map<String, FileSplit> splitsByKey = new HashMap<String, FileSplit>();
+      for (int i = 0; i < 500; i++) {
+        // Three replicas on different hosts
+        List<String> hosts = new ArrayList<String>();
+        for (String host : Hosts)
+          hosts.add(host);
+        Collections.shuffle(hosts, random);
+        FileSplit split = new FileSplit(new Path(dir, "data"), i * 1000L,
+            1 + random.nextInt(1000), hosts.subList(0, 3).toArray(new String[3]));
+        splits.add(split);
+        splitsByKey.put(splitKey(split.getPath(), split.getStart(),
+            split.getLength()), split);
+      }
+      List<InputSplit> combined = combineAndCheck(splits, 10, conf);
+      int remoteSplits = 0;
+      for (InputSplit split : combined) {
+        // The first location is the host that stores all the splits
+        String host = split.getLocations()[0];
+        boolean local = true;
+        for (String key : memberKeys(split)) {
+          boolean found = false;
+          for (String location : splitsByKey.get(key).getLocations())
+            found = found || location.equals(host);
+          local = local && found;
+        }
+        if (!local)
+          remoteSplits++;
+      }
+      assertTrue(remoteSplits <= Hosts.length);
+      assertTrue(remoteSplits < combined.size() / 5);
+    } finally {
+      fs.delete(dir, true);
+    }
+  }
+
+  /**Creates one split for each partition of an index in a random order*/
+  private static List<FileSplit> createIndexSplits(Path dir,
+      Partition[] partitions, Random random) {
+    List<FileSplit> splits = new ArrayList<FileSplit>();
+    for (Partition p : partitions)
+      splits.add(new FileSplit(new Path(dir, p.filename), 0, 100,
+          new String[] {"host1"}));
+    Collections.shuffle(splits, random);
+    return splits;
+  }
+
+  /**Returns the MBR of the partitions of all the splits in a combined split*/
+  private static Rectangle combinedMBR(InputSplit split,
+      Map<String, Partition> partitionsByName) {
+    Rectangle mbr = null;
+    CombineFileSplit csplit = (CombineFileSplit) split;
+    for (int i = 0; i < csplit.getNumPaths(); i++) {
+      Partition p = partitionsByName.get(csplit.getPath(i).getName());
+      if (mbr == null)
+        mbr = new Rectangle(p);
+      else
+        mbr.expand(p);
+    }
+    return mbr;
+  }
+
+  /**
+   * Splits of the partitions of an index are combined in the Z-order of
+   * their partitions, including when the input space has a zero width.
+   */
+  public void testSpatialOrder() throws IOException, InterruptedException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    Path dir = createTempDir(fs);
+    try {
+      // A 4x4 grid is combined into its four quadrants
+      Partition[] partitions = new Partition[16];
+      Map<String, Partition> partitionsByName = new HashMap<String, Partition>();
+      for (int i = 0; i < partitions.length; i++) {
+        double x = (i % 4) * 10, y = (i / 4) * 10;
+        partitions[i] = new Partition(String.format("part-%05d", i),
+            new CellInfo(i + 1, x, y, x + 10, y + 10));
+        partitionsByName.put(partitions[i].filename, partitions[i]);
+      }
+      writeMasterFile(fs, dir, partitions);
+      List<InputSplit> combined = combineAndCheck(
+          createIndexSplits(dir, partitions, random), 4, conf);
+      assertEquals(4, combined.size());
+      for (InputSplit split : combined) {
+        Rectangle mbr = combinedMBR(split, partitionsByName);
+        assertEquals(20.0, mbr.getWidth());
+        assertEquals(20.0, mbr.getHeight());
+      }
+
+      // Partitions along a vertical line are combined in the order of y
+      Path lineDir = new Path(dir, "line");
+      for (int i = 0; i < partitions.length; i++) {
+        partitions[i] = new Partition(String.format("part-%05d", i),
+            new CellInfo(i + 1, 5, i * 10, 5, i * 10 + 10));
+        partitionsByName.put(partitions[i].filename, partitions[i]);
+      }
+      writeMasterFile(fs, lineDir, partitions);
+      combined = combineAndCheck(createIndexSplits(lineDir, partitions, random),
+          4, conf);
+      assertEquals(4, combined.size());
+      for (InputSplit split : combined) {
+        Rectangle mbr = combinedMBR(split, partitionsByName);
+        assertEquals(0.0, mbr.getWidth());
+        assertEquals(40.0, mbr.getHeight());
+      }
+    } finally {
+      fs.delete(dir, true);
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.operations.FileSummary.Summary;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link FileSummary}.
+ */
+public class FileSummaryTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public FileSummaryTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(FileSummaryTest.class);
+  }
+
+  /**
+   * Adds records with their centers in the range [x1, x1+1) along x to the
+   * given summaries
+   */
+  private static void addRecords(Random random, double x1, int count,
+      Summary... summaries) {
+    for (int i = 0; i < count; i++) {
+      double x = x1 + random.nextDouble() * 0.9;
+      double y = random.nextDouble() * 100;
+      Rectangle mbr = new Rectangle(x, y, x + 0.1, y + random.nextDouble());
+      for (Summary summary : summaries)
+        summary.add(mbr, 10 + i % 7);
+    }
+  }
+
+  public void testMerge() {
+    Random random = new Random(0);
+    Summary s1 = new Summary(1.0f, 10000, 1);
+    Summary s2 = new Summary(1.0f, 10000, 2);
+    Summary all = new Summary(1.0f, 10000, 3);
+    addRecords(random, 0, 300, s1, all);
+    addRecords(random, 5, 400, s2, all);
+    s1.merge(s2);
+    assertEquals(all.recordCount, s1.recordCount);
+    assertEquals(all.size, s1.size);
+    assertEquals(all.mbr, s1.mbr);
+    // Merging an empty summary does not change anything
+    s1.merge(new Summary(1.0f, 10000, 4));
+    assertEquals(all.recordCount, s1.recordCount);
+    assertEquals(all.mbr, s1.mbr);
+    // Without dropped records, the merged sample has all records
+    double[][] sample = s1.getSample(1);
+    double[][] expected = all.getSample(1);
+    assertEquals(700, sample[0].length);
+    Arrays.sort(sample[0]);
+    Arrays.sort(expected[0]);
+    assertTrue(Arrays.equals(expected[0], sample[0]));
+  }
+
+  /**
+   * When the reservoirs are full, the merged sample has the capacity of the
+   * sample and draws from each summary in proportion to its records.
+   */
+  public void testSampleSizeAfterMerge() {
+    Random random = new Random(0);
+    int capacity = 100;
+    int fromFirst = 0, total = 0;
+    for (int round = 0; round < 20; round++) {
+      Summary s1 = new Summary(1.0f, capacity, round * 2);
+      Summary s2 = new Summary(1.0f, capacity, round * 2 + 1);
+      addRecords(random, 0, 5000, s1);
+      addRecords(random, 10, 1000, s2);
+      assertEquals(capacity, s1.getSample(1)[0].length);
+      assertEquals(capacity, s2.getSample(1)[0].length);
+      s1.merge(s2);
+      assertEquals(6000, s1.recordCount);
+      double[] xs = s1.getSample(1)[0];
+      assertEquals(capacity, xs.length);
+      for (double x : xs) {
+        assertTrue(x < 1 || (x >= 10 && x < 11));
+        if (x < 1)
+          fromFirst++;
+        total++;
+      }
+    }
+    // 5/6 of the sample is expected to come from the first summary
+    double ratio = (double) fromFirst / total;
+    assertTrue("Ratio "+ratio, ratio > 0.78 && ratio < 0.88);
+
+    // A sample that is not full is merged with a full one
+    Summary s1 = new Summary(1.0f, capacity, 0);
+    Summary s2 = new Summary(1.0f, capacity, 1);
+    addRecords(random, 0, 30, s1);
+    addRecords(random, 10, 1000, s2);
+    s1.merge(s2);
+    assertEquals(capacity, s1.getSample(1)[0].length);
+  }
+
+  /**Writes the given number of random points to a text file*/
+  private static void writePoints(File file, Random random, int count)
+      throws IOException {
+    PrintWriter writer = new PrintWriter(new FileWriter(file));
+    for (int i = 0; i < count; i++)
+      writer.println(random.nextDouble() * 1000 + "," + random.nextDouble() * 1000);
+    writer.close();
+  }
+
+  /**
+   * The summary of an input is cached next to it and is not used after the
+   * input or the shape of its records changes.
+   */
+  public void testCachedSummaryInvalidation() throws IOException,
+      InterruptedException {
+    Random random = new Random(0);
+    Configuration conf = new Configuration();
+    FileSystem fs = FileSystem.getLocal(conf);
+    File file = File.createTempFile("summary", ".txt");
+    Path path = new Path(file.getAbsolutePath());
+    Path cachePath = new Path(path.getParent(), "_"+path.getName()+".summary");
+    try {
+      writePoints(file, random, 1000);
+      OperationsParams params = new OperationsParams(conf);
+      OperationsParams.setShape(params, "shape", new Point());
+      params.setBoolean("local", true);
+      params.setFloat(SpatialSite.SAMPLE_RATIO, 0.5f);
+      assertNull(FileSummary.getCachedSummary(path, params));
+
+      Summary summary = FileSummary.summarize(new Path[] {path}, params);
+      assertEquals(1000, summary.recordCount);
+      assertTrue(fs.exists(cachePath));
+      Summary cached = FileSummary.getCachedSummary(path, params);
+      assertNotNull(cached);
+      assertEquals(summary.recordCount, cached.recordCount);
+      assertEquals(summary.size, cached.size);
+      assertEquals(summary.mbr, cached.mbr);
+      assertEquals(summary.getSample(1)[0].length, cached.getSample(1)[0].length);
+
+      // A different shape does not match the cached summary
+      OperationsParams rectParams = new OperationsParams(params);
+      OperationsParams.setShape(rectParams, "shape", new Rectangle());
+      assertNull(FileSummary.getCachedSummary(path, rectParams));
+
+      // Changing the input invalidates the cached summary
+      writePoints(file, random, 1500);
+      assertNull(FileSummary.getCachedSummary(path, params));
+      summary = FileSummary.summarize(new Path[] {path}, params);
+      assertEquals(1500, summary.recordCount);
+      assertEquals(1500, FileSummary.getCachedSummary(path, params).recordCount);
+    } finally {
+      file.delete();
+      fs.delete(cachePath, false);
+    }
+  }
+}
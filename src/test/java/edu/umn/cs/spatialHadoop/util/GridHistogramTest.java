@@ -0,0 +1,93 @@
+package edu.umn.cs.spatialHadoop.util;
+
+import java.util.Random;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Unit test for {@link GridHistogram}.
+ */
+public class GridHistogramTest extends TestCase {
+
+  /**
+   * Create the test case
+   *
+   * @param testName
+   *          name of the test case
+   */
+  public GridHistogramTest(String testName) {
+    super(testName);
+  }
+
+  /**
+   * @return the suite of tests being tested
+   */
+  public static Test suite() {
+    return new TestSuite(GridHistogramTest.class);
+  }
+
+  public void testBoundedNumberOfCells() {
+    Random random = new Random(0);
+    GridHistogram histogram = new GridHistogram(100);
+    for (int i = 0; i < 10000; i++)
+      histogram.add(random.nextDouble() * 1000, random.nextDouble() * 1000);
+    assertEquals(10000, histogram.getTotalCount());
+    assertTrue(histogram.getNumCells() <= 100);
+  }
+
+  public void testMerge() {
+    Random random = new Random(0);
+    GridHistogram all = new GridHistogram(100);
+    GridHistogram[] parts = new GridHistogram[4];
+    for (int p = 0; p < parts.length; p++) {
+      parts[p] = new GridHistogram(100);
+      // Each part covers a different range to have different levels
+      double scale = Math.pow(10, p);
+      for (int i = 0; i < 1000; i++) {
+        double x = -random.nextDouble() * scale, y = random.nextDouble() * scale;
+        parts[p].add(x, y);
+        all.add(x, y);
+      }
+    }
+    GridHistogram merged = new GridHistogram(100);
+    for (GridHistogram part : parts)
+      merged.merge(part);
+    assertEquals(all.getTotalCount(), merged.getTotalCount());
+    assertTrue(merged.getNumCells() <= 100);
+    Rectangle mbr = new Rectangle(-1000, 0, 0, 1000);
+    Point[] points1 = all.generatePoints(mbr, 500, 0);
+    Point[] points2 = merged.generatePoints(mbr, 500, 0);
+    assertEquals(500, points1.length);
+    assertEquals(500, points2.length);
+  }
+
+  public void testGeneratePointsFollowsDistribution() {
+    Random random = new Random(0);
+    GridHistogram histogram = new GridHistogram(1000);
+    // 90% of the points are clustered in a small square
+    for (int i = 0; i < 100000; i++) {
+      if (i % 10 == 0)
+        histogram.add(random.nextDouble() * 1000, random.nextDouble() * 1000);
+      else
+        histogram.add(512 + random.nextDouble(), 512 + random.nextDouble());
+    }
+    Rectangle mbr = new Rectangle(0, 0, 1000, 1000);
+    Point[] points = histogram.generatePoints(mbr, 10000, 0);
+    assertEquals(10000, points.length);
+    // Cells are aligned at powers of two so the cluster falls in cells
+    // inside this square. It also contains 1.6% of the uniform points
+    Rectangle clusterCells = new Rectangle(512, 512, 640, 640);
+    int clustered = 0;
+    for (Point p : points) {
+      assertTrue(mbr.contains(p));
+      if (clusterCells.contains(p))
+        clustered++;
+    }
+    assertTrue(Math.abs(clustered - 9016) < 100);
+  }
+}